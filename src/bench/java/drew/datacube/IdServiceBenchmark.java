@@ -0,0 +1,77 @@
+package drew.datacube;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.idservices.CachingIdService;
+import com.urbanairship.datacube.idservices.MapIdService;
+
+import drew.datacube.cache.IdCache;
+
+/**
+ * getId latency of {@link MapIdService} on its own, behind a
+ * {@link CachingIdService} and behind an {@link IdCache}, for dimensions of
+ * increasing cardinality. Every value is assigned an id during setup, so the
+ * benchmark measures lookups.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IdServiceBenchmark {
+
+	@Param({ "map", "caching", "idcache" })
+	String service;
+
+	@Param({ "100", "10000", "1000000" })
+	int cardinality;
+
+	@Param({ "10000" })
+	int cacheSize;
+
+	static final int NUM_INPUTS = 1 << 16;
+
+	IdService idService;
+	byte[][] inputs = new byte[NUM_INPUTS][];
+	int next = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		MapIdService backing = new MapIdService();
+		if (service.equals("map")) {
+			idService = backing;
+		}
+		else if (service.equals("idcache")) {
+			idService = new IdCache(backing, cacheSize);
+		}
+		else {
+			idService = new CachingIdService(cacheSize, backing);
+		}
+
+		for (int i=0; i < cardinality; i++) {
+			backing.getId(0, value(i), 4);
+		}
+		Random random = new Random(42);
+		for (int i=0; i < NUM_INPUTS; i++) {
+			inputs[i] = value(random.nextInt(cardinality));
+		}
+	}
+
+	static byte[] value(int i) {
+		return ("city" + i).getBytes();
+	}
+
+	@Benchmark
+	public byte[] getId() throws Exception {
+		return idService.getId(0, inputs[next++ & (NUM_INPUTS - 1)], 4);
+	}
+}
@@ -0,0 +1,115 @@
+package drew.datacube;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.bucketers.StringToBytesBucketer;
+import com.urbanairship.datacube.dbharnesses.MapDbHarness;
+import com.urbanairship.datacube.idservices.CachingIdService;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+/**
+ * {@link MapDbHarness} throughput for synchronous writes, single gets and
+ * multiGets of 100 addresses with each commit type the map harness accepts.
+ * Writes go through {@link DataCubeIo#writeSync} and so include the fan-out
+ * to the cube's two rollups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MapDbHarnessBenchmark {
+
+	@Param({ "READ_COMBINE_CAS", "OVERWRITE" })
+	CommitType commitType;
+
+	static final int NUM_KEYS = 4096;
+	static final int MULTIGET_SIZE = 100;
+
+	Dimension<DateTime> time;
+	Dimension<String> zipcode;
+	DataCube<LongOp> cube;
+	DbHarness<LongOp> harness;
+	DataCubeIo<LongOp> cubeIo;
+
+	WriteBuilder[] writes = new WriteBuilder[NUM_KEYS];
+	Address[] addresses = new Address[NUM_KEYS];
+	List<List<Address>> multiGets = new ArrayList<List<Address>>();
+
+	@Setup
+	public void setup() throws Exception {
+		time = new Dimension<DateTime>("time", new HourDayMonthBucketer(), false, 8);
+		zipcode = new Dimension<String>("zipcode", new StringToBytesBucketer(), true, 5);
+		cube = new DataCube<LongOp>(ImmutableList.<Dimension<?>>of(time, zipcode),
+				ImmutableList.of(
+						new Rollup(zipcode, time, HourDayMonthBucketer.hours),
+						new Rollup(time, HourDayMonthBucketer.days)));
+		harness = new MapDbHarness<LongOp>(new ConcurrentHashMap<BoxedByteArray,byte[]>(),
+				LongOp.DESERIALIZER, commitType, new CachingIdService(10000, new MapIdService()));
+		cubeIo = new DataCubeIo<LongOp>(cube, harness, 1, Long.MAX_VALUE, SyncLevel.FULL_SYNC);
+
+		DateTime start = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+		for (int i=0; i < NUM_KEYS; i++) {
+			DateTime hour = start.plusHours(i / 64);
+			String zip = Integer.toString(10000 + (i % 64));
+			writes[i] = new WriteBuilder(cube).at(time, hour).at(zipcode, zip);
+			addresses[i] = new ReadBuilder(cube).at(time, HourDayMonthBucketer.hours, hour)
+				.at(zipcode, zip).build();
+			cubeIo.writeSync(new LongOp(1), writes[i]);
+		}
+		for (int i=0; i < NUM_KEYS; i += MULTIGET_SIZE) {
+			List<Address> batch = new ArrayList<Address>(MULTIGET_SIZE);
+			for (int j=0; j < MULTIGET_SIZE; j++) {
+				batch.add(addresses[(i + j * 37) % NUM_KEYS]);
+			}
+			multiGets.add(batch);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+	}
+
+	@Benchmark
+	public void writeSync(Cursor cursor) throws Exception {
+		cubeIo.writeSync(new LongOp(1), writes[cursor.next++ & (NUM_KEYS - 1)]);
+	}
+
+	@Benchmark
+	public Optional<LongOp> get(Cursor cursor) throws Exception {
+		return harness.get(addresses[cursor.next++ & (NUM_KEYS - 1)]);
+	}
+
+	@Benchmark
+	public List<Optional<LongOp>> multiGet(Cursor cursor) throws Exception {
+		return harness.multiGet(multiGets.get(cursor.next++ % multiGets.size()));
+	}
+}
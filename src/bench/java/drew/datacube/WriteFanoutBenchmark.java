@@ -0,0 +1,88 @@
+package drew.datacube;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.common.collect.ImmutableList;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.bucketers.StringToBytesBucketer;
+import com.urbanairship.datacube.ops.LongOp;
+
+/**
+ * Cost of building a {@link WriteBuilder} for a UFO style row and fanning it
+ * out to the addresses of every rollup with {@link DataCube#getWrites}, as
+ * the number of rollups grows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WriteFanoutBenchmark {
+
+	@Param({ "1", "2", "4", "8" })
+	int rollups;
+
+	static final String[] STATES = { "NJ", "NY", "WA", "IA", "OR", "CA", "TX", "FL" };
+
+	Dimension<DateTime> eventDate;
+	Dimension<String> city;
+	Dimension<String> state;
+	Dimension<String> shape;
+	DataCube<LongOp> cube;
+
+	DateTime[] dates = new DateTime[256];
+	LongOp one = new LongOp(1);
+	int next = 0;
+
+	@Setup
+	public void setup() {
+		HourDayMonthBucketer hourDayMonthBucketer = new HourDayMonthBucketer();
+		eventDate = new Dimension<DateTime>("eventDate", hourDayMonthBucketer, false, 8);
+		city = new Dimension<String>("city", StringToBytesBucketer.getInstance(), true, 10);
+		state = new Dimension<String>("state", StringToBytesBucketer.getInstance(), true, 6);
+		shape = new Dimension<String>("shape", StringToBytesBucketer.getInstance(), true, 5);
+
+		List<Rollup> all = ImmutableList.of(
+				new Rollup(eventDate, HourDayMonthBucketer.months),
+				new Rollup(state, eventDate, HourDayMonthBucketer.months),
+				new Rollup(eventDate, HourDayMonthBucketer.days),
+				new Rollup(state, eventDate, HourDayMonthBucketer.days),
+				new Rollup(state),
+				new Rollup(shape),
+				new Rollup(city, state),
+				new Rollup(shape, eventDate, HourDayMonthBucketer.months));
+		cube = new DataCube<LongOp>(ImmutableList.<Dimension<?>>of(eventDate, city, state, shape),
+				new ArrayList<Rollup>(all.subList(0, rollups)));
+
+		DateTime start = new DateTime(1995, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+		for (int i=0; i < dates.length; i++) {
+			dates[i] = start.plusDays(i * 3);
+		}
+	}
+
+	@Benchmark
+	public Batch<LongOp> fanout() {
+		int i = next++ & 255;
+		return cube.getWrites(new WriteBuilder(cube)
+				.at(eventDate, dates[i])
+				.at(city, "City" + (i & 31))
+				.at(state, STATES[i & 7])
+				.at(shape, "light"), one);
+	}
+}
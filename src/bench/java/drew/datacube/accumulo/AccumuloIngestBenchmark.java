@@ -0,0 +1,96 @@
+package drew.datacube.accumulo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.collect.ImmutableList;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.bucketers.StringToBytesBucketer;
+import com.urbanairship.datacube.idservices.CachingIdService;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+/**
+ * Rows written with writeAsync through a DataCubeIo of batchSize into an
+ * {@link AccumuloDbHarness} over a MockInstance, flushed at the end of each
+ * invocation, so the score is rows per millisecond. Each row touches three
+ * rollups. The queue holds an invocation's worth of batches, so that small
+ * batches are queued rather than refused. The mock table keeps every delta
+ * until scanned, so each iteration starts on a new one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AccumuloIngestBenchmark {
+
+	static final int ROWS = 10000;
+
+	@Param({ "1", "100", "1000" })
+	int batchSize;
+
+	Dimension<DateTime> time = new Dimension<DateTime>("time", new HourDayMonthBucketer(), false, 8);
+	Dimension<String> zipcode = new Dimension<String>("zipcode", new StringToBytesBucketer(), true, 5);
+	DataCube<LongOp> cube = new DataCube<LongOp>(
+			ImmutableList.<Dimension<?>>of(time, zipcode),
+			ImmutableList.of(
+					new Rollup(zipcode, time, HourDayMonthBucketer.hours),
+					new Rollup(zipcode, time, HourDayMonthBucketer.days),
+					new Rollup(time, HourDayMonthBucketer.days)));
+
+	DateTime start = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+	String[] zips = new String[100];
+	int iteration = 0;
+
+	AccumuloDbHarness<LongOp> harness;
+	DataCubeIo<LongOp> cubeIo;
+
+	@Setup(Level.Iteration)
+	public void setup() throws Exception {
+		for (int z=0; z < zips.length; z++) {
+			zips[z] = Integer.toString(10000 + z);
+		}
+		harness = new AccumuloDbHarness<LongOp>(
+				new MockInstance("ingest" + batchSize + "_" + iteration++).getConnector("root", new byte[0]),
+				"myCube".getBytes(), "cubeData", "fam".getBytes(), LongOp.DESERIALIZER,
+				new CachingIdService(1000, new MapIdService()), CommitType.INCREMENT,
+				AccumuloDbHarness.DEFAULT_FLUSH_THREADS, ROWS);
+		cubeIo = new DataCubeIo<LongOp>(cube, harness, batchSize, Long.MAX_VALUE, SyncLevel.BATCH_ASYNC);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws Exception {
+		harness.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void writeAsync() throws Exception {
+		for (int i=0; i < ROWS; i++) {
+			cubeIo.writeAsync(new LongOp(1), new WriteBuilder(cube)
+					.at(time, start.plusHours(i % 48))
+					.at(zipcode, zips[i % zips.length]));
+		}
+		cubeIo.flush();
+	}
+}
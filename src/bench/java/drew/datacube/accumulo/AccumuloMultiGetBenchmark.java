@@ -0,0 +1,112 @@
+package drew.datacube.accumulo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.bucketers.StringToBytesBucketer;
+import com.urbanairship.datacube.idservices.CachingIdService;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+/**
+ * Reads a few hundred hour cells from an {@link AccumuloDbHarness} over a
+ * MockInstance, either with one multiGet, whose batch scanner runs on
+ * queryThreads threads, or with a get per address. A tenth of the addresses
+ * were never written. The score is the time to read all of them. A
+ * MockInstance scans in the client, so this compares the client side cost of
+ * the two paths, not round trips to tablet servers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AccumuloMultiGetBenchmark {
+
+	static final int CELLS = 300;
+
+	@Param({ "1", "4", "8" })
+	int queryThreads;
+
+	AccumuloDbHarness<LongOp> harness;
+	List<Address> addresses;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Dimension<DateTime> time = new Dimension<DateTime>("time", new HourDayMonthBucketer(), false, 8);
+		Dimension<String> zipcode = new Dimension<String>("zipcode", new StringToBytesBucketer(), true, 5);
+		DataCube<LongOp> cube = new DataCube<LongOp>(
+				ImmutableList.<Dimension<?>>of(time, zipcode),
+				ImmutableList.of(
+						new Rollup(zipcode, time, HourDayMonthBucketer.hours),
+						new Rollup(time, HourDayMonthBucketer.days)));
+
+		harness = new AccumuloDbHarness<LongOp>(
+				new MockInstance("multiGet" + queryThreads).getConnector("root", new byte[0]),
+				"myCube".getBytes(), "cubeData", "fam".getBytes(), LongOp.DESERIALIZER,
+				new CachingIdService(1000, new MapIdService()), CommitType.INCREMENT);
+		harness.setQueryThreads(queryThreads);
+
+		DateTime start = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+		DataCubeIo<LongOp> cubeIo = new DataCubeIo<LongOp>(cube, harness, 500, Long.MAX_VALUE,
+				SyncLevel.BATCH_ASYNC);
+		addresses = new ArrayList<Address>();
+		for (int i=0; i < CELLS; i++) {
+			DateTime hour = start.plusHours(i);
+			if (i % 10 == 0) {
+				hour = hour.minusYears(1);
+			}
+			else {
+				cubeIo.writeAsync(new LongOp(i), new WriteBuilder(cube).at(time, hour).at(zipcode, "97201"));
+			}
+			addresses.add(new ReadBuilder(cube)
+					.at(time, HourDayMonthBucketer.hours, hour)
+					.at(zipcode, "97201").build());
+		}
+		cubeIo.flush();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		harness.shutdown();
+	}
+
+	@Benchmark
+	public List<Optional<LongOp>> multiGet() throws Exception {
+		return harness.multiGet(addresses);
+	}
+
+	@Benchmark
+	public List<Optional<LongOp>> getEach() throws Exception {
+		List<Optional<LongOp>> results = new ArrayList<Optional<LongOp>>(addresses.size());
+		for (Address address: addresses) {
+			results.add(harness.get(address));
+		}
+		return results;
+	}
+}
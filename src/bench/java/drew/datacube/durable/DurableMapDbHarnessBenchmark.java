@@ -0,0 +1,100 @@
+package drew.datacube.durable;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.collect.ImmutableList;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.bucketers.StringToBytesBucketer;
+import com.urbanairship.datacube.idservices.CachingIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+/**
+ * {@link DurableMapDbHarness} write throughput with every batch forced to
+ * disk (syncIntervalMs 0, group committed across benchmark threads) and with
+ * the log forced every 100ms, to compare with
+ * {@link drew.datacube.MapDbHarnessBenchmark}. Run with -t to see group
+ * commit at work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DurableMapDbHarnessBenchmark {
+
+	@Param({ "0", "100" })
+	long syncIntervalMs;
+
+	static final int NUM_KEYS = 4096;
+
+	File dir;
+	DurableIdService idService;
+	DurableMapDbHarness<LongOp> harness;
+	DataCubeIo<LongOp> cubeIo;
+	WriteBuilder[] writes = new WriteBuilder[NUM_KEYS];
+
+	@Setup
+	public void setup() throws Exception {
+		Dimension<DateTime> time = new Dimension<DateTime>("time", new HourDayMonthBucketer(), false, 8);
+		Dimension<String> zipcode = new Dimension<String>("zipcode", new StringToBytesBucketer(), true, 5);
+		DataCube<LongOp> cube = new DataCube<LongOp>(ImmutableList.<Dimension<?>>of(time, zipcode),
+				ImmutableList.of(
+						new Rollup(zipcode, time, HourDayMonthBucketer.hours),
+						new Rollup(time, HourDayMonthBucketer.days)));
+
+		dir = File.createTempFile("durable_bench", "");
+		dir.delete();
+		idService = new DurableIdService(new File(dir, "ids"));
+		harness = new DurableMapDbHarness<LongOp>(dir, LongOp.DESERIALIZER, CommitType.READ_COMBINE_CAS,
+				new CachingIdService(10000, idService), syncIntervalMs, 0);
+		cubeIo = new DataCubeIo<LongOp>(cube, harness, 1, Long.MAX_VALUE, SyncLevel.FULL_SYNC);
+
+		DateTime start = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+		for (int i=0; i < NUM_KEYS; i++) {
+			writes[i] = new WriteBuilder(cube).at(time, start.plusHours(i / 64))
+					.at(zipcode, Integer.toString(10000 + (i % 64)));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		harness.close();
+		idService.close();
+		for (File f: new File(dir, "ids").listFiles()) {
+			f.delete();
+		}
+		new File(dir, "ids").delete();
+		for (File f: dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+	}
+
+	@Benchmark
+	public void writeSync(Cursor cursor) throws Exception {
+		cubeIo.writeSync(new LongOp(1), writes[cursor.next++ & (NUM_KEYS - 1)]);
+	}
+}
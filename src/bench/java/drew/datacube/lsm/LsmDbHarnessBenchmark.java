@@ -0,0 +1,223 @@
+package drew.datacube.lsm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.bucketers.StringToBytesBucketer;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.MapDbHarness;
+import com.urbanairship.datacube.idservices.CachingIdService;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.backfill.CellStore.CellVisitor;
+
+/**
+ * {@link LsmDbHarness} against {@link MapDbHarness} on cubes sized relative
+ * to the heap, which the fork caps at 256MB: scale is how many times the
+ * heap the map harness would need to hold every cell, so at 10 only the lsm
+ * harness can load the cube and the map runs fail in setup.
+ * <p>
+ * Cells are hours of ZIPS zipcodes, loaded in time order as a cube is
+ * ingested. write adds a batch of 100 increments to the last day's hours,
+ * where new counts land; get reads a random cell; readHour totals one
+ * random hour, a range scan for the lsm harness and a multiGet of the
+ * hour's addresses for the map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+public class LsmDbHarnessBenchmark {
+
+	@Param({ "map", "lsm" })
+	String harnessType;
+
+	@Param({ "0.5", "10" })
+	double scale;
+
+	/**
+	 * About what a cell costs the map harness: the map entry, the boxed key
+	 * and the key and value arrays.
+	 */
+	static final int MAP_BYTES_PER_CELL = 160;
+	static final int ZIPS = 1000;
+	static final int LOAD_BATCH = 1000;
+	static final int WRITE_BATCH = 100;
+
+	static final DateTime START = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+
+	Dimension<DateTime> time;
+	Dimension<String> zipcode;
+	DataCube<LongOp> cube;
+	IdService idService;
+	DbHarness<LongOp> harness;
+	LsmDbHarness lsm;
+	File dir;
+	int hours;
+	String[] zips = new String[ZIPS];
+
+	@Setup
+	public void setup() throws Exception {
+		time = new Dimension<DateTime>("time", new HourDayMonthBucketer(), false, 8);
+		zipcode = new Dimension<String>("zipcode", new StringToBytesBucketer(), true, 5);
+		cube = new DataCube<LongOp>(ImmutableList.<Dimension<?>>of(time, zipcode),
+				ImmutableList.of(new Rollup(zipcode, time, HourDayMonthBucketer.hours)));
+		idService = new CachingIdService(ZIPS * 2, new MapIdService());
+		for (int z=0; z < ZIPS; z++) {
+			zips[z] = Integer.toString(10000 + z);
+		}
+
+		long maxHeap = Runtime.getRuntime().maxMemory();
+		long cells = (long) (scale * maxHeap / MAP_BYTES_PER_CELL);
+		hours = (int) Math.max(48, cells / ZIPS);
+		if (harnessType.equals("map")) {
+			if (cells * MAP_BYTES_PER_CELL > maxHeap * 3 / 4) {
+				throw new IllegalStateException((long) hours * ZIPS + " cells need about "
+						+ (cells * MAP_BYTES_PER_CELL >> 20) + "MB in the map harness, more than the "
+						+ (maxHeap >> 20) + "MB heap");
+			}
+			harness = new MapDbHarness<LongOp>(new ConcurrentHashMap<BoxedByteArray,byte[]>(),
+					LongOp.DESERIALIZER, CommitType.READ_COMBINE_CAS, idService);
+		}
+		else {
+			dir = File.createTempFile("lsm_bench", "");
+			dir.delete();
+			lsm = new LsmDbHarness(dir, idService, CommitType.INCREMENT, 200000, 1000);
+			harness = lsm;
+		}
+
+		long start = System.currentTimeMillis();
+		Map<Address,LongOp> batch = new HashMap<Address,LongOp>();
+		for (int h=0; h < hours; h++) {
+			for (int z=0; z < ZIPS; z++) {
+				batch.put(address(h, z), new LongOp(1));
+				if (batch.size() == LOAD_BATCH) {
+					run(batch);
+					batch = new HashMap<Address,LongOp>();
+				}
+			}
+		}
+		run(batch);
+		if (lsm != null) {
+			lsm.flushMemtables();
+			System.out.println();
+			System.out.println("Loaded " + (long) hours * ZIPS + " cells in " + (System.currentTimeMillis() - start)
+					+ "ms: " + lsm.getStats() + ", write amplification " + lsm.getStats().getWriteAmplification());
+		}
+	}
+
+	Address address(int hour, int zip) {
+		return new ReadBuilder(cube).at(time, HourDayMonthBucketer.hours, START.plusHours(hour))
+				.at(zipcode, zips[zip]).build();
+	}
+
+	void run(Map<Address,LongOp> cells) throws Exception {
+		harness.runBatchAsync(new Batch<LongOp>(cells), new AfterExecute<LongOp>() {
+			public void afterExecute(Throwable t) {
+			}
+		}).get();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (lsm != null) {
+			System.out.println();
+			System.out.println(lsm.getStats());
+			lsm.close();
+			deleteAll(dir);
+		}
+	}
+
+	static void deleteAll(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child: children) {
+				deleteAll(child);
+			}
+		}
+		f.delete();
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		long next = 0x9e3779b97f4a7c15L;
+
+		int nextInt(int bound) {
+			next ^= next << 13;
+			next ^= next >>> 7;
+			next ^= next << 17;
+			return (int) ((next >>> 1) % bound);
+		}
+	}
+
+	@Benchmark
+	public void write(Cursor cursor) throws Exception {
+		Map<Address,LongOp> cells = new HashMap<Address,LongOp>();
+		while (cells.size() < WRITE_BATCH) {
+			cells.put(address(hours - 1 - cursor.nextInt(24), cursor.nextInt(ZIPS)), new LongOp(1));
+		}
+		run(cells);
+	}
+
+	@Benchmark
+	public Optional<LongOp> get(Cursor cursor) throws Exception {
+		return harness.get(address(cursor.nextInt(hours), cursor.nextInt(ZIPS)));
+	}
+
+	@Benchmark
+	public long readHour(Cursor cursor) throws Exception {
+		int hour = cursor.nextInt(hours);
+		if (lsm != null) {
+			final long[] total = new long[1];
+			lsm.scan(address(hour, 0).toKey(idService), address(hour + 1, 0).toKey(idService),
+					new CellVisitor<LongOp>() {
+						public boolean visit(byte[] key, LongOp value) {
+							total[0] += value.getLong();
+							return true;
+						}
+					});
+			return total[0];
+		}
+		List<Address> addresses = new ArrayList<Address>(ZIPS);
+		for (int z=0; z < ZIPS; z++) {
+			addresses.add(address(hour, z));
+		}
+		long total = 0;
+		for (Optional<LongOp> value: harness.multiGet(addresses)) {
+			total += value.isPresent() ? value.get().getLong() : 0;
+		}
+		return total;
+	}
+}
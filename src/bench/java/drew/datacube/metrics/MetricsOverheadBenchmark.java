@@ -0,0 +1,141 @@
+package drew.datacube.metrics;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.ops.LongOp;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import drew.datacube.config.ConfiguredCube;
+import drew.datacube.config.CubeBuilder;
+import drew.ufo.generator.UFODataGenerator;
+import drew.ufo.reader.UFODataEntry;
+import drew.ufo.reader.UFODataReader;
+
+/**
+ * The cost of {@link CubeMetrics} on the hot paths, with metrics off and on:
+ * single writes through the DataCubeIo of the map harness, synchronous with
+ * a batch per write or asynchronous in batches of 1000, reads of single
+ * cells, and rows parsed by UFODataReader, which ignores io, from a file
+ * with no malformed lines so that every row counts as an operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MetricsOverheadBenchmark {
+
+	@Param({ "off", "on" })
+	String metrics;
+
+	@Param({ "sync", "async" })
+	String io;
+
+	static final int ZIPS = 1000;
+	static final int HOURS = 24 * 30;
+	static final int ROWS = 100000;
+	static final DateTime START = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+
+	ConfiguredCube configured;
+	CubeMetrics readerMetrics;
+	Dimension<DateTime> time;
+	Dimension<String> zipcode;
+	String[] zips = new String[ZIPS];
+	File file;
+
+	@Setup
+	public void setup() throws Exception {
+		CubeBuilder builder = CubeBuilder.load("simple-cube.properties");
+		if (io.equals("async")) {
+			builder.set("io.batchSize", 1000).set("io.syncLevel", "BATCH_ASYNC");
+		}
+		if (metrics.equals("on")) {
+			MetricsRegistry registry = new MetricsRegistry();
+			builder.setMetricsRegistry(registry);
+			readerMetrics = new CubeMetrics(registry, "ufo");
+		}
+		configured = builder.build();
+		time = configured.getDimension("time");
+		zipcode = configured.getDimension("zipcode");
+		for (int z=0; z < ZIPS; z++) {
+			zips[z] = Integer.toString(10000 + z);
+			configured.getCubeIo().writeSync(new LongOp(1), new WriteBuilder(configured.getCube())
+					.at(time, START).at(zipcode, zips[z]));
+		}
+
+		file = File.createTempFile("ufo_generated", ".tsv");
+		file.deleteOnExit();
+		UFODataGenerator generator = new UFODataGenerator();
+		generator.setMalformedRatio(0);
+		generator.write(file, ROWS);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		configured.close();
+		if (readerMetrics != null) {
+			readerMetrics.remove();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		long next = 0x9e3779b97f4a7c15L;
+
+		int nextInt(int bound) {
+			next ^= next << 13;
+			next ^= next >>> 7;
+			next ^= next << 17;
+			return (int) ((next >>> 1) % bound);
+		}
+	}
+
+	@Benchmark
+	public void write(Cursor cursor) throws Exception {
+		WriteBuilder at = new WriteBuilder(configured.getCube())
+				.at(time, START.plusHours(cursor.nextInt(HOURS))).at(zipcode, zips[cursor.nextInt(ZIPS)]);
+		if (io.equals("async")) {
+			configured.getCubeIo().writeAsync(new LongOp(1), at);
+		}
+		else {
+			configured.getCubeIo().writeSync(new LongOp(1), at);
+		}
+	}
+
+	@Benchmark
+	public Optional<LongOp> get(Cursor cursor) throws Exception {
+		return configured.getCubeIo().get(new ReadBuilder(configured.getCube())
+				.at(time, HourDayMonthBucketer.hours, START).at(zipcode, zips[cursor.nextInt(ZIPS)]));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void readRows(Blackhole blackhole) throws Exception {
+		UFODataReader reader = new UFODataReader(file);
+		if (readerMetrics != null) {
+			readerMetrics.meter(reader);
+		}
+		for (UFODataEntry entry: reader) {
+			blackhole.consume(entry);
+		}
+		reader.close();
+	}
+}
@@ -0,0 +1,132 @@
+package drew.datacube.offheap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.bucketers.StringToBytesBucketer;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.MapDbHarness;
+import com.urbanairship.datacube.idservices.CachingIdService;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+/**
+ * Compares {@link MapDbHarness} over a ConcurrentHashMap with
+ * {@link OffHeapDbHarness} for applying write batches and reading cells.
+ * Batches and addresses are built up front so only the harness is measured.
+ * Run with -prof gc to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DbHarnessBenchmark {
+
+	@Param({ "map", "offheap" })
+	String harnessType;
+
+	@Param({ "100000" })
+	int cells;
+
+	static final int NUM_BATCHES = 1024;
+
+	DbHarness<LongOp> harness;
+	Batch<LongOp>[] batches;
+	Address[] addresses;
+
+	static final AfterExecute<LongOp> NO_OP = new AfterExecute<LongOp>() {
+		public void afterExecute(Throwable t) { }
+	};
+
+	@SuppressWarnings("unchecked")
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Dimension<DateTime> time = new Dimension<DateTime>("time", new HourDayMonthBucketer(), false, 8);
+		Dimension<String> zipcode = new Dimension<String>("zipcode", new StringToBytesBucketer(), true, 4);
+		DataCube<LongOp> cube = new DataCube<LongOp>(
+				ImmutableList.<Dimension<?>>of(time, zipcode),
+				ImmutableList.of(
+						new Rollup(zipcode, time, HourDayMonthBucketer.hours),
+						new Rollup(time, HourDayMonthBucketer.days)));
+
+		IdService idService = new CachingIdService(100000, new MapIdService());
+		if (harnessType.equals("map")) {
+			harness = new MapDbHarness<LongOp>(new ConcurrentHashMap<BoxedByteArray,byte[]>(),
+					LongOp.DESERIALIZER, CommitType.READ_COMBINE_CAS, idService);
+		}
+		else {
+			harness = new OffHeapDbHarness(64, cells * 2, idService, CommitType.INCREMENT);
+		}
+
+		// every batch touches 100 hour cells spread over the whole cell space
+		DateTime start = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+		int zips = 1000;
+		batches = new Batch[NUM_BATCHES];
+		addresses = new Address[NUM_BATCHES];
+		for (int b=0; b < NUM_BATCHES; b++) {
+			batches[b] = new Batch<LongOp>();
+			for (int i=0; i < 100; i++) {
+				int cell = (b * 7919 + i * 104729) % cells;
+				batches[b].putAll(cube.getWrites(new WriteBuilder(cube)
+						.at(time, start.plusHours(cell / zips))
+						.at(zipcode, Integer.toString(cell % zips)), new LongOp(1)));
+			}
+			int cell = (b * 7919) % cells;
+			addresses[b] = new ReadBuilder(cube)
+				.at(time, HourDayMonthBucketer.hours, start.plusHours(cell / zips))
+				.at(zipcode, Integer.toString(cell % zips))
+				.build();
+		}
+		for (Batch<LongOp> batch: batches) {
+			harness.runBatchAsync(batch, NO_OP).get();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (harness instanceof OffHeapDbHarness) {
+			((OffHeapDbHarness) harness).close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+	}
+
+	@Benchmark
+	public Object runBatch(Cursor cursor) throws Exception {
+		return harness.runBatchAsync(batches[cursor.next++ & (NUM_BATCHES - 1)], NO_OP).get();
+	}
+
+	@Benchmark
+	public Optional<LongOp> get(Cursor cursor) throws Exception {
+		return harness.get(addresses[cursor.next++ & (NUM_BATCHES - 1)]);
+	}
+}
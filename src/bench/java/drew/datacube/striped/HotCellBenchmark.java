@@ -0,0 +1,113 @@
+package drew.datacube.striped;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.collect.ImmutableList;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.MapDbHarness;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+/**
+ * Many writer threads incrementing one daily rollup cell, comparing
+ * {@link MapDbHarness} with READ_COMBINE_CAS against {@link StripedDbHarness}.
+ * Each invocation splits a fixed number of increments across the writer
+ * threads, so the score is the time per increment for the whole group.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HotCellBenchmark {
+
+	static final int INCREMENTS = 1 << 16;
+
+	@Param({ "map", "striped" })
+	String harnessType;
+
+	@Param({ "1", "2", "4", "8", "16", "32" })
+	int writers;
+
+	DbHarness<LongOp> harness;
+	Batch<LongOp> hotBatch;
+	ExecutorService executor;
+	List<Callable<Object>> tasks;
+
+	static final AfterExecute<LongOp> NO_OP = new AfterExecute<LongOp>() {
+		public void afterExecute(Throwable t) { }
+	};
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Dimension<DateTime> time = new Dimension<DateTime>("time", new HourDayMonthBucketer(), false, 8);
+		DataCube<LongOp> cube = new DataCube<LongOp>(ImmutableList.<Dimension<?>>of(time),
+				ImmutableList.of(new Rollup(time, HourDayMonthBucketer.days)));
+
+		IdService idService = new MapIdService();
+		if (harnessType.equals("map")) {
+			harness = new MapDbHarness<LongOp>(new ConcurrentHashMap<BoxedByteArray,byte[]>(),
+					LongOp.DESERIALIZER, CommitType.READ_COMBINE_CAS, idService);
+		}
+		else {
+			harness = new StripedDbHarness(idService, CommitType.INCREMENT);
+		}
+		hotBatch = cube.getWrites(new WriteBuilder(cube)
+				.at(time, new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC)), new LongOp(1));
+
+		executor = Executors.newFixedThreadPool(writers);
+		tasks = new ArrayList<Callable<Object>>(writers);
+		for (int i=0; i < writers; i++) {
+			tasks.add(new Callable<Object>() {
+				public Object call() throws Exception {
+					for (int n=INCREMENTS / writers; n > 0; n--) {
+						harness.runBatchAsync(hotBatch, NO_OP);
+					}
+					return null;
+				}
+			});
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INCREMENTS)
+	public void increment() throws Exception {
+		for (Future<Object> future: executor.invokeAll(tasks)) {
+			future.get();
+		}
+	}
+}
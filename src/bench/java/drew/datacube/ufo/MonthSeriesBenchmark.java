@@ -0,0 +1,80 @@
+package drew.datacube.ufo;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import drew.ufo.generator.UFODataGenerator;
+import drew.ufo.reader.UFODataEntry;
+import drew.ufo.reader.UFODataReader;
+
+/**
+ * A month by month chart of a year or a decade, read with one
+ * {@link SimpleUFODatacube#getEventMonthCount} per month as
+ * SimpleUFODatacube.main used to, and with a single
+ * {@link SimpleUFODatacube#getEventMonthSeries} multiGet. With closed set
+ * the months are behind the read cache's watermark, so after the first
+ * iteration the harness is not read at all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MonthSeriesBenchmark {
+
+	@Param({ "12", "120" })
+	int months;
+
+	@Param({ "false", "true" })
+	boolean closed;
+
+	SimpleUFODatacube cube;
+	DateTime from;
+	DateTime to;
+
+	@Setup
+	public void setup() throws Exception {
+		File file = File.createTempFile("ufo_generated", ".tsv");
+		file.deleteOnExit();
+		UFODataGenerator generator = new UFODataGenerator();
+		generator.setDateRange(new LocalDate(2000, 1, 1), new LocalDate(2009, 12, 31));
+		generator.write(file, 50000);
+
+		cube = new SimpleUFODatacube();
+		UFODataReader reader = new UFODataReader(file);
+		for (UFODataEntry entry: reader) {
+			cube.addUFOEntry(entry);
+		}
+		reader.close();
+
+		if (closed) {
+			cube.setClosedBefore(new DateTime(2010, 1, 1, 0, 0, 0, 0));
+		}
+
+		from = new DateTime(2000, 1, 1, 1, 0, 0, 0);
+		to = from.plusMonths(months - 1);
+	}
+
+	@Benchmark
+	public long[] loop() throws Exception {
+		long[] counts = new long[months];
+		for (int i=0; i < months; i++) {
+			counts[i] = cube.getEventMonthCount(from.plusMonths(i));
+		}
+		return counts;
+	}
+
+	@Benchmark
+	public long[] series() throws Exception {
+		return cube.getEventMonthSeries(from, to);
+	}
+}
@@ -0,0 +1,59 @@
+package drew.ufo.reader;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares the original SimpleDateFormat date parsing with
+ * {@link UFODataParser#parseDate(String)} over dates spread across the
+ * twenty years most of the UFO data falls in.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParseDateBenchmark {
+
+	String[] dates = new String[4096];
+	int next = 0;
+
+	DateFormat format;
+	UFODataParser parser;
+
+	@Setup
+	public void setup() {
+		format = new SimpleDateFormat("yyyyMMdd");
+		parser = new UFODataParser();
+
+		Random random = new Random(42);
+		for (int i=0; i < dates.length; i++) {
+			dates[i] = String.format("%04d%02d%02d", 1990 + random.nextInt(20),
+					1 + random.nextInt(12), 1 + random.nextInt(28));
+		}
+	}
+
+	String nextDate() {
+		return dates[next++ & (dates.length - 1)];
+	}
+
+	@Benchmark
+	public DateTime simpleDateFormat() throws ParseException {
+		return new DateTime(format.parse(nextDate()).getTime());
+	}
+
+	@Benchmark
+	public DateTime dayCache() throws ParseException {
+		return parser.parseDate(nextDate());
+	}
+}
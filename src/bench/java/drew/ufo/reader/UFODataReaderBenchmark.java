@@ -0,0 +1,101 @@
+package drew.ufo.reader;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import drew.ufo.generator.UFODataGenerator;
+
+/**
+ * Parsing throughput of {@link UFODataReader}'s UFODataIterator and of
+ * {@link MappedUFODataReader} over the same file from
+ * {@link UFODataGenerator}, and of {@link UFOSnapshotReader} over a snapshot
+ * of it, reported per row. The file has no malformed lines, so every row
+ * is parsed and returned. Run with -prof gc to compare the bytes allocated
+ * per row by the compact iterator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UFODataReaderBenchmark {
+
+	static final int ROWS = 100000;
+
+	File file;
+	File snapshot;
+	UFODictionaries dictionaries = new UFODictionaries();
+
+	@Setup
+	public void setup() throws Exception {
+		file = File.createTempFile("ufo_generated", ".tsv");
+		file.deleteOnExit();
+		UFODataGenerator generator = new UFODataGenerator();
+		generator.setMalformedRatio(0);
+		generator.write(file, ROWS);
+
+		snapshot = File.createTempFile("ufo_generated", ".snapshot");
+		snapshot.deleteOnExit();
+		UFOSnapshotWriter writer = new UFOSnapshotWriter(snapshot);
+		UFODataReader reader = new UFODataReader(file);
+		writer.addAll(reader.iterator());
+		writer.close();
+		reader.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void dataIterator(Blackhole blackhole) throws Exception {
+		UFODataReader reader = new UFODataReader(file);
+		for (UFODataEntry entry: reader) {
+			blackhole.consume(entry);
+		}
+		reader.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void mappedReader(Blackhole blackhole) throws Exception {
+		MappedUFODataReader reader = new MappedUFODataReader(file);
+		for (UFODataEntry entry: reader) {
+			blackhole.consume(entry);
+		}
+		reader.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void compactIterator(Blackhole blackhole) throws Exception {
+		MappedUFODataReader reader = new MappedUFODataReader(file);
+		Iterator<CompactUFOEntry> it = reader.compactIterator(dictionaries);
+		while (it.hasNext()) {
+			CompactUFOEntry entry = it.next();
+			blackhole.consume(entry.getCityCode());
+			blackhole.consume(entry.getEventDay());
+		}
+		reader.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void snapshotReader(Blackhole blackhole) throws Exception {
+		UFOSnapshotReader reader = new UFOSnapshotReader(snapshot);
+		reader.setDimensionFieldsOnly(true);
+		Iterator<CompactUFOEntry> it = reader.compactIterator();
+		while (it.hasNext()) {
+			CompactUFOEntry entry = it.next();
+			blackhole.consume(entry.getCityCode());
+			blackhole.consume(entry.getEventDay());
+		}
+		reader.close();
+	}
+}
@@ -1,76 +1,34 @@
 package drew.datacube;
 
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-
 import junit.framework.Assert;
 
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
 import com.google.common.base.Optional;
-import com.google.common.collect.ImmutableList;
-import com.urbanairship.datacube.BoxedByteArray;
 import com.urbanairship.datacube.DataCube;
 import com.urbanairship.datacube.DataCubeIo;
-import com.urbanairship.datacube.DbHarness;
-import com.urbanairship.datacube.DbHarness.CommitType;
 import com.urbanairship.datacube.Dimension;
-import com.urbanairship.datacube.IdService;
 import com.urbanairship.datacube.ReadBuilder;
-import com.urbanairship.datacube.Rollup;
-import com.urbanairship.datacube.SyncLevel;
 import com.urbanairship.datacube.WriteBuilder;
 import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
-import com.urbanairship.datacube.bucketers.StringToBytesBucketer;
-import com.urbanairship.datacube.dbharnesses.MapDbHarness;
-import com.urbanairship.datacube.idservices.CachingIdService;
-import com.urbanairship.datacube.idservices.HBaseIdService;
-import com.urbanairship.datacube.idservices.MapIdService;
 import com.urbanairship.datacube.ops.LongOp;
 
+import drew.datacube.config.ConfiguredCube;
+import drew.datacube.config.CubeBuilder;
+
 public class AccumuloDatacube {
 	public static void main(String[] args) throws Exception {
 		
-		Configuration conf = HBaseConfiguration.create();
-		
-		IdService hbaseIdService = new HBaseIdService(conf, 
-				"cubeLookup".getBytes(),
-				"cubeCounter".getBytes(),
-				"fam".getBytes(),
-				"myCube".getBytes());
-		
-		IdService idService = new CachingIdService(5, hbaseIdService);
-		ConcurrentMap<BoxedByteArray,byte[]> backingMap = 
-		        new ConcurrentHashMap<BoxedByteArray, byte[]>();
-
-		DbHarness<LongOp> dbHarness = new MapDbHarness<LongOp>(backingMap, LongOp.DESERIALIZER, 
-		        CommitType.READ_COMBINE_CAS, idService);
-
-		HourDayMonthBucketer hourDayMonthBucketer = new HourDayMonthBucketer();
+		// dimensions, rollups, harness and batching come from the properties,
+		// pass another file to override them
+		ConfiguredCube configured = CubeBuilder.load(args.length > 0 ? args[0] : "accumulo-cube.properties").build();
 
-		Dimension<DateTime> time = new Dimension<DateTime>("time", hourDayMonthBucketer, false, 8);
-		Dimension<String> zipcode = new Dimension<String>("zipcode", new StringToBytesBucketer(), 
-		        true, 5);
+		Dimension<DateTime> time = configured.getDimension("time");
+		Dimension<String> zipcode = configured.getDimension("zipcode");
 
-		DataCubeIo<LongOp> cubeIo = null;
-		DataCube<LongOp> cube;
-
-		Rollup hourAndZipRollup = new Rollup(zipcode, time, HourDayMonthBucketer.hours);
-		Rollup dayAndZipRollup = new Rollup(zipcode, time, HourDayMonthBucketer.days);
-		Rollup hourRollup = new Rollup(time, HourDayMonthBucketer.hours);
-		Rollup dayRollup = new Rollup(time, HourDayMonthBucketer.days);
-
-		List<Dimension<?>> dimensions =  ImmutableList.<Dimension<?>>of(time, zipcode);
-		List<Rollup> rollups = ImmutableList.of(hourAndZipRollup, dayAndZipRollup, hourRollup,
-		        dayRollup);
-
-		cube = new DataCube<LongOp>(dimensions, rollups);
-
-		cubeIo = new DataCubeIo<LongOp>(cube, dbHarness, 1, Long.MAX_VALUE, SyncLevel.FULL_SYNC);
+		DataCube<LongOp> cube = configured.getCube();
+		DataCubeIo<LongOp> cubeIo = configured.getCubeIo();
 
 		DateTime now = new DateTime(DateTimeZone.UTC);
 
@@ -105,5 +63,7 @@ public class AccumuloDatacube {
 		        .at(zipcode, "97201"));
 		Assert.assertTrue(todayCount.isPresent());
 		Assert.assertEquals(15L, todayCount.get().getLong());
+		
+		configured.close();
 	}
 }
@@ -0,0 +1,33 @@
+package drew.datacube;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Futures for harnesses that apply a batch before runBatchAsync returns.
+ */
+public class HarnessFutures {
+
+	/**
+	 * A batch that was applied.
+	 */
+	public static final Future<?> DONE = completed(null);
+
+	/**
+	 * An already finished future whose get() throws failure, wrapped in an
+	 * ExecutionException, or returns null if failure is null.
+	 */
+	public static Future<?> completed(final Exception failure) {
+		FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+			public Object call() throws Exception {
+				if (failure != null) {
+					throw failure;
+				}
+				return null;
+			}
+		});
+		task.run();
+		return task;
+	}
+}
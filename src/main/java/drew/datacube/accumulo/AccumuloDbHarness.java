@@ -1,47 +1,428 @@
 package drew.datacube.accumulo;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableExistsException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.LongCombiner;
+import org.apache.accumulo.core.iterators.user.SummingCombiner;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
 
 import com.google.common.base.Optional;
 import com.urbanairship.datacube.Address;
 import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.BoxedByteArray;
 import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.Deserializer;
+import com.urbanairship.datacube.IdService;
 import com.urbanairship.datacube.Op;
 import com.urbanairship.datacube.dbharnesses.AfterExecute;
 import com.urbanairship.datacube.dbharnesses.FullQueueException;
 
-public class AccumuloDbHarness<T extends Op> implements DbHarness<T> {
-	
-	public AccumuloDbHarness() {
-		
+import drew.datacube.backfill.CellStore;
+import drew.datacube.keys.AddressKeyCodec;
+import drew.datacube.keys.KeyCodec;
+
+/**
+ * A {@link DbHarness} that stores cube cells in an Accumulo table.
+ * <p>
+ * Each cell is a single Accumulo entry: the row is the cube name followed by
+ * the address key, the column family is the configured family and the
+ * qualifier is empty. With {@link CommitType#INCREMENT} the table carries a
+ * {@link SummingCombiner} on all scopes, so writes are blind puts of deltas
+ * and the sum is computed by the tablet servers at scan and compaction time.
+ * This only works for ops that serialize to an 8 byte big-endian long (i.e.
+ * {@link com.urbanairship.datacube.ops.LongOp}), which is the combiner's
+ * FIXEDLEN encoding. {@link CommitType#OVERWRITE} writes plain values.
+ * Accumulo 1.4 has no conditional mutations, so READ_COMBINE_CAS is not
+ * supported.
+ * <p>
+ * Batches are written asynchronously on a bounded pool of flush threads, each
+ * of which borrows a {@link BatchWriter} from a fixed pool. When all flush
+ * threads are busy and the queue is full, {@link #runBatchAsync} throws
+ * {@link FullQueueException}.
+ */
+public class AccumuloDbHarness<T extends Op> implements DbHarness<T>, CellStore<T> {
+
+	private static final Logger log = Logger.getLogger(AccumuloDbHarness.class);
+
+	public static final String COMBINER_NAME = "cubesum";
+	public static final int COMBINER_PRIORITY = 10;
+
+	public static final int DEFAULT_FLUSH_THREADS = 4;
+	public static final int DEFAULT_QUEUE_SIZE = 100;
+	public static final int DEFAULT_QUERY_THREADS = 8;
+	public static final long DEFAULT_WRITER_MEMORY = 10 * 1024 * 1024;
+	public static final long DEFAULT_WRITER_LATENCY_MS = 1000;
+
+	private static final Text EMPTY_QUALIFIER = new Text();
+
+	final Connector connector;
+	final String tableName;
+	final byte[] uniqueCubeName;
+	final Text columnFamily;
+	final Deserializer<T> deserializer;
+	final IdService idService;
+	KeyCodec keyCodec = AddressKeyCodec.INSTANCE;
+	final CommitType commitType;
+	final Authorizations authorizations = new Authorizations();
+	int queryThreads = DEFAULT_QUERY_THREADS;
+
+	final ThreadPoolExecutor flushExecutor;
+	final BlockingQueue<BatchWriter> writerPool;
+	final ConcurrentLinkedQueue<Future<?>> pending = new ConcurrentLinkedQueue<Future<?>>();
+
+	public AccumuloDbHarness(Connector connector, byte[] uniqueCubeName, String tableName,
+			byte[] cf, Deserializer<T> deserializer, IdService idService,
+			CommitType commitType) throws IOException {
+		this(connector, uniqueCubeName, tableName, cf, deserializer, idService, commitType,
+				DEFAULT_FLUSH_THREADS, DEFAULT_QUEUE_SIZE);
+	}
+
+	public AccumuloDbHarness(Connector connector, byte[] uniqueCubeName, String tableName,
+			byte[] cf, Deserializer<T> deserializer, IdService idService,
+			CommitType commitType, int numFlushThreads, int queueSize) throws IOException {
+		if (commitType == CommitType.READ_COMBINE_CAS) {
+			throw new IllegalArgumentException("Accumulo has no conditional writes, " +
+					"use INCREMENT or OVERWRITE");
+		}
+
+		this.connector = connector;
+		this.tableName = tableName;
+		this.uniqueCubeName = uniqueCubeName;
+		this.columnFamily = new Text(cf);
+		this.deserializer = deserializer;
+		this.idService = idService;
+		this.commitType = commitType;
+
+		try {
+			prepareTable(connector, tableName, commitType == CommitType.INCREMENT);
+
+			writerPool = new ArrayBlockingQueue<BatchWriter>(numFlushThreads);
+			for (int i=0; i < numFlushThreads; i++) {
+				writerPool.add(connector.createBatchWriter(tableName, DEFAULT_WRITER_MEMORY,
+						DEFAULT_WRITER_LATENCY_MS, 2));
+			}
+		}
+		catch (AccumuloException ex) {
+			throw new IOException(ex);
+		}
+		catch (AccumuloSecurityException ex) {
+			throw new IOException(ex);
+		}
+		catch (TableNotFoundException ex) {
+			throw new IOException(ex);
+		}
+
+		flushExecutor = new ThreadPoolExecutor(numFlushThreads, numFlushThreads,
+				1, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(queueSize),
+				new NamedThreadFactory("accumulo-harness-flush"));
+	}
+
+	public void setKeyCodec(KeyCodec keyCodec) {
+		this.keyCodec = keyCodec;
+	}
+
+	/**
+	 * Creates the table if it does not exist and, when summing, attaches the
+	 * combiner ahead of the default versioning iterator on all scopes.
+	 */
+	static void prepareTable(Connector connector, String tableName, boolean summing)
+			throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+		try {
+			if (!connector.tableOperations().exists(tableName)) {
+				connector.tableOperations().create(tableName);
+			}
+		}
+		catch (TableExistsException ex) {
+			// lost a race with another client, that's fine
+		}
+
+		if (summing && !connector.tableOperations().listIterators(tableName).containsKey(COMBINER_NAME)) {
+			IteratorSetting setting = new IteratorSetting(COMBINER_PRIORITY, COMBINER_NAME, SummingCombiner.class);
+			LongCombiner.setEncodingType(setting, LongCombiner.Type.FIXEDLEN);
+			Combiner.setCombineAllColumns(setting, true);
+			connector.tableOperations().attachIterator(tableName, setting);
+		}
 	}
-	
+
 	@Override
-	public Future<?> runBatchAsync(Batch<T> batch, AfterExecute<T> afterExecute)
+	public Future<?> runBatchAsync(final Batch<T> batch, final AfterExecute<T> afterExecute)
 			throws FullQueueException {
-		// TODO Auto-generated method stub
-		return null;
+		try {
+			Future<?> future = flushExecutor.submit(new Runnable() {
+				public void run() {
+					try {
+						writeBatch(batch);
+						afterExecute.afterExecute(null);
+					}
+					catch (Exception ex) {
+						log.error("Failed to write batch to " + tableName, ex);
+						afterExecute.afterExecute(ex);
+						throw new RuntimeException(ex);
+					}
+				}
+			});
+			pruneCompleted();
+			pending.add(future);
+			return future;
+		}
+		catch (RejectedExecutionException ex) {
+			throw new FullQueueException();
+		}
+	}
+
+	private void pruneCompleted() {
+		Future<?> head;
+		while ((head = pending.peek()) != null && head.isDone()) {
+			pending.remove(head);
+		}
+	}
+
+	protected void writeBatch(Batch<T> batch) throws IOException, InterruptedException,
+			MutationsRejectedException {
+		List<Mutation> mutations = new ArrayList<Mutation>(batch.getMap().size());
+		for (Map.Entry<Address,T> entry: batch.getMap().entrySet()) {
+			Mutation m = new Mutation(new Text(rowKey(entry.getKey())));
+			m.put(columnFamily, EMPTY_QUALIFIER, new Value(entry.getValue().serialize()));
+			mutations.add(m);
+		}
+		writeMutations(mutations);
+	}
+
+	void writeMutations(List<Mutation> mutations) throws InterruptedException, MutationsRejectedException {
+		BatchWriter writer = writerPool.take();
+		try {
+			writer.addMutations(mutations);
+			writer.flush();
+		}
+		finally {
+			writerPool.put(writer);
+		}
+	}
+
+	protected byte[] rowKey(Address address) throws IOException, InterruptedException {
+		byte[] key = keyCodec.toKey(address, idService);
+		byte[] row = new byte[uniqueCubeName.length + key.length];
+		System.arraycopy(uniqueCubeName, 0, row, 0, uniqueCubeName.length);
+		System.arraycopy(key, 0, row, uniqueCubeName.length, key.length);
+		return row;
 	}
 
 	@Override
 	public Optional<T> get(Address c) throws IOException, InterruptedException {
-		// TODO Auto-generated method stub
-		return null;
+		try {
+			Scanner scanner = connector.createScanner(tableName, authorizations);
+			scanner.setRange(new Range(new Text(rowKey(c))));
+			scanner.fetchColumn(columnFamily, EMPTY_QUALIFIER);
+
+			Iterator<Entry<Key,Value>> it = scanner.iterator();
+			if (it.hasNext()) {
+				return Optional.of(deserializer.fromBytes(it.next().getValue().get()));
+			}
+			return Optional.absent();
+		}
+		catch (TableNotFoundException ex) {
+			throw new IOException(ex);
+		}
 	}
 
+	/**
+	 * Resolves all of the addresses with a single {@link BatchScanner}, which
+	 * fans the row ranges out to the tablet servers on
+	 * {@link #setQueryThreads(int) queryThreads} threads. The batch scanner
+	 * returns entries in no particular order, so results are mapped back to
+	 * the position of their address in the input list.
+	 */
 	@Override
 	public List<Optional<T>> multiGet(List<Address> addresses)
 			throws IOException {
-		// TODO Auto-generated method stub
-		return null;
+		List<Optional<T>> results = new ArrayList<Optional<T>>(addresses.size());
+		Map<Text,List<Integer>> positions = new HashMap<Text,List<Integer>>();
+		List<Range> ranges = new ArrayList<Range>(addresses.size());
+
+		try {
+			for (int i=0; i < addresses.size(); i++) {
+				results.add(Optional.<T>absent());
+
+				Text row = new Text(rowKey(addresses.get(i)));
+				List<Integer> rowPositions = positions.get(row);
+				if (rowPositions == null) {
+					rowPositions = new ArrayList<Integer>(1);
+					positions.put(row, rowPositions);
+					ranges.add(new Range(row));
+				}
+				rowPositions.add(i);
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		}
+
+		if (ranges.isEmpty()) {
+			return results;
+		}
+
+		BatchScanner scanner;
+		try {
+			scanner = connector.createBatchScanner(tableName, authorizations, queryThreads);
+		}
+		catch (TableNotFoundException ex) {
+			throw new IOException(ex);
+		}
+
+		try {
+			scanner.setRanges(ranges);
+			scanner.fetchColumn(columnFamily, EMPTY_QUALIFIER);
+
+			for (Entry<Key,Value> entry: scanner) {
+				List<Integer> rowPositions = positions.get(entry.getKey().getRow());
+				if (rowPositions == null) {
+					continue;
+				}
+				Optional<T> value = Optional.of(deserializer.fromBytes(entry.getValue().get()));
+				for (Integer pos: rowPositions) {
+					results.set(pos, value);
+				}
+			}
+		}
+		finally {
+			scanner.close();
+		}
+
+		return results;
+	}
+
+	/**
+	 * Scans every row under the cube name. Keys are the rows with the cube
+	 * name taken off.
+	 */
+	public void scan(CellVisitor<T> visitor) throws IOException {
+		Scanner scanner;
+		try {
+			scanner = connector.createScanner(tableName, authorizations);
+		}
+		catch (TableNotFoundException ex) {
+			throw new IOException(ex);
+		}
+		scanner.setRange(Range.prefix(new Text(uniqueCubeName)));
+		scanner.fetchColumn(columnFamily, EMPTY_QUALIFIER);
+		for (Entry<Key,Value> entry: scanner) {
+			Text row = entry.getKey().getRow();
+			byte[] key = new byte[row.getLength() - uniqueCubeName.length];
+			System.arraycopy(row.getBytes(), uniqueCubeName.length, key, 0, key.length);
+			if (!visitor.visit(key, deserializer.fromBytes(entry.getValue().get()))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes the cells synchronously with a pooled writer; with INCREMENT the
+	 * combiner adds them to existing cells.
+	 */
+	public void writeCells(Map<BoxedByteArray,T> cells) throws IOException, InterruptedException {
+		List<Mutation> mutations = new ArrayList<Mutation>(cells.size());
+		for (Map.Entry<BoxedByteArray,T> cell: cells.entrySet()) {
+			byte[] row = new byte[uniqueCubeName.length + cell.getKey().bytes.length];
+			System.arraycopy(uniqueCubeName, 0, row, 0, uniqueCubeName.length);
+			System.arraycopy(cell.getKey().bytes, 0, row, uniqueCubeName.length, cell.getKey().bytes.length);
+			Mutation m = new Mutation(new Text(row));
+			m.put(columnFamily, EMPTY_QUALIFIER, new Value(cell.getValue().serialize()));
+			mutations.add(m);
+		}
+		try {
+			writeMutations(mutations);
+		}
+		catch (MutationsRejectedException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	public void setQueryThreads(int queryThreads) {
+		this.queryThreads = queryThreads;
 	}
 
+	/**
+	 * Blocks until every batch submitted so far has been written.
+	 */
 	@Override
 	public void flush() throws InterruptedException {
-		// TODO Auto-generated method stub
+		Future<?> future;
+		while ((future = pending.poll()) != null) {
+			try {
+				future.get();
+			}
+			catch (ExecutionException ex) {
+				log.error("Batch failed before flush", ex.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Flushes outstanding batches, stops the flush threads and closes the
+	 * pooled writers.
+	 */
+	public void shutdown() throws InterruptedException, IOException {
+		flush();
+		flushExecutor.shutdown();
+		flushExecutor.awaitTermination(1, TimeUnit.MINUTES);
 
+		BatchWriter writer;
+		while ((writer = writerPool.poll()) != null) {
+			try {
+				writer.close();
+			}
+			catch (MutationsRejectedException ex) {
+				throw new IOException(ex);
+			}
+		}
 	}
 
+	static class NamedThreadFactory implements ThreadFactory {
+		final String prefix;
+		final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
 }
@@ -1,20 +1,372 @@
 package drew.datacube.accumulo;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
 
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.MultiTableBatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableExistsException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.admin.TimeType;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.BoxedByteArray;
 import com.urbanairship.datacube.IdService;
 
-public class AccumuloIdService implements IdService {
+import drew.datacube.cache.ScannableIdService;
+import drew.datacube.keys.IdBytes;
+
+/**
+ * An {@link IdService} that keeps its mappings in Accumulo.
+ * <p>
+ * Three tables are used: the lookup table maps (dimension, value) to id, the
+ * reverse table maps (dimension, id) back to the value and the counter table
+ * records id block leases. IDs are handed out from blocks of
+ * {@code blockSize} ids leased per dimension, so allocating a new id only
+ * goes to Accumulo once per block. Resolved ids are kept in a bounded LRU
+ * cache so repeat lookups never leave the process.
+ * <p>
+ * Accumulo 1.4 has no conditional mutations, so both the block lease and the
+ * value-to-id assignment rely on the lookup and counter tables using
+ * {@link TimeType#LOGICAL} time, which gives every mutation to a tablet a
+ * unique, increasing timestamp. A lease is a blind write whose timestamp is
+ * the block number. A new value is assigned by writing a candidate id into
+ * the value's lookup row and reading the row back: the candidate with the
+ * lowest timestamp was written first and wins for every client. A client
+ * that loses the race discards its candidate, leaving a gap in the ids.
+ */
+public class AccumuloIdService implements ScannableIdService {
+
+	private static final Logger log = Logger.getLogger(AccumuloIdService.class);
+
+	public static final int DEFAULT_BLOCK_SIZE = 1000;
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	static final Text ID_FAMILY = new Text("id");
+	static final Text VALUE_FAMILY = new Text("value");
+	static final Text LEASE_FAMILY = new Text("lease");
+	static final Text EMPTY = new Text();
+
+	final Connector connector;
+	final String lookupTable;
+	final String reverseTable;
+	final String counterTable;
+	final byte[] uniqueCubeName;
+	final int blockSize;
+	final Authorizations authorizations = new Authorizations();
+
+	final MultiTableBatchWriter writer;
+	final String clientId = UUID.randomUUID().toString();
+	long leaseSeq = 0;
+
+	final Map<Integer,IdBlock> blocks = new HashMap<Integer,IdBlock>();
+	final Map<BoxedByteArray,Long> cache;
 
-	public AccumuloIdService() {
-		
+	long leases = 0;
+	long storeLookups = 0;
+
+	public AccumuloIdService(Connector connector, String lookupTable, String reverseTable,
+			String counterTable, byte[] uniqueCubeName) throws IOException {
+		this(connector, lookupTable, reverseTable, counterTable, uniqueCubeName,
+				DEFAULT_BLOCK_SIZE, DEFAULT_CACHE_SIZE);
+	}
+
+	public AccumuloIdService(Connector connector, String lookupTable, String reverseTable,
+			String counterTable, byte[] uniqueCubeName, int blockSize, final int cacheSize)
+			throws IOException {
+		this.connector = connector;
+		this.lookupTable = lookupTable;
+		this.reverseTable = reverseTable;
+		this.counterTable = counterTable;
+		this.uniqueCubeName = uniqueCubeName;
+		this.blockSize = blockSize;
+
+		this.cache = new LinkedHashMap<BoxedByteArray,Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Entry<BoxedByteArray,Long> eldest) {
+				return size() > cacheSize;
+			}
+		};
+
+		try {
+			createTable(lookupTable, TimeType.LOGICAL);
+			createTable(reverseTable, TimeType.MILLIS);
+			createTable(counterTable, TimeType.LOGICAL);
+		}
+		catch (AccumuloException ex) {
+			throw new IOException(ex);
+		}
+		catch (AccumuloSecurityException ex) {
+			throw new IOException(ex);
+		}
+
+		writer = connector.createMultiTableBatchWriter(1024 * 1024, 1000, 2);
 	}
-	
+
+	void createTable(String tableName, TimeType timeType)
+			throws AccumuloException, AccumuloSecurityException {
+		try {
+			if (!connector.tableOperations().exists(tableName)) {
+				connector.tableOperations().create(tableName, true, timeType);
+			}
+		}
+		catch (TableExistsException ex) {
+			// created by another client in the meantime
+		}
+	}
+
 	@Override
 	public byte[] getId(int dimensionNum, byte[] input, int numIdBytes)
 			throws IOException, InterruptedException {
-		// TODO Auto-generated method stub
-		return null;
+		BoxedByteArray cacheKey = new BoxedByteArray(dimensionKey(dimensionNum, input));
+
+		Long id;
+		synchronized (cache) {
+			id = cache.get(cacheKey);
+		}
+
+		if (id == null) {
+			id = lookupOrAssign(dimensionNum, input, cacheKey.bytes);
+			synchronized (cache) {
+				cache.put(cacheKey, id);
+			}
+		}
+
+		return IdBytes.toIdBytes(id, numIdBytes);
 	}
 
+	/**
+	 * Scans the dimension's lookup rows, picking the first written candidate
+	 * of each as {@link #readAssignedId(Text)} does.
+	 */
+	@Override
+	public void scanIds(int dimensionNum, IdVisitor visitor) throws IOException {
+		int prefixLength = uniqueCubeName.length + 4;
+		Scanner scanner = scanner(lookupTable);
+		scanner.setRange(Range.prefix(new Text(dimensionKey(dimensionNum, new byte[0]))));
+		scanner.fetchColumnFamily(ID_FAMILY);
+
+		Text row = null;
+		long bestTimestamp = Long.MAX_VALUE;
+		long best = 0;
+		for (Entry<Key,Value> entry: scanner) {
+			Key key = entry.getKey();
+			if (row == null || !row.equals(key.getRow())) {
+				if (row != null && !visitor.visit(Arrays.copyOfRange(row.getBytes(), prefixLength, row.getLength()), best)) {
+					return;
+				}
+				row = key.getRow();
+				bestTimestamp = Long.MAX_VALUE;
+			}
+			if (key.getTimestamp() < bestTimestamp) {
+				bestTimestamp = key.getTimestamp();
+				best = ByteBuffer.wrap(key.getColumnQualifier().getBytes()).getLong();
+			}
+		}
+		if (row != null) {
+			visitor.visit(Arrays.copyOfRange(row.getBytes(), prefixLength, row.getLength()), best);
+		}
+	}
+
+	/**
+	 * Returns the value that was assigned the given id, if any.
+	 */
+	public Optional<byte[]> getValue(int dimensionNum, byte[] id) throws IOException {
+		long idNum = 0;
+		for (byte b: id) {
+			idNum = (idNum << 8) | (b & 0xff);
+		}
+
+		Scanner scanner = scanner(reverseTable);
+		scanner.setRange(new Range(new Text(dimensionKey(dimensionNum, longBytes(idNum)))));
+		scanner.fetchColumn(VALUE_FAMILY, EMPTY);
+		for (Entry<Key,Value> entry: scanner) {
+			return Optional.of(entry.getValue().get());
+		}
+		return Optional.absent();
+	}
+
+	protected long lookupOrAssign(int dimensionNum, byte[] input, byte[] forwardRow)
+			throws IOException, InterruptedException {
+		Text row = new Text(forwardRow);
+
+		Optional<Long> existing = readAssignedId(row);
+		if (existing.isPresent()) {
+			return existing.get();
+		}
+
+		long candidate = nextId(dimensionNum);
+
+		Mutation forward = new Mutation(row);
+		forward.put(ID_FAMILY, new Text(longBytes(candidate)), new Value(new byte[0]));
+
+		Mutation reverse = new Mutation(new Text(dimensionKey(dimensionNum, longBytes(candidate))));
+		reverse.put(VALUE_FAMILY, EMPTY, new Value(input));
+
+		try {
+			writer.getBatchWriter(lookupTable).addMutation(forward);
+			writer.getBatchWriter(reverseTable).addMutation(reverse);
+			writer.flush();
+		}
+		catch (MutationsRejectedException ex) {
+			throw new IOException(ex);
+		}
+		catch (AccumuloException ex) {
+			throw new IOException(ex);
+		}
+		catch (AccumuloSecurityException ex) {
+			throw new IOException(ex);
+		}
+		catch (TableNotFoundException ex) {
+			throw new IOException(ex);
+		}
+
+		long winner = readAssignedId(row).get();
+		if (winner != candidate && log.isDebugEnabled()) {
+			log.debug("Lost id race for dimension " + dimensionNum + ", discarding id " + candidate);
+		}
+		return winner;
+	}
+
+	/**
+	 * Reads every candidate id for the row and picks the one written first.
+	 */
+	protected Optional<Long> readAssignedId(Text row) throws IOException {
+		synchronized (this) {
+			storeLookups++;
+		}
+
+		Scanner scanner = scanner(lookupTable);
+		scanner.setRange(new Range(row));
+		scanner.fetchColumnFamily(ID_FAMILY);
+
+		long bestTimestamp = Long.MAX_VALUE;
+		Long best = null;
+		for (Entry<Key,Value> entry: scanner) {
+			long ts = entry.getKey().getTimestamp();
+			if (ts < bestTimestamp) {
+				bestTimestamp = ts;
+				best = ByteBuffer.wrap(entry.getKey().getColumnQualifier().getBytes()).getLong();
+			}
+		}
+		return Optional.fromNullable(best);
+	}
+
+	protected synchronized long nextId(int dimensionNum) throws IOException {
+		IdBlock block = blocks.get(dimensionNum);
+		if (block == null || block.next >= block.end) {
+			block = leaseBlock(dimensionNum);
+			blocks.put(dimensionNum, block);
+		}
+		return block.next++;
+	}
+
+	/**
+	 * Leases the next block of ids for a dimension. The logical timestamp the
+	 * counter tablet gives our lease mutation is unique, so it is used as the
+	 * block number.
+	 */
+	protected IdBlock leaseBlock(int dimensionNum) throws IOException {
+		Text row = new Text(dimensionKey(dimensionNum, new byte[0]));
+		Text qualifier = new Text(clientId + "/" + (leaseSeq++));
+
+		Mutation lease = new Mutation(row);
+		lease.put(LEASE_FAMILY, qualifier, new Value(new byte[0]));
+		try {
+			writer.getBatchWriter(counterTable).addMutation(lease);
+			writer.flush();
+		}
+		catch (MutationsRejectedException ex) {
+			throw new IOException(ex);
+		}
+		catch (AccumuloException ex) {
+			throw new IOException(ex);
+		}
+		catch (AccumuloSecurityException ex) {
+			throw new IOException(ex);
+		}
+		catch (TableNotFoundException ex) {
+			throw new IOException(ex);
+		}
+
+		Scanner scanner = scanner(counterTable);
+		scanner.setRange(new Range(row));
+		scanner.fetchColumn(LEASE_FAMILY, qualifier);
+		for (Entry<Key,Value> entry: scanner) {
+			long blockNum = entry.getKey().getTimestamp();
+			leases++;
+			if (log.isDebugEnabled()) {
+				log.debug("Leased id block " + blockNum + " for dimension " + dimensionNum);
+			}
+			return new IdBlock(blockNum * blockSize, (blockNum + 1) * blockSize);
+		}
+		throw new IOException("Lease for dimension " + dimensionNum + " was not visible after write");
+	}
+
+	Scanner scanner(String tableName) throws IOException {
+		try {
+			return connector.createScanner(tableName, authorizations);
+		}
+		catch (TableNotFoundException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	byte[] dimensionKey(int dimensionNum, byte[] suffix) {
+		return ByteBuffer.allocate(uniqueCubeName.length + 4 + suffix.length)
+			.put(uniqueCubeName)
+			.putInt(dimensionNum)
+			.put(suffix)
+			.array();
+	}
+
+	static byte[] longBytes(long value) {
+		return ByteBuffer.allocate(8).putLong(value).array();
+	}
+
+	public synchronized long getLeaseCount() {
+		return leases;
+	}
+
+	public synchronized long getStoreLookupCount() {
+		return storeLookups;
+	}
+
+	public void close() throws IOException {
+		try {
+			writer.close();
+		}
+		catch (MutationsRejectedException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	static class IdBlock {
+		long next;
+		final long end;
+
+		IdBlock(long start, long end) {
+			this.next = start;
+			this.end = end;
+		}
+	}
 }
@@ -0,0 +1,137 @@
+package drew.datacube.backfill;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.urbanairship.datacube.BucketType;
+import com.urbanairship.datacube.Dimension;
+
+/**
+ * Reads the buckets back out of keys built by
+ * {@link com.urbanairship.datacube.Address#toKey}, and builds keys from
+ * buckets, so cells can be moved between rollups without the coordinates
+ * they were written with.
+ * <p>
+ * For each of the cube's dimensions in order, a key holds a 0 byte and
+ * numFieldBytes zeros for a dimension the rollup leaves out, or a 1 byte,
+ * the bucket type's unique id and numFieldBytes of bucket, which is the id
+ * for a dimension with id substitution. Dimensions without id substitution
+ * must therefore have buckets exactly numFieldBytes long, like the 8 byte
+ * times of the HourDayMonthBucketer.
+ */
+public class CellKeyCodec {
+
+	final List<Dimension<?>> dimensions;
+	final int[] fieldBytes;
+	final BucketType[][] bucketTypes;
+
+	public CellKeyCodec(List<Dimension<?>> dimensions) {
+		this.dimensions = new ArrayList<Dimension<?>>(dimensions);
+		this.fieldBytes = new int[dimensions.size()];
+		this.bucketTypes = new BucketType[dimensions.size()][];
+		for (int i=0; i < dimensions.size(); i++) {
+			Dimension<?> dimension = dimensions.get(i);
+			fieldBytes[i] = dimension.getNumFieldBytes();
+			List<BucketType> types = dimension.isBucketed() ? dimension.getBucketer().getBucketTypes()
+					: Collections.singletonList(BucketType.IDENTITY);
+			bucketTypes[i] = types.toArray(new BucketType[types.size()]);
+		}
+	}
+
+	public int indexOf(Dimension<?> dimension) {
+		int index = dimensions.indexOf(dimension);
+		if (index < 0) {
+			throw new IllegalArgumentException("Dimension " + dimension + " is not in the cube");
+		}
+		return index;
+	}
+
+	/**
+	 * Splits key into the bucket type of each dimension, null where the
+	 * dimension is left out, and the offset of its bucket in key. Returns
+	 * false if key does not have the expected layout.
+	 */
+	public boolean decode(byte[] key, BucketType[] types, int[] bucketOffsets) {
+		int pos = 0;
+		for (int i=0; i < fieldBytes.length; i++) {
+			if (pos >= key.length) {
+				return false;
+			}
+			byte flag = key[pos++];
+			if (flag == 0) {
+				types[i] = null;
+				bucketOffsets[i] = pos;
+			}
+			else if (flag == 1) {
+				BucketType type = matchType(i, key, pos);
+				if (type == null) {
+					return false;
+				}
+				types[i] = type;
+				pos += type.getUniqueId().length;
+				bucketOffsets[i] = pos;
+			}
+			else {
+				return false;
+			}
+			pos += fieldBytes[i];
+		}
+		return pos == key.length;
+	}
+
+	BucketType matchType(int dimension, byte[] key, int pos) {
+		for (BucketType type: bucketTypes[dimension]) {
+			byte[] id = type.getUniqueId();
+			if (pos + id.length > key.length) {
+				continue;
+			}
+			boolean match = true;
+			for (int j=0; j < id.length && match; j++) {
+				match = key[pos + j] == id[j];
+			}
+			if (match) {
+				return type;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The length of a key with the given bucket types, null for dimensions
+	 * left out.
+	 */
+	public int keyLength(BucketType[] types) {
+		int length = 0;
+		for (int i=0; i < fieldBytes.length; i++) {
+			length += 1 + fieldBytes[i] + (types[i] == null ? 0 : types[i].getUniqueId().length);
+		}
+		return length;
+	}
+
+	/**
+	 * Builds a key from the bucket types, null for dimensions left out, and
+	 * the buckets, which must be numFieldBytes long.
+	 */
+	public byte[] encode(BucketType[] types, byte[][] buckets) {
+		byte[] key = new byte[keyLength(types)];
+		int pos = 0;
+		for (int i=0; i < fieldBytes.length; i++) {
+			if (types[i] == null) {
+				pos += 1 + fieldBytes[i];
+				continue;
+			}
+			key[pos++] = 1;
+			byte[] id = types[i].getUniqueId();
+			System.arraycopy(id, 0, key, pos, id.length);
+			pos += id.length;
+			if (buckets[i].length != fieldBytes[i]) {
+				throw new IllegalArgumentException("Bucket for " + dimensions.get(i) + " is " + buckets[i].length
+						+ " bytes, expected " + fieldBytes[i]);
+			}
+			System.arraycopy(buckets[i], 0, key, pos, fieldBytes[i]);
+			pos += fieldBytes[i];
+		}
+		return key;
+	}
+}
@@ -0,0 +1,33 @@
+package drew.datacube.backfill;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.Op;
+
+/**
+ * Raw access to the cells behind a {@link com.urbanairship.datacube.DbHarness},
+ * by the keys {@link com.urbanairship.datacube.Address#toKey} builds, so
+ * cells can be read and written in bulk without going through addresses.
+ */
+public interface CellStore<T extends Op> {
+
+	/**
+	 * Calls visitor with every cell, in no particular order.
+	 */
+	void scan(CellVisitor<T> visitor) throws IOException, InterruptedException;
+
+	/**
+	 * Writes each value to its cell, combined with any value already there
+	 * the way the store's commit type combines batch writes.
+	 */
+	void writeCells(Map<BoxedByteArray,T> cells) throws IOException, InterruptedException;
+
+	interface CellVisitor<T> {
+		/**
+		 * Returns false to stop the scan.
+		 */
+		boolean visit(byte[] key, T value) throws IOException;
+	}
+}
@@ -0,0 +1,110 @@
+package drew.datacube.backfill;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.Deserializer;
+import com.urbanairship.datacube.Op;
+import com.urbanairship.datacube.dbharnesses.HBaseDbHarness;
+
+/**
+ * A {@link CellStore} over the table of an {@link HBaseDbHarness}, whose rows
+ * are the cube name followed by the address key with the value in the
+ * column family's one cell.
+ * <p>
+ * Writes are plain Puts, so unlike the other stores they replace a cell
+ * rather than adding to it. That is what a {@link RollupBackfill} needs, as
+ * it only writes cells that do not exist yet.
+ */
+public class HBaseCellStore<T extends Op> implements CellStore<T> {
+
+	static final byte[] QUALIFIER = new byte[0];
+	static final int SCAN_CACHING = 1000;
+
+	final HTablePool pool;
+	final byte[] uniqueCubeName;
+	final byte[] tableName;
+	final byte[] cf;
+	final Deserializer<T> deserializer;
+
+	public HBaseCellStore(HTablePool pool, byte[] uniqueCubeName, byte[] tableName, byte[] cf,
+			Deserializer<T> deserializer) {
+		this.pool = pool;
+		this.uniqueCubeName = uniqueCubeName;
+		this.tableName = tableName;
+		this.cf = cf;
+		this.deserializer = deserializer;
+	}
+
+	public void scan(CellVisitor<T> visitor) throws IOException {
+		Scan scan = new Scan(uniqueCubeName, stopRow(uniqueCubeName));
+		scan.addFamily(cf);
+		scan.setCaching(SCAN_CACHING);
+		HTableInterface table = pool.getTable(tableName);
+		try {
+			ResultScanner scanner = table.getScanner(scan);
+			try {
+				for (Result result: scanner) {
+					byte[] row = result.getRow();
+					byte[] key = new byte[row.length - uniqueCubeName.length];
+					System.arraycopy(row, uniqueCubeName.length, key, 0, key.length);
+					if (!visitor.visit(key, deserializer.fromBytes(result.value()))) {
+						return;
+					}
+				}
+			}
+			finally {
+				scanner.close();
+			}
+		}
+		finally {
+			table.close();
+		}
+	}
+
+	/**
+	 * The first row after every row starting with prefix, or the end of the
+	 * table if there is none.
+	 */
+	static byte[] stopRow(byte[] prefix) {
+		for (int i=prefix.length - 1; i >= 0; i--) {
+			if (prefix[i] != (byte) 0xff) {
+				byte[] stop = new byte[i + 1];
+				System.arraycopy(prefix, 0, stop, 0, i + 1);
+				stop[i]++;
+				return stop;
+			}
+		}
+		return new byte[0];
+	}
+
+	public void writeCells(Map<BoxedByteArray,T> cells) throws IOException {
+		List<Put> puts = new ArrayList<Put>(cells.size());
+		for (Map.Entry<BoxedByteArray,T> cell: cells.entrySet()) {
+			byte[] row = new byte[uniqueCubeName.length + cell.getKey().bytes.length];
+			System.arraycopy(uniqueCubeName, 0, row, 0, uniqueCubeName.length);
+			System.arraycopy(cell.getKey().bytes, 0, row, uniqueCubeName.length, cell.getKey().bytes.length);
+			Put put = new Put(row);
+			put.add(cf, QUALIFIER, cell.getValue().serialize());
+			puts.add(put);
+		}
+		HTableInterface table = pool.getTable(tableName);
+		try {
+			table.put(puts);
+			table.flushCommits();
+		}
+		finally {
+			table.close();
+		}
+	}
+}
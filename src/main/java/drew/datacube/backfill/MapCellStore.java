@@ -0,0 +1,58 @@
+package drew.datacube.backfill;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Deserializer;
+import com.urbanairship.datacube.Op;
+import com.urbanairship.datacube.dbharnesses.MapDbHarness;
+
+/**
+ * A {@link CellStore} over the map a {@link MapDbHarness} was built with.
+ * Writes combine with existing cells the same way the harness does.
+ */
+public class MapCellStore<T extends Op> implements CellStore<T> {
+
+	final ConcurrentMap<BoxedByteArray,byte[]> map;
+	final Deserializer<T> deserializer;
+	final CommitType commitType;
+
+	public MapCellStore(ConcurrentMap<BoxedByteArray,byte[]> map, Deserializer<T> deserializer,
+			CommitType commitType) {
+		this.map = map;
+		this.deserializer = deserializer;
+		this.commitType = commitType;
+	}
+
+	public void scan(CellVisitor<T> visitor) throws IOException {
+		for (Map.Entry<BoxedByteArray,byte[]> entry: map.entrySet()) {
+			if (!visitor.visit(entry.getKey().bytes, deserializer.fromBytes(entry.getValue()))) {
+				return;
+			}
+		}
+	}
+
+	public void writeCells(Map<BoxedByteArray,T> cells) {
+		for (Map.Entry<BoxedByteArray,T> cell: cells.entrySet()) {
+			if (commitType == CommitType.OVERWRITE) {
+				map.put(cell.getKey(), cell.getValue().serialize());
+				continue;
+			}
+			while (true) {
+				byte[] current = map.get(cell.getKey());
+				if (current == null) {
+					if (map.putIfAbsent(cell.getKey(), cell.getValue().serialize()) == null) {
+						break;
+					}
+				}
+				else if (map.replace(cell.getKey(), current,
+						cell.getValue().add(deserializer.fromBytes(current)).serialize())) {
+					break;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,425 @@
+package drew.datacube.backfill;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.BucketType;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.DimensionAndBucketType;
+import com.urbanairship.datacube.Op;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+
+/**
+ * Fills in a rollup that was added to a cube after data was written, from
+ * the cells of a finer rollup already in the store instead of from the raw
+ * input. Every write lands in exactly one cell of every rollup, so summing
+ * the cells of a source rollup that covers the target's dimensions, at the
+ * same or finer time buckets, gives exactly the target's cells: months from
+ * days, state alone from state and day, and so on.
+ * <p>
+ * The store is scanned once on the calling thread, and the cells handed out
+ * in chunks to numThreads threads, which pick out the source rollup's cells,
+ * rewrite their keys for the target and sum them. The sums are then written
+ * back with {@link CellStore#writeCells(Map)}, a shard per call. Ids are
+ * carried over from the source keys, so the id service is not involved.
+ * <p>
+ * The target must not be written to by anything else until the backfill is
+ * done, and must not have cells already: the backfill counts those and
+ * refuses to add to them. Time buckets can only be coarsened for dimensions
+ * with the HourDayMonthBucketer and no id substitution; their buckets are
+ * read as instants in the {@link #setTimeZone(DateTimeZone) time zone} the
+ * data was written in.
+ */
+public class RollupBackfill<T extends Op> {
+
+	private static final Logger log = Logger.getLogger(RollupBackfill.class);
+
+	public static final int DEFAULT_CHUNK_SIZE = 4096;
+	static final int SHARDS = 16;
+
+	final DataCube<T> cube;
+	final CellStore<T> store;
+	final CellKeyCodec codec;
+	final BucketType[] targetTypes;
+	final int targetKeyLength;
+
+	BucketType[] sourceTypes;
+	int numThreads = Runtime.getRuntime().availableProcessors();
+	int chunkSize = DEFAULT_CHUNK_SIZE;
+	DateTimeZone timeZone = DateTimeZone.getDefault();
+
+	public RollupBackfill(DataCube<T> cube, CellStore<T> store, Rollup target) {
+		this.cube = cube;
+		this.store = store;
+		this.codec = new CellKeyCodec(cube.getDimensions());
+		this.targetTypes = types(target);
+		this.targetKeyLength = codec.keyLength(targetTypes);
+		this.sourceTypes = chooseSource();
+	}
+
+	/**
+	 * The zone of the DateTimes the time buckets were written from.
+	 */
+	public void setTimeZone(DateTimeZone timeZone) {
+		this.timeZone = timeZone;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if (numThreads < 1) throw new IllegalArgumentException("numThreads must be at least 1");
+		this.numThreads = numThreads;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be at least 1");
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Uses source instead of the rollup picked by default, the one with the
+	 * fewest dimensions and then the coarsest buckets that the target can be
+	 * derived from.
+	 */
+	public void setSource(Rollup source) {
+		BucketType[] types = types(source);
+		if (!canDerive(types)) {
+			throw new IllegalArgumentException("Rollup " + describe(targetTypes) + " cannot be derived from "
+					+ describe(types));
+		}
+		this.sourceTypes = types;
+	}
+
+	/**
+	 * The source rollup, as dimension[:bucketType] joined by '+'.
+	 */
+	public String getSource() {
+		return describe(sourceTypes);
+	}
+
+	BucketType[] types(Rollup rollup) {
+		BucketType[] types = new BucketType[cube.getDimensions().size()];
+		for (DimensionAndBucketType component: rollup.getComponents()) {
+			types[codec.indexOf(component.dimension)] = component.bucketType;
+		}
+		return types;
+	}
+
+	BucketType[] chooseSource() {
+		BucketType[] best = null;
+		int bestDimensions = 0;
+		int bestCoarseness = 0;
+		for (Rollup rollup: cube.getRollups()) {
+			BucketType[] types = types(rollup);
+			if (!canDerive(types)) {
+				continue;
+			}
+			int dimensions = 0;
+			int coarseness = 0;
+			for (BucketType type: types) {
+				if (type != null) {
+					dimensions++;
+					coarseness += timeRank(type);
+				}
+			}
+			if (best == null || dimensions < bestDimensions
+					|| (dimensions == bestDimensions && coarseness > bestCoarseness)) {
+				best = types;
+				bestDimensions = dimensions;
+				bestCoarseness = coarseness;
+			}
+		}
+		if (best == null) {
+			throw new IllegalArgumentException("No rollup of the cube can be rolled up into "
+					+ describe(targetTypes));
+		}
+		return best;
+	}
+
+	/**
+	 * Whether every cell of the source rollup falls in exactly one cell of
+	 * the target.
+	 */
+	boolean canDerive(BucketType[] source) {
+		if (Arrays.equals(source, targetTypes)) {
+			return false;
+		}
+		for (int i=0; i < targetTypes.length; i++) {
+			if (targetTypes[i] == null || targetTypes[i] == source[i]) {
+				continue;
+			}
+			if (source[i] == null || !canRebucket(i)
+					|| timeRank(source[i]) < 0 || timeRank(targetTypes[i]) < timeRank(source[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	boolean canRebucket(int dimension) {
+		Dimension<?> d = cube.getDimensions().get(dimension);
+		return d.getBucketer() instanceof HourDayMonthBucketer && !d.getDoIdSubstitution();
+	}
+
+	static int timeRank(BucketType type) {
+		if (type == HourDayMonthBucketer.hours) return 0;
+		if (type == HourDayMonthBucketer.days) return 1;
+		if (type == HourDayMonthBucketer.months) return 2;
+		return -1;
+	}
+
+	String describe(BucketType[] types) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i < types.length; i++) {
+			if (types[i] == null) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append('+');
+			}
+			sb.append(cube.getDimensions().get(i).getName());
+			if (types[i] != BucketType.IDENTITY) {
+				sb.append(':').append(types[i]);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Scans the store, sums the source cells into target cells and writes
+	 * them.
+	 */
+	@SuppressWarnings("unchecked")
+	public BackfillStats run() throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		final Map<BoxedByteArray,T>[] shards = new Map[SHARDS];
+		for (int i=0; i < SHARDS; i++) {
+			shards[i] = new HashMap<BoxedByteArray,T>();
+		}
+		final AtomicLong scanned = new AtomicLong();
+		final AtomicLong sourceCells = new AtomicLong();
+		final AtomicLong targetCells = new AtomicLong();
+		final AtomicLong unreadable = new AtomicLong();
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			ChunkingVisitor visitor = new ChunkingVisitor(executor) {
+				void process(byte[][] keys, Object[] values, int count) {
+					BucketType[] types = new BucketType[targetTypes.length];
+					int[] offsets = new int[targetTypes.length];
+					Map<BoxedByteArray,T> sums = new HashMap<BoxedByteArray,T>();
+					long matched = 0;
+					long existing = 0;
+					long bad = 0;
+					for (int i=0; i < count; i++) {
+						if (!codec.decode(keys[i], types, offsets)) {
+							bad++;
+						}
+						else if (Arrays.equals(types, sourceTypes)) {
+							matched++;
+							BoxedByteArray key = new BoxedByteArray(targetKey(keys[i], offsets));
+							T sum = sums.get(key);
+							sums.put(key, sum == null ? (T) values[i] : (T) sum.add((T) values[i]));
+						}
+						else if (Arrays.equals(types, targetTypes)) {
+							existing++;
+						}
+					}
+					scanned.addAndGet(count);
+					sourceCells.addAndGet(matched);
+					targetCells.addAndGet(existing);
+					unreadable.addAndGet(bad);
+
+					for (Map.Entry<BoxedByteArray,T> sum: sums.entrySet()) {
+						Map<BoxedByteArray,T> shard = shards[sum.getKey().hashCode() & (SHARDS - 1)];
+						synchronized (shard) {
+							T current = shard.get(sum.getKey());
+							shard.put(sum.getKey(), current == null ? sum.getValue() : (T) current.add(sum.getValue()));
+						}
+					}
+				}
+			};
+			store.scan(visitor);
+			visitor.finish();
+
+			if (targetCells.get() > 0) {
+				throw new IllegalStateException("Rollup " + describe(targetTypes) + " already has "
+						+ targetCells.get() + " cells, backfilling would count them twice");
+			}
+
+			List<Future<?>> writes = new ArrayList<Future<?>>(SHARDS);
+			for (final Map<BoxedByteArray,T> shard: shards) {
+				if (shard.isEmpty()) {
+					continue;
+				}
+				writes.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						store.writeCells(shard);
+						return null;
+					}
+				}));
+			}
+			waitFor(writes);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		long written = 0;
+		for (Map<BoxedByteArray,T> shard: shards) {
+			written += shard.size();
+		}
+		BackfillStats stats = new BackfillStats(scanned.get(), sourceCells.get(), written, unreadable.get(),
+				System.currentTimeMillis() - start);
+		log.info("Backfilled " + describe(targetTypes) + " from " + describe(sourceTypes) + ": " + stats);
+		return stats;
+	}
+
+	/**
+	 * The target key for a source cell, with each kept bucket copied or, for
+	 * a time dimension going to a coarser bucket, recomputed.
+	 */
+	byte[] targetKey(byte[] sourceKey, int[] offsets) {
+		byte[] key = new byte[targetKeyLength];
+		int pos = 0;
+		for (int i=0; i < targetTypes.length; i++) {
+			int fieldBytes = codec.fieldBytes[i];
+			if (targetTypes[i] == null) {
+				pos += 1 + fieldBytes;
+				continue;
+			}
+			key[pos++] = 1;
+			byte[] id = targetTypes[i].getUniqueId();
+			System.arraycopy(id, 0, key, pos, id.length);
+			pos += id.length;
+			if (targetTypes[i] == sourceTypes[i]) {
+				System.arraycopy(sourceKey, offsets[i], key, pos, fieldBytes);
+			}
+			else {
+				long millis = ByteBuffer.wrap(sourceKey, offsets[i], 8).getLong();
+				HourDayMonthBucketer bucketer = (HourDayMonthBucketer) cube.getDimensions().get(i).getBucketer();
+				byte[] bucket = bucketer.bucketForWrite(new DateTime(millis, timeZone), targetTypes[i]).serialize();
+				System.arraycopy(bucket, 0, key, pos, fieldBytes);
+			}
+			pos += fieldBytes;
+		}
+		return key;
+	}
+
+	static void waitFor(List<Future<?>> futures) throws IOException, InterruptedException {
+		for (Future<?> future: futures) {
+			try {
+				future.get();
+			}
+			catch (ExecutionException ex) {
+				throw new IOException("Backfill failed", ex.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Collects scanned cells into chunks and processes each chunk on the
+	 * executor, with at most two chunks per thread waiting so a fast scan
+	 * cannot run ahead of the workers.
+	 */
+	abstract class ChunkingVisitor implements CellStore.CellVisitor<T> {
+		final ExecutorService executor;
+		final Semaphore permits = new Semaphore(numThreads * 2);
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+		byte[][] keys = new byte[chunkSize][];
+		Object[] values = new Object[chunkSize];
+		int count = 0;
+
+		ChunkingVisitor(ExecutorService executor) {
+			this.executor = executor;
+		}
+
+		public boolean visit(byte[] key, T value) throws IOException {
+			keys[count] = key;
+			values[count] = value;
+			if (++count == chunkSize) {
+				submit();
+			}
+			return true;
+		}
+
+		void submit() throws IOException {
+			final byte[][] chunkKeys = keys;
+			final Object[] chunkValues = values;
+			final int chunkCount = count;
+			keys = new byte[chunkSize][];
+			values = new Object[chunkSize];
+			count = 0;
+			try {
+				permits.acquire();
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while scanning", ex);
+			}
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					try {
+						process(chunkKeys, chunkValues, chunkCount);
+					}
+					finally {
+						permits.release();
+					}
+				}
+			}));
+		}
+
+		/**
+		 * Processes the last partial chunk and waits for every chunk.
+		 */
+		void finish() throws IOException, InterruptedException {
+			if (count > 0) {
+				submit();
+			}
+			waitFor(futures);
+		}
+
+		abstract void process(byte[][] keys, Object[] values, int count);
+	}
+
+	public static class BackfillStats {
+		public final long cellsScanned;
+		public final long sourceCells;
+		public final long cellsWritten;
+		public final long unreadableKeys;
+		public final long elapsedMs;
+
+		public BackfillStats(long cellsScanned, long sourceCells, long cellsWritten, long unreadableKeys,
+				long elapsedMs) {
+			this.cellsScanned = cellsScanned;
+			this.sourceCells = sourceCells;
+			this.cellsWritten = cellsWritten;
+			this.unreadableKeys = unreadableKeys;
+			this.elapsedMs = elapsedMs;
+		}
+
+		@Override
+		public String toString() {
+			return "BackfillStats [cellsScanned=" + cellsScanned + ", sourceCells=" + sourceCells
+					+ ", cellsWritten=" + cellsWritten + ", unreadableKeys=" + unreadableKeys
+					+ ", elapsedMs=" + elapsedMs + "]";
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package drew.datacube.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.BucketType;
+import com.urbanairship.datacube.BucketTypeAndBucket;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.Op;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.FullQueueException;
+
+/**
+ * A read-through cache in front of another {@link DbHarness}, for
+ * dashboards that keep asking for the same, mostly historical, cells.
+ * <p>
+ * A cell whose address has an hour, day or month bucket from
+ * {@link HourDayMonthBucketer}, with every such bucket ending at or before
+ * the watermark set by {@link #setWatermark(DateTime)}, is closed: it is
+ * kept until evicted. Any other cell is open and is kept for openTtlMs,
+ * or not at all if that is 0. Missing cells are cached the same way, since
+ * a sparse series of months mostly reads cells that do not exist.
+ * <p>
+ * Batches written through this harness invalidate the cells they touch,
+ * before they are handed on and again once they have been applied, so
+ * local writes are seen by the next read, closed or not. Writes made by
+ * other processes straight to the backing store are only seen once an open
+ * cell expires, so the watermark should only be moved past buckets that are
+ * no longer written.
+ * <p>
+ * The cache holds at most maxEntries cells, split over segments which
+ * each evict their least recently read cell.
+ */
+public class CachingDbHarness<T extends Op> implements DbHarness<T> {
+
+	private static final Logger log = Logger.getLogger(CachingDbHarness.class);
+
+	static final int NUM_SEGMENTS = 16;
+
+	final DbHarness<T> backing;
+	final long openTtlMs;
+	final Segment<T>[] segments;
+
+	volatile long watermarkMillis = Long.MIN_VALUE;
+	volatile DateTimeZone timeZone = DateTimeZone.getDefault();
+
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong evictions = new AtomicLong();
+	final AtomicLong invalidations = new AtomicLong();
+
+	@SuppressWarnings("unchecked")
+	public CachingDbHarness(DbHarness<T> backing, int maxEntries, long openTtlMs) {
+		this.backing = backing;
+		this.openTtlMs = openTtlMs;
+		this.segments = new Segment[NUM_SEGMENTS];
+		int perSegment = Math.max(1, (maxEntries + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+		for (int i=0; i < NUM_SEGMENTS; i++) {
+			segments[i] = new Segment<T>(perSegment, evictions);
+		}
+	}
+
+	/**
+	 * Buckets ending at or before watermark are closed. Moving the watermark
+	 * back drops every cached cell, since some closed cells may now be open.
+	 */
+	public void setWatermark(DateTime watermark) {
+		long millis = watermark == null ? Long.MIN_VALUE : watermark.getMillis();
+		if (millis < watermarkMillis) {
+			invalidateAll();
+		}
+		watermarkMillis = millis;
+	}
+
+	/**
+	 * The zone the time buckets were written in, used to find where a day or
+	 * month bucket ends. Defaults to the JVM's zone, as DateTime does.
+	 */
+	public void setTimeZone(DateTimeZone timeZone) {
+		this.timeZone = timeZone;
+	}
+
+	@Override
+	public Future<?> runBatchAsync(Batch<T> batch, final AfterExecute<T> afterExecute)
+			throws FullQueueException {
+		final List<Address> written = new ArrayList<Address>(batch.getMap().keySet());
+		invalidate(written);
+		return backing.runBatchAsync(batch, new AfterExecute<T>() {
+			public void afterExecute(Throwable t) {
+				// a read that started before the write may have cached
+				// the old value
+				invalidate(written);
+				afterExecute.afterExecute(t);
+			}
+		});
+	}
+
+	@Override
+	public Optional<T> get(Address c) throws IOException, InterruptedException {
+		long now = System.currentTimeMillis();
+		Entry<T> entry = segmentFor(c).get(c, now);
+		if (entry != null) {
+			hits.incrementAndGet();
+			return entry.value;
+		}
+		misses.incrementAndGet();
+		long epoch = segmentFor(c).getEpoch();
+		Optional<T> value = backing.get(c);
+		put(c, value, now, epoch);
+		return value;
+	}
+
+	@Override
+	public List<Optional<T>> multiGet(List<Address> addresses) throws IOException {
+		long now = System.currentTimeMillis();
+		List<Optional<T>> results = new ArrayList<Optional<T>>(addresses.size());
+		List<Address> missing = new ArrayList<Address>();
+		List<Integer> missingIndexes = new ArrayList<Integer>();
+		List<Long> missingEpochs = new ArrayList<Long>();
+		for (int i=0; i < addresses.size(); i++) {
+			Address address = addresses.get(i);
+			Entry<T> entry = segmentFor(address).get(address, now);
+			if (entry != null) {
+				results.add(entry.value);
+			}
+			else {
+				results.add(null);
+				missing.add(address);
+				missingIndexes.add(i);
+				missingEpochs.add(segmentFor(address).getEpoch());
+			}
+		}
+		hits.addAndGet(addresses.size() - missing.size());
+		misses.addAndGet(missing.size());
+
+		if (!missing.isEmpty()) {
+			List<Optional<T>> loaded = backing.multiGet(missing);
+			for (int i=0; i < missing.size(); i++) {
+				results.set(missingIndexes.get(i), loaded.get(i));
+				put(missing.get(i), loaded.get(i), now, missingEpochs.get(i));
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public void flush() throws InterruptedException {
+		backing.flush();
+	}
+
+	/**
+	 * Caches a value read from the backing store, unless its segment has
+	 * been invalidated since epoch was taken, when the value may be from
+	 * before a write.
+	 */
+	void put(Address address, Optional<T> value, long now, long epoch) {
+		long expiresAt;
+		if (isClosed(address)) {
+			expiresAt = Long.MAX_VALUE;
+		}
+		else if (openTtlMs > 0) {
+			expiresAt = now + openTtlMs;
+		}
+		else {
+			return;
+		}
+		segmentFor(address).put(address, new Entry<T>(value, expiresAt), epoch);
+	}
+
+	/**
+	 * True if the address has at least one time bucket and all of them end at
+	 * or before the watermark.
+	 */
+	boolean isClosed(Address address) {
+		long watermark = watermarkMillis;
+		if (watermark == Long.MIN_VALUE) {
+			return false;
+		}
+		boolean timeBucketed = false;
+		for (BucketTypeAndBucket bucket: address.getBuckets().values()) {
+			BucketType type = bucket.bucketType;
+			if (type != HourDayMonthBucketer.hours && type != HourDayMonthBucketer.days
+					&& type != HourDayMonthBucketer.months) {
+				continue;
+			}
+			if (bucket.bucket == null || bucket.bucket.length != 8) {
+				return false;
+			}
+			timeBucketed = true;
+			DateTime start = new DateTime(ByteBuffer.wrap(bucket.bucket).getLong(), timeZone);
+			DateTime end;
+			if (type == HourDayMonthBucketer.hours) {
+				end = start.plusHours(1);
+			}
+			else if (type == HourDayMonthBucketer.days) {
+				end = start.plusDays(1);
+			}
+			else {
+				end = start.plusMonths(1);
+			}
+			if (end.getMillis() > watermark) {
+				return false;
+			}
+		}
+		return timeBucketed;
+	}
+
+	void invalidate(List<Address> addresses) {
+		for (Address address: addresses) {
+			if (segmentFor(address).remove(address)) {
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		for (Segment<T> segment: segments) {
+			segment.clear();
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Cleared read cache");
+		}
+	}
+
+	Segment<T> segmentFor(Address address) {
+		int h = address.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (NUM_SEGMENTS - 1)];
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRate() {
+		long hits = this.hits.get();
+		long total = hits + misses.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<T> segment: segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	public DbHarness<T> getBacking() {
+		return backing;
+	}
+
+	static class Entry<T> {
+		final Optional<T> value;
+		final long expiresAt;
+
+		Entry(Optional<T> value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * An access ordered LinkedHashMap that drops its eldest entry once full.
+	 * Every remove or clear bumps the epoch, so that a read which overlapped
+	 * it doesn't cache what may be the value from before a write.
+	 */
+	static class Segment<T> {
+		final Map<Address,Entry<T>> map;
+		long epoch;
+
+		Segment(final int maxEntries, final AtomicLong evictions) {
+			map = new LinkedHashMap<Address,Entry<T>>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Address,Entry<T>> eldest) {
+					if (size() > maxEntries) {
+						evictions.incrementAndGet();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		synchronized Entry<T> get(Address address, long now) {
+			Entry<T> entry = map.get(address);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.expiresAt <= now) {
+				map.remove(address);
+				return null;
+			}
+			return entry;
+		}
+
+		synchronized long getEpoch() {
+			return epoch;
+		}
+
+		synchronized void put(Address address, Entry<T> entry, long epoch) {
+			if (this.epoch == epoch) {
+				map.put(address, entry);
+			}
+		}
+
+		synchronized boolean remove(Address address) {
+			epoch++;
+			return map.remove(address) != null;
+		}
+
+		synchronized void clear() {
+			epoch++;
+			map.clear();
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+	}
+}
@@ -0,0 +1,469 @@
+package drew.datacube.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.urbanairship.datacube.IdService;
+
+import drew.datacube.keys.IdBytes;
+
+/**
+ * A cache of dimension value to id mappings in front of another
+ * {@link IdService}, replacing CachingIdService for dimensions with many
+ * values.
+ * <p>
+ * Each dimension has its own capacity, set with
+ * {@link #setCapacity(int, int)} and changeable at any time, and is split
+ * into shards that each lock separately. A shard is a segmented LRU: values
+ * enter a probation segment and move to a protected segment, 80% of the
+ * shard, when they are looked up again. Only a repeat lookup protects a
+ * value, so a scan through many values seen once, such as a backfill of
+ * rare cities, evicts other probationary values but not the frequent ones.
+ * <p>
+ * Lookups hash and compare the input bytes in place, so a hit allocates
+ * nothing. The id bytes returned are shared by every caller and must not be
+ * modified, as with the DbHarness implementations that write them straight
+ * into a key.
+ * <p>
+ * Hits, misses, loads from the backing service with their latency, and
+ * evictions are counted per dimension, see {@link #getStats(int)}.
+ */
+public class IdCache implements IdService {
+
+	private static final Logger log = Logger.getLogger(IdCache.class);
+
+	static final int NUM_SHARDS = 8;
+
+	final IdService backing;
+	final int defaultCapacity;
+	volatile DimensionCache[] dimensions = new DimensionCache[0];
+
+	public IdCache(IdService backing, int defaultCapacity) {
+		this.backing = backing;
+		this.defaultCapacity = defaultCapacity;
+	}
+
+	/**
+	 * Sets how many values of the dimension are kept, evicting the least
+	 * valuable ones if it shrinks. The capacity is rounded up to a multiple
+	 * of the shard count; 0 turns caching off for the dimension.
+	 */
+	public void setCapacity(int dimensionNum, int capacity) {
+		dimension(dimensionNum).setCapacity(capacity);
+	}
+
+	public int getCapacity(int dimensionNum) {
+		return dimension(dimensionNum).capacity;
+	}
+
+	@Override
+	public byte[] getId(int dimensionNum, byte[] input, int numIdBytes)
+			throws IOException, InterruptedException {
+		DimensionCache dimension = dimension(dimensionNum);
+		int hash = hash(input);
+		Shard shard = dimension.shard(hash);
+
+		byte[] id = shard.get(input, hash, numIdBytes);
+		if (id != null) {
+			return id;
+		}
+		return load(dimension, dimensionNum, input, hash, numIdBytes);
+	}
+
+	byte[] load(DimensionCache dimension, int dimensionNum, byte[] input, int hash, int numIdBytes)
+			throws IOException, InterruptedException {
+		long begin = System.nanoTime();
+		byte[] id = backing.getId(dimensionNum, input, numIdBytes);
+		dimension.loads.incrementAndGet();
+		dimension.loadNanos.addAndGet(System.nanoTime() - begin);
+		if (dimension.capacity > 0) {
+			dimension.shard(hash).put(input.clone(), hash, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Fills the dimension's cache from the ids the backing service has
+	 * already assigned, up to the dimension's capacity. Returns the number of
+	 * values loaded, 0 if the backing service cannot list its ids.
+	 */
+	public int prewarm(final int dimensionNum, final int numIdBytes) throws IOException, InterruptedException {
+		if (!(backing instanceof ScannableIdService)) {
+			return 0;
+		}
+		final DimensionCache dimension = dimension(dimensionNum);
+		final int[] loaded = new int[1];
+		long begin = System.currentTimeMillis();
+		((ScannableIdService) backing).scanIds(dimensionNum, new ScannableIdService.IdVisitor() {
+			public boolean visit(byte[] value, long id) throws IOException {
+				if (loaded[0] >= dimension.capacity) {
+					return false;
+				}
+				int hash = hash(value);
+				dimension.shard(hash).put(value, hash, IdBytes.toIdBytes(id, numIdBytes));
+				loaded[0]++;
+				return true;
+			}
+		});
+		if (log.isDebugEnabled()) {
+			log.debug("Prewarmed " + loaded[0] + " ids for dimension " + dimensionNum + " in "
+					+ (System.currentTimeMillis() - begin) + "ms");
+		}
+		return loaded[0];
+	}
+
+	/**
+	 * Looks up values through the backing service on threads threads, for
+	 * backing services that cannot list their ids. Values without an id are
+	 * assigned one. Returns the number of values looked up.
+	 */
+	public int prewarm(final int dimensionNum, final int numIdBytes, List<byte[]> values, int threads)
+			throws IOException, InterruptedException {
+		final DimensionCache dimension = dimension(dimensionNum);
+		int limit = Math.min(values.size(), dimension.capacity);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(limit);
+			for (final byte[] value: values.subList(0, limit)) {
+				futures.add(executor.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						load(dimension, dimensionNum, value, hash(value), numIdBytes);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future: futures) {
+				future.get();
+			}
+		}
+		catch (ExecutionException ex) {
+			throw new IOException("Failed to prewarm dimension " + dimensionNum, ex.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return limit;
+	}
+
+	public IdCacheStats getStats(int dimensionNum) {
+		DimensionCache dimension = dimension(dimensionNum);
+		long hits = 0;
+		long misses = 0;
+		long evictions = 0;
+		int size = 0;
+		for (Shard shard: dimension.shards) {
+			synchronized (shard) {
+				hits += shard.hits;
+				misses += shard.misses;
+				evictions += shard.evictions;
+				size += shard.size();
+			}
+		}
+		return new IdCacheStats(dimensionNum, size, dimension.capacity, hits, misses,
+				dimension.loads.get(), dimension.loadNanos.get(), evictions);
+	}
+
+	/**
+	 * Stats for every dimension looked up so far.
+	 */
+	public List<IdCacheStats> getStats() {
+		DimensionCache[] dimensions = this.dimensions;
+		List<IdCacheStats> stats = new ArrayList<IdCacheStats>();
+		for (int i=0; i < dimensions.length; i++) {
+			if (dimensions[i] != null) {
+				stats.add(getStats(i));
+			}
+		}
+		return stats;
+	}
+
+	DimensionCache dimension(int dimensionNum) {
+		DimensionCache[] dimensions = this.dimensions;
+		if (dimensionNum < dimensions.length && dimensions[dimensionNum] != null) {
+			return dimensions[dimensionNum];
+		}
+		synchronized (this) {
+			dimensions = this.dimensions;
+			if (dimensionNum < dimensions.length && dimensions[dimensionNum] != null) {
+				return dimensions[dimensionNum];
+			}
+			// copy on write, so readers never see a slot filled in place
+			DimensionCache[] grown = new DimensionCache[Math.max(dimensions.length, dimensionNum + 1)];
+			System.arraycopy(dimensions, 0, grown, 0, dimensions.length);
+			grown[dimensionNum] = new DimensionCache(defaultCapacity);
+			this.dimensions = grown;
+			return grown[dimensionNum];
+		}
+	}
+
+	static int hash(byte[] input) {
+		int h = 1;
+		for (int i=0; i < input.length; i++) {
+			h = 31 * h + input[i];
+		}
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	static class DimensionCache {
+		final Shard[] shards = new Shard[NUM_SHARDS];
+		volatile int capacity;
+
+		final AtomicLong loads = new AtomicLong();
+		final AtomicLong loadNanos = new AtomicLong();
+
+		DimensionCache(int capacity) {
+			for (int i=0; i < NUM_SHARDS; i++) {
+				shards[i] = new Shard();
+			}
+			setCapacity(capacity);
+		}
+
+		synchronized void setCapacity(int capacity) {
+			int perShard = (Math.max(0, capacity) + NUM_SHARDS - 1) / NUM_SHARDS;
+			for (Shard shard: shards) {
+				shard.setCapacity(perShard);
+			}
+			this.capacity = perShard * NUM_SHARDS;
+		}
+
+		Shard shard(int hash) {
+			return shards[hash >>> 29];
+		}
+	}
+
+	static final class Node {
+		final byte[] key;
+		final int hash;
+		byte[] id;
+		Node chain;
+		Node prev;
+		Node next;
+		boolean protectedSegment;
+
+		Node(byte[] key, int hash, byte[] id) {
+			this.key = key;
+			this.hash = hash;
+			this.id = id;
+		}
+	}
+
+	/**
+	 * A chained hash table whose nodes are also on one of two LRU lists,
+	 * probation and protected, each a circular list around a sentinel with
+	 * the most recently used node first. Counters are only updated with the
+	 * shard locked, so a hit touches no shared state.
+	 */
+	static final class Shard {
+		final Node probation = sentinel();
+		final Node protectedList = sentinel();
+		Node[] table = new Node[1];
+		int capacity;
+		int protectedCapacity;
+		int probationSize;
+		int protectedSize;
+		long hits;
+		long misses;
+		long evictions;
+
+		static Node sentinel() {
+			Node node = new Node(null, 0, null);
+			node.prev = node;
+			node.next = node;
+			return node;
+		}
+
+		synchronized byte[] get(byte[] key, int hash, int numIdBytes) {
+			Node node = find(key, hash);
+			if (node == null || node.id.length != numIdBytes) {
+				misses++;
+				return null;
+			}
+			hits++;
+			unlink(node);
+			if (node.protectedSegment) {
+				linkFirst(protectedList, node);
+			}
+			else {
+				probationSize--;
+				node.protectedSegment = true;
+				linkFirst(protectedList, node);
+				protectedSize++;
+				if (protectedSize > protectedCapacity) {
+					// demote rather than evict, the value gets another chance
+					Node demoted = protectedList.prev;
+					unlink(demoted);
+					protectedSize--;
+					demoted.protectedSegment = false;
+					linkFirst(probation, demoted);
+					probationSize++;
+				}
+			}
+			return node.id;
+		}
+
+		synchronized void put(byte[] key, int hash, byte[] id) {
+			if (capacity == 0) {
+				return;
+			}
+			Node node = find(key, hash);
+			if (node != null) {
+				node.id = id;
+				return;
+			}
+			node = new Node(key, hash, id);
+			int index = hash & (table.length - 1);
+			node.chain = table[index];
+			table[index] = node;
+			linkFirst(probation, node);
+			probationSize++;
+			evictToCapacity();
+		}
+
+		synchronized void setCapacity(int capacity) {
+			this.capacity = capacity;
+			this.protectedCapacity = capacity - Math.max(1, capacity / 5);
+			int tableSize = Integer.highestOneBit(Math.max(1, capacity * 4 / 3) * 2 - 1);
+			Node[] resized = new Node[tableSize];
+			for (Node head: table) {
+				for (Node node=head; node != null; ) {
+					Node next = node.chain;
+					int index = node.hash & (tableSize - 1);
+					node.chain = resized[index];
+					resized[index] = node;
+					node = next;
+				}
+			}
+			table = resized;
+			while (protectedSize > protectedCapacity && protectedSize > 0) {
+				Node demoted = protectedList.prev;
+				unlink(demoted);
+				protectedSize--;
+				demoted.protectedSegment = false;
+				linkFirst(probation, demoted);
+				probationSize++;
+			}
+			evictToCapacity();
+		}
+
+		synchronized int size() {
+			return probationSize + protectedSize;
+		}
+
+		void evictToCapacity() {
+			while (probationSize + protectedSize > capacity) {
+				Node victim;
+				if (probationSize > 0) {
+					victim = probation.prev;
+					probationSize--;
+				}
+				else {
+					victim = protectedList.prev;
+					protectedSize--;
+				}
+				unlink(victim);
+				removeFromTable(victim);
+				evictions++;
+			}
+		}
+
+		Node find(byte[] key, int hash) {
+			for (Node node=table[hash & (table.length - 1)]; node != null; node=node.chain) {
+				if (node.hash == hash && equal(node.key, key)) {
+					return node;
+				}
+			}
+			return null;
+		}
+
+		void removeFromTable(Node node) {
+			int index = node.hash & (table.length - 1);
+			Node prev = null;
+			for (Node current=table[index]; current != null; current=current.chain) {
+				if (current == node) {
+					if (prev == null) {
+						table[index] = current.chain;
+					}
+					else {
+						prev.chain = current.chain;
+					}
+					return;
+				}
+				prev = current;
+			}
+		}
+
+		static boolean equal(byte[] a, byte[] b) {
+			if (a.length != b.length) {
+				return false;
+			}
+			for (int i=0; i < a.length; i++) {
+				if (a[i] != b[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		static void unlink(Node node) {
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+		}
+
+		static void linkFirst(Node sentinel, Node node) {
+			node.next = sentinel.next;
+			node.prev = sentinel;
+			sentinel.next.prev = node;
+			sentinel.next = node;
+		}
+	}
+
+	public static class IdCacheStats {
+		public final int dimensionNum;
+		public final int size;
+		public final int capacity;
+		public final long hits;
+		public final long misses;
+		public final long loads;
+		public final long loadNanos;
+		public final long evictions;
+
+		public IdCacheStats(int dimensionNum, int size, int capacity, long hits, long misses, long loads,
+				long loadNanos, long evictions) {
+			this.dimensionNum = dimensionNum;
+			this.size = size;
+			this.capacity = capacity;
+			this.hits = hits;
+			this.misses = misses;
+			this.loads = loads;
+			this.loadNanos = loadNanos;
+			this.evictions = evictions;
+		}
+
+		public double getHitRate() {
+			long total = hits + misses;
+			return total == 0 ? 0 : (double) hits / total;
+		}
+
+		public long getAverageLoadMicros() {
+			return loads == 0 ? 0 : loadNanos / loads / 1000;
+		}
+
+		@Override
+		public String toString() {
+			return "IdCacheStats [dimensionNum=" + dimensionNum + ", size=" + size + ", capacity=" + capacity
+					+ ", hits=" + hits + ", misses=" + misses + ", hitRate=" + String.format("%.3f", getHitRate())
+					+ ", loads=" + loads + ", averageLoadMicros=" + getAverageLoadMicros()
+					+ ", evictions=" + evictions + "]";
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package drew.datacube.cache;
+
+import java.io.IOException;
+
+import com.urbanairship.datacube.IdService;
+
+/**
+ * An {@link IdService} that can list the ids it has already assigned, so a
+ * cache in front of it can be filled in one pass at startup.
+ */
+public interface ScannableIdService extends IdService {
+
+	/**
+	 * Calls visitor with every value assigned an id in the dimension.
+	 */
+	void scanIds(int dimensionNum, IdVisitor visitor) throws IOException, InterruptedException;
+
+	interface IdVisitor {
+		/**
+		 * Returns false to stop the scan.
+		 */
+		boolean visit(byte[] value, long id) throws IOException;
+	}
+}
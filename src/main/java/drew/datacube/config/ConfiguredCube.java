@@ -0,0 +1,229 @@
+package drew.datacube.config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.hadoop.conf.Configuration;
+
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.DimensionAndBucketType;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.accumulo.AccumuloDbHarness;
+import drew.datacube.backfill.CellStore;
+import drew.datacube.backfill.RollupBackfill;
+import drew.datacube.backfill.RollupBackfill.BackfillStats;
+import drew.datacube.cache.CachingDbHarness;
+import drew.datacube.cache.ScannableIdService;
+import drew.datacube.durable.DurableIdService;
+import drew.datacube.durable.DurableMapDbHarness;
+import drew.datacube.hbase.BatchingHBaseDbHarness;
+import drew.datacube.keys.AddressKeyCodec;
+import drew.datacube.keys.KeyCodec;
+import drew.datacube.lsm.LsmDbHarness;
+import drew.datacube.metrics.CubeMetrics;
+import drew.datacube.metrics.MeteredDbHarness;
+import drew.datacube.offheap.OffHeapDbHarness;
+
+/**
+ * The cube, harness, id service and DataCubeIo wired up by a
+ * {@link CubeBuilder}.
+ */
+public class ConfiguredCube {
+
+	DataCube<LongOp> cube;
+	DataCubeIo<LongOp> cubeIo;
+	DbHarness<LongOp> harness;
+	IdService idService;
+	Map<String,Dimension<?>> dimensions;
+	String backend;
+	CellStore<LongOp> cellStore;
+	DurableIdService durableIds;
+	KeyCodec keyCodec;
+	CubeMetrics metrics;
+
+	int batchSize;
+	long maxBatchAgeMs;
+	SyncLevel syncLevel;
+
+	Configuration hbaseConf;
+	Connector connector;
+
+	ConfiguredCube() { }
+
+	public DataCube<LongOp> getCube() {
+		return cube;
+	}
+
+	public DataCubeIo<LongOp> getCubeIo() {
+		return cubeIo;
+	}
+
+	/**
+	 * The harness the cube reads and writes through, a
+	 * {@link CachingDbHarness} around the backend if cache.maxEntries is set,
+	 * and a {@link MeteredDbHarness} around that if metrics are on.
+	 */
+	public DbHarness<LongOp> getHarness() {
+		return harness;
+	}
+
+	public IdService getIdService() {
+		return idService;
+	}
+
+	public String getBackend() {
+		return backend;
+	}
+
+	/**
+	 * The named dimension, typed by the caller.
+	 */
+	@SuppressWarnings("unchecked")
+	public <F> Dimension<F> getDimension(String name) {
+		Dimension<?> dimension = dimensions.get(name);
+		if (dimension == null) {
+			throw new IllegalArgumentException("No dimension named " + name);
+		}
+		return (Dimension<F>) dimension;
+	}
+
+	/**
+	 * The id service behind any cache for the durable and lsm harnesses,
+	 * which can list the values the cube's cells were written with before a
+	 * restart; null for other backends.
+	 */
+	public ScannableIdService getDurableIds() {
+		return durableIds;
+	}
+
+	/**
+	 * How the harness lays out cell keys, which is what
+	 * {@link #getCellStore()} scans.
+	 */
+	public KeyCodec getKeyCodec() {
+		return keyCodec;
+	}
+
+	/**
+	 * The cube's metrics, or null if metrics are off.
+	 */
+	public CubeMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Raw access to the backend's cells, under any cache.
+	 */
+	public CellStore<LongOp> getCellStore() {
+		return cellStore;
+	}
+
+	/**
+	 * Adds a rollup, given as in the rollups property, and fills it in from
+	 * the cells of an existing finer rollup with a {@link RollupBackfill}.
+	 * Outstanding writes are flushed first, and the cube and DataCubeIo are
+	 * replaced, so callers must pick them up again with {@link #getCube()}
+	 * and {@link #getCubeIo()} and must not write through the old ones
+	 * while this runs. The backfill reads keys in the address layout, so
+	 * this is not supported with harness.keyCodec=rollup.
+	 */
+	public synchronized BackfillStats addRollup(String spec) throws IOException, InterruptedException {
+		if (!(keyCodec instanceof AddressKeyCodec)) {
+			throw new IllegalStateException("Rollups can only be backfilled from keys in the address layout");
+		}
+		Rollup rollup = CubeBuilder.rollup(spec, dimensions);
+		for (Rollup existing: cube.getRollups()) {
+			if (sameComponents(existing, rollup)) {
+				throw new IllegalArgumentException("The cube already has rollup " + spec);
+			}
+		}
+		cubeIo.flush();
+		BackfillStats stats = new RollupBackfill<LongOp>(cube, cellStore, rollup).run();
+		DbHarness<LongOp> cache = unmetered();
+		if (cache instanceof CachingDbHarness) {
+			((CachingDbHarness<LongOp>) cache).invalidateAll();
+		}
+
+		List<Rollup> rollups = new ArrayList<Rollup>(cube.getRollups());
+		rollups.add(rollup);
+		cube = new DataCube<LongOp>(cube.getDimensions(), rollups);
+		cubeIo = newCubeIo();
+		return stats;
+	}
+
+	DataCubeIo<LongOp> newCubeIo() {
+		if (metrics != null) {
+			return metrics.newCubeIo(cube, harness, batchSize, maxBatchAgeMs, syncLevel);
+		}
+		return new DataCubeIo<LongOp>(cube, harness, batchSize, maxBatchAgeMs, syncLevel);
+	}
+
+	DbHarness<LongOp> unmetered() {
+		if (harness instanceof MeteredDbHarness) {
+			return ((MeteredDbHarness<LongOp>) harness).getBacking();
+		}
+		return harness;
+	}
+
+	static boolean sameComponents(Rollup a, Rollup b) {
+		List<DimensionAndBucketType> as = a.getComponents();
+		List<DimensionAndBucketType> bs = b.getComponents();
+		if (as.size() != bs.size()) {
+			return false;
+		}
+		for (DimensionAndBucketType component: as) {
+			boolean found = false;
+			for (DimensionAndBucketType other: bs) {
+				found |= other.dimension == component.dimension && other.bucketType == component.bucketType;
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Flushes outstanding writes and releases the harness's threads or
+	 * memory, snapshotting a durable harness or flushing an lsm one, and
+	 * unregisters any metrics.
+	 */
+	public void close() throws IOException, InterruptedException {
+		cubeIo.flush();
+		DbHarness<LongOp> backend = unmetered();
+		if (backend instanceof CachingDbHarness) {
+			backend = ((CachingDbHarness<LongOp>) backend).getBacking();
+		}
+		if (backend instanceof AccumuloDbHarness) {
+			((AccumuloDbHarness<LongOp>) backend).shutdown();
+		}
+		else if (backend instanceof OffHeapDbHarness) {
+			((OffHeapDbHarness) backend).close();
+		}
+		else if (backend instanceof DurableMapDbHarness) {
+			((DurableMapDbHarness<LongOp>) backend).close();
+		}
+		else if (backend instanceof BatchingHBaseDbHarness) {
+			((BatchingHBaseDbHarness) backend).shutdown();
+		}
+		else if (backend instanceof LsmDbHarness) {
+			((LsmDbHarness) backend).close();
+		}
+		if (durableIds != null) {
+			durableIds.close();
+		}
+		if (metrics != null) {
+			metrics.remove();
+		}
+	}
+}
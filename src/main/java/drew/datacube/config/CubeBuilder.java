@@ -0,0 +1,496 @@
+package drew.datacube.config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Instance;
+import org.apache.accumulo.core.client.ZooKeeperInstance;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.log4j.Logger;
+
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.BucketType;
+import com.urbanairship.datacube.Bucketer;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.bucketers.StringToBytesBucketer;
+import com.urbanairship.datacube.dbharnesses.HBaseDbHarness;
+import com.urbanairship.datacube.dbharnesses.MapDbHarness;
+import com.urbanairship.datacube.idservices.HBaseIdService;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import drew.datacube.accumulo.AccumuloDbHarness;
+import drew.datacube.accumulo.AccumuloIdService;
+import drew.datacube.backfill.HBaseCellStore;
+import drew.datacube.backfill.MapCellStore;
+import drew.datacube.cache.CachingDbHarness;
+import drew.datacube.cache.IdCache;
+import drew.datacube.durable.DurableIdService;
+import drew.datacube.durable.DurableMapDbHarness;
+import drew.datacube.hbase.BatchingHBaseDbHarness;
+import drew.datacube.keys.AddressKeyCodec;
+import drew.datacube.keys.KeyCodec;
+import drew.datacube.keys.RollupKeyCodec;
+import drew.datacube.lsm.LsmDbHarness;
+import drew.datacube.metrics.CasCountingMap;
+import drew.datacube.metrics.CubeMetrics;
+import drew.datacube.offheap.OffHeapDbHarness;
+import drew.datacube.striped.StripedDbHarness;
+
+/**
+ * Builds a {@link LongOp} cube, its harness, id service and
+ * {@link DataCubeIo} from properties, so dimensions, rollups and throughput
+ * settings can be changed per deployment without recompiling.
+ * <pre>
+ * cube.name=myCube
+ * dimensions=time,zipcode
+ * dimension.time.bucketer=hourDayMonth       # hourDayMonth, string or a Bucketer class name
+ * dimension.time.fieldBytes=8
+ * dimension.zipcode.bucketer=string
+ * dimension.zipcode.idSubstitution=true
+ * dimension.zipcode.fieldBytes=5
+ * dimension.zipcode.idCacheSize=50000        # overrides idService.cacheSize for one dimension
+ * rollups=zipcode+time:hours, time:days      # dimension[:hours|days|months], at most two per rollup
+ *
+ * harness=map                                # map, durable, lsm, offheap, striped, hbase or accumulo
+ * harness.commitType=READ_COMBINE_CAS        # defaults to READ_COMBINE_CAS for map and durable, INCREMENT otherwise
+ * harness.keyCodec=address                  # or rollup, compact keys sorted by rollup then time (not map, or hbase unbatched)
+ * harness.table=cubeData
+ * harness.columnFamily=fam
+ * idService.cacheSize=10000                  # ids cached per dimension, 0 for no cache
+ * idService.prewarm=false                    # load cached ids from the id store at startup
+ * cache.maxEntries=0                         # read cache size, 0 for no cache
+ * cache.openTtlMs=1000                       # how long cells in open time buckets are cached
+ *
+ * io.batchSize=1
+ * io.flushIntervalMs=                        # oldest a partial batch may get, empty for no limit
+ * io.syncLevel=FULL_SYNC
+ *
+ * metrics=false                              # meter the DataCubeIo, harness and id service, see CubeMetrics
+ * </pre>
+ * Backend specific settings, with their defaults, are:
+ * <ul>
+ * <li>durable: harness.durable.dir (cube-data/ and the cube name), harness.durable.syncIntervalMs=0
+ *     (0 to force every batch to disk before it is acknowledged), harness.durable.snapshotIntervalMs=300000</li>
+ * <li>lsm: harness.lsm.dir (cube-data/ and the cube name), harness.lsm.memtableCells=500000,
+ *     harness.lsm.syncIntervalMs=0, harness.lsm.compactionTrigger=4, harness.lsm.targetSegmentBytes=67108864</li>
+ * <li>offheap: harness.offheap.maxKeyLength=64, harness.offheap.capacity=1000000</li>
+ * <li>striped: harness.striped.stripes (twice the processors)</li>
+ * <li>hbase: hbase.poolSize=16, hbase.lookupTable=cubeLookup, hbase.counterTable=cubeCounter,
+ *     hbase.batching=false (true for a BatchingHBaseDbHarness, sending a batch's increments in one RPC per
+ *     region server), and for batching hbase.flushThreads=4, hbase.queueSize=100, hbase.queueTimeoutMs=10000,
+ *     hbase.maxRowsPerRpc=1000</li>
+ * <li>accumulo: accumulo.instance, accumulo.zookeepers (a MockInstance when unset),
+ *     accumulo.user=root, accumulo.password, accumulo.lookupTable=cubeLookup,
+ *     accumulo.reverseTable=cubeReverse, accumulo.counterTable=cubeCounter,
+ *     harness.flushThreads, harness.queueSize</li>
+ * </ul>
+ */
+public class CubeBuilder {
+
+	private static final Logger log = Logger.getLogger(CubeBuilder.class);
+
+	final Properties properties;
+	MetricsRegistry metricsRegistry;
+
+	public CubeBuilder(Properties properties) {
+		this.properties = new Properties();
+		this.properties.putAll(properties);
+	}
+
+	/**
+	 * Loads properties from a file, or failing that from a classpath resource
+	 * of the same name.
+	 */
+	public static CubeBuilder load(String name) throws IOException {
+		InputStream in;
+		File file = new File(name);
+		if (file.exists()) {
+			in = new FileInputStream(file);
+		}
+		else {
+			in = CubeBuilder.class.getResourceAsStream(name.startsWith("/") ? name : "/" + name);
+			if (in == null) {
+				throw new IOException("No cube config file or resource named " + name);
+			}
+		}
+		try {
+			Properties properties = new Properties();
+			properties.load(in);
+			return new CubeBuilder(properties);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Overrides a loaded property.
+	 */
+	public CubeBuilder set(String key, Object value) {
+		properties.setProperty(key, String.valueOf(value));
+		return this;
+	}
+
+	/**
+	 * Registers the cube's metrics in registry, whatever the metrics
+	 * property says, rather than in Metrics.defaultRegistry().
+	 */
+	public CubeBuilder setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+		return this;
+	}
+
+	public ConfiguredCube build() throws IOException {
+		Map<String,Dimension<?>> dimensions = new LinkedHashMap<String,Dimension<?>>();
+		for (String name: list("dimensions")) {
+			dimensions.put(name, dimension(name));
+		}
+		if (dimensions.isEmpty()) {
+			throw new IllegalArgumentException("No dimensions configured");
+		}
+
+		List<Rollup> rollups = new ArrayList<Rollup>();
+		for (String spec: list("rollups")) {
+			rollups.add(rollup(spec, dimensions));
+		}
+
+		DataCube<LongOp> cube = new DataCube<LongOp>(new ArrayList<Dimension<?>>(dimensions.values()), rollups);
+
+		String backend = get("harness", "map");
+		ConfiguredCube configured = new ConfiguredCube();
+		configured.cube = cube;
+		configured.dimensions = dimensions;
+		configured.backend = backend;
+		if (metricsRegistry != null || Boolean.parseBoolean(get("metrics", "false"))) {
+			configured.metrics = new CubeMetrics(metricsRegistry != null ? metricsRegistry : Metrics.defaultRegistry(),
+					get("cube.name", "cube"));
+		}
+		configured.idService = idService(backend, configured);
+		if (configured.metrics != null) {
+			configured.idService = configured.metrics.meter(configured.idService,
+					new ArrayList<String>(dimensions.keySet()));
+		}
+		configured.harness = harness(backend, configured);
+		int cacheEntries = getInt("cache.maxEntries", 0);
+		if (cacheEntries > 0) {
+			configured.harness = new CachingDbHarness<LongOp>(configured.harness, cacheEntries,
+					getInt("cache.openTtlMs", 1000));
+		}
+		if (configured.metrics != null) {
+			configured.harness = configured.metrics.meter(configured.harness);
+		}
+
+		int batchSize = getInt("io.batchSize", 1);
+		String flushInterval = get("io.flushIntervalMs", "");
+		long maxBatchAgeMs = flushInterval.length() == 0 ? Long.MAX_VALUE : Long.parseLong(flushInterval);
+		SyncLevel syncLevel = SyncLevel.valueOf(get("io.syncLevel", SyncLevel.FULL_SYNC.name()));
+		configured.batchSize = batchSize;
+		configured.maxBatchAgeMs = maxBatchAgeMs;
+		configured.syncLevel = syncLevel;
+		configured.cubeIo = configured.newCubeIo();
+
+		if (log.isDebugEnabled()) {
+			log.debug("Built cube " + get("cube.name", "cube") + " with " + dimensions.size() + " dimensions, "
+					+ rollups.size() + " rollups on " + backend + ", batch size " + batchSize + ", " + syncLevel);
+		}
+		return configured;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	Dimension<?> dimension(String name) {
+		String prefix = "dimension." + name + ".";
+		String bucketerName = require(prefix + "bucketer");
+		Bucketer bucketer;
+		if (bucketerName.equals("hourDayMonth")) {
+			bucketer = new HourDayMonthBucketer();
+		}
+		else if (bucketerName.equals("string")) {
+			bucketer = StringToBytesBucketer.getInstance();
+		}
+		else {
+			try {
+				bucketer = (Bucketer) Class.forName(bucketerName).newInstance();
+			}
+			catch (Exception ex) {
+				throw new IllegalArgumentException("Could not create bucketer " + bucketerName, ex);
+			}
+		}
+		boolean idSubstitution = Boolean.parseBoolean(get(prefix + "idSubstitution", "false"));
+		int fieldBytes = Integer.parseInt(require(prefix + "fieldBytes"));
+		return new Dimension(name, bucketer, idSubstitution, fieldBytes);
+	}
+
+	/**
+	 * Parses dimension[:bucketType][+dimension[:bucketType]].
+	 */
+	static Rollup rollup(String spec, Map<String,Dimension<?>> dimensions) {
+		String[] parts = spec.split("\\+");
+		if (parts.length > 2) {
+			throw new IllegalArgumentException("Rollup '" + spec + "' has more than two dimensions");
+		}
+		Dimension<?>[] dims = new Dimension<?>[parts.length];
+		BucketType[] bucketTypes = new BucketType[parts.length];
+		for (int i=0; i < parts.length; i++) {
+			String[] dimAndType = parts[i].trim().split(":");
+			dims[i] = dimensions.get(dimAndType[0].trim());
+			if (dims[i] == null) {
+				throw new IllegalArgumentException("Rollup '" + spec + "' names unknown dimension " + dimAndType[0]);
+			}
+			bucketTypes[i] = dimAndType.length > 1 ? bucketType(dimAndType[1].trim()) : BucketType.IDENTITY;
+		}
+		if (parts.length == 1) {
+			return new Rollup(dims[0], bucketTypes[0]);
+		}
+		return new Rollup(dims[0], bucketTypes[0], dims[1], bucketTypes[1]);
+	}
+
+	static BucketType bucketType(String name) {
+		if (name.equals("hours")) return HourDayMonthBucketer.hours;
+		if (name.equals("days")) return HourDayMonthBucketer.days;
+		if (name.equals("months")) return HourDayMonthBucketer.months;
+		if (name.equals("identity")) return BucketType.IDENTITY;
+		throw new IllegalArgumentException("Unknown bucket type " + name);
+	}
+
+	IdService idService(String backend, ConfiguredCube configured) throws IOException {
+		IdService backing;
+		if (backend.equals("hbase")) {
+			backing = new HBaseIdService(hbaseConfiguration(configured),
+					get("hbase.lookupTable", "cubeLookup").getBytes(),
+					get("hbase.counterTable", "cubeCounter").getBytes(),
+					get("harness.columnFamily", "fam").getBytes(),
+					cubeName());
+		}
+		else if (backend.equals("durable") || backend.equals("lsm")) {
+			configured.durableIds = new DurableIdService(new File(dataDir(backend), "ids"));
+			backing = configured.durableIds;
+		}
+		else if (backend.equals("accumulo")) {
+			backing = new AccumuloIdService(connector(configured),
+					get("accumulo.lookupTable", "cubeLookup"),
+					get("accumulo.reverseTable", "cubeReverse"),
+					get("accumulo.counterTable", "cubeCounter"),
+					cubeName());
+		}
+		else {
+			backing = new MapIdService();
+		}
+
+		int cacheSize = getInt("idService.cacheSize", 10000);
+		if (cacheSize <= 0) {
+			return backing;
+		}
+		IdCache idCache = new IdCache(backing, cacheSize);
+		boolean prewarm = Boolean.parseBoolean(get("idService.prewarm", "false"));
+		int dimensionNum = 0;
+		for (Dimension<?> dimension: configured.dimensions.values()) {
+			String prefix = "dimension." + dimension.getName() + ".";
+			idCache.setCapacity(dimensionNum, getInt(prefix + "idCacheSize", cacheSize));
+			if (prewarm && dimension.getDoIdSubstitution()) {
+				try {
+					idCache.prewarm(dimensionNum, dimension.getNumFieldBytes());
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while prewarming id cache", ex);
+				}
+			}
+			dimensionNum++;
+		}
+		return idCache;
+	}
+
+	DbHarness<LongOp> harness(String backend, ConfiguredCube configured) throws IOException {
+		IdService idService = configured.idService;
+		KeyCodec keyCodec = keyCodec(backend, configured);
+		CommitType commitType = CommitType.valueOf(get("harness.commitType",
+				backend.equals("map") || backend.equals("durable") ? CommitType.READ_COMBINE_CAS.name()
+						: CommitType.INCREMENT.name()));
+
+		if (backend.equals("map")) {
+			ConcurrentHashMap<BoxedByteArray,byte[]> map = configured.metrics != null
+					? new CasCountingMap(configured.metrics) : new ConcurrentHashMap<BoxedByteArray,byte[]>();
+			configured.cellStore = new MapCellStore<LongOp>(map, LongOp.DESERIALIZER, commitType);
+			return new MapDbHarness<LongOp>(map, LongOp.DESERIALIZER, commitType, idService);
+		}
+		if (backend.equals("durable")) {
+			DurableMapDbHarness<LongOp> harness = new DurableMapDbHarness<LongOp>(dataDir(backend), LongOp.DESERIALIZER,
+					commitType, idService, getInt("harness.durable.syncIntervalMs", 0),
+					getInt("harness.durable.snapshotIntervalMs", 300000));
+			harness.setKeyCodec(keyCodec);
+			if (configured.metrics != null) {
+				harness.setCasRetries(configured.metrics.casRetries());
+			}
+			configured.cellStore = harness;
+			return harness;
+		}
+		if (backend.equals("lsm")) {
+			LsmDbHarness harness = new LsmDbHarness(dataDir(backend), idService, commitType,
+					getInt("harness.lsm.memtableCells", LsmDbHarness.DEFAULT_MEMTABLE_CELLS),
+					getInt("harness.lsm.syncIntervalMs", 0));
+			harness.setCompactionTrigger(getInt("harness.lsm.compactionTrigger",
+					LsmDbHarness.DEFAULT_COMPACTION_TRIGGER));
+			harness.setTargetSegmentBytes(getInt("harness.lsm.targetSegmentBytes",
+					LsmDbHarness.DEFAULT_TARGET_SEGMENT_BYTES));
+			harness.setKeyCodec(keyCodec);
+			configured.cellStore = harness;
+			return harness;
+		}
+		if (backend.equals("offheap")) {
+			OffHeapDbHarness harness = new OffHeapDbHarness(getInt("harness.offheap.maxKeyLength", 64),
+					getInt("harness.offheap.capacity", 1000000), idService, commitType);
+			harness.setKeyCodec(keyCodec);
+			configured.cellStore = harness;
+			return harness;
+		}
+		if (backend.equals("striped")) {
+			StripedDbHarness harness = new StripedDbHarness(idService, commitType, getInt("harness.striped.stripes",
+					Runtime.getRuntime().availableProcessors() * 2));
+			harness.setKeyCodec(keyCodec);
+			configured.cellStore = harness;
+			return harness;
+		}
+		if (backend.equals("hbase")) {
+			HTablePool pool = new HTablePool(hbaseConfiguration(configured), getInt("hbase.poolSize", 16));
+			byte[] table = get("harness.table", "cubeData").getBytes();
+			byte[] cf = get("harness.columnFamily", "fam").getBytes();
+			configured.cellStore = new HBaseCellStore<LongOp>(pool, cubeName(), table, cf, LongOp.DESERIALIZER);
+			if (batchingHBase()) {
+				BatchingHBaseDbHarness harness = new BatchingHBaseDbHarness(hbaseConfiguration(configured), pool,
+						cubeName(), table, cf, idService, commitType,
+						getInt("hbase.flushThreads", BatchingHBaseDbHarness.DEFAULT_FLUSH_THREADS),
+						getInt("hbase.queueSize", BatchingHBaseDbHarness.DEFAULT_QUEUE_SIZE),
+						getInt("hbase.queueTimeoutMs", (int) BatchingHBaseDbHarness.DEFAULT_QUEUE_TIMEOUT_MS),
+						getInt("hbase.maxRowsPerRpc", BatchingHBaseDbHarness.DEFAULT_MAX_ROWS_PER_RPC));
+				harness.setKeyCodec(keyCodec);
+				return harness;
+			}
+			return new HBaseDbHarness<LongOp>(pool, cubeName(), table, cf, LongOp.DESERIALIZER, idService,
+					commitType);
+		}
+		if (backend.equals("accumulo")) {
+			AccumuloDbHarness<LongOp> harness = new AccumuloDbHarness<LongOp>(connector(configured), cubeName(),
+					get("harness.table", "cubeData"), get("harness.columnFamily", "fam").getBytes(),
+					LongOp.DESERIALIZER, idService, commitType,
+					getInt("harness.flushThreads", AccumuloDbHarness.DEFAULT_FLUSH_THREADS),
+					getInt("harness.queueSize", AccumuloDbHarness.DEFAULT_QUEUE_SIZE));
+			harness.setKeyCodec(keyCodec);
+			configured.cellStore = harness;
+			return harness;
+		}
+		throw new IllegalArgumentException("Unknown harness " + backend);
+	}
+
+	/**
+	 * The codec for harness.keyCodec. The map and hbase harnesses come from
+	 * the datacube library and always key cells with Address.toKey, unless
+	 * hbase.batching replaces the latter with our own.
+	 */
+	KeyCodec keyCodec(String backend, ConfiguredCube configured) {
+		String name = get("harness.keyCodec", "address");
+		if (name.equals("address")) {
+			configured.keyCodec = AddressKeyCodec.INSTANCE;
+		}
+		else if (name.equals("rollup")) {
+			if (backend.equals("map") || (backend.equals("hbase") && !batchingHBase())) {
+				throw new IllegalArgumentException("The " + backend + " harness only supports harness.keyCodec=address");
+			}
+			configured.keyCodec = new RollupKeyCodec(configured.cube);
+		}
+		else {
+			throw new IllegalArgumentException("Unknown key codec " + name);
+		}
+		return configured.keyCodec;
+	}
+
+	boolean batchingHBase() {
+		return Boolean.parseBoolean(get("hbase.batching", "false"));
+	}
+
+	File dataDir(String backend) {
+		return new File(get("harness." + backend + ".dir", "cube-data/" + get("cube.name", "cube")));
+	}
+
+	Configuration hbaseConfiguration(ConfiguredCube configured) {
+		if (configured.hbaseConf == null) {
+			configured.hbaseConf = HBaseConfiguration.create();
+		}
+		return configured.hbaseConf;
+	}
+
+	Connector connector(ConfiguredCube configured) throws IOException {
+		if (configured.connector == null) {
+			String instanceName = get("accumulo.instance", "datacube");
+			String zookeepers = get("accumulo.zookeepers", "");
+			Instance instance = zookeepers.length() == 0 ? new MockInstance(instanceName)
+					: new ZooKeeperInstance(instanceName, zookeepers);
+			try {
+				configured.connector = instance.getConnector(get("accumulo.user", "root"),
+						get("accumulo.password", "").getBytes());
+			}
+			catch (AccumuloException ex) {
+				throw new IOException(ex);
+			}
+			catch (AccumuloSecurityException ex) {
+				throw new IOException(ex);
+			}
+		}
+		return configured.connector;
+	}
+
+	byte[] cubeName() {
+		return get("cube.name", "cube").getBytes();
+	}
+
+	String get(String key, String defaultValue) {
+		return properties.getProperty(key, defaultValue).trim();
+	}
+
+	String require(String key) {
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().length() == 0) {
+			throw new IllegalArgumentException("Missing cube property " + key);
+		}
+		return value.trim();
+	}
+
+	int getInt(String key, int defaultValue) {
+		String value = get(key, "");
+		return value.length() == 0 ? defaultValue : Integer.parseInt(value);
+	}
+
+	List<String> list(String key) {
+		List<String> values = new ArrayList<String>();
+		for (String value: get(key, "").split(",")) {
+			if (value.trim().length() > 0) {
+				values.add(value.trim());
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,255 @@
+package drew.datacube.durable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.IdService;
+
+import drew.datacube.cache.ScannableIdService;
+import drew.datacube.keys.IdBytes;
+
+/**
+ * An {@link IdService} that assigns ids in memory, counting up from 0 per
+ * dimension, and logs each assignment to a {@link WriteAheadLog} before
+ * handing the id out, so the ids in a {@link DurableMapDbHarness}'s keys
+ * mean the same thing after a restart.
+ * <p>
+ * New values are assigned one at a time and each is forced to disk, which
+ * is cheap as long as new values are rare next to writes of known ones.
+ * <p>
+ * Opening starts a new log segment. If there are older segments, every id
+ * is written to ids-N.dat, N being the new segment, and the segments and
+ * snapshots before it are deleted, so the log only ever holds the ids
+ * assigned since the last open.
+ */
+public class DurableIdService implements ScannableIdService {
+
+	private static final Logger log = Logger.getLogger(DurableIdService.class);
+
+	static final int SNAPSHOT_MAGIC = 0x44434944;
+	static final int SNAPSHOT_VERSION = 1;
+	static final String SNAPSHOT_PREFIX = "ids-";
+	static final String SNAPSHOT_SUFFIX = ".dat";
+
+	final File dir;
+	final WriteAheadLog wal;
+	final ConcurrentMap<Integer,ConcurrentMap<BoxedByteArray,Long>> ids =
+			new ConcurrentHashMap<Integer,ConcurrentMap<BoxedByteArray,Long>>();
+	final Map<Integer,Long> next = new ConcurrentHashMap<Integer,Long>();
+
+	public DurableIdService(File dir) throws IOException {
+		this.dir = dir;
+		wal = new WriteAheadLog(dir);
+		long fromSegment = 0;
+		File snapshot = latestSnapshot();
+		if (snapshot != null) {
+			fromSegment = loadSnapshot(snapshot);
+		}
+		wal.replay(fromSegment, new WriteAheadLog.RecordVisitor() {
+			public void visit(byte[] payload) throws IOException {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				int dimensionNum = in.readInt();
+				long id = in.readLong();
+				byte[] value = new byte[payload.length - 12];
+				in.readFully(value);
+				assigned(dimensionNum, new BoxedByteArray(value), id);
+			}
+		});
+		long segment = wal.open();
+		if (wal.segments().size() > 1) {
+			snapshot(segment);
+		}
+	}
+
+	File latestSnapshot() {
+		File latest = null;
+		long latestSegment = -1;
+		for (File f: snapshots()) {
+			long segment = snapshotSegment(f);
+			if (segment > latestSegment) {
+				latest = f;
+				latestSegment = segment;
+			}
+		}
+		return latest;
+	}
+
+	File[] snapshots() {
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.getName().startsWith(SNAPSHOT_PREFIX) && f.getName().endsWith(SNAPSHOT_SUFFIX);
+			}
+		});
+		return files == null ? new File[0] : files;
+	}
+
+	static long snapshotSegment(File f) {
+		String name = f.getName();
+		try {
+			return Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+		}
+		catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Loads the ids of a snapshot, returning the first log segment it does
+	 * not cover.
+	 */
+	long loadSnapshot(File file) throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)),
+				new CRC32());
+		DataInputStream in = new DataInputStream(checked);
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException(file + " is not an id snapshot");
+			}
+			int version = in.readInt();
+			if (version != SNAPSHOT_VERSION) {
+				throw new IOException(file + " has unsupported version " + version);
+			}
+			long segment = in.readLong();
+			long count = in.readLong();
+			for (long i=0; i < count; i++) {
+				int dimensionNum = in.readInt();
+				long id = in.readLong();
+				byte[] value = new byte[in.readInt()];
+				in.readFully(value);
+				assigned(dimensionNum, new BoxedByteArray(value), id);
+			}
+			int expected = (int) checked.getChecksum().getValue();
+			if (in.readInt() != expected) {
+				throw new IOException(file + " is corrupt");
+			}
+			return segment;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes every id to the snapshot for segment, which must not have had
+	 * anything appended yet, and deletes the segments and snapshots before
+	 * it.
+	 */
+	void snapshot(long segment) throws IOException {
+		File target = new File(dir, String.format("%s%012d%s", SNAPSHOT_PREFIX, segment, SNAPSHOT_SUFFIX));
+		File tmp = new File(dir, target.getName() + ".tmp");
+		long count = 0;
+		for (Map<BoxedByteArray,Long> dimension: ids.values()) {
+			count += dimension.size();
+		}
+		FileOutputStream file = new FileOutputStream(tmp);
+		CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32());
+		DataOutputStream out = new DataOutputStream(checked);
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeLong(segment);
+			out.writeLong(count);
+			for (Map.Entry<Integer,ConcurrentMap<BoxedByteArray,Long>> dimension: ids.entrySet()) {
+				for (Map.Entry<BoxedByteArray,Long> entry: dimension.getValue().entrySet()) {
+					out.writeInt(dimension.getKey());
+					out.writeLong(entry.getValue());
+					out.writeInt(entry.getKey().bytes.length);
+					out.write(entry.getKey().bytes);
+				}
+			}
+			out.writeInt((int) checked.getChecksum().getValue());
+			out.flush();
+			file.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		if (!tmp.renameTo(target)) {
+			throw new IOException("Could not rename " + tmp + " to " + target);
+		}
+
+		wal.deleteBefore(segment);
+		for (File f: snapshots()) {
+			if (!f.equals(target) && !f.delete()) {
+				log.warn("Could not delete old id snapshot " + f);
+			}
+		}
+	}
+
+	void assigned(int dimensionNum, BoxedByteArray value, long id) {
+		dimension(dimensionNum).put(value, id);
+		Long current = next.get(dimensionNum);
+		if (current == null || current <= id) {
+			next.put(dimensionNum, id + 1);
+		}
+	}
+
+	ConcurrentMap<BoxedByteArray,Long> dimension(int dimensionNum) {
+		ConcurrentMap<BoxedByteArray,Long> dimension = ids.get(dimensionNum);
+		if (dimension == null) {
+			ids.putIfAbsent(dimensionNum, new ConcurrentHashMap<BoxedByteArray,Long>());
+			dimension = ids.get(dimensionNum);
+		}
+		return dimension;
+	}
+
+	@Override
+	public byte[] getId(int dimensionNum, byte[] input, int numIdBytes) throws IOException, InterruptedException {
+		BoxedByteArray value = new BoxedByteArray(input);
+		Long id = dimension(dimensionNum).get(value);
+		if (id == null) {
+			id = assign(dimensionNum, value);
+		}
+		return IdBytes.toIdBytes(id, numIdBytes);
+	}
+
+	synchronized long assign(int dimensionNum, BoxedByteArray value) throws IOException, InterruptedException {
+		Long id = dimension(dimensionNum).get(value);
+		if (id != null) {
+			return id;
+		}
+		Long nextId = next.get(dimensionNum);
+		id = nextId == null ? 0 : nextId;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(12 + value.bytes.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(dimensionNum);
+		out.writeLong(id);
+		out.write(value.bytes);
+		wal.sync(wal.append(bytes.toByteArray()));
+
+		assigned(dimensionNum, value, id);
+		return id;
+	}
+
+	@Override
+	public void scanIds(int dimensionNum, IdVisitor visitor) throws IOException {
+		for (Map.Entry<BoxedByteArray,Long> entry: dimension(dimensionNum).entrySet()) {
+			if (!visitor.visit(entry.getKey().bytes, entry.getValue())) {
+				return;
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		wal.close();
+	}
+}
@@ -0,0 +1,521 @@
+package drew.datacube.durable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.Deserializer;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.Op;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.FullQueueException;
+import com.urbanairship.datacube.dbharnesses.MapDbHarness;
+import com.yammer.metrics.core.Counter;
+
+import drew.datacube.HarnessFutures;
+import drew.datacube.backfill.CellStore;
+import drew.datacube.keys.AddressKeyCodec;
+import drew.datacube.keys.KeyCodec;
+
+/**
+ * A {@link DbHarness} that keeps its cells in a map on the heap like
+ * {@link MapDbHarness}, and survives restarts by logging every batch to a
+ * {@link WriteAheadLog} and periodically snapshotting the map.
+ * <p>
+ * Each batch is applied to the map and appended to the log as one record of
+ * its keys and ops, so a torn batch is dropped whole on recovery. With a
+ * syncIntervalMs of 0, runBatchAsync returns once the batch is forced to
+ * disk, group committed with any batches from other threads; otherwise the
+ * log is forced every syncIntervalMs and on {@link #flush()}, and a crash
+ * can lose the batches of the last interval.
+ * <p>
+ * A snapshot rolls the log and copies the map while writes are held off,
+ * which takes a pass over the map's entries, then writes the copy to
+ * snapshot-N.dat in the background of further writes and deletes the log
+ * segments before N. On startup the newest snapshot is loaded and the
+ * segments from N on replayed. Ids in the keys must be as durable as the
+ * cells, e.g. from a {@link DurableIdService} in the same directory.
+ */
+public class DurableMapDbHarness<T extends Op> implements DbHarness<T>, CellStore<T> {
+
+	private static final Logger log = Logger.getLogger(DurableMapDbHarness.class);
+
+	static final int SNAPSHOT_MAGIC = 0x44435348;
+	static final int SNAPSHOT_VERSION = 1;
+	static final String SNAPSHOT_PREFIX = "snapshot-";
+	static final String SNAPSHOT_SUFFIX = ".dat";
+
+	final File dir;
+	final Deserializer<T> deserializer;
+	final CommitType commitType;
+	final IdService idService;
+	KeyCodec keyCodec = AddressKeyCodec.INSTANCE;
+	final long syncIntervalMs;
+
+	final ConcurrentMap<BoxedByteArray,byte[]> map = new ConcurrentHashMap<BoxedByteArray,byte[]>();
+	final WriteAheadLog wal;
+	final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+	final Object overwriteLock = new Object();
+	final Object snapshotMonitor = new Object();
+	final ScheduledExecutorService scheduler;
+	Counter casRetries;
+
+	long recoveredCells;
+	long replayedBatches;
+	long recoveryMs;
+
+	/**
+	 * Recovers the cells in dir, if any, and opens a new log segment.
+	 * syncIntervalMs of 0 makes every batch durable before runBatchAsync
+	 * returns; snapshotIntervalMs of 0 only snapshots on {@link #snapshot()}
+	 * and {@link #close()}.
+	 */
+	public DurableMapDbHarness(File dir, Deserializer<T> deserializer, CommitType commitType, IdService idService,
+			long syncIntervalMs, long snapshotIntervalMs) throws IOException {
+		this.dir = dir;
+		this.deserializer = deserializer;
+		this.commitType = commitType;
+		this.idService = idService;
+		this.syncIntervalMs = syncIntervalMs;
+		this.wal = new WriteAheadLog(dir);
+		recover();
+		wal.open();
+
+		if (syncIntervalMs > 0 || snapshotIntervalMs > 0) {
+			scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "durable-harness-" + DurableMapDbHarness.this.dir.getName());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			if (syncIntervalMs > 0) {
+				scheduler.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						try {
+							wal.sync(wal.getAppended());
+						}
+						catch (Exception ex) {
+							log.error("Periodic log sync failed", ex);
+						}
+					}
+				}, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+			}
+			if (snapshotIntervalMs > 0) {
+				scheduler.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						try {
+							snapshot();
+						}
+						catch (Exception ex) {
+							log.error("Periodic snapshot failed", ex);
+						}
+					}
+				}, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+			}
+		}
+		else {
+			scheduler = null;
+		}
+	}
+
+	public void setKeyCodec(KeyCodec keyCodec) {
+		this.keyCodec = keyCodec;
+	}
+
+	/**
+	 * Counts the READ_COMBINE_CAS writes that lose a race for a cell and are
+	 * retried, or null to not count them.
+	 */
+	public void setCasRetries(Counter casRetries) {
+		this.casRetries = casRetries;
+	}
+
+	void recover() throws IOException {
+		long start = System.currentTimeMillis();
+		long fromSegment = 0;
+		File snapshot = latestSnapshot();
+		if (snapshot != null) {
+			fromSegment = loadSnapshot(snapshot);
+		}
+		recoveredCells = map.size();
+		replayedBatches = wal.replay(fromSegment, new WriteAheadLog.RecordVisitor() {
+			public void visit(byte[] payload) throws IOException {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				int cells = in.readInt();
+				for (int i=0; i < cells; i++) {
+					byte[] key = new byte[in.readInt()];
+					in.readFully(key);
+					byte[] value = new byte[in.readInt()];
+					in.readFully(value);
+					apply(new BoxedByteArray(key), value);
+				}
+			}
+		});
+		recoveryMs = System.currentTimeMillis() - start;
+		if (snapshot != null || replayedBatches > 0) {
+			log.info("Recovered " + recoveredCells + " cells from " + (snapshot == null ? "no snapshot" : snapshot)
+					+ " and " + replayedBatches + " batches from the log in " + recoveryMs + "ms");
+		}
+	}
+
+	File latestSnapshot() {
+		File latest = null;
+		long latestSegment = -1;
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.getName().startsWith(SNAPSHOT_PREFIX) && f.getName().endsWith(SNAPSHOT_SUFFIX);
+			}
+		});
+		if (files == null) {
+			return null;
+		}
+		for (File f: files) {
+			long segment = snapshotSegment(f);
+			if (segment > latestSegment) {
+				latest = f;
+				latestSegment = segment;
+			}
+		}
+		return latest;
+	}
+
+	static long snapshotSegment(File f) {
+		String name = f.getName();
+		try {
+			return Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+		}
+		catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	File snapshotFile(long segment) {
+		return new File(dir, String.format("%s%012d%s", SNAPSHOT_PREFIX, segment, SNAPSHOT_SUFFIX));
+	}
+
+	/**
+	 * Loads the cells of a snapshot into the map, returning the first log
+	 * segment it does not cover.
+	 */
+	long loadSnapshot(File file) throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file),
+				64 * 1024), new CRC32());
+		DataInputStream in = new DataInputStream(checked);
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException(file + " is not a cube snapshot");
+			}
+			int version = in.readInt();
+			if (version != SNAPSHOT_VERSION) {
+				throw new IOException(file + " has unsupported version " + version);
+			}
+			long segment = in.readLong();
+			long cells = in.readLong();
+			for (long i=0; i < cells; i++) {
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				byte[] value = new byte[in.readInt()];
+				in.readFully(value);
+				map.put(new BoxedByteArray(key), value);
+			}
+			int expected = (int) checked.getChecksum().getValue();
+			if (in.readInt() != expected) {
+				throw new IOException(file + " is corrupt");
+			}
+			return segment;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public Future<?> runBatchAsync(Batch<T> batch, AfterExecute<T> afterExecute) throws FullQueueException {
+		try {
+			Map<Address,T> cells = batch.getMap();
+			List<BoxedByteArray> keys = new ArrayList<BoxedByteArray>(cells.size());
+			List<byte[]> values = new ArrayList<byte[]>(cells.size());
+			for (Map.Entry<Address,T> cell: cells.entrySet()) {
+				keys.add(new BoxedByteArray(keyCodec.toKey(cell.getKey(), idService)));
+				values.add(cell.getValue().serialize());
+			}
+			long position = commit(keys, values);
+			if (syncIntervalMs == 0) {
+				wal.sync(position);
+			}
+		}
+		catch (Exception ex) {
+			log.error("Failed to apply batch", ex);
+			afterExecute.afterExecute(ex);
+			return HarnessFutures.completed(ex);
+		}
+		afterExecute.afterExecute(null);
+		return HarnessFutures.DONE;
+	}
+
+	/**
+	 * Applies the cells to the map and appends them to the log as one record,
+	 * returning its log position. Overwrites are serialized so the log
+	 * replays them in the order the map saw them; adds commute.
+	 */
+	long commit(List<BoxedByteArray> keys, List<byte[]> values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(keys.size());
+		for (int i=0; i < keys.size(); i++) {
+			byte[] key = keys.get(i).bytes;
+			out.writeInt(key.length);
+			out.write(key);
+			out.writeInt(values.get(i).length);
+			out.write(values.get(i));
+		}
+		byte[] record = bytes.toByteArray();
+
+		snapshotLock.readLock().lock();
+		try {
+			if (commitType == CommitType.OVERWRITE) {
+				synchronized (overwriteLock) {
+					applyAll(keys, values);
+					return wal.append(record);
+				}
+			}
+			applyAll(keys, values);
+			return wal.append(record);
+		}
+		finally {
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	void applyAll(List<BoxedByteArray> keys, List<byte[]> values) throws IOException {
+		for (int i=0; i < keys.size(); i++) {
+			apply(keys.get(i), values.get(i));
+		}
+	}
+
+	void apply(BoxedByteArray key, byte[] value) throws IOException {
+		if (commitType == CommitType.OVERWRITE) {
+			map.put(key, value);
+			return;
+		}
+		T op = null;
+		while (true) {
+			byte[] current = map.get(key);
+			if (current == null) {
+				if (map.putIfAbsent(key, value) == null) {
+					return;
+				}
+			}
+			else {
+				if (op == null) {
+					op = deserializer.fromBytes(value);
+				}
+				if (map.replace(key, current, op.add(deserializer.fromBytes(current)).serialize())) {
+					return;
+				}
+			}
+			if (casRetries != null) {
+				casRetries.inc();
+			}
+		}
+	}
+
+	@Override
+	public Optional<T> get(Address c) throws IOException, InterruptedException {
+		byte[] value = map.get(new BoxedByteArray(keyCodec.toKey(c, idService)));
+		return value == null ? Optional.<T>absent() : Optional.of(deserializer.fromBytes(value));
+	}
+
+	@Override
+	public List<Optional<T>> multiGet(List<Address> addresses) throws IOException {
+		List<Optional<T>> results = new ArrayList<Optional<T>>(addresses.size());
+		try {
+			for (Address address: addresses) {
+				results.add(get(address));
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		}
+		return results;
+	}
+
+	/**
+	 * Forces every batch applied so far to disk, throwing
+	 * IllegalStateException if the log can not be synced.
+	 */
+	@Override
+	public void flush() throws InterruptedException {
+		try {
+			wal.sync(wal.getAppended());
+		}
+		catch (IOException ex) {
+			throw new IllegalStateException("Failed to sync log", ex);
+		}
+	}
+
+	/**
+	 * Writes the map to a new snapshot and deletes the log segments and
+	 * snapshots it replaces, returning the number of cells written.
+	 */
+	public long snapshot() throws IOException, InterruptedException {
+		synchronized (snapshotMonitor) {
+			long start = System.currentTimeMillis();
+			long segment;
+			BoxedByteArray[] keys;
+			byte[][] values;
+			snapshotLock.writeLock().lock();
+			try {
+				segment = wal.roll();
+				keys = new BoxedByteArray[map.size()];
+				values = new byte[keys.length][];
+				int i = 0;
+				for (Map.Entry<BoxedByteArray,byte[]> cell: map.entrySet()) {
+					keys[i] = cell.getKey();
+					values[i] = cell.getValue();
+					i++;
+				}
+			}
+			finally {
+				snapshotLock.writeLock().unlock();
+			}
+			long copyMs = System.currentTimeMillis() - start;
+
+			File target = snapshotFile(segment);
+			File tmp = new File(dir, target.getName() + ".tmp");
+			FileOutputStream file = new FileOutputStream(tmp);
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 64 * 1024),
+					new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			try {
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(SNAPSHOT_VERSION);
+				out.writeLong(segment);
+				out.writeLong(keys.length);
+				for (int i=0; i < keys.length; i++) {
+					out.writeInt(keys[i].bytes.length);
+					out.write(keys[i].bytes);
+					out.writeInt(values[i].length);
+					out.write(values[i]);
+				}
+				out.writeInt((int) checked.getChecksum().getValue());
+				out.flush();
+				file.getFD().sync();
+			}
+			finally {
+				out.close();
+			}
+			if (!tmp.renameTo(target)) {
+				throw new IOException("Could not rename " + tmp + " to " + target);
+			}
+
+			wal.deleteBefore(segment);
+			File[] old = dir.listFiles(new FileFilter() {
+				public boolean accept(File f) {
+					return f.getName().startsWith(SNAPSHOT_PREFIX);
+				}
+			});
+			for (File f: old) {
+				if (!f.equals(target) && !f.delete()) {
+					log.warn("Could not delete old snapshot " + f);
+				}
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Wrote " + keys.length + " cells to " + target + " in "
+						+ (System.currentTimeMillis() - start) + "ms, writes held for " + copyMs + "ms");
+			}
+			return keys.length;
+		}
+	}
+
+	public void scan(CellVisitor<T> visitor) throws IOException {
+		for (Map.Entry<BoxedByteArray,byte[]> cell: map.entrySet()) {
+			if (!visitor.visit(cell.getKey().bytes, deserializer.fromBytes(cell.getValue()))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Logs and applies the cells as one batch and forces them to disk.
+	 */
+	public void writeCells(Map<BoxedByteArray,T> cells) throws IOException, InterruptedException {
+		List<BoxedByteArray> keys = new ArrayList<BoxedByteArray>(cells.keySet());
+		List<byte[]> values = new ArrayList<byte[]>(keys.size());
+		for (BoxedByteArray key: keys) {
+			values.add(cells.get(key).serialize());
+		}
+		wal.sync(commit(keys, values));
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * The cells loaded from the snapshot at startup.
+	 */
+	public long getRecoveredCells() {
+		return recoveredCells;
+	}
+
+	/**
+	 * The batches replayed from the log at startup.
+	 */
+	public long getReplayedBatches() {
+		return replayedBatches;
+	}
+
+	public long getRecoveryMs() {
+		return recoveryMs;
+	}
+
+	public long getSyncCount() {
+		return wal.getSyncCount();
+	}
+
+	/**
+	 * Stops the periodic sync and snapshots, snapshots the map so the next
+	 * startup has no log to replay, and closes the log.
+	 */
+	public void close() throws IOException, InterruptedException {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		snapshot();
+		wal.close();
+	}
+}
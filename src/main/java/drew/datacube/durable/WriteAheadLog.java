@@ -0,0 +1,355 @@
+package drew.datacube.durable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only log of records in numbered segment files, wal-N.log, in one
+ * directory. Each record is its length, the CRC32 of its payload and the
+ * payload, so a record torn by a crash is recognized and dropped on replay.
+ * <p>
+ * {@link #append(byte[])} only copies the record into a buffer. Writing and
+ * forcing it to disk is group committed: the first thread to call
+ * {@link #sync(long)} writes and forces everything appended so far in one
+ * call, while threads arriving in the meantime wait and are then covered by
+ * the next force, so N concurrent writers cost far fewer than N fsyncs.
+ * <p>
+ * {@link #roll()} starts a new segment, so a snapshot taken at a roll can
+ * replace every segment before it.
+ */
+public class WriteAheadLog implements Closeable {
+
+	private static final Logger log = Logger.getLogger(WriteAheadLog.class);
+
+	static final String PREFIX = "wal-";
+	static final String SUFFIX = ".log";
+	static final int RECORD_HEADER = 8;
+
+	final File dir;
+
+	RandomAccessFile file;
+	FileChannel channel;
+	long segment;
+
+	LogBuffer pending = new LogBuffer();
+	LogBuffer spare = new LogBuffer();
+	long appended = 0;
+	long synced = 0;
+	boolean syncing = false;
+	IOException failure;
+
+	long syncs = 0;
+
+	/**
+	 * Opens the log in dir. Nothing can be appended until {@link #open()}, so
+	 * existing segments can be replayed first.
+	 */
+	public WriteAheadLog(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create log directory " + dir);
+		}
+		this.dir = dir;
+	}
+
+	/**
+	 * Starts a new segment after any existing ones, returning its number.
+	 */
+	public synchronized long open() throws IOException {
+		if (channel != null) {
+			throw new IllegalStateException("Log is already open");
+		}
+		List<Long> segments = segments();
+		segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+		openSegment();
+		return segment;
+	}
+
+	void openSegment() throws IOException {
+		file = new RandomAccessFile(segmentFile(segment), "rw");
+		channel = file.getChannel();
+		channel.position(channel.size());
+	}
+
+	File segmentFile(long segment) {
+		return new File(dir, String.format("%s%012d%s", PREFIX, segment, SUFFIX));
+	}
+
+	/**
+	 * The numbers of the segments in the directory, oldest first.
+	 */
+	public List<Long> segments() {
+		List<Long> segments = new ArrayList<Long>();
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.getName().startsWith(PREFIX) && f.getName().endsWith(SUFFIX);
+			}
+		});
+		if (files != null) {
+			for (File f: files) {
+				String name = f.getName();
+				try {
+					segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+				}
+				catch (NumberFormatException ex) {
+					log.warn("Ignoring unexpected file " + f);
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Buffers a record, returning the position to pass to
+	 * {@link #sync(long)} to make it durable.
+	 */
+	public long append(byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		byte[] header = ByteBuffer.allocate(RECORD_HEADER).putInt(payload.length).putInt((int) crc.getValue()).array();
+		synchronized (this) {
+			if (failure != null) {
+				throw new IOException("Log failed earlier", failure);
+			}
+			if (channel == null) {
+				throw new IllegalStateException("Log is not open");
+			}
+			pending.write(header, 0, RECORD_HEADER);
+			pending.write(payload, 0, payload.length);
+			appended += RECORD_HEADER + payload.length;
+			return appended;
+		}
+	}
+
+	/**
+	 * The position after the last appended record.
+	 */
+	public synchronized long getAppended() {
+		return appended;
+	}
+
+	/**
+	 * Returns once every record up to position is written and forced to disk,
+	 * doing the write and force itself unless another thread already is.
+	 */
+	public void sync(long position) throws IOException, InterruptedException {
+		LogBuffer buffer;
+		FileChannel target;
+		long upTo;
+		synchronized (this) {
+			while (true) {
+				if (failure != null) {
+					throw new IOException("Log failed earlier", failure);
+				}
+				if (synced >= position) {
+					return;
+				}
+				if (!syncing) {
+					break;
+				}
+				wait();
+			}
+			syncing = true;
+			buffer = pending;
+			pending = spare;
+			spare = null;
+			target = channel;
+			upTo = appended;
+		}
+
+		IOException error = null;
+		try {
+			write(target, buffer);
+			target.force(false);
+		}
+		catch (IOException ex) {
+			error = ex;
+		}
+		synchronized (this) {
+			buffer.reset();
+			spare = buffer;
+			syncing = false;
+			syncs++;
+			if (error != null) {
+				failure = error;
+			}
+			else {
+				synced = Math.max(synced, upTo);
+			}
+			notifyAll();
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	static void write(FileChannel channel, LogBuffer buffer) throws IOException {
+		ByteBuffer bytes = buffer.toByteBuffer();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+	}
+
+	/**
+	 * Forces everything appended to the current segment and starts the next,
+	 * returning its number. Records appended afterwards go to the new
+	 * segment, so the caller must keep appends out while rolling if it needs
+	 * a clean cut.
+	 */
+	public synchronized long roll() throws IOException, InterruptedException {
+		while (syncing) {
+			wait();
+		}
+		if (failure != null) {
+			throw new IOException("Log failed earlier", failure);
+		}
+		write(channel, pending);
+		pending.reset();
+		channel.force(false);
+		file.close();
+		synced = appended;
+		segment++;
+		openSegment();
+		return segment;
+	}
+
+	/**
+	 * Deletes the segments numbered below segment.
+	 */
+	public void deleteBefore(long segment) {
+		for (long s: segments()) {
+			if (s < segment && !segmentFile(s).delete()) {
+				log.warn("Could not delete " + segmentFile(s));
+			}
+		}
+	}
+
+	/**
+	 * Calls visitor with every record in the segments numbered from
+	 * fromSegment on, oldest first, returning the number of records. A
+	 * segment is cut off at its first torn or corrupt record, which can
+	 * only be left by a crash in the middle of a write.
+	 */
+	public long replay(long fromSegment, RecordVisitor visitor) throws IOException {
+		long records = 0;
+		for (long s: segments()) {
+			if (s < fromSegment) {
+				continue;
+			}
+			RandomAccessFile in = new RandomAccessFile(segmentFile(s), "rw");
+			try {
+				FileChannel ch = in.getChannel();
+				long size = ch.size();
+				long pos = 0;
+				ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+				while (pos < size) {
+					byte[] payload = readRecord(ch, pos, size, header);
+					if (payload == null) {
+						log.warn("Truncating " + segmentFile(s) + " at a torn record at " + pos + " of " + size);
+						ch.truncate(pos);
+						break;
+					}
+					visitor.visit(payload);
+					records++;
+					pos += RECORD_HEADER + payload.length;
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * The payload of the record at pos, or null if it is incomplete or its
+	 * CRC does not match.
+	 */
+	static byte[] readRecord(FileChannel ch, long pos, long size, ByteBuffer header) throws IOException {
+		if (size - pos < RECORD_HEADER) {
+			return null;
+		}
+		header.clear();
+		readFully(ch, header, pos);
+		header.flip();
+		int length = header.getInt();
+		int crc = header.getInt();
+		if (length < 0 || size - pos - RECORD_HEADER < length) {
+			return null;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(ch, payload, pos + RECORD_HEADER);
+		CRC32 check = new CRC32();
+		check.update(payload.array());
+		return (int) check.getValue() == crc ? payload.array() : null;
+	}
+
+	static void readFully(FileChannel ch, ByteBuffer buffer, long pos) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = ch.read(buffer, pos);
+			if (n < 0) {
+				throw new IOException("Unexpected end of log");
+			}
+			pos += n;
+		}
+	}
+
+	/**
+	 * The number of writes to disk so far, each covering every record
+	 * appended before it.
+	 */
+	public synchronized long getSyncCount() {
+		return syncs;
+	}
+
+	/**
+	 * Forces outstanding records and closes the current segment.
+	 */
+	public void close() throws IOException {
+		try {
+			sync(getAppended());
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing log", ex);
+		}
+		finally {
+			synchronized (this) {
+				if (file != null) {
+					file.close();
+					file = null;
+					channel = null;
+				}
+			}
+		}
+	}
+
+	public interface RecordVisitor {
+		void visit(byte[] payload) throws IOException;
+	}
+
+	/**
+	 * A growable buffer that can be handed to a channel without copying.
+	 */
+	static class LogBuffer extends ByteArrayOutputStream {
+		LogBuffer() {
+			super(64 * 1024);
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
@@ -0,0 +1,409 @@
+package drew.datacube.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.FullQueueException;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.keys.AddressKeyCodec;
+import drew.datacube.keys.KeyCodec;
+
+/**
+ * A {@link DbHarness} for {@link LongOp} counters in HBase, tuned for bulk
+ * ingest, that stores cells exactly as
+ * {@link com.urbanairship.datacube.dbharnesses.HBaseDbHarness} does: the row
+ * is the cube name followed by the key, with the count in the column
+ * family's one cell under an empty qualifier.
+ * <p>
+ * The library harness sends each cell of a batch as its own increment RPC.
+ * This one splits a batch by the region server holding each row and sends
+ * every server's rows as {@link Increment}s, or Puts with OVERWRITE, in one
+ * multi-action RPC per maxRowsPerRpc rows. The RPCs go out in parallel on
+ * flushThreads threads, each borrowing a table from the pool, so the pool
+ * never hands out more than flushThreads tables for writes. Batches should
+ * be large, io.batchSize in the thousands, for this to pay off.
+ * <p>
+ * At most queueSize batches are in flight. {@link #runBatchAsync} waits up
+ * to queueTimeoutMs for one to finish before giving up with
+ * {@link FullQueueException}, so a slow cluster slows ingest down instead of
+ * letting queued batches fill the heap. Increments are not idempotent, so a
+ * failed RPC is not retried beyond the HBase client's own retries; its
+ * batch's future fails and the error goes to the AfterExecute.
+ * READ_COMBINE_CAS is not supported.
+ */
+public class BatchingHBaseDbHarness implements DbHarness<LongOp> {
+
+	private static final Logger log = Logger.getLogger(BatchingHBaseDbHarness.class);
+
+	public static final int DEFAULT_FLUSH_THREADS = 4;
+	public static final int DEFAULT_QUEUE_SIZE = 100;
+	public static final long DEFAULT_QUEUE_TIMEOUT_MS = 10000;
+	public static final int DEFAULT_MAX_ROWS_PER_RPC = 1000;
+
+	static final byte[] QUALIFIER = new byte[0];
+
+	final Configuration conf;
+	final HTablePool pool;
+	final byte[] uniqueCubeName;
+	final byte[] tableName;
+	final byte[] cf;
+	final IdService idService;
+	KeyCodec keyCodec = AddressKeyCodec.INSTANCE;
+	final CommitType commitType;
+	final int maxRowsPerRpc;
+	final long queueTimeoutMs;
+
+	final ExecutorService flushExecutor;
+	final Semaphore queue;
+	final ConcurrentLinkedQueue<Future<?>> pending = new ConcurrentLinkedQueue<Future<?>>();
+
+	HTable locator;
+
+	final AtomicLong batches = new AtomicLong();
+	final AtomicLong rows = new AtomicLong();
+	final AtomicLong rpcs = new AtomicLong();
+	final AtomicLong fullQueues = new AtomicLong();
+
+	public BatchingHBaseDbHarness(Configuration conf, HTablePool pool, byte[] uniqueCubeName, byte[] tableName,
+			byte[] cf, IdService idService, CommitType commitType) {
+		this(conf, pool, uniqueCubeName, tableName, cf, idService, commitType, DEFAULT_FLUSH_THREADS,
+				DEFAULT_QUEUE_SIZE, DEFAULT_QUEUE_TIMEOUT_MS, DEFAULT_MAX_ROWS_PER_RPC);
+	}
+
+	public BatchingHBaseDbHarness(Configuration conf, HTablePool pool, byte[] uniqueCubeName, byte[] tableName,
+			byte[] cf, IdService idService, CommitType commitType, int flushThreads, int queueSize,
+			long queueTimeoutMs, int maxRowsPerRpc) {
+		if (commitType == CommitType.READ_COMBINE_CAS) {
+			throw new IllegalArgumentException("BatchingHBaseDbHarness supports INCREMENT and OVERWRITE");
+		}
+		if (flushThreads < 1 || queueSize < 1 || maxRowsPerRpc < 1) {
+			throw new IllegalArgumentException("flushThreads, queueSize and maxRowsPerRpc must be positive");
+		}
+		this.conf = conf;
+		this.pool = pool;
+		this.uniqueCubeName = uniqueCubeName;
+		this.tableName = tableName;
+		this.cf = cf;
+		this.idService = idService;
+		this.commitType = commitType;
+		this.maxRowsPerRpc = maxRowsPerRpc;
+		this.queueTimeoutMs = queueTimeoutMs;
+		this.queue = new Semaphore(queueSize);
+		this.flushExecutor = Executors.newFixedThreadPool(flushThreads, new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "hbase-harness-flush-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public void setKeyCodec(KeyCodec keyCodec) {
+		this.keyCodec = keyCodec;
+	}
+
+	@Override
+	public Future<?> runBatchAsync(Batch<LongOp> batch, final AfterExecute<LongOp> afterExecute)
+			throws FullQueueException {
+		try {
+			if (!queue.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS)) {
+				fullQueues.incrementAndGet();
+				throw new FullQueueException();
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new FullQueueException();
+		}
+
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final FutureTask<Object> done = new FutureTask<Object>(new Callable<Object>() {
+			public Object call() throws Exception {
+				queue.release();
+				Throwable failure = error.get();
+				if (failure != null) {
+					log.error("Failed to write batch to " + Bytes.toString(tableName), failure);
+				}
+				afterExecute.afterExecute(failure);
+				if (failure instanceof Exception) {
+					throw (Exception) failure;
+				}
+				else if (failure != null) {
+					throw (Error) failure;
+				}
+				return null;
+			}
+		});
+
+		List<List<Row>> rpcList;
+		try {
+			rpcList = split(batch);
+		}
+		catch (Exception ex) {
+			error.set(ex);
+			done.run();
+			return done;
+		}
+		batches.incrementAndGet();
+		pruneCompleted();
+		pending.add(done);
+		if (rpcList.isEmpty()) {
+			done.run();
+			return done;
+		}
+
+		final AtomicInteger remaining = new AtomicInteger(rpcList.size());
+		for (final List<Row> rpc: rpcList) {
+			flushExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						send(rpc);
+					}
+					catch (Throwable t) {
+						error.compareAndSet(null, t);
+					}
+					finally {
+						if (remaining.decrementAndGet() == 0) {
+							done.run();
+						}
+					}
+				}
+			});
+		}
+		return done;
+	}
+
+	private void pruneCompleted() {
+		Future<?> head;
+		while ((head = pending.peek()) != null && head.isDone()) {
+			pending.remove(head);
+		}
+	}
+
+	/**
+	 * The batch's rows as mutations, grouped by region server and cut into
+	 * RPCs of at most maxRowsPerRpc.
+	 */
+	List<List<Row>> split(Batch<LongOp> batch) throws IOException, InterruptedException {
+		Map<String,List<Row>> byServer = new HashMap<String,List<Row>>();
+		for (Map.Entry<Address,LongOp> cell: batch.getMap().entrySet()) {
+			byte[] row = rowKey(cell.getKey());
+			long value = cell.getValue().getLong();
+			Row mutation;
+			if (commitType == CommitType.OVERWRITE) {
+				mutation = new Put(row).add(cf, QUALIFIER, Bytes.toBytes(value));
+			}
+			else {
+				mutation = new Increment(row).addColumn(cf, QUALIFIER, value);
+			}
+			String server = serverFor(row);
+			List<Row> rows = byServer.get(server);
+			if (rows == null) {
+				rows = new ArrayList<Row>();
+				byServer.put(server, rows);
+			}
+			rows.add(mutation);
+		}
+
+		List<List<Row>> rpcs = new ArrayList<List<Row>>();
+		for (List<Row> rows: byServer.values()) {
+			for (int from=0; from < rows.size(); from += maxRowsPerRpc) {
+				rpcs.add(rows.subList(from, Math.min(rows.size(), from + maxRowsPerRpc)));
+			}
+		}
+		return rpcs;
+	}
+
+	void send(List<Row> rpc) throws IOException, InterruptedException {
+		HTableInterface table = table();
+		try {
+			table.batch(rpc);
+			rpcs.incrementAndGet();
+			rows.addAndGet(rpc.size());
+		}
+		finally {
+			table.close();
+		}
+	}
+
+	/**
+	 * A table from the pool, to be closed after use.
+	 */
+	protected HTableInterface table() {
+		return pool.getTable(tableName);
+	}
+
+	/**
+	 * The region server holding row, from the client's cached region
+	 * locations.
+	 */
+	protected String serverFor(byte[] row) throws IOException {
+		HTable table;
+		synchronized (this) {
+			if (locator == null) {
+				locator = new HTable(conf, tableName);
+			}
+			table = locator;
+		}
+		return table.getRegionLocation(row).getHostnamePort();
+	}
+
+	protected byte[] rowKey(Address address) throws IOException, InterruptedException {
+		byte[] key = keyCodec.toKey(address, idService);
+		byte[] row = new byte[uniqueCubeName.length + key.length];
+		System.arraycopy(uniqueCubeName, 0, row, 0, uniqueCubeName.length);
+		System.arraycopy(key, 0, row, uniqueCubeName.length, key.length);
+		return row;
+	}
+
+	@Override
+	public Optional<LongOp> get(Address c) throws IOException, InterruptedException {
+		Get get = new Get(rowKey(c));
+		get.addColumn(cf, QUALIFIER);
+		HTableInterface table = table();
+		try {
+			return value(table.get(get));
+		}
+		finally {
+			table.close();
+		}
+	}
+
+	/**
+	 * Reads every address with one multi-get, which the client sends as one
+	 * RPC per region server.
+	 */
+	@Override
+	public List<Optional<LongOp>> multiGet(List<Address> addresses) throws IOException {
+		List<Get> gets = new ArrayList<Get>(addresses.size());
+		try {
+			for (Address address: addresses) {
+				Get get = new Get(rowKey(address));
+				get.addColumn(cf, QUALIFIER);
+				gets.add(get);
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		}
+		HTableInterface table = table();
+		try {
+			Result[] results = table.get(gets);
+			List<Optional<LongOp>> values = new ArrayList<Optional<LongOp>>(results.length);
+			for (Result result: results) {
+				values.add(value(result));
+			}
+			return values;
+		}
+		finally {
+			table.close();
+		}
+	}
+
+	Optional<LongOp> value(Result result) {
+		if (result == null || result.isEmpty()) {
+			return Optional.absent();
+		}
+		return Optional.of(new LongOp(Bytes.toLong(result.getValue(cf, QUALIFIER))));
+	}
+
+	/**
+	 * Blocks until every batch submitted so far has been written.
+	 */
+	@Override
+	public void flush() throws InterruptedException {
+		Future<?> future;
+		while ((future = pending.poll()) != null) {
+			try {
+				future.get();
+			}
+			catch (ExecutionException ex) {
+				log.error("Batch failed before flush", ex.getCause());
+			}
+		}
+	}
+
+	public IngestStats getStats() {
+		return new IngestStats(batches.get(), rows.get(), rpcs.get(), fullQueues.get());
+	}
+
+	/**
+	 * Flushes outstanding batches and stops the flush threads.
+	 */
+	public void shutdown() throws InterruptedException, IOException {
+		flush();
+		flushExecutor.shutdown();
+		flushExecutor.awaitTermination(1, TimeUnit.MINUTES);
+		synchronized (this) {
+			if (locator != null) {
+				locator.close();
+				locator = null;
+			}
+		}
+	}
+
+	public static class IngestStats {
+		public final long batches;
+		public final long rows;
+		public final long rpcs;
+		public final long fullQueues;
+
+		public IngestStats(long batches, long rows, long rpcs, long fullQueues) {
+			this.batches = batches;
+			this.rows = rows;
+			this.rpcs = rpcs;
+			this.fullQueues = fullQueues;
+		}
+
+		/**
+		 * Write RPCs per 10,000 rows written.
+		 */
+		public double getRpcsPer10kRows() {
+			return rows == 0 ? 0 : rpcs * 10000.0 / rows;
+		}
+
+		@Override
+		public String toString() {
+			return "IngestStats [batches=" + batches + ", rows=" + rows + ", rpcs=" + rpcs
+					+ ", fullQueues=" + fullQueues + "]";
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package drew.datacube.keys;
+
+import java.io.IOException;
+
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.IdService;
+
+/**
+ * The library's own layout, {@link Address#toKey}, which every harness uses
+ * unless given another codec and which {@link drew.datacube.backfill.CellKeyCodec}
+ * reads.
+ */
+public class AddressKeyCodec implements KeyCodec {
+
+	public static final AddressKeyCodec INSTANCE = new AddressKeyCodec();
+
+	public byte[] toKey(Address address, IdService idService) throws IOException, InterruptedException {
+		return address.toKey(idService);
+	}
+}
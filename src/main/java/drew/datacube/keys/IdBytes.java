@@ -0,0 +1,23 @@
+package drew.datacube.keys;
+
+import java.io.IOException;
+
+/**
+ * The form id services hand ids out in for the library's keys.
+ */
+public class IdBytes {
+
+	/**
+	 * The id as numIdBytes big-endian bytes, failing if it does not fit.
+	 */
+	public static byte[] toIdBytes(long id, int numIdBytes) throws IOException {
+		if (numIdBytes < 8 && (id >>> (numIdBytes * 8)) != 0) {
+			throw new IOException("Id " + id + " does not fit in " + numIdBytes + " bytes");
+		}
+		byte[] idBytes = new byte[numIdBytes];
+		for (int i=numIdBytes - 1, shift=0; i >= 0 && shift < 64; i--, shift += 8) {
+			idBytes[i] = (byte) (id >>> shift);
+		}
+		return idBytes;
+	}
+}
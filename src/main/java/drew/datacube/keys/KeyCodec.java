@@ -0,0 +1,18 @@
+package drew.datacube.keys;
+
+import java.io.IOException;
+
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.IdService;
+
+/**
+ * Turns a cell's address into the key a harness stores it under. The
+ * harnesses in this tree key cells with {@link AddressKeyCodec} unless their
+ * setKeyCodec is given another layout, which has to happen before the first
+ * write: a store never holds keys of two layouts, so the codec must not
+ * change once cells are stored.
+ */
+public interface KeyCodec {
+
+	byte[] toKey(Address address, IdService idService) throws IOException, InterruptedException;
+}
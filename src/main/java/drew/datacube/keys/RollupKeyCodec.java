@@ -0,0 +1,220 @@
+package drew.datacube.keys;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.BucketType;
+import com.urbanairship.datacube.BucketTypeAndBucket;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.DimensionAndBucketType;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+
+/**
+ * A compact key layout that sorts every rollup's cells together and in time
+ * order, so a sorted store reads a rollup, or a span of time in it, with one
+ * range scan.
+ * <p>
+ * A key is the rollup's position in the cube's rollup list as one byte, then
+ * the rollup's time buckets, then its other dimensions, each group in cube
+ * order. Dimensions the rollup leaves out take no space, and neither do
+ * bucket types, which the rollup implies. A time bucket, from a
+ * HourDayMonthBucketer dimension without id substitution, is its 8 byte
+ * big-endian instant with the sign bit flipped so times before 1970 sort
+ * first. Every other dimension is a length byte and its bucket, or for id
+ * substitution its id with leading zero bytes dropped, so small ids take one
+ * or two bytes where {@link Address#toKey} always writes numFieldBytes.
+ * <p>
+ * Rollups are numbered by position, so rollups may be appended to the cube
+ * but never removed or reordered. Keys in this layout cannot be read by
+ * {@link drew.datacube.backfill.CellKeyCodec}, nor mixed in one store with
+ * keys of another layout.
+ */
+public class RollupKeyCodec implements KeyCodec {
+
+	static final int TIME_BYTES = 8;
+
+	final List<Dimension<?>> dimensions;
+	final List<Rollup> rollups;
+	final boolean[] time;
+	final BucketType[][] rollupTypes;
+
+	public RollupKeyCodec(DataCube<?> cube) {
+		this.dimensions = cube.getDimensions();
+		this.rollups = cube.getRollups();
+		if (rollups.size() > 256) {
+			throw new IllegalArgumentException("RollupKeyCodec numbers rollups in one byte, the cube has "
+					+ rollups.size());
+		}
+		this.time = new boolean[dimensions.size()];
+		for (int i=0; i < time.length; i++) {
+			Dimension<?> dimension = dimensions.get(i);
+			time[i] = dimension.getBucketer() instanceof HourDayMonthBucketer && !dimension.getDoIdSubstitution();
+		}
+		this.rollupTypes = new BucketType[rollups.size()][];
+		for (int r=0; r < rollupTypes.length; r++) {
+			rollupTypes[r] = new BucketType[dimensions.size()];
+			for (DimensionAndBucketType component: rollups.get(r).getComponents()) {
+				rollupTypes[r][indexOf(component.dimension)] = component.bucketType;
+			}
+		}
+	}
+
+	int indexOf(Dimension<?> dimension) {
+		for (int i=0; i < dimensions.size(); i++) {
+			if (dimensions.get(i) == dimension) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Dimension " + dimension + " is not in the cube");
+	}
+
+	public byte[] toKey(Address address, IdService idService) throws IOException, InterruptedException {
+		Map<Dimension<?>,BucketTypeAndBucket> buckets = address.getBuckets();
+		int numDimensions = dimensions.size();
+		BucketTypeAndBucket[] coords = new BucketTypeAndBucket[numDimensions];
+		for (int i=0; i < numDimensions; i++) {
+			BucketTypeAndBucket bucket = buckets.get(dimensions.get(i));
+			if (bucket != null && bucket.bucketType != BucketType.WILDCARD) {
+				coords[i] = bucket;
+			}
+		}
+		int rollup = rollupOf(coords);
+
+		byte[][] fields = new byte[numDimensions][];
+		int length = 1;
+		for (int i=0; i < numDimensions; i++) {
+			if (coords[i] == null) {
+				continue;
+			}
+			byte[] bucket = coords[i].bucket;
+			if (time[i]) {
+				if (bucket.length != TIME_BYTES) {
+					throw new IllegalArgumentException("Time bucket for " + dimensions.get(i) + " is "
+							+ bucket.length + " bytes, expected " + TIME_BYTES);
+				}
+				length += TIME_BYTES;
+			}
+			else {
+				Dimension<?> dimension = dimensions.get(i);
+				if (dimension.getDoIdSubstitution()) {
+					bucket = idService.getId(i, bucket, dimension.getNumFieldBytes());
+				}
+				int skip = 0;
+				if (dimension.getDoIdSubstitution()) {
+					while (skip < bucket.length && bucket[skip] == 0) {
+						skip++;
+					}
+				}
+				if (bucket.length - skip > 255) {
+					throw new IllegalArgumentException("Bucket for " + dimension + " is " + bucket.length
+							+ " bytes, at most 255 fit");
+				}
+				if (skip > 0) {
+					byte[] trimmed = new byte[bucket.length - skip];
+					System.arraycopy(bucket, skip, trimmed, 0, trimmed.length);
+					bucket = trimmed;
+				}
+				length += 1 + bucket.length;
+			}
+			fields[i] = bucket;
+		}
+
+		byte[] key = new byte[length];
+		key[0] = (byte) rollup;
+		int pos = 1;
+		for (int i=0; i < numDimensions; i++) {
+			if (fields[i] != null && time[i]) {
+				pos = putTime(key, pos, fields[i]);
+			}
+		}
+		for (int i=0; i < numDimensions; i++) {
+			if (fields[i] != null && !time[i]) {
+				key[pos++] = (byte) fields[i].length;
+				System.arraycopy(fields[i], 0, key, pos, fields[i].length);
+				pos += fields[i].length;
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * The position in the rollup list of the rollup with exactly these
+	 * dimensions and bucket types.
+	 */
+	int rollupOf(BucketTypeAndBucket[] coords) {
+		for (int r=0; r < rollupTypes.length; r++) {
+			BucketType[] types = rollupTypes[r];
+			boolean match = true;
+			for (int i=0; i < types.length && match; i++) {
+				match = coords[i] == null ? types[i] == null : coords[i].bucketType == types[i];
+			}
+			if (match) {
+				return r;
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i < coords.length; i++) {
+			if (coords[i] != null) {
+				sb.append(sb.length() > 0 ? "+" : "").append(dimensions.get(i).getName())
+						.append(':').append(coords[i].bucketType);
+			}
+		}
+		throw new IllegalArgumentException("No rollup of the cube matches address " + sb);
+	}
+
+	static int putTime(byte[] key, int pos, byte[] bucket) {
+		System.arraycopy(bucket, 0, key, pos, TIME_BYTES);
+		key[pos] ^= 0x80;
+		return pos + TIME_BYTES;
+	}
+
+	/**
+	 * The range [from, to) of keys holding the rollup's cells.
+	 */
+	public byte[][] range(Rollup rollup) {
+		int r = rollupIndex(rollup);
+		return new byte[][] { new byte[] { (byte) r }, r == 255 ? null : new byte[] { (byte) (r + 1) } };
+	}
+
+	/**
+	 * The range [from, to) of keys holding the rollup's cells with first
+	 * time bucket at or after from's bucket and before to's, given in the
+	 * zone the cells were written in.
+	 */
+	public byte[][] timeRange(Rollup rollup, DateTime from, DateTime to) {
+		int r = rollupIndex(rollup);
+		for (int i=0; i < time.length; i++) {
+			BucketType type = rollupTypes[r][i];
+			if (type != null && time[i]) {
+				HourDayMonthBucketer bucketer = (HourDayMonthBucketer) dimensions.get(i).getBucketer();
+				return new byte[][] {
+						timeKey(r, bucketer.bucketForWrite(from, type).serialize()),
+						timeKey(r, bucketer.bucketForWrite(to, type).serialize()) };
+			}
+		}
+		throw new IllegalArgumentException("Rollup has no time dimension");
+	}
+
+	static byte[] timeKey(int rollup, byte[] bucket) {
+		byte[] key = new byte[1 + TIME_BYTES];
+		key[0] = (byte) rollup;
+		putTime(key, 1, bucket);
+		return key;
+	}
+
+	int rollupIndex(Rollup rollup) {
+		for (int r=0; r < rollups.size(); r++) {
+			if (rollups.get(r) == rollup) {
+				return r;
+			}
+		}
+		throw new IllegalArgumentException("Rollup is not in the cube");
+	}
+}
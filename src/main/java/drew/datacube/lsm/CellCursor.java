@@ -0,0 +1,15 @@
+package drew.datacube.lsm;
+
+import java.io.IOException;
+
+/**
+ * Steps through cells in key order; key and value hold the current cell
+ * after {@link #next()} returns true.
+ */
+abstract class CellCursor {
+
+	byte[] key;
+	long value;
+
+	abstract boolean next() throws IOException;
+}
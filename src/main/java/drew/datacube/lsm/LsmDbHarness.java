@@ -0,0 +1,879 @@
+package drew.datacube.lsm;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.FullQueueException;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.HarnessFutures;
+import drew.datacube.backfill.CellStore;
+import drew.datacube.durable.WriteAheadLog;
+import drew.datacube.keys.AddressKeyCodec;
+import drew.datacube.keys.KeyCodec;
+
+/**
+ * A {@link DbHarness} for {@link LongOp} counters that keeps its cells in a
+ * log-structured merge tree on local disk, for cubes with more cells than
+ * fit on the heap.
+ * <p>
+ * Batches are added to a sorted in-memory memtable and appended to a
+ * {@link WriteAheadLog}. A memtable holding memtableCells cells is swapped
+ * for an empty one and flushed in the background to a level 0
+ * {@link Segment}, a sorted, immutable, memory-mapped file. Level 0
+ * segments overlap, so once there are compactionTrigger of them they are
+ * merged, summing the deltas of each key, with the level 1 segments they
+ * overlap into new level 1 segments, which never overlap each other. Writers
+ * stall while two memtables wait to be flushed, and flushes stall while
+ * level 0 has three times compactionTrigger segments, so memory and read
+ * cost stay bounded when writes outrun the disk.
+ * <p>
+ * A read sums a key over the memtables and every segment whose key range
+ * and bloom filter admit it; with OVERWRITE the newest value wins instead.
+ * {@link #scan(byte[], byte[], CellStore.CellVisitor)} merges the sources in
+ * key order, so a rollup's cells between two keys are read sequentially.
+ * <p>
+ * The live segments are listed in a MANIFEST file replaced atomically after
+ * every flush and compaction. On startup the listed segments are opened,
+ * anything else is deleted, and the log from the newest flushed memtable on
+ * is replayed. As with a {@link drew.datacube.durable.DurableMapDbHarness},
+ * ids need to be as durable as the cells.
+ */
+public class LsmDbHarness implements DbHarness<LongOp>, CellStore<LongOp> {
+
+	private static final Logger log = Logger.getLogger(LsmDbHarness.class);
+
+	public static final int DEFAULT_MEMTABLE_CELLS = 500000;
+	public static final int DEFAULT_COMPACTION_TRIGGER = 4;
+	public static final int DEFAULT_TARGET_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+	static final String MANIFEST = "MANIFEST";
+	static final String SEGMENT_SUFFIX = ".sst";
+	static final int MAX_FLUSHING = 2;
+
+	final File dir;
+	final IdService idService;
+	KeyCodec keyCodec = AddressKeyCodec.INSTANCE;
+	final CommitType commitType;
+	final boolean overwrite;
+	final int memtableCells;
+	final long syncIntervalMs;
+	int compactionTrigger = DEFAULT_COMPACTION_TRIGGER;
+	int targetSegmentBytes = DEFAULT_TARGET_SEGMENT_BYTES;
+
+	final WriteAheadLog wal;
+	final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+	final AtomicLong nextSegment = new AtomicLong(1);
+	final ScheduledExecutorService flusher;
+	final ExecutorService compactor;
+
+	volatile Version version;
+	boolean compacting = false;
+	volatile IOException backgroundFailure;
+
+	long flushes = 0;
+	long compactions = 0;
+	long bytesFlushed = 0;
+	long bytesCompacted = 0;
+
+	/**
+	 * Opens the tree in dir, creating it if it does not exist. syncIntervalMs
+	 * of 0 forces every batch to the log before runBatchAsync returns, group
+	 * committed with other threads' batches; otherwise the log is forced
+	 * that often and on {@link #flush()}.
+	 */
+	public LsmDbHarness(File dir, IdService idService, CommitType commitType, int memtableCells,
+			long syncIntervalMs) throws IOException {
+		if (memtableCells < 1) {
+			throw new IllegalArgumentException("memtableCells must be positive");
+		}
+		this.dir = dir;
+		this.idService = idService;
+		this.commitType = commitType;
+		this.overwrite = commitType == CommitType.OVERWRITE;
+		this.memtableCells = memtableCells;
+		this.syncIntervalMs = syncIntervalMs;
+		this.wal = new WriteAheadLog(new File(dir, "wal"));
+		this.flusher = Executors.newSingleThreadScheduledExecutor(daemon("lsm-flush-" + dir.getName()));
+		this.compactor = Executors.newSingleThreadExecutor(daemon("lsm-compact-" + dir.getName()));
+		recover();
+		wal.open();
+		if (syncIntervalMs > 0) {
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						wal.sync(wal.getAppended());
+					}
+					catch (Exception ex) {
+						log.error("Periodic log sync failed", ex);
+					}
+				}
+			}, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void setKeyCodec(KeyCodec keyCodec) {
+		this.keyCodec = keyCodec;
+	}
+
+	static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Level 0 segments at or above which they are merged into level 1.
+	 */
+	public void setCompactionTrigger(int compactionTrigger) {
+		if (compactionTrigger < 2) throw new IllegalArgumentException("compactionTrigger must be at least 2");
+		this.compactionTrigger = compactionTrigger;
+	}
+
+	/**
+	 * The size at which compaction starts a new level 1 segment.
+	 */
+	public void setTargetSegmentBytes(int targetSegmentBytes) {
+		if (targetSegmentBytes < 1 || targetSegmentBytes > SegmentWriter.MAX_SEGMENT_BYTES) {
+			throw new IllegalArgumentException("targetSegmentBytes must be positive and under 2GB");
+		}
+		this.targetSegmentBytes = targetSegmentBytes;
+	}
+
+	/**
+	 * Everything a read needs, replaced whole whenever a memtable is swapped,
+	 * flushed or compacted so readers never see a cell twice or not at all.
+	 */
+	static class Version {
+		final Memtable active;
+		final List<Memtable> flushing;
+		final List<Segment> level0;
+		final List<Segment> level1;
+
+		Version(Memtable active, List<Memtable> flushing, List<Segment> level0, List<Segment> level1) {
+			this.active = active;
+			this.flushing = Collections.unmodifiableList(flushing);
+			this.level0 = Collections.unmodifiableList(level0);
+			this.level1 = Collections.unmodifiableList(level1);
+		}
+	}
+
+	static final Comparator<Segment> BY_FIRST_KEY = new Comparator<Segment>() {
+		public int compare(Segment a, Segment b) {
+			return Segment.KEY_ORDER.compare(a.firstKey, b.firstKey);
+		}
+	};
+
+	void recover() throws IOException {
+		long start = System.currentTimeMillis();
+		List<Segment> level0 = new ArrayList<Segment>();
+		List<Segment> level1 = new ArrayList<Segment>();
+		Map<String,Boolean> live = new HashMap<String,Boolean>();
+		File manifest = new File(dir, MANIFEST);
+		if (manifest.exists()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] parts = line.trim().split(" ");
+					if (parts.length != 2) {
+						continue;
+					}
+					String name = parts[1];
+					long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+					Segment segment = new Segment(new File(dir, name), number);
+					(parts[0].equals("0") ? level0 : level1).add(segment);
+					live.put(name, Boolean.TRUE);
+					nextSegment.set(Math.max(nextSegment.get(), number + 1));
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.getName().endsWith(SEGMENT_SUFFIX) || f.getName().endsWith(".tmp");
+			}
+		});
+		for (File f: files) {
+			if (!live.containsKey(f.getName())) {
+				log.info("Deleting " + f + ", left by an unfinished flush or compaction");
+				f.delete();
+			}
+		}
+		Collections.sort(level1, BY_FIRST_KEY);
+
+		long fromWalSegment = 0;
+		for (Segment segment: level0) {
+			fromWalSegment = Math.max(fromWalSegment, segment.walSegment);
+		}
+		for (Segment segment: level1) {
+			fromWalSegment = Math.max(fromWalSegment, segment.walSegment);
+		}
+		final Memtable memtable = new Memtable();
+		long batches = wal.replay(fromWalSegment, new WriteAheadLog.RecordVisitor() {
+			public void visit(byte[] payload) throws IOException {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				int cells = in.readInt();
+				for (int i=0; i < cells; i++) {
+					byte[] key = new byte[in.readInt()];
+					in.readFully(key);
+					memtable.add(key, in.readLong(), overwrite);
+				}
+			}
+		});
+		version = new Version(memtable, new ArrayList<Memtable>(), level0, level1);
+		if (!level0.isEmpty() || !level1.isEmpty() || batches > 0) {
+			log.info("Opened " + level0.size() + " level 0 and " + level1.size() + " level 1 segments and replayed "
+					+ batches + " batches from the log in " + (System.currentTimeMillis() - start) + "ms");
+		}
+	}
+
+	@Override
+	public Future<?> runBatchAsync(Batch<LongOp> batch, AfterExecute<LongOp> afterExecute)
+			throws FullQueueException {
+		try {
+			Map<Address,LongOp> cells = batch.getMap();
+			byte[][] keys = new byte[cells.size()][];
+			long[] values = new long[keys.length];
+			int i = 0;
+			for (Map.Entry<Address,LongOp> cell: cells.entrySet()) {
+				keys[i] = keyCodec.toKey(cell.getKey(), idService);
+				values[i] = cell.getValue().getLong();
+				i++;
+			}
+			write(keys, values);
+		}
+		catch (Exception ex) {
+			log.error("Failed to apply batch", ex);
+			afterExecute.afterExecute(ex);
+			return HarnessFutures.completed(ex);
+		}
+		afterExecute.afterExecute(null);
+		return HarnessFutures.DONE;
+	}
+
+	/**
+	 * Logs the cells as one record and adds them to the active memtable,
+	 * swapping it out if it is full.
+	 */
+	void write(byte[][] keys, long[] values) throws IOException, InterruptedException {
+		if (backgroundFailure != null) {
+			throw new IOException("A flush or compaction failed", backgroundFailure);
+		}
+		int length = 4;
+		for (byte[] key: keys) {
+			length += 4 + key.length + 8;
+		}
+		ByteBuffer record = ByteBuffer.allocate(length);
+		record.putInt(keys.length);
+		for (int i=0; i < keys.length; i++) {
+			record.putInt(keys[i].length);
+			record.put(keys[i]);
+			record.putLong(values[i]);
+		}
+
+		long position;
+		Memtable memtable;
+		swapLock.readLock().lock();
+		try {
+			memtable = version.active;
+			if (overwrite) {
+				synchronized (memtable) {
+					position = apply(memtable, keys, values, record.array());
+				}
+			}
+			else {
+				position = apply(memtable, keys, values, record.array());
+			}
+		}
+		finally {
+			swapLock.readLock().unlock();
+		}
+		if (syncIntervalMs == 0) {
+			wal.sync(position);
+		}
+		if (memtable.size() >= memtableCells) {
+			swap(memtable);
+		}
+	}
+
+	long apply(Memtable memtable, byte[][] keys, long[] values, byte[] record) throws IOException {
+		for (int i=0; i < keys.length; i++) {
+			memtable.add(keys[i], values[i], overwrite);
+		}
+		return wal.append(record);
+	}
+
+	/**
+	 * Replaces full with an empty memtable, unless another writer already
+	 * has, and queues it to be flushed, first waiting while MAX_FLUSHING
+	 * memtables are queued already.
+	 */
+	synchronized void swap(Memtable full) throws IOException, InterruptedException {
+		if (version.active != full) {
+			return;
+		}
+		while (version.flushing.size() >= MAX_FLUSHING && backgroundFailure == null) {
+			wait();
+		}
+		if (version.active != full) {
+			return;
+		}
+		swapLock.writeLock().lock();
+		try {
+			full.walSegment = wal.roll();
+			Version current = version;
+			List<Memtable> flushing = new ArrayList<Memtable>(current.flushing);
+			flushing.add(0, full);
+			version = new Version(new Memtable(), flushing, current.level0, current.level1);
+		}
+		finally {
+			swapLock.writeLock().unlock();
+		}
+		flusher.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				flushOldest();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Writes the oldest queued memtable to a level 0 segment.
+	 */
+	void flushOldest() throws IOException, InterruptedException {
+		Memtable memtable;
+		synchronized (this) {
+			while (version.level0.size() >= compactionTrigger * 3 && backgroundFailure == null) {
+				wait();
+			}
+			List<Memtable> flushing = version.flushing;
+			if (flushing.isEmpty()) {
+				return;
+			}
+			memtable = flushing.get(flushing.size() - 1);
+		}
+		try {
+			long start = System.currentTimeMillis();
+			long number = nextSegment.getAndIncrement();
+			SegmentWriter writer = new SegmentWriter(segmentFile(number), memtable.walSegment, memtable.size());
+			Segment segment;
+			try {
+				CellCursor cursor = memtable.cursor(null);
+				while (cursor.next()) {
+					writer.add(cursor.key, cursor.value);
+				}
+				segment = writer.finish(number);
+			}
+			catch (IOException ex) {
+				writer.abort();
+				throw ex;
+			}
+
+			synchronized (this) {
+				Version current = version;
+				List<Memtable> flushing = new ArrayList<Memtable>(current.flushing);
+				flushing.remove(memtable);
+				List<Segment> level0 = new ArrayList<Segment>(current.level0);
+				level0.add(0, segment);
+				version = new Version(current.active, flushing, level0, current.level1);
+				writeManifest(version);
+				flushes++;
+				bytesFlushed += segment.sizeBytes();
+				notifyAll();
+			}
+			wal.deleteBefore(memtable.walSegment);
+			if (log.isDebugEnabled()) {
+				log.debug("Flushed " + segment + " in " + (System.currentTimeMillis() - start) + "ms");
+			}
+			maybeCompact();
+		}
+		catch (IOException ex) {
+			failed(ex);
+			throw ex;
+		}
+	}
+
+	synchronized void failed(IOException ex) {
+		log.error("Background flush or compaction failed", ex);
+		backgroundFailure = ex;
+		notifyAll();
+	}
+
+	synchronized void maybeCompact() {
+		if (compacting || version.level0.size() < compactionTrigger) {
+			return;
+		}
+		compacting = true;
+		compactor.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				try {
+					compact();
+				}
+				catch (IOException ex) {
+					failed(ex);
+					throw ex;
+				}
+				finally {
+					synchronized (LsmDbHarness.this) {
+						compacting = false;
+						LsmDbHarness.this.notifyAll();
+					}
+				}
+				maybeCompact();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Merges every level 0 segment, and the level 1 segments their keys
+	 * overlap, into new level 1 segments of about targetSegmentBytes.
+	 */
+	void compact() throws IOException {
+		long start = System.currentTimeMillis();
+		List<Segment> inputs0;
+		List<Segment> inputs1 = new ArrayList<Segment>();
+		synchronized (this) {
+			inputs0 = version.level0;
+			if (inputs0.isEmpty()) {
+				return;
+			}
+			byte[] from = null;
+			byte[] to = null;
+			for (Segment segment: inputs0) {
+				if (segment.count == 0) {
+					continue;
+				}
+				if (from == null || Segment.KEY_ORDER.compare(segment.firstKey, from) < 0) {
+					from = segment.firstKey;
+				}
+				if (to == null || Segment.KEY_ORDER.compare(segment.lastKey, to) > 0) {
+					to = segment.lastKey;
+				}
+			}
+			if (from != null) {
+				for (Segment segment: version.level1) {
+					if (segment.overlaps(from, to)) {
+						inputs1.add(segment);
+					}
+				}
+			}
+		}
+
+		List<CellCursor> cursors = new ArrayList<CellCursor>();
+		long walSegment = 0;
+		long inputCells = 0;
+		long inputBytes = 0;
+		for (Segment segment: inputs0) {
+			cursors.add(segment.cursor(null));
+			walSegment = Math.max(walSegment, segment.walSegment);
+			inputCells += segment.count;
+			inputBytes += segment.sizeBytes();
+		}
+		for (Segment segment: inputs1) {
+			cursors.add(segment.cursor(null));
+			walSegment = Math.max(walSegment, segment.walSegment);
+			inputCells += segment.count;
+			inputBytes += segment.sizeBytes();
+		}
+		long cellsPerSegment = inputCells == 0 ? 1
+				: Math.min(inputCells, (long) targetSegmentBytes * inputCells / Math.max(1, inputBytes) + 1);
+
+		List<Segment> outputs = new ArrayList<Segment>();
+		MergingCursor merged = new MergingCursor(cursors, overwrite);
+		SegmentWriter writer = null;
+		long number = 0;
+		try {
+			while (merged.next()) {
+				if (writer == null) {
+					number = nextSegment.getAndIncrement();
+					writer = new SegmentWriter(segmentFile(number), walSegment, cellsPerSegment);
+				}
+				writer.add(merged.key, merged.value);
+				if (writer.size() >= targetSegmentBytes) {
+					outputs.add(writer.finish(number));
+					writer = null;
+				}
+			}
+			if (writer != null) {
+				outputs.add(writer.finish(number));
+				writer = null;
+			}
+		}
+		catch (IOException ex) {
+			if (writer != null) {
+				writer.abort();
+			}
+			for (Segment segment: outputs) {
+				segment.file.delete();
+			}
+			throw ex;
+		}
+
+		long outputBytes = 0;
+		synchronized (this) {
+			Version current = version;
+			List<Segment> level0 = new ArrayList<Segment>(current.level0);
+			level0.removeAll(inputs0);
+			List<Segment> level1 = new ArrayList<Segment>(current.level1);
+			level1.removeAll(inputs1);
+			level1.addAll(outputs);
+			Collections.sort(level1, BY_FIRST_KEY);
+			version = new Version(current.active, current.flushing, level0, level1);
+			writeManifest(version);
+			for (Segment segment: outputs) {
+				outputBytes += segment.sizeBytes();
+			}
+			compactions++;
+			bytesCompacted += outputBytes;
+			notifyAll();
+		}
+		// readers still holding the old version keep their mappings, which
+		// outlive the files
+		for (Segment segment: inputs0) {
+			segment.file.delete();
+		}
+		for (Segment segment: inputs1) {
+			segment.file.delete();
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Compacted " + inputs0.size() + " level 0 and " + inputs1.size() + " level 1 segments ("
+					+ inputBytes + " bytes) into " + outputs.size() + " (" + outputBytes + " bytes) in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		}
+	}
+
+	File segmentFile(long number) {
+		return new File(dir, String.format("%012d%s", number, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * Lists the version's segments, level 0 newest first, in a new manifest
+	 * and renames it over the old one.
+	 */
+	void writeManifest(Version version) throws IOException {
+		File tmp = new File(dir, MANIFEST + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			Writer writer = new OutputStreamWriter(out, "UTF-8");
+			for (Segment segment: version.level0) {
+				writer.write("0 " + segment.file.getName() + "\n");
+			}
+			for (Segment segment: version.level1) {
+				writer.write("1 " + segment.file.getName() + "\n");
+			}
+			writer.flush();
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		File manifest = new File(dir, MANIFEST);
+		if (!tmp.renameTo(manifest)) {
+			throw new IOException("Could not rename " + tmp + " to " + manifest);
+		}
+	}
+
+	@Override
+	public Optional<LongOp> get(Address c) throws IOException, InterruptedException {
+		return get(keyCodec.toKey(c, idService));
+	}
+
+	/**
+	 * The key's value over the memtables and segments, newest first.
+	 */
+	public Optional<LongOp> get(byte[] key) {
+		Version v = version;
+		boolean found = false;
+		long sum = 0;
+
+		AtomicLong cell = v.active.get(key);
+		if (cell != null) {
+			if (overwrite) return Optional.of(new LongOp(cell.get()));
+			found = true;
+			sum += cell.get();
+		}
+		for (Memtable memtable: v.flushing) {
+			cell = memtable.get(key);
+			if (cell != null) {
+				if (overwrite) return Optional.of(new LongOp(cell.get()));
+				found = true;
+				sum += cell.get();
+			}
+		}
+		long[] value = new long[1];
+		for (Segment segment: v.level0) {
+			if (segment.get(key, value)) {
+				if (overwrite) return Optional.of(new LongOp(value[0]));
+				found = true;
+				sum += value[0];
+			}
+		}
+		Segment segment = level1For(v.level1, key);
+		if (segment != null && segment.get(key, value)) {
+			found = true;
+			sum += value[0];
+		}
+		return found ? Optional.of(new LongOp(sum)) : Optional.<LongOp>absent();
+	}
+
+	/**
+	 * The level 1 segment whose range may hold key.
+	 */
+	static Segment level1For(List<Segment> level1, byte[] key) {
+		int lo = 0;
+		int hi = level1.size() - 1;
+		Segment found = null;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (Segment.KEY_ORDER.compare(level1.get(mid).firstKey, key) <= 0) {
+				found = level1.get(mid);
+				lo = mid + 1;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public List<Optional<LongOp>> multiGet(List<Address> addresses) throws IOException {
+		List<Optional<LongOp>> results = new ArrayList<Optional<LongOp>>(addresses.size());
+		try {
+			for (Address address: addresses) {
+				results.add(get(keyCodec.toKey(address, idService)));
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		}
+		return results;
+	}
+
+	/**
+	 * Forces every batch applied so far to the log. Memtables are flushed to
+	 * segments as they fill, not here. Throws IllegalStateException if the log
+	 * can not be synced or a background flush or compaction has failed.
+	 */
+	@Override
+	public void flush() throws InterruptedException {
+		try {
+			wal.sync(wal.getAppended());
+		}
+		catch (IOException ex) {
+			throw new IllegalStateException("Failed to sync log", ex);
+		}
+		if (backgroundFailure != null) {
+			throw new IllegalStateException("A flush or compaction failed", backgroundFailure);
+		}
+	}
+
+	/**
+	 * Visits every cell with a key in [from, to), either of which may be null
+	 * for no bound, in key order.
+	 */
+	public void scan(byte[] from, byte[] to, CellVisitor<LongOp> visitor) throws IOException {
+		Version v = version;
+		List<CellCursor> cursors = new ArrayList<CellCursor>();
+		cursors.add(v.active.cursor(from));
+		for (Memtable memtable: v.flushing) {
+			cursors.add(memtable.cursor(from));
+		}
+		for (Segment segment: v.level0) {
+			cursors.add(segment.cursor(from));
+		}
+		for (Segment segment: v.level1) {
+			if ((from == null || Segment.KEY_ORDER.compare(segment.lastKey, from) >= 0)
+					&& (to == null || Segment.KEY_ORDER.compare(segment.firstKey, to) < 0)) {
+				cursors.add(segment.cursor(from));
+			}
+		}
+		MergingCursor merged = new MergingCursor(cursors, overwrite);
+		while (merged.next()) {
+			if (to != null && Segment.KEY_ORDER.compare(merged.key, to) >= 0) {
+				return;
+			}
+			if (!visitor.visit(merged.key, new LongOp(merged.value))) {
+				return;
+			}
+		}
+	}
+
+	public void scan(CellVisitor<LongOp> visitor) throws IOException {
+		scan(null, null, visitor);
+	}
+
+	public void writeCells(Map<BoxedByteArray,LongOp> cells) throws IOException, InterruptedException {
+		byte[][] keys = new byte[cells.size()][];
+		long[] values = new long[keys.length];
+		int i = 0;
+		for (Map.Entry<BoxedByteArray,LongOp> cell: cells.entrySet()) {
+			keys[i] = cell.getKey().bytes;
+			values[i] = cell.getValue().getLong();
+			i++;
+		}
+		write(keys, values);
+		wal.sync(wal.getAppended());
+	}
+
+	/**
+	 * Swaps out the active memtable, if it has any cells, and waits until it
+	 * and any other queued memtables are written to segments.
+	 */
+	public void flushMemtables() throws IOException, InterruptedException {
+		Memtable active = version.active;
+		if (active.size() > 0) {
+			swap(active);
+		}
+		synchronized (this) {
+			while (!version.flushing.isEmpty() && backgroundFailure == null) {
+				wait();
+			}
+		}
+		if (backgroundFailure != null) {
+			throw new IOException("A flush or compaction failed", backgroundFailure);
+		}
+	}
+
+	/**
+	 * Flushes the memtables and compacts level 0 into level 1, waiting for
+	 * both.
+	 */
+	public void compactNow() throws IOException, InterruptedException {
+		flushMemtables();
+		synchronized (this) {
+			while (compacting) {
+				wait();
+			}
+			compacting = true;
+		}
+		try {
+			compact();
+		}
+		finally {
+			synchronized (this) {
+				compacting = false;
+				notifyAll();
+			}
+		}
+	}
+
+	public LsmStats getStats() {
+		Version v = version;
+		long segmentBytes = 0;
+		for (Segment segment: v.level0) {
+			segmentBytes += segment.sizeBytes();
+		}
+		for (Segment segment: v.level1) {
+			segmentBytes += segment.sizeBytes();
+		}
+		long memtableCells = v.active.size();
+		for (Memtable memtable: v.flushing) {
+			memtableCells += memtable.size();
+		}
+		synchronized (this) {
+			return new LsmStats(memtableCells, v.level0.size(), v.level1.size(), segmentBytes, flushes,
+					compactions, bytesFlushed, bytesCompacted);
+		}
+	}
+
+	/**
+	 * Flushes the memtables to segments, so the next start has no log to
+	 * replay, and stops the background threads.
+	 */
+	public void close() throws IOException, InterruptedException {
+		flushMemtables();
+		flusher.shutdown();
+		flusher.awaitTermination(1, TimeUnit.MINUTES);
+		synchronized (this) {
+			while (compacting) {
+				wait();
+			}
+		}
+		compactor.shutdown();
+		compactor.awaitTermination(1, TimeUnit.MINUTES);
+		wal.close();
+	}
+
+	public static class LsmStats {
+		public final long memtableCells;
+		public final int level0Segments;
+		public final int level1Segments;
+		public final long segmentBytes;
+		public final long flushes;
+		public final long compactions;
+		public final long bytesFlushed;
+		public final long bytesCompacted;
+
+		public LsmStats(long memtableCells, int level0Segments, int level1Segments, long segmentBytes,
+				long flushes, long compactions, long bytesFlushed, long bytesCompacted) {
+			this.memtableCells = memtableCells;
+			this.level0Segments = level0Segments;
+			this.level1Segments = level1Segments;
+			this.segmentBytes = segmentBytes;
+			this.flushes = flushes;
+			this.compactions = compactions;
+			this.bytesFlushed = bytesFlushed;
+			this.bytesCompacted = bytesCompacted;
+		}
+
+		/**
+		 * Bytes written to segments per byte of segments live now.
+		 */
+		public double getWriteAmplification() {
+			return segmentBytes == 0 ? 0 : (double) (bytesFlushed + bytesCompacted) / segmentBytes;
+		}
+
+		@Override
+		public String toString() {
+			return "LsmStats [memtableCells=" + memtableCells + ", level0Segments=" + level0Segments
+					+ ", level1Segments=" + level1Segments + ", segmentBytes=" + segmentBytes
+					+ ", flushes=" + flushes + ", compactions=" + compactions + ", bytesFlushed=" + bytesFlushed
+					+ ", bytesCompacted=" + bytesCompacted + "]";
+		}
+	}
+}
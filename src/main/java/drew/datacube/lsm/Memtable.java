@@ -0,0 +1,67 @@
+package drew.datacube.lsm;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The sorted in-memory cells written since the last flush. Writers add to
+ * a cell's counter in place, or with overwrite set replace it.
+ */
+class Memtable {
+
+	final ConcurrentSkipListMap<byte[],AtomicLong> cells =
+			new ConcurrentSkipListMap<byte[],AtomicLong>(Segment.KEY_ORDER);
+	final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * The first log segment written after this memtable stopped taking
+	 * writes, so the segments before it can go once it is flushed.
+	 */
+	volatile long walSegment;
+
+	void add(byte[] key, long value, boolean overwrite) {
+		AtomicLong cell = cells.get(key);
+		if (cell == null) {
+			cell = cells.putIfAbsent(key, new AtomicLong(value));
+			if (cell == null) {
+				size.incrementAndGet();
+				return;
+			}
+		}
+		if (overwrite) {
+			cell.set(value);
+		}
+		else {
+			cell.addAndGet(value);
+		}
+	}
+
+	AtomicLong get(byte[] key) {
+		return cells.get(key);
+	}
+
+	int size() {
+		return size.get();
+	}
+
+	CellCursor cursor(byte[] from) {
+		ConcurrentNavigableMap<byte[],AtomicLong> tail = from == null ? cells : cells.tailMap(from, true);
+		final Iterator<Map.Entry<byte[],AtomicLong>> it = tail.entrySet().iterator();
+		return new CellCursor() {
+			@Override
+			boolean next() {
+				if (!it.hasNext()) {
+					return false;
+				}
+				Map.Entry<byte[],AtomicLong> entry = it.next();
+				key = entry.getKey();
+				value = entry.getValue().get();
+				return true;
+			}
+		};
+	}
+}
@@ -0,0 +1,67 @@
+package drew.datacube.lsm;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges cursors over overlapping sources into one cursor with each key
+ * once. Sources come newest first: with overwrite the newest value of a key
+ * wins, otherwise the values are summed, as they are counter deltas.
+ */
+class MergingCursor extends CellCursor {
+
+	final PriorityQueue<Source> queue;
+	final boolean overwrite;
+
+	MergingCursor(List<CellCursor> cursors, boolean overwrite) throws IOException {
+		this.overwrite = overwrite;
+		this.queue = new PriorityQueue<Source>(Math.max(1, cursors.size()));
+		for (int i=0; i < cursors.size(); i++) {
+			Source source = new Source(cursors.get(i), i);
+			if (source.cursor.next()) {
+				queue.add(source);
+			}
+		}
+	}
+
+	@Override
+	boolean next() throws IOException {
+		Source first = queue.poll();
+		if (first == null) {
+			return false;
+		}
+		key = first.cursor.key;
+		value = first.cursor.value;
+		advance(first);
+		while (!queue.isEmpty() && Segment.KEY_ORDER.compare(queue.peek().cursor.key, key) == 0) {
+			Source same = queue.poll();
+			if (!overwrite) {
+				value += same.cursor.value;
+			}
+			advance(same);
+		}
+		return true;
+	}
+
+	void advance(Source source) throws IOException {
+		if (source.cursor.next()) {
+			queue.add(source);
+		}
+	}
+
+	static class Source implements Comparable<Source> {
+		final CellCursor cursor;
+		final int age;
+
+		Source(CellCursor cursor, int age) {
+			this.cursor = cursor;
+			this.age = age;
+		}
+
+		public int compareTo(Source other) {
+			int cmp = Segment.KEY_ORDER.compare(cursor.key, other.cursor.key);
+			return cmp != 0 ? cmp : age - other.age;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package drew.datacube.lsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+
+/**
+ * An immutable file of cells sorted by key, written by a
+ * {@link SegmentWriter} and read through a memory mapping.
+ * <p>
+ * The file is the cells as (short key length, key, long value), then a
+ * sparse index of every {@link SegmentWriter#INDEX_INTERVAL}th key and its
+ * offset, the last key, a bloom filter over every key and a fixed size
+ * footer locating them. Only the index and bloom filter are held on the
+ * heap; lookups check the bloom filter, binary search the index and scan
+ * at most one interval of the mapping, and scans walk the mapping in
+ * order.
+ */
+class Segment {
+
+	static final int MAGIC = 0x4c534d31;
+	static final int FOOTER_SIZE = 36;
+
+	/**
+	 * Unsigned lexicographic order, the order of the keys in a segment.
+	 */
+	static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			int n = Math.min(a.length, b.length);
+			for (int i=0; i < n; i++) {
+				int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+				if (cmp != 0) {
+					return cmp;
+				}
+			}
+			return a.length - b.length;
+		}
+	};
+
+	final File file;
+	final long number;
+	final long count;
+	final long walSegment;
+	final ByteBuffer data;
+	final int dataEnd;
+	final byte[][] indexKeys;
+	final int[] indexOffsets;
+	final byte[] firstKey;
+	final byte[] lastKey;
+	final long[] bloom;
+	final int bloomHashes;
+
+	Segment(File file, long number) throws IOException {
+		this.file = file;
+		this.number = number;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = raf.length();
+			if (size < FOOTER_SIZE || size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is not a segment");
+			}
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			data = mapped;
+			int footer = (int) size - FOOTER_SIZE;
+			if (data.getInt(footer + FOOTER_SIZE - 4) != MAGIC) {
+				throw new IOException(file + " is not a segment");
+			}
+			count = data.getLong(footer);
+			walSegment = data.getLong(footer + 8);
+			dataEnd = data.getInt(footer + 16);
+			int indexOffset = data.getInt(footer + 20);
+			int lastKeyOffset = data.getInt(footer + 24);
+			int bloomOffset = data.getInt(footer + 28);
+
+			ByteBuffer in = data.duplicate();
+			in.position(indexOffset);
+			int indexCount = in.getInt();
+			indexKeys = new byte[indexCount][];
+			indexOffsets = new int[indexCount];
+			for (int i=0; i < indexCount; i++) {
+				indexKeys[i] = readKey(in);
+				indexOffsets[i] = in.getInt();
+			}
+			in.position(lastKeyOffset);
+			lastKey = readKey(in);
+			firstKey = indexCount > 0 ? indexKeys[0] : lastKey;
+
+			in.position(bloomOffset);
+			bloomHashes = in.getInt();
+			bloom = new long[in.getInt()];
+			for (int i=0; i < bloom.length; i++) {
+				bloom[i] = in.getLong();
+			}
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	static byte[] readKey(ByteBuffer in) {
+		byte[] key = new byte[in.getShort() & 0xffff];
+		in.get(key);
+		return key;
+	}
+
+	/**
+	 * Whether key may be in the segment: false only if it certainly is not.
+	 */
+	boolean mayContain(byte[] key) {
+		if (count == 0 || KEY_ORDER.compare(key, firstKey) < 0 || KEY_ORDER.compare(key, lastKey) > 0) {
+			return false;
+		}
+		long hash = hash64(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long bits = (long) bloom.length * 64;
+		for (int i=0; i < bloomHashes; i++) {
+			long bit = ((h1 + i * h2) & 0x7fffffffL) % bits;
+			if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Puts key's value in value[0] and returns true if the segment has it.
+	 */
+	boolean get(byte[] key, long[] value) {
+		if (!mayContain(key)) {
+			return false;
+		}
+		int block = floorIndex(key);
+		if (block < 0) {
+			return false;
+		}
+		int offset = indexOffsets[block];
+		int end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+		while (offset < end) {
+			int keyLength = data.getShort(offset) & 0xffff;
+			int cmp = compareAt(offset + 2, keyLength, key);
+			if (cmp == 0) {
+				value[0] = data.getLong(offset + 2 + keyLength);
+				return true;
+			}
+			if (cmp > 0) {
+				return false;
+			}
+			offset += 2 + keyLength + 8;
+		}
+		return false;
+	}
+
+	/**
+	 * The index entry with the greatest key at or before key, -1 if key is
+	 * before every key.
+	 */
+	int floorIndex(byte[] key) {
+		int lo = 0;
+		int hi = indexKeys.length - 1;
+		int found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (KEY_ORDER.compare(indexKeys[mid], key) <= 0) {
+				found = mid;
+				lo = mid + 1;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	int compareAt(int offset, int length, byte[] key) {
+		int n = Math.min(length, key.length);
+		for (int i=0; i < n; i++) {
+			int cmp = (data.get(offset + i) & 0xff) - (key[i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return length - key.length;
+	}
+
+	/**
+	 * A cursor over the cells from the first key at or after from, or the
+	 * first cell if from is null.
+	 */
+	Cursor cursor(byte[] from) {
+		int offset = 0;
+		if (from != null) {
+			int block = floorIndex(from);
+			offset = block < 0 ? 0 : indexOffsets[block];
+			while (offset < dataEnd) {
+				int keyLength = data.getShort(offset) & 0xffff;
+				if (compareAt(offset + 2, keyLength, from) >= 0) {
+					break;
+				}
+				offset += 2 + keyLength + 8;
+			}
+		}
+		return new Cursor(offset);
+	}
+
+	class Cursor extends CellCursor {
+		int offset;
+
+		Cursor(int offset) {
+			this.offset = offset;
+		}
+
+		@Override
+		boolean next() {
+			if (offset >= dataEnd) {
+				return false;
+			}
+			int keyLength = data.getShort(offset) & 0xffff;
+			key = new byte[keyLength];
+			for (int i=0; i < keyLength; i++) {
+				key[i] = data.get(offset + 2 + i);
+			}
+			value = data.getLong(offset + 2 + keyLength);
+			offset += 2 + keyLength + 8;
+			return true;
+		}
+	}
+
+	/**
+	 * Whether any key in the segment may fall in [from, to].
+	 */
+	boolean overlaps(byte[] from, byte[] to) {
+		return count > 0 && KEY_ORDER.compare(lastKey, from) >= 0 && KEY_ORDER.compare(firstKey, to) <= 0;
+	}
+
+	long sizeBytes() {
+		return data.capacity();
+	}
+
+	static long hash64(byte[] key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=0; i < key.length; i++) {
+			h = (h ^ key[i]) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return file.getName() + " [" + count + " cells, " + sizeBytes() + " bytes]";
+	}
+}
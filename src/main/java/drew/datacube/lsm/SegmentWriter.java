@@ -0,0 +1,143 @@
+package drew.datacube.lsm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes cells, which must come in ascending key order, to a new
+ * {@link Segment} file.
+ */
+class SegmentWriter {
+
+	static final int INDEX_INTERVAL = 64;
+	static final int BLOOM_BITS_PER_KEY = 10;
+	static final int BLOOM_HASHES = 7;
+
+	/**
+	 * Offsets in a segment are ints, so stop short of 2GB.
+	 */
+	static final int MAX_SEGMENT_BYTES = Integer.MAX_VALUE - 64 * 1024 * 1024;
+
+	final File file;
+	final long walSegment;
+	final FileOutputStream fileOut;
+	final DataOutputStream out;
+	final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+	final DataOutputStream index = new DataOutputStream(indexBytes);
+	final long[] bloom;
+
+	int offset = 0;
+	int indexCount = 0;
+	long count = 0;
+	byte[] lastKey;
+
+	/**
+	 * expectedCells sizes the bloom filter; more cells than that can be
+	 * added at the cost of more false positives.
+	 */
+	SegmentWriter(File file, long walSegment, long expectedCells) throws IOException {
+		this.file = file;
+		this.walSegment = walSegment;
+		long bits = Math.max(64, Math.min((long) Integer.MAX_VALUE, expectedCells * BLOOM_BITS_PER_KEY));
+		this.bloom = new long[(int) ((bits + 63) / 64)];
+		this.fileOut = new FileOutputStream(file);
+		this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 256 * 1024));
+	}
+
+	void add(byte[] key, long value) throws IOException {
+		if (lastKey != null && Segment.KEY_ORDER.compare(key, lastKey) <= 0) {
+			throw new IllegalArgumentException("Keys must be added in ascending order");
+		}
+		if (key.length > 0xffff) {
+			throw new IllegalArgumentException("Key of " + key.length + " bytes is too long");
+		}
+		if (offset > MAX_SEGMENT_BYTES) {
+			throw new IOException(file + " is too large");
+		}
+		if (count % INDEX_INTERVAL == 0) {
+			index.writeShort(key.length);
+			index.write(key);
+			index.writeInt(offset);
+			indexCount++;
+		}
+		out.writeShort(key.length);
+		out.write(key);
+		out.writeLong(value);
+		offset += 2 + key.length + 8;
+		count++;
+		lastKey = key;
+
+		long hash = Segment.hash64(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long bits = (long) bloom.length * 64;
+		for (int i=0; i < BLOOM_HASHES; i++) {
+			long bit = ((h1 + i * h2) & 0x7fffffffL) % bits;
+			bloom[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * The bytes of cells written so far.
+	 */
+	int size() {
+		return offset;
+	}
+
+	long count() {
+		return count;
+	}
+
+	/**
+	 * Writes the index, bloom filter and footer, forces the file to disk and
+	 * opens it.
+	 */
+	Segment finish(long number) throws IOException {
+		try {
+			int dataEnd = offset;
+			int indexOffset = dataEnd;
+			out.writeInt(indexCount);
+			indexBytes.writeTo(out);
+			int lastKeyOffset = indexOffset + 4 + indexBytes.size();
+			byte[] last = lastKey == null ? new byte[0] : lastKey;
+			out.writeShort(last.length);
+			out.write(last);
+			int bloomOffset = lastKeyOffset + 2 + last.length;
+			out.writeInt(BLOOM_HASHES);
+			out.writeInt(bloom.length);
+			for (long word: bloom) {
+				out.writeLong(word);
+			}
+			out.writeLong(count);
+			out.writeLong(walSegment);
+			out.writeInt(dataEnd);
+			out.writeInt(indexOffset);
+			out.writeInt(lastKeyOffset);
+			out.writeInt(bloomOffset);
+			out.writeInt(Segment.MAGIC);
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		return new Segment(file, number);
+	}
+
+	/**
+	 * Closes and deletes a file that will not be finished.
+	 */
+	void abort() {
+		try {
+			out.close();
+		}
+		catch (IOException ex) {
+			// deleting anyway
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,40 @@
+package drew.datacube.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.urbanairship.datacube.BoxedByteArray;
+import com.yammer.metrics.core.Counter;
+
+/**
+ * The map behind a MapDbHarness, counting the compare-and-set writes of
+ * READ_COMBINE_CAS that lose a race and have to be retried: a putIfAbsent
+ * that finds a cell, or a replace whose expected value has changed.
+ */
+public class CasCountingMap extends ConcurrentHashMap<BoxedByteArray,byte[]> {
+
+	private static final long serialVersionUID = 1L;
+
+	final transient Counter casRetries;
+
+	public CasCountingMap(CubeMetrics metrics) {
+		this.casRetries = metrics.casRetries();
+	}
+
+	@Override
+	public byte[] putIfAbsent(BoxedByteArray key, byte[] value) {
+		byte[] existing = super.putIfAbsent(key, value);
+		if (existing != null) {
+			casRetries.inc();
+		}
+		return existing;
+	}
+
+	@Override
+	public boolean replace(BoxedByteArray key, byte[] oldValue, byte[] newValue) {
+		if (super.replace(key, oldValue, newValue)) {
+			return true;
+		}
+		casRetries.inc();
+		return false;
+	}
+}
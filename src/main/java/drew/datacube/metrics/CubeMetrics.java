@@ -0,0 +1,181 @@
+package drew.datacube.metrics;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.Op;
+import com.urbanairship.datacube.SyncLevel;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+import drew.datacube.cache.IdCache;
+import drew.ufo.reader.UFODataReader;
+
+/**
+ * The metrics of one cube, registered in a Metrics registry in the
+ * drew.datacube group, typed by what they measure (DataCubeIo, DbHarness,
+ * IdService, UFODataReader) and scoped by cube name.
+ * Metrics.defaultRegistry() publishes everything registered in it over JMX.
+ * <p>
+ * The hot paths only pay for a few atomic increments: latencies of single
+ * writes and reads are timed for one call in every {@link #SAMPLE_EVERY},
+ * and id cache hit rates are read from the cache's own counters when
+ * polled. {@link #remove()} unregisters everything, so a cube rebuilt under
+ * the same name starts from zero.
+ */
+public class CubeMetrics {
+
+	/**
+	 * One in this many single writes and reads is timed. A power of two.
+	 */
+	public static final int SAMPLE_EVERY = 128;
+
+	static final String GROUP = "drew.datacube";
+
+	final MetricsRegistry registry;
+	final String scope;
+	final Set<MetricName> names = new LinkedHashSet<MetricName>();
+
+	public CubeMetrics(MetricsRegistry registry, String scope) {
+		this.registry = registry;
+		this.scope = scope;
+	}
+
+	public MetricsRegistry getRegistry() {
+		return registry;
+	}
+
+	public String getScope() {
+		return scope;
+	}
+
+	public <T extends Op> MeteredDbHarness<T> meter(DbHarness<T> harness) {
+		return new MeteredDbHarness<T>(harness, this);
+	}
+
+	public <T extends Op> MeteredDataCubeIo<T> newCubeIo(DataCube<T> cube, DbHarness<T> harness, int batchSize,
+			long maxBatchAgeMs, SyncLevel syncLevel) {
+		return new MeteredDataCubeIo<T>(cube, harness, batchSize, maxBatchAgeMs, syncLevel, this);
+	}
+
+	/**
+	 * An {@link IdCache} is returned as it is, with gauges over its stats
+	 * for each of the named dimensions. Any other id service, each of whose
+	 * lookups goes to the id store, is wrapped to time every lookup.
+	 */
+	public IdService meter(IdService idService, List<String> dimensionNames) {
+		if (!(idService instanceof IdCache)) {
+			return new MeteredIdService(idService, this);
+		}
+		final IdCache idCache = (IdCache) idService;
+		for (int i=0; i < dimensionNames.size(); i++) {
+			final int dimensionNum = i;
+			String prefix = "idCache." + dimensionNames.get(i) + ".";
+			gauge("IdService", prefix + "hitRate", new Gauge<Double>() {
+				public Double value() {
+					return idCache.getStats(dimensionNum).getHitRate();
+				}
+			});
+			gauge("IdService", prefix + "misses", new Gauge<Long>() {
+				public Long value() {
+					return idCache.getStats(dimensionNum).misses;
+				}
+			});
+			gauge("IdService", prefix + "averageLoadMicros", new Gauge<Long>() {
+				public Long value() {
+					return idCache.getStats(dimensionNum).getAverageLoadMicros();
+				}
+			});
+			gauge("IdService", prefix + "size", new Gauge<Integer>() {
+				public Integer value() {
+					return idCache.getStats(dimensionNum).size;
+				}
+			});
+		}
+		return idCache;
+	}
+
+	/**
+	 * Meters the rows parsed from the reader and the lines skipped for a
+	 * ParseException, whether by its own iterator or by the workers of a
+	 * UFOIngestPipeline reading it raw.
+	 */
+	public void meter(UFODataReader reader) {
+		final Meter rows = meter("UFODataReader", "rows", "rows");
+		final Meter parseErrors = meter("UFODataReader", "parseErrors", "lines");
+		gauge("UFODataReader", "parseErrorRate", new Gauge<Double>() {
+			public Double value() {
+				long skipped = parseErrors.count();
+				long total = rows.count() + skipped;
+				return total == 0 ? 0 : (double) skipped / total;
+			}
+		});
+		reader.setMeters(rows, parseErrors);
+	}
+
+	/**
+	 * The count of READ_COMBINE_CAS writes retried after losing a race for a
+	 * cell, shared by {@link CasCountingMap} and the durable harness.
+	 */
+	public Counter casRetries() {
+		return counter("DbHarness", "casRetries");
+	}
+
+	MetricName name(String type, String name) {
+		MetricName metricName = new MetricName(GROUP, type, name, scope);
+		synchronized (names) {
+			names.add(metricName);
+		}
+		return metricName;
+	}
+
+	Timer timer(String type, String name) {
+		return registry.newTimer(name(type, name), TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+	}
+
+	Meter meter(String type, String name, String eventType) {
+		return registry.newMeter(name(type, name), eventType, TimeUnit.SECONDS);
+	}
+
+	Histogram histogram(String type, String name) {
+		return registry.newHistogram(name(type, name), false);
+	}
+
+	Counter counter(String type, String name) {
+		return registry.newCounter(name(type, name));
+	}
+
+	<T> Gauge<T> gauge(String type, String name, Gauge<T> gauge) {
+		return registry.newGauge(name(type, name), gauge);
+	}
+
+	/**
+	 * True for one call in every SAMPLE_EVERY, counted by calls. Races
+	 * between threads only make the sample less even.
+	 */
+	static boolean sample(int calls) {
+		return (calls & (SAMPLE_EVERY - 1)) == 0;
+	}
+
+	/**
+	 * Unregisters every metric of this cube.
+	 */
+	public void remove() {
+		synchronized (names) {
+			for (MetricName name: names) {
+				registry.removeMetric(name);
+			}
+			names.clear();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package drew.datacube.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.Op;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.dbharnesses.FullQueueException;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * A {@link DataCubeIo} that meters every write and samples the latency of
+ * writes and reads. A synchronous write is timed until its batch is
+ * applied, an asynchronous one until it is queued, which includes handing
+ * a full batch to the harness.
+ */
+public class MeteredDataCubeIo<T extends Op> extends DataCubeIo<T> {
+
+	final Meter writes;
+	final Timer syncWrites;
+	final Timer asyncWrites;
+	final Timer reads;
+
+	int calls;
+
+	public MeteredDataCubeIo(DataCube<T> cube, DbHarness<T> db, int batchSize, long maxBatchAgeMs,
+			SyncLevel syncLevel, CubeMetrics metrics) {
+		super(cube, db, batchSize, maxBatchAgeMs, syncLevel);
+		this.writes = metrics.meter("DataCubeIo", "writes", "writes");
+		this.syncWrites = metrics.timer("DataCubeIo", "syncWrites");
+		this.asyncWrites = metrics.timer("DataCubeIo", "asyncWrites");
+		this.reads = metrics.timer("DataCubeIo", "reads");
+	}
+
+	@Override
+	public void writeSync(T op, WriteBuilder c) throws IOException, InterruptedException {
+		writes.mark();
+		if (!CubeMetrics.sample(++calls)) {
+			super.writeSync(op, c);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			super.writeSync(op, c);
+		}
+		finally {
+			syncWrites.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	@Override
+	public Optional<Future<?>> writeAsync(T op, WriteBuilder c) throws FullQueueException {
+		writes.mark();
+		if (!CubeMetrics.sample(++calls)) {
+			return super.writeAsync(op, c);
+		}
+		long start = System.nanoTime();
+		try {
+			return super.writeAsync(op, c);
+		}
+		finally {
+			asyncWrites.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	@Override
+	public Optional<T> get(ReadBuilder r) throws IOException, InterruptedException {
+		return get(r.build());
+	}
+
+	@Override
+	public Optional<T> get(Address a) throws IOException, InterruptedException {
+		if (!CubeMetrics.sample(++calls)) {
+			return super.get(a);
+		}
+		long start = System.nanoTime();
+		try {
+			return super.get(a);
+		}
+		finally {
+			reads.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package drew.datacube.metrics;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.Op;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.FullQueueException;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Meters any {@link DbHarness}: how long batches take from submission to
+ * their AfterExecute, their sizes, how many are in flight, how many fail or
+ * are refused with {@link FullQueueException}, and how long reads take.
+ * Every batch is timed, since a batch usually holds many writes; single
+ * gets are sampled.
+ */
+public class MeteredDbHarness<T extends Op> implements DbHarness<T> {
+
+	final DbHarness<T> backing;
+
+	final Timer batchLatency;
+	final Histogram batchSizes;
+	final Counter queueDepth;
+	final Meter failedBatches;
+	final Meter fullQueues;
+	final Timer getLatency;
+	final Timer multiGetLatency;
+
+	int gets;
+
+	public MeteredDbHarness(DbHarness<T> backing, CubeMetrics metrics) {
+		this.backing = backing;
+		this.batchLatency = metrics.timer("DbHarness", "batches");
+		this.batchSizes = metrics.histogram("DbHarness", "batchSizes");
+		this.queueDepth = metrics.counter("DbHarness", "queueDepth");
+		this.failedBatches = metrics.meter("DbHarness", "failedBatches", "batches");
+		this.fullQueues = metrics.meter("DbHarness", "fullQueues", "refusals");
+		this.getLatency = metrics.timer("DbHarness", "gets");
+		this.multiGetLatency = metrics.timer("DbHarness", "multiGets");
+	}
+
+	@Override
+	public Future<?> runBatchAsync(Batch<T> batch, final AfterExecute<T> afterExecute)
+			throws FullQueueException {
+		final long start = System.nanoTime();
+		batchSizes.update(batch.getMap().size());
+		queueDepth.inc();
+		try {
+			return backing.runBatchAsync(batch, new AfterExecute<T>() {
+				public void afterExecute(Throwable t) {
+					queueDepth.dec();
+					batchLatency.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+					if (t != null) {
+						failedBatches.mark();
+					}
+					afterExecute.afterExecute(t);
+				}
+			});
+		}
+		catch (FullQueueException ex) {
+			queueDepth.dec();
+			fullQueues.mark();
+			throw ex;
+		}
+	}
+
+	@Override
+	public Optional<T> get(Address c) throws IOException, InterruptedException {
+		if (!CubeMetrics.sample(++gets)) {
+			return backing.get(c);
+		}
+		long start = System.nanoTime();
+		try {
+			return backing.get(c);
+		}
+		finally {
+			getLatency.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	@Override
+	public List<Optional<T>> multiGet(List<Address> addresses) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return backing.multiGet(addresses);
+		}
+		finally {
+			multiGetLatency.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	@Override
+	public void flush() throws InterruptedException {
+		backing.flush();
+	}
+
+	public DbHarness<T> getBacking() {
+		return backing;
+	}
+}
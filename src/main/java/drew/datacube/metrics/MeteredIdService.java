@@ -0,0 +1,37 @@
+package drew.datacube.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.urbanairship.datacube.IdService;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Times every lookup of an id service with no cache in front of it, where
+ * each lookup is a trip to the id store.
+ */
+public class MeteredIdService implements IdService {
+
+	final IdService backing;
+	final Timer lookups;
+
+	public MeteredIdService(IdService backing, CubeMetrics metrics) {
+		this.backing = backing;
+		this.lookups = metrics.timer("IdService", "lookups");
+	}
+
+	@Override
+	public byte[] getId(int dimensionNum, byte[] input, int numIdBytes) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		try {
+			return backing.getId(dimensionNum, input, numIdBytes);
+		}
+		finally {
+			lookups.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	public IdService getBacking() {
+		return backing;
+	}
+}
@@ -0,0 +1,308 @@
+package drew.datacube.offheap;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import sun.misc.Unsafe;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.FullQueueException;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.HarnessFutures;
+import drew.datacube.backfill.CellStore;
+import drew.datacube.keys.AddressKeyCodec;
+import drew.datacube.keys.KeyCodec;
+
+/**
+ * A {@link DbHarness} for {@link LongOp} counters that keeps every cell in a
+ * single block of native memory instead of on the Java heap.
+ * <p>
+ * The block is an open addressing hash table with linear probing. Each slot
+ * holds a header word, the 8 byte counter and the address key, padded to
+ * maxKeyLength. The header is 0 for an empty slot, -1 while a writer is
+ * copying its key in, and otherwise packs the key hash and length so most
+ * probes are rejected without comparing keys. Slots are claimed with a
+ * compare-and-swap on the header and counters are updated with a
+ * compare-and-swap loop in place, so writers never lock and nothing on the
+ * heap is allocated per cell.
+ * <p>
+ * The table does not grow or remove cells: it is sized for capacity cells up
+ * front, and writes of new cells beyond that fail. For LongOp, READ_COMBINE_CAS
+ * and INCREMENT both add to the counter; OVERWRITE replaces it. Batches are
+ * applied on the calling thread, so the returned Future is already done.
+ */
+public class OffHeapDbHarness implements DbHarness<LongOp>, CellStore<LongOp> {
+
+	private static final Logger log = Logger.getLogger(OffHeapDbHarness.class);
+
+	private static final Unsafe unsafe = loadUnsafe();
+
+	static final long EMPTY = 0;
+	static final long BUSY = -1;
+
+	static final int COUNT_OFFSET = 8;
+	static final int KEY_OFFSET = 16;
+
+	final IdService idService;
+	KeyCodec keyCodec = AddressKeyCodec.INSTANCE;
+	final CommitType commitType;
+	final int maxKeyLength;
+	final int capacity;
+	final int slots;
+	final int mask;
+	final long slotSize;
+	final AtomicInteger size = new AtomicInteger();
+	volatile long base;
+
+	public OffHeapDbHarness(int maxKeyLength, int capacity, IdService idService, CommitType commitType) {
+		if (maxKeyLength < 1 || capacity < 1) {
+			throw new IllegalArgumentException("maxKeyLength and capacity must be positive");
+		}
+		this.idService = idService;
+		this.commitType = commitType;
+		this.maxKeyLength = maxKeyLength;
+		this.capacity = capacity;
+
+		// keep the load factor at or below 3/4
+		long wanted = Math.max(2, (long) capacity * 4 / 3 + 1);
+		if (wanted > (1 << 30)) {
+			throw new IllegalArgumentException("capacity " + capacity + " is too large");
+		}
+		this.slots = Integer.highestOneBit((int) wanted * 2 - 1);
+		this.mask = slots - 1;
+		this.slotSize = KEY_OFFSET + ((maxKeyLength + 7) & ~7);
+
+		long bytes = slots * slotSize;
+		base = unsafe.allocateMemory(bytes);
+		unsafe.setMemory(base, bytes, (byte) 0);
+		if (log.isDebugEnabled()) {
+			log.debug("Allocated " + bytes + " bytes for " + slots + " slots");
+		}
+	}
+
+	public void setKeyCodec(KeyCodec keyCodec) {
+		this.keyCodec = keyCodec;
+	}
+
+	private static Unsafe loadUnsafe() {
+		try {
+			Field field = Unsafe.class.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return (Unsafe) field.get(null);
+		}
+		catch (Exception ex) {
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
+
+	@Override
+	public Future<?> runBatchAsync(Batch<LongOp> batch, AfterExecute<LongOp> afterExecute)
+			throws FullQueueException {
+		try {
+			for (Map.Entry<Address,LongOp> entry: batch.getMap().entrySet()) {
+				write(keyCodec.toKey(entry.getKey(), idService), entry.getValue().getLong());
+			}
+		}
+		catch (Exception ex) {
+			log.error("Failed to apply batch", ex);
+			afterExecute.afterExecute(ex);
+			return HarnessFutures.completed(ex);
+		}
+		afterExecute.afterExecute(null);
+		return HarnessFutures.DONE;
+	}
+
+	/**
+	 * Adds delta to, or with OVERWRITE replaces, the counter for key.
+	 */
+	public void write(byte[] key, long delta) {
+		long slot = findSlot(key, true);
+		long countAddress = slot + COUNT_OFFSET;
+		if (commitType == CommitType.OVERWRITE) {
+			unsafe.putLongVolatile(null, countAddress, delta);
+			return;
+		}
+		while (true) {
+			long current = unsafe.getLongVolatile(null, countAddress);
+			if (unsafe.compareAndSwapLong(null, countAddress, current, current + delta)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The counter for key, or 0 if it has never been written.
+	 */
+	public long get(byte[] key) {
+		long slot = findSlot(key, false);
+		return slot == 0 ? 0 : unsafe.getLongVolatile(null, slot + COUNT_OFFSET);
+	}
+
+	@Override
+	public Optional<LongOp> get(Address c) throws IOException, InterruptedException {
+		long slot = findSlot(keyCodec.toKey(c, idService), false);
+		if (slot == 0) {
+			return Optional.absent();
+		}
+		return Optional.of(new LongOp(unsafe.getLongVolatile(null, slot + COUNT_OFFSET)));
+	}
+
+	@Override
+	public List<Optional<LongOp>> multiGet(List<Address> addresses) throws IOException {
+		List<Optional<LongOp>> results = new ArrayList<Optional<LongOp>>(addresses.size());
+		try {
+			for (Address address: addresses) {
+				results.add(get(address));
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		}
+		return results;
+	}
+
+	/**
+	 * The native address of key's slot, claiming an empty one when create is
+	 * set; 0 if the key is absent and create is not set.
+	 */
+	long findSlot(byte[] key, boolean create) {
+		long base = this.base;
+		if (base == 0) {
+			throw new IllegalStateException("Harness is closed");
+		}
+		if (key.length > maxKeyLength) {
+			throw new IllegalArgumentException("Key of " + key.length + " bytes exceeds maxKeyLength "
+					+ maxKeyLength);
+		}
+
+		int hash = hash(key);
+		long header = ((long) hash << 32) | (key.length + 1);
+		int index = hash & mask;
+		for (int probes=0; probes < slots; probes++) {
+			long slot = base + index * slotSize;
+			long current = unsafe.getLongVolatile(null, slot);
+			if (current == EMPTY) {
+				if (!create) {
+					return 0;
+				}
+				if (size.get() >= capacity) {
+					throw new IllegalStateException("Harness is full at " + capacity + " cells");
+				}
+				if (unsafe.compareAndSwapLong(null, slot, EMPTY, BUSY)) {
+					for (int i=0; i < key.length; i++) {
+						unsafe.putByte(slot + KEY_OFFSET + i, key[i]);
+					}
+					size.incrementAndGet();
+					unsafe.putLongVolatile(null, slot, header);
+					return slot;
+				}
+				current = unsafe.getLongVolatile(null, slot);
+			}
+			while (current == BUSY) {
+				Thread.yield();
+				current = unsafe.getLongVolatile(null, slot);
+			}
+			if (current == header && keyEquals(slot, key)) {
+				return slot;
+			}
+			index = (index + 1) & mask;
+		}
+		throw new IllegalStateException("No free slot for key");
+	}
+
+	private static boolean keyEquals(long slot, byte[] key) {
+		for (int i=0; i < key.length; i++) {
+			if (unsafe.getByte(slot + KEY_OFFSET + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static int hash(byte[] key) {
+		int h = 0x811C9DC5;
+		for (int i=0; i < key.length; i++) {
+			h = (h ^ key[i]) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	@Override
+	public void flush() throws InterruptedException {
+		// writes are applied before runBatchAsync returns
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Visits the cells slot by slot. Cells claimed while the scan runs may or
+	 * may not be seen.
+	 */
+	public void scan(CellVisitor<LongOp> visitor) throws IOException {
+		long base = this.base;
+		if (base == 0) {
+			throw new IllegalStateException("Harness is closed");
+		}
+		for (int index=0; index < slots; index++) {
+			long slot = base + index * slotSize;
+			long header = unsafe.getLongVolatile(null, slot);
+			while (header == BUSY) {
+				Thread.yield();
+				header = unsafe.getLongVolatile(null, slot);
+			}
+			if (header == EMPTY) {
+				continue;
+			}
+			byte[] key = new byte[(int) (header & 0xffffffffL) - 1];
+			for (int i=0; i < key.length; i++) {
+				key[i] = unsafe.getByte(slot + KEY_OFFSET + i);
+			}
+			if (!visitor.visit(key, new LongOp(unsafe.getLongVolatile(null, slot + COUNT_OFFSET)))) {
+				return;
+			}
+		}
+	}
+
+	public void writeCells(Map<BoxedByteArray,LongOp> cells) {
+		for (Map.Entry<BoxedByteArray,LongOp> cell: cells.entrySet()) {
+			write(cell.getKey().bytes, cell.getValue().getLong());
+		}
+	}
+
+	/**
+	 * The number of bytes of native memory held by the table.
+	 */
+	public long getMemoryBytes() {
+		return slots * slotSize;
+	}
+
+	/**
+	 * Frees the native memory. No other thread may be using the harness.
+	 */
+	public synchronized void close() {
+		if (base != 0) {
+			unsafe.freeMemory(base);
+			base = 0;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package drew.datacube.striped;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.FullQueueException;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.HarnessFutures;
+import drew.datacube.backfill.CellStore;
+import drew.datacube.keys.AddressKeyCodec;
+import drew.datacube.keys.KeyCodec;
+
+/**
+ * An in-memory {@link DbHarness} for {@link LongOp} counters that stays fast
+ * when many threads increment the same cell, such as a daily rollup with no
+ * other dimensions.
+ * <p>
+ * Each cell starts as a single long updated by compare-and-swap. The first
+ * time a swap fails because another thread got there first, the cell grows a
+ * set of stripes, each on its own cache line, and from then on every add
+ * starts at the stripe picked by hashing its thread's id. If that swap fails
+ * the add tries the next stripe along, but nothing is remembered, so the
+ * thread's next add starts from its hashed stripe again. A read sums the base
+ * and the stripes. This is a simpler take on Java 8's LongAdder, which is not
+ * available here and which instead rehashes a thread that keeps colliding.
+ * <p>
+ * Increments are applied on the calling thread, so once writers have
+ * returned, and after {@link #flush()}, reads see the exact sum. A read that
+ * runs alongside writers sees some but not necessarily all of them. Only
+ * INCREMENT, and READ_COMBINE_CAS which means the same thing for LongOp,
+ * are supported.
+ */
+public class StripedDbHarness implements DbHarness<LongOp>, CellStore<LongOp> {
+
+	private static final Logger log = Logger.getLogger(StripedDbHarness.class);
+
+	// longs per stripe, so that stripes sit on separate 64 byte cache lines
+	static final int STRIDE = 8;
+
+	final ConcurrentMap<BoxedByteArray,Cell> cells = new ConcurrentHashMap<BoxedByteArray,Cell>();
+	final IdService idService;
+	KeyCodec keyCodec = AddressKeyCodec.INSTANCE;
+	final int numStripes;
+
+	public StripedDbHarness(IdService idService, CommitType commitType) {
+		this(idService, commitType, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	public StripedDbHarness(IdService idService, CommitType commitType, int numStripes) {
+		if (commitType == CommitType.OVERWRITE) {
+			throw new IllegalArgumentException("StripedDbHarness only supports increments");
+		}
+		this.idService = idService;
+		this.numStripes = Integer.highestOneBit(Math.max(1, numStripes) * 2 - 1);
+	}
+
+	public void setKeyCodec(KeyCodec keyCodec) {
+		this.keyCodec = keyCodec;
+	}
+
+	@Override
+	public Future<?> runBatchAsync(Batch<LongOp> batch, AfterExecute<LongOp> afterExecute)
+			throws FullQueueException {
+		try {
+			for (Map.Entry<Address,LongOp> entry: batch.getMap().entrySet()) {
+				increment(keyCodec.toKey(entry.getKey(), idService), entry.getValue().getLong());
+			}
+		}
+		catch (Exception ex) {
+			log.error("Failed to apply batch", ex);
+			afterExecute.afterExecute(ex);
+			return HarnessFutures.completed(ex);
+		}
+		afterExecute.afterExecute(null);
+		return HarnessFutures.DONE;
+	}
+
+	public void increment(byte[] key, long delta) {
+		BoxedByteArray boxed = new BoxedByteArray(key);
+		Cell cell = cells.get(boxed);
+		if (cell == null) {
+			Cell created = new Cell(numStripes);
+			cell = cells.putIfAbsent(boxed, created);
+			if (cell == null) {
+				cell = created;
+			}
+		}
+		cell.add(delta);
+	}
+
+	@Override
+	public Optional<LongOp> get(Address c) throws IOException, InterruptedException {
+		Cell cell = cells.get(new BoxedByteArray(keyCodec.toKey(c, idService)));
+		if (cell == null) {
+			return Optional.absent();
+		}
+		return Optional.of(new LongOp(cell.sum()));
+	}
+
+	@Override
+	public List<Optional<LongOp>> multiGet(List<Address> addresses) throws IOException {
+		List<Optional<LongOp>> results = new ArrayList<Optional<LongOp>>(addresses.size());
+		try {
+			for (Address address: addresses) {
+				results.add(get(address));
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		}
+		return results;
+	}
+
+	@Override
+	public void flush() throws InterruptedException {
+		// increments are applied before runBatchAsync returns
+	}
+
+	public void scan(CellVisitor<LongOp> visitor) throws IOException {
+		for (Map.Entry<BoxedByteArray,Cell> entry: cells.entrySet()) {
+			if (!visitor.visit(entry.getKey().bytes, new LongOp(entry.getValue().sum()))) {
+				return;
+			}
+		}
+	}
+
+	public void writeCells(Map<BoxedByteArray,LongOp> cells) {
+		for (Map.Entry<BoxedByteArray,LongOp> cell: cells.entrySet()) {
+			increment(cell.getKey().bytes, cell.getValue().getLong());
+		}
+	}
+
+	public int size() {
+		return cells.size();
+	}
+
+	/**
+	 * The number of cells that have grown stripes.
+	 */
+	public int getContendedCells() {
+		int contended = 0;
+		for (Cell cell: cells.values()) {
+			if (cell.stripes != null) {
+				contended++;
+			}
+		}
+		return contended;
+	}
+
+	static class Cell {
+		private static final AtomicLongFieldUpdater<Cell> BASE =
+				AtomicLongFieldUpdater.newUpdater(Cell.class, "base");
+
+		final int numStripes;
+		volatile long base;
+		volatile AtomicLongArray stripes;
+
+		Cell(int numStripes) {
+			this.numStripes = numStripes;
+		}
+
+		void add(long delta) {
+			AtomicLongArray stripes = this.stripes;
+			if (stripes == null) {
+				long current = base;
+				if (BASE.compareAndSet(this, current, current + delta)) {
+					return;
+				}
+				stripes = inflate();
+			}
+
+			int stripe = probe(Thread.currentThread().getId()) & (numStripes - 1);
+			while (true) {
+				int index = stripe * STRIDE;
+				long current = stripes.get(index);
+				if (stripes.compareAndSet(index, current, current + delta)) {
+					return;
+				}
+				stripe = (stripe + 1) & (numStripes - 1);
+			}
+		}
+
+		synchronized AtomicLongArray inflate() {
+			if (stripes == null) {
+				stripes = new AtomicLongArray(numStripes * STRIDE);
+			}
+			return stripes;
+		}
+
+		long sum() {
+			long sum = base;
+			AtomicLongArray stripes = this.stripes;
+			if (stripes != null) {
+				for (int i=0; i < numStripes; i++) {
+					sum += stripes.get(i * STRIDE);
+				}
+			}
+			return sum;
+		}
+
+		static int probe(long threadId) {
+			long h = threadId * 0x9E3779B97F4A7C15L;
+			return (int) (h >>> 32);
+		}
+	}
+}
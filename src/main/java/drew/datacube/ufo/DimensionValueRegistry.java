@@ -0,0 +1,50 @@
+package drew.datacube.ufo;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.urbanairship.datacube.Dimension;
+
+/**
+ * Remembers every value written to each dimension, so that group-by queries
+ * can enumerate the cells to read. The IdService maps values to ids but has
+ * no way to list them, so values are recorded here as they are written.
+ * Safe for concurrent writers; a value that is already known costs one
+ * concurrent set lookup.
+ */
+public class DimensionValueRegistry {
+
+	final ConcurrentMap<Dimension<?>,Set<String>> values = new ConcurrentHashMap<Dimension<?>,Set<String>>();
+
+	public void register(Dimension<?> dimension, String value) {
+		if (value == null) {
+			return;
+		}
+		Set<String> known = values.get(dimension);
+		if (known == null) {
+			Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+			known = values.putIfAbsent(dimension, created);
+			if (known == null) {
+				known = created;
+			}
+		}
+		if (!known.contains(value)) {
+			known.add(value);
+		}
+	}
+
+	/**
+	 * A sorted snapshot of the values seen so far for the dimension.
+	 */
+	public SortedSet<String> getValues(Dimension<?> dimension) {
+		Set<String> known = values.get(dimension);
+		if (known == null) {
+			return new TreeSet<String>();
+		}
+		return new TreeSet<String>(known);
+	}
+}
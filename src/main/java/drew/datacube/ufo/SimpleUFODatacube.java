@@ -1,86 +1,232 @@
 package drew.datacube.ufo;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import org.joda.time.DateTime;
 
 import com.google.common.base.Optional;
-import com.google.common.collect.ImmutableList;
-import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.Address;
 import com.urbanairship.datacube.DataCube;
 import com.urbanairship.datacube.DataCubeIo;
 import com.urbanairship.datacube.DbHarness;
-import com.urbanairship.datacube.DbHarness.CommitType;
 import com.urbanairship.datacube.Dimension;
-import com.urbanairship.datacube.IdService;
 import com.urbanairship.datacube.ReadBuilder;
-import com.urbanairship.datacube.Rollup;
 import com.urbanairship.datacube.SyncLevel;
 import com.urbanairship.datacube.WriteBuilder;
 import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
-import com.urbanairship.datacube.bucketers.StringToBytesBucketer;
-import com.urbanairship.datacube.dbharnesses.MapDbHarness;
-import com.urbanairship.datacube.idservices.CachingIdService;
-import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.dbharnesses.FullQueueException;
 import com.urbanairship.datacube.ops.LongOp;
 
+import drew.datacube.backfill.RollupBackfill.BackfillStats;
+import drew.datacube.cache.CachingDbHarness;
+import drew.datacube.cache.ScannableIdService;
+import drew.datacube.config.ConfiguredCube;
+import drew.datacube.config.CubeBuilder;
+import drew.ufo.reader.CompactUFOEntry;
 import drew.ufo.reader.UFODataEntry;
 import drew.ufo.reader.UFODataReader;
+import drew.ufo.reader.UFOSnapshotReader;
 
 public class SimpleUFODatacube {
 	
+	/**
+	 * The classpath resource the cube is defined in unless another
+	 * configuration is passed in.
+	 */
+	public static final String DEFAULT_CONFIG = "ufo-cube.properties";
+	
 	DataCubeIo<LongOp> cubeIo = null;
 	DataCube<LongOp> cube;
+	DbHarness<LongOp> dbHarness;
+	ConfiguredCube configured;
 	
 	Dimension<DateTime> eventDate;
 	Dimension<DateTime> reportDate;
 	Dimension<String> city;
 	Dimension<String> state;
 	Dimension<String> shape;
+	
+	DimensionValueRegistry registry = new DimensionValueRegistry();
+	ConcurrentMap<String,List<ValueCount>> closedResults = new ConcurrentHashMap<String,List<ValueCount>>();
+	DateTime closedBefore = null;
  	
 	public SimpleUFODatacube() {
-		init();
+		this(defaultConfig());
 	}
 	
-	protected void init() {
-		IdService idService = new CachingIdService(5, new MapIdService());
-		ConcurrentMap<BoxedByteArray,byte[]> backingMap = 
-		        new ConcurrentHashMap<BoxedByteArray, byte[]>();
-
-		DbHarness<LongOp> dbHarness = new MapDbHarness<LongOp>(backingMap, LongOp.DESERIALIZER, 
-		        CommitType.READ_COMBINE_CAS, idService);
-
-		HourDayMonthBucketer hourDayMonthBucketer = new HourDayMonthBucketer();
-
-		eventDate = new Dimension<DateTime>("eventDate", hourDayMonthBucketer, false, 8);
-		reportDate = new Dimension<DateTime>("reportDate", hourDayMonthBucketer, false, 8);
-		city = new Dimension<String>("city", StringToBytesBucketer.getInstance(), true, 10);
-		state = new Dimension<String>("state", StringToBytesBucketer.getInstance(), true, 6);
-		shape = new Dimension<String>("shape", StringToBytesBucketer.getInstance(), true, 5);
-		
-		
-		Rollup eventMonthAndStateRollup = new Rollup(state, eventDate, HourDayMonthBucketer.months);
-		Rollup eventDayAndStateRollup = new Rollup(state, eventDate, HourDayMonthBucketer.days);
-		Rollup eventDayRollup = new Rollup(eventDate, HourDayMonthBucketer.days);
-		Rollup eventMonthRollup = new Rollup(eventDate, HourDayMonthBucketer.months);
+	/**
+	 * Builds the cube with the given write batching, e.g. a large batch size
+	 * and {@link SyncLevel#BATCH_ASYNC} for bulk loads through
+	 * {@link #addUFOEntryAsync(UFODataEntry)}.
+	 */
+	public SimpleUFODatacube(int batchSize, SyncLevel syncLevel) {
+		this(defaultConfig().set("io.batchSize", batchSize).set("io.syncLevel", syncLevel));
+	}
+	
+	/**
+	 * Builds the cube from config, which must define the eventDate,
+	 * reportDate, city, state and shape dimensions.
+	 */
+	public SimpleUFODatacube(CubeBuilder config) {
+		init(config);
+	}
+	
+	static CubeBuilder defaultConfig() {
+		try {
+			return CubeBuilder.load(DEFAULT_CONFIG);
+		}
+		catch (IOException ex) {
+			throw new IllegalStateException("Could not load " + DEFAULT_CONFIG, ex);
+		}
+	}
+	
+	protected void init(CubeBuilder config) {
+		try {
+			configured = config.build();
+		}
+		catch (IOException ex) {
+			throw new IllegalStateException("Could not build the UFO cube", ex);
+		}
+		cube = configured.getCube();
+		cubeIo = configured.getCubeIo();
+		dbHarness = configured.getHarness();
 		
-		List<Dimension<?>> dimensions =  ImmutableList.<Dimension<?>>of(eventDate, reportDate, city, state, shape);
-		List<Rollup> rollups = ImmutableList.of(eventMonthAndStateRollup, eventDayAndStateRollup, eventDayRollup, eventMonthRollup);
-
-		cube = new DataCube<LongOp>(dimensions, rollups);
-		cubeIo = new DataCubeIo<LongOp>(cube, dbHarness, 1, Long.MAX_VALUE, SyncLevel.FULL_SYNC);
+		eventDate = configured.getDimension("eventDate");
+		reportDate = configured.getDimension("reportDate");
+		city = configured.getDimension("city");
+		state = configured.getDimension("state");
+		shape = configured.getDimension("shape");
+		if (configured.getDurableIds() != null) {
+			try {
+				registerRecovered(configured.getDurableIds(), state);
+				registerRecovered(configured.getDurableIds(), shape);
+			}
+			catch (Exception ex) {
+				throw new IllegalStateException("Could not list recovered dimension values", ex);
+			}
+		}
 	}
 	
-	public void addUFOEntry(UFODataEntry entry) throws IOException, InterruptedException {
-		cubeIo.writeSync(new LongOp(1), new WriteBuilder(cube)
+	/**
+	 * Registers the values a durable cube had ids for before a restart, so
+	 * group-bys see them without anything being added again.
+	 */
+	void registerRecovered(ScannableIdService ids, final Dimension<String> dimension)
+			throws IOException, InterruptedException {
+		ids.scanIds(cube.getDimensions().indexOf(dimension), new ScannableIdService.IdVisitor() {
+			public boolean visit(byte[] value, long id) {
+				registry.register(dimension, new String(value));
+				return true;
+			}
+		});
+	}
+	
+	public WriteBuilder writeBuilder(UFODataEntry entry) {
+		registerValues(entry);
+		return new WriteBuilder(cube)
 		        .at(eventDate, entry.getEventDate())
 		        .at(reportDate, entry.getReportDate())
 		        .at(city, entry.getCity())
 		        .at(state, entry.getState())
-		        .at(shape, entry.getShape()));
+		        .at(shape, entry.getShape());
+	}
+	
+	/**
+	 * Records the entry's state and shape so group-by queries can find them.
+	 */
+	void registerValues(UFODataEntry entry) {
+		registry.register(state, entry.getState());
+		registry.register(shape, entry.getShape());
+	}
+	
+	public void addUFOEntry(UFODataEntry entry) throws IOException, InterruptedException {
+		cubeIo.writeSync(new LongOp(1), writeBuilder(entry));
+	}
+	
+	/**
+	 * Adds the write to the current batch, which is handed to the harness
+	 * once it reaches the batch size. If the harness queue is full this
+	 * backs off and retries, so a slow harness throttles the caller.
+	 */
+	public void addAsync(WriteBuilder writeBuilder) throws InterruptedException {
+		addAsync(writeBuilder, 1);
+	}
+	
+	/**
+	 * Adds count to every cell the write touches, as if it were written count
+	 * times.
+	 */
+	public void addAsync(WriteBuilder writeBuilder, long count) throws InterruptedException {
+		LongOp op = new LongOp(count);
+		long backoffMs = 1;
+		while (true) {
+			try {
+				cubeIo.writeAsync(op, writeBuilder);
+				return;
+			}
+			catch (FullQueueException ex) {
+				Thread.sleep(backoffMs);
+				backoffMs = Math.min(backoffMs * 2, 100);
+			}
+		}
+	}
+	
+	public void addUFOEntryAsync(UFODataEntry entry) throws InterruptedException {
+		addAsync(writeBuilder(entry));
+	}
+	
+	/**
+	 * Adds every row of the snapshot and flushes, returning the number of
+	 * rows. The rows are read into one reused entry, which is safe because a
+	 * write keeps the entry's immutable values rather than the entry.
+	 */
+	public long addSnapshot(UFOSnapshotReader snapshot) throws InterruptedException {
+		long rows = 0;
+		Iterator<CompactUFOEntry> it = snapshot.compactIterator();
+		while (it.hasNext()) {
+			addUFOEntryAsync(it.next());
+			rows++;
+		}
+		flush();
+		return rows;
+	}
+	
+	/**
+	 * Adds a rollup, given as in the rollups property, and fills it in from
+	 * the sightings already in the cube. Nothing may be added while this
+	 * runs.
+	 */
+	public synchronized BackfillStats addRollup(String spec) throws IOException, InterruptedException {
+		BackfillStats stats = configured.addRollup(spec);
+		cube = configured.getCube();
+		cubeIo = configured.getCubeIo();
+		closedResults.clear();
+		return stats;
+	}
+	
+	/**
+	 * Flushes and releases the harness, snapshotting it if it is durable.
+	 */
+	public void close() throws IOException, InterruptedException {
+		configured.close();
+	}
+	
+	/**
+	 * Writes any partially filled batch and waits for outstanding writes.
+	 */
+	public void flush() throws InterruptedException {
+		cubeIo.flush();
 	}
 	
 	public long getEventMonthCount(DateTime time) throws IOException, InterruptedException {
@@ -105,28 +251,204 @@ public class SimpleUFODatacube {
 			return 0;
 		}	
 	}
+
+	/**
+	 * Counts for every month from the month of from through the month of to,
+	 * looked up with a single multiGet. Months with no sightings are 0.
+	 */
+	public long[] getEventMonthSeries(DateTime from, DateTime to) throws IOException {
+		return getMonthSeries(null, from, to);
+	}
+
+	/**
+	 * Counts for one state for every month from the month of from through the
+	 * month of to, looked up with a single multiGet.
+	 */
+	public long[] getEventStateMonthSeries(String stateValue, DateTime from, DateTime to) throws IOException {
+		return getMonthSeries(stateValue, from, to);
+	}
+
+	protected long[] getMonthSeries(String stateValue, DateTime from, DateTime to) throws IOException {
+		int months = monthsBetween(from, to);
+		if (months <= 0) {
+			return new long[0];
+		}
+
+		List<Address> addresses = new ArrayList<Address>(months);
+		addMonthAddresses(addresses, stateValue == null ? null : state, stateValue, from, months);
+
+		List<Optional<LongOp>> results = dbHarness.multiGet(addresses);
+		long[] series = new long[months];
+		for (int i=0; i < months; i++) {
+			series[i] = countOf(results.get(i));
+		}
+		return series;
+	}
+
+	static int monthsBetween(DateTime from, DateTime to) {
+		return (to.getYear() * 12 + to.getMonthOfYear()) - (from.getYear() * 12 + from.getMonthOfYear()) + 1;
+	}
+
+	/**
+	 * Adds the month cell addresses for months months starting with the
+	 * month of from, narrowed to value of dimension unless dimension is null.
+	 */
+	void addMonthAddresses(List<Address> addresses, Dimension<String> dimension, String value,
+			DateTime from, int months) {
+		DateTime month = from.withDayOfMonth(1);
+		for (int i=0; i < months; i++) {
+			ReadBuilder readBuilder = new ReadBuilder(cube).at(eventDate, HourDayMonthBucketer.months, month);
+			if (dimension != null) {
+				readBuilder.at(dimension, value);
+			}
+			addresses.add(readBuilder.build());
+			month = month.plusMonths(1);
+		}
+	}
+
+	static long countOf(Optional<LongOp> count) {
+		return count.isPresent() ? count.get().getLong() : 0;
+	}
+
+	public SortedSet<String> getStates() {
+		return registry.getValues(state);
+	}
+
+	public SortedSet<String> getShapes() {
+		return registry.getValues(shape);
+	}
+
+	/**
+	 * Months ending at or before closedBefore are treated as complete: no more
+	 * sightings will be added to them, so group-by results covering only such
+	 * months are cached. Null, the default, caches nothing. If the harness is
+	 * a {@link CachingDbHarness} this is also its watermark, so single cells
+	 * in those months are kept too.
+	 */
+	public void setClosedBefore(DateTime closedBefore) {
+		this.closedBefore = closedBefore;
+		closedResults.clear();
+		if (dbHarness instanceof CachingDbHarness) {
+			((CachingDbHarness<LongOp>) dbHarness).setWatermark(closedBefore);
+		}
+	}
+
+	/**
+	 * The n states with the most sightings from the month of from through the
+	 * month of to, largest first. n of 0 or less returns every state.
+	 */
+	public List<ValueCount> getTopStates(DateTime from, DateTime to, int n) throws IOException {
+		return getTopValues(state, from, to, n);
+	}
+
+	/**
+	 * The n most reported shapes from the month of from through the month of
+	 * to, largest first. n of 0 or less returns every shape.
+	 */
+	public List<ValueCount> getTopShapes(DateTime from, DateTime to, int n) throws IOException {
+		return getTopValues(shape, from, to, n);
+	}
+
+	/**
+	 * Reads the month cells of every registered value of dimension in one
+	 * multiGet, sums each value over the range and keeps the largest n in a
+	 * min-heap of size n.
+	 */
+	protected List<ValueCount> getTopValues(Dimension<String> dimension, DateTime from, DateTime to, int n)
+			throws IOException {
+		int months = monthsBetween(from, to);
+		if (months <= 0) {
+			return Collections.emptyList();
+		}
+
+		String cacheKey = null;
+		if (closedBefore != null && !from.withDayOfMonth(1).plusMonths(months).isAfter(closedBefore)) {
+			cacheKey = dimension.getName() + ":" + from.getYear() + "-" + from.getMonthOfYear() + ":" + months + ":" + n;
+			List<ValueCount> cached = closedResults.get(cacheKey);
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		Collection<String> values = registry.getValues(dimension);
+		List<Address> addresses = new ArrayList<Address>(values.size() * months);
+		for (String value: values) {
+			addMonthAddresses(addresses, dimension, value, from, months);
+		}
+		List<Optional<LongOp>> results = dbHarness.multiGet(addresses);
+
+		int limit = n > 0 ? n : Math.max(1, values.size());
+		PriorityQueue<ValueCount> heap = new PriorityQueue<ValueCount>(limit + 1, ASCENDING);
+		int i = 0;
+		for (String value: values) {
+			long total = 0;
+			for (int m=0; m < months; m++) {
+				total += countOf(results.get(i++));
+			}
+			if (total == 0) {
+				continue;
+			}
+			heap.add(new ValueCount(value, total));
+			if (heap.size() > limit) {
+				heap.poll();
+			}
+		}
+
+		List<ValueCount> top = new ArrayList<ValueCount>(heap);
+		Collections.sort(top, Collections.reverseOrder(ASCENDING));
+		top = Collections.unmodifiableList(top);
+		if (cacheKey != null) {
+			closedResults.put(cacheKey, top);
+		}
+		return top;
+	}
+
+	// smallest count first, ties broken so that earlier values rank higher
+	static final Comparator<ValueCount> ASCENDING = new Comparator<ValueCount>() {
+		public int compare(ValueCount a, ValueCount b) {
+			if (a.count != b.count) {
+				return a.count < b.count ? -1 : 1;
+			}
+			return b.value.compareTo(a.value);
+		}
+	};
+	
 	public static void main(String[] args) throws Exception {
-		String input = "/home/drew/projects/ml-for-hackers/ML_for_Hackers/01-Introduction/data/ufo/ufo_awesome.tsv";
+		String input = args.length > 0 ? args[0]
+				: "/home/drew/projects/ml-for-hackers/ML_for_Hackers/01-Introduction/data/ufo/ufo_awesome.tsv";
 		SimpleUFODatacube ufoCube = new SimpleUFODatacube();
-		UFODataReader reader = new UFODataReader();
-		reader.open(input);
-		reader.setLimit(100);
-		for (UFODataEntry entry: reader) {
-			ufoCube.addUFOEntry(entry);
+		if (UFOSnapshotReader.isSnapshot(new File(input))) {
+			// from UFOSnapshotWriter, quick enough to load whole
+			UFOSnapshotReader snapshot = new UFOSnapshotReader(input);
+			snapshot.setDimensionFieldsOnly(true);
+			ufoCube.addSnapshot(snapshot);
+			snapshot.close();
+		}
+		else {
+			UFODataReader reader = new UFODataReader();
+			reader.open(input);
+			reader.setLimit(100);
+			if (ufoCube.configured.getMetrics() != null) {
+				ufoCube.configured.getMetrics().meter(reader);
+			}
+			for (UFODataEntry entry: reader) {
+				ufoCube.addUFOEntry(entry);
+			}
 		}
 		
-		for (int i=1; i<=12;i++) {
-			DateTime time = new DateTime(1995,i,1,1,0,0,0);
-			long count = ufoCube.getEventMonthCount(time);
-			System.err.println("US " + time.getMonthOfYear() + "/" + time.getYear() + "\t" + count);
+		DateTime from = new DateTime(1995,1,1,1,0,0,0);
+		DateTime to = new DateTime(1995,12,1,1,0,0,0);
+		long[] counts = ufoCube.getEventMonthSeries(from, to);
+		for (int i=0; i < counts.length; i++) {
+			System.err.println("US " + (i+1) + "/" + from.getYear() + "\t" + counts[i]);
 		}
 		
 		System.err.println("");
 		
-		for (int i=1; i<=12;i++) {
-			DateTime time = new DateTime(1995,i,1,1,0,0,0);
-			long count = ufoCube.getEventStateMonthCount("NJ",time);
-			System.err.println("NJ " + time.getMonthOfYear() + "/" + time.getYear() + "\t" + count);
+		counts = ufoCube.getEventStateMonthSeries("NJ", from, to);
+		for (int i=0; i < counts.length; i++) {
+			System.err.println("NJ " + (i+1) + "/" + from.getYear() + "\t" + counts[i]);
 		}
+		ufoCube.close();
 	}
 }
@@ -0,0 +1,247 @@
+package drew.datacube.ufo;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.WriteBuilder;
+import com.yammer.metrics.core.Meter;
+
+import drew.ufo.reader.UFODataParser;
+import drew.ufo.reader.UFODataReader;
+
+/**
+ * Loads a UFO data file into a {@link SimpleUFODatacube} with three stages
+ * connected by bounded queues:
+ * <ol>
+ * <li>one thread reading raw records from the {@link UFODataReader},</li>
+ * <li>N workers parsing records and building {@link WriteBuilder}s,</li>
+ * <li>one thread writing them with {@code writeAsync}, which coalesces them
+ *     into batches of the cube's batch size.</li>
+ * </ol>
+ * Records move between stages in chunks to keep queue handoffs cheap. Both
+ * queues are bounded, so a slow stage blocks the ones before it and memory
+ * use stays flat regardless of file size. The workers mark the reader's
+ * meters, if it has any, for the rows they parse and the ones they skip.
+ */
+public class UFOIngestPipeline {
+
+	private static final Logger log = Logger.getLogger(UFOIngestPipeline.class);
+
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+	public static final int DEFAULT_QUEUE_CHUNKS = 64;
+
+	private static final List<String[]> END_OF_RAW = new ArrayList<String[]>(0);
+	private static final List<WriteBuilder> END_OF_WRITES = new ArrayList<WriteBuilder>(0);
+
+	final SimpleUFODatacube cube;
+	final int numWorkers;
+	int chunkSize = DEFAULT_CHUNK_SIZE;
+	int queueChunks = DEFAULT_QUEUE_CHUNKS;
+
+	final AtomicLong rowsRead = new AtomicLong();
+	final AtomicLong rowsParsed = new AtomicLong();
+	final AtomicLong rowsSkipped = new AtomicLong();
+
+	public UFOIngestPipeline(SimpleUFODatacube cube, int numWorkers) {
+		this.cube = cube;
+		this.numWorkers = numWorkers;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public void setQueueChunks(int queueChunks) {
+		this.queueChunks = queueChunks;
+	}
+
+	/**
+	 * Runs the pipeline to completion over the reader's data, then flushes the
+	 * cube so every row is visible to reads.
+	 */
+	public IngestStats run(final UFODataReader reader) throws IOException, InterruptedException {
+		final BlockingQueue<List<String[]>> rawQueue = new ArrayBlockingQueue<List<String[]>>(queueChunks);
+		final BlockingQueue<List<WriteBuilder>> writeQueue = new ArrayBlockingQueue<List<WriteBuilder>>(queueChunks);
+
+		rowsRead.set(0);
+		rowsParsed.set(0);
+		rowsSkipped.set(0);
+
+		ExecutorService executor = Executors.newFixedThreadPool(numWorkers + 2);
+		CompletionService<Void> stages = new ExecutorCompletionService<Void>(executor);
+		long start = System.currentTimeMillis();
+
+		try {
+			stages.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					read(reader, rawQueue);
+					return null;
+				}
+			});
+
+			for (int i=0; i < numWorkers; i++) {
+				stages.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						parse(rawQueue, writeQueue, reader.getRowsMeter(), reader.getParseErrorsMeter());
+						return null;
+					}
+				});
+			}
+
+			stages.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					write(writeQueue);
+					return null;
+				}
+			});
+
+			// take stages as they finish so a failure in any of them is seen
+			// right away rather than leaving the others blocked on a queue
+			for (int i=0; i < numWorkers + 2; i++) {
+				stages.take().get();
+			}
+		}
+		catch (ExecutionException ex) {
+			throw new IOException("Ingest failed", ex.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		IngestStats stats = new IngestStats(rowsRead.get(), rowsParsed.get(), rowsSkipped.get(),
+				System.currentTimeMillis() - start);
+		log.info(stats);
+		return stats;
+	}
+
+	void read(UFODataReader reader, BlockingQueue<List<String[]>> rawQueue) throws InterruptedException {
+		try {
+			Iterator<String[]> it = reader.rawIterator();
+			List<String[]> chunk = new ArrayList<String[]>(chunkSize);
+			while (it.hasNext()) {
+				chunk.add(it.next());
+				if (chunk.size() == chunkSize) {
+					rowsRead.addAndGet(chunk.size());
+					rawQueue.put(chunk);
+					chunk = new ArrayList<String[]>(chunkSize);
+				}
+			}
+			if (!chunk.isEmpty()) {
+				rowsRead.addAndGet(chunk.size());
+				rawQueue.put(chunk);
+			}
+		}
+		finally {
+			for (int i=0; i < numWorkers; i++) {
+				rawQueue.put(END_OF_RAW);
+			}
+		}
+	}
+
+	void parse(BlockingQueue<List<String[]>> rawQueue, BlockingQueue<List<WriteBuilder>> writeQueue,
+			Meter rowsMeter, Meter parseErrorsMeter) throws InterruptedException {
+		UFODataParser parser = new UFODataParser();
+		try {
+			List<String[]> chunk;
+			while ((chunk = rawQueue.take()) != END_OF_RAW) {
+				List<WriteBuilder> writes = new ArrayList<WriteBuilder>(chunk.size());
+				for (String[] record: chunk) {
+					try {
+						writes.add(cube.writeBuilder(parser.parse(record)));
+					}
+					catch (ParseException ex) {
+						rowsSkipped.incrementAndGet();
+						if (parseErrorsMeter != null) {
+							parseErrorsMeter.mark();
+						}
+						if (log.isDebugEnabled()) {
+							log.debug("Skipping record: " + ex.getMessage());
+						}
+					}
+				}
+				rowsParsed.addAndGet(writes.size());
+				if (rowsMeter != null) {
+					rowsMeter.mark(writes.size());
+				}
+				writeQueue.put(writes);
+			}
+		}
+		finally {
+			writeQueue.put(END_OF_WRITES);
+		}
+	}
+
+	void write(BlockingQueue<List<WriteBuilder>> writeQueue) throws InterruptedException {
+		int finishedWorkers = 0;
+		while (finishedWorkers < numWorkers) {
+			List<WriteBuilder> writes = writeQueue.take();
+			if (writes == END_OF_WRITES) {
+				finishedWorkers++;
+				continue;
+			}
+			for (WriteBuilder writeBuilder: writes) {
+				cube.addAsync(writeBuilder);
+			}
+		}
+		cube.flush();
+	}
+
+	public static class IngestStats {
+		public final long rowsRead;
+		public final long rowsParsed;
+		public final long rowsSkipped;
+		public final long elapsedMs;
+
+		public IngestStats(long rowsRead, long rowsParsed, long rowsSkipped, long elapsedMs) {
+			this.rowsRead = rowsRead;
+			this.rowsParsed = rowsParsed;
+			this.rowsSkipped = rowsSkipped;
+			this.elapsedMs = elapsedMs;
+		}
+
+		public long getRowsPerSecond() {
+			return rowsParsed * 1000 / Math.max(1, elapsedMs);
+		}
+
+		@Override
+		public String toString() {
+			return "IngestStats [rowsRead=" + rowsRead + ", rowsParsed=" + rowsParsed
+					+ ", rowsSkipped=" + rowsSkipped + ", elapsedMs=" + elapsedMs
+					+ ", rowsPerSecond=" + getRowsPerSecond() + "]";
+		}
+	}
+
+	/**
+	 * Usage: UFOIngestPipeline file [workers] [batchSize]
+	 */
+	public static void main(String[] args) throws Exception {
+		String input = args[0];
+		int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+		SimpleUFODatacube ufoCube = new SimpleUFODatacube(batchSize, SyncLevel.BATCH_ASYNC);
+		UFODataReader reader = new UFODataReader(input);
+		if (ufoCube.configured.getMetrics() != null) {
+			ufoCube.configured.getMetrics().meter(reader);
+		}
+		IngestStats stats = new UFOIngestPipeline(ufoCube, workers).run(reader);
+		reader.close();
+
+		System.err.println(workers + " workers, batch size " + batchSize + ": " + stats);
+	}
+}
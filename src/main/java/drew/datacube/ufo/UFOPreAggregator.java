@@ -0,0 +1,244 @@
+package drew.datacube.ufo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+import com.urbanairship.datacube.DimensionAndBucketType;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.WriteBuilder;
+
+import drew.ufo.reader.UFODataEntry;
+
+/**
+ * Collapses UFO entries that land in the same cube cells before they reach
+ * {@link SimpleUFODatacube}'s DataCubeIo. Only cubes whose rollups are all
+ * built from the state, shape and event date are supported, which the
+ * constructor checks; entries agreeing on those three values then write
+ * exactly the same cells. Each such triple is packed into a long and counted
+ * in a primitive hash table; when the table holds maxKeys triples, or an
+ * entry is added after the oldest buffered one is older than maxAgeMs, each
+ * triple is written once with its count instead of once per entry.
+ * <p>
+ * Entries without a state, shape or event date are written straight through.
+ * Buffered counts are not visible to reads until {@link #flush()}, and the
+ * age is only checked when entries are added, so a caller whose entries stop
+ * coming must call flush() itself. Rollups added later with
+ * {@link SimpleUFODatacube#addRollup(String)} are backfilled from a finer
+ * existing rollup, so they only use dimensions that were already checked.
+ */
+public class UFOPreAggregator {
+
+	public static final int DEFAULT_MAX_KEYS = 16 * 1024;
+	public static final long DEFAULT_MAX_AGE_MS = 1000;
+	// every dictionary index has to fit in 21 bits of the packed key
+	public static final int MAX_KEYS = 1 << 21;
+
+	final SimpleUFODatacube cube;
+	final int maxKeys;
+	final long maxAgeMs;
+
+	// dictionaries giving each distinct value a small index, reset on drain
+	final Map<String,Integer> stateIds = new HashMap<String,Integer>();
+	final List<String> states = new ArrayList<String>();
+	final Map<String,Integer> shapeIds = new HashMap<String,Integer>();
+	final List<String> shapes = new ArrayList<String>();
+	final Map<DateTime,Integer> dateIds = new HashMap<DateTime,Integer>();
+	final List<DateTime> dates = new ArrayList<DateTime>();
+
+	final LongCounterMap counts;
+	long oldestMs = 0;
+
+	long rowsAdded = 0;
+	long cellWrites = 0;
+	long drains = 0;
+
+	public UFOPreAggregator(SimpleUFODatacube cube) {
+		this(cube, DEFAULT_MAX_KEYS, DEFAULT_MAX_AGE_MS);
+	}
+
+	public UFOPreAggregator(SimpleUFODatacube cube, int maxKeys, long maxAgeMs) {
+		if (maxKeys < 1 || maxKeys > MAX_KEYS) {
+			throw new IllegalArgumentException("maxKeys must be between 1 and " + MAX_KEYS);
+		}
+		this.cube = cube;
+		this.maxKeys = maxKeys;
+		this.maxAgeMs = maxAgeMs;
+		this.counts = new LongCounterMap(maxKeys);
+		String unsupported = unsupportedRollup();
+		if (unsupported != null) {
+			throw new IllegalArgumentException("Rollups over " + unsupported + " can not be pre-aggregated");
+		}
+	}
+
+	/**
+	 * The first dimension a rollup of the cube uses other than state, shape
+	 * and event date, or null if there is none.
+	 */
+	String unsupportedRollup() {
+		for (Rollup rollup: cube.cube.getRollups()) {
+			for (DimensionAndBucketType component: rollup.getComponents()) {
+				if (component.dimension != cube.state && component.dimension != cube.shape
+						&& component.dimension != cube.eventDate) {
+					return component.dimension.getName();
+				}
+			}
+		}
+		return null;
+	}
+
+	public synchronized void add(UFODataEntry entry) throws InterruptedException {
+		rowsAdded++;
+		String state = entry.getState();
+		String shape = entry.getShape();
+		DateTime eventDate = entry.getEventDate();
+		if (state == null || shape == null || eventDate == null) {
+			cellWrites++;
+			cube.addUFOEntryAsync(entry);
+			return;
+		}
+
+		if (counts.size() == 0) {
+			oldestMs = System.currentTimeMillis();
+		}
+		cube.registerValues(entry);
+		long key = ((long) id(stateIds, states, state) << 42)
+			| ((long) id(shapeIds, shapes, shape) << 21)
+			| dateId(eventDate);
+		counts.increment(key, 1);
+
+		if (counts.size() >= maxKeys || System.currentTimeMillis() - oldestMs >= maxAgeMs) {
+			drain();
+		}
+	}
+
+	private static int id(Map<String,Integer> ids, List<String> values, String value) {
+		Integer id = ids.get(value);
+		if (id == null) {
+			id = values.size();
+			ids.put(value, id);
+			values.add(value);
+		}
+		return id;
+	}
+
+	private int dateId(DateTime date) {
+		Integer id = dateIds.get(date);
+		if (id == null) {
+			id = dates.size();
+			dateIds.put(date, id);
+			dates.add(date);
+		}
+		return id;
+	}
+
+	/**
+	 * Hands every buffered count to the cube's DataCubeIo without waiting for
+	 * it to be written.
+	 */
+	public synchronized void drain() throws InterruptedException {
+		if (counts.size() == 0) {
+			return;
+		}
+		long[] keys = counts.keys;
+		long[] values = counts.values;
+		for (int i=0; i < keys.length; i++) {
+			if (values[i] == 0) {
+				continue;
+			}
+			String state = states.get((int) (keys[i] >>> 42));
+			String shape = shapes.get((int) (keys[i] >>> 21) & (MAX_KEYS - 1));
+			DateTime eventDate = dates.get((int) keys[i] & (MAX_KEYS - 1));
+			WriteBuilder writeBuilder = new WriteBuilder(cube.cube)
+				.at(cube.eventDate, eventDate)
+				.at(cube.state, state)
+				.at(cube.shape, shape);
+			cube.addAsync(writeBuilder, values[i]);
+			cellWrites++;
+		}
+		counts.clear();
+		stateIds.clear();
+		states.clear();
+		shapeIds.clear();
+		shapes.clear();
+		dateIds.clear();
+		dates.clear();
+		drains++;
+	}
+
+	/**
+	 * Drains the buffer and flushes the cube, after which every added entry
+	 * is visible to reads.
+	 */
+	public synchronized void flush() throws InterruptedException {
+		drain();
+		cube.flush();
+	}
+
+	public synchronized long getRowsAdded() {
+		return rowsAdded;
+	}
+
+	/**
+	 * The number of writes handed to the cube, each of which fans out to
+	 * every rollup.
+	 */
+	public synchronized long getCellWrites() {
+		return cellWrites;
+	}
+
+	public synchronized long getDrains() {
+		return drains;
+	}
+
+	/**
+	 * Open addressing long to long table with linear probing. A zero count
+	 * marks an empty slot, which is safe as counts only grow. Sized to stay at
+	 * most half full at its capacity so it never needs to resize.
+	 */
+	static class LongCounterMap {
+		final long[] keys;
+		final long[] values;
+		final int mask;
+		int size = 0;
+
+		LongCounterMap(int capacity) {
+			int slots = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+			keys = new long[slots];
+			values = new long[slots];
+			mask = slots - 1;
+		}
+
+		void increment(long key, long delta) {
+			int slot = hash(key) & mask;
+			while (values[slot] != 0) {
+				if (keys[slot] == key) {
+					values[slot] += delta;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			values[slot] = delta;
+			size++;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			Arrays.fill(values, 0);
+			size = 0;
+		}
+
+		static int hash(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package drew.datacube.ufo;
+
+/**
+ * A dimension value and its count, as returned by the group-by queries on
+ * {@link SimpleUFODatacube}.
+ */
+public class ValueCount {
+
+	final String value;
+	final long count;
+
+	public ValueCount(String value, long count) {
+		this.value = value;
+		this.count = count;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + (int) (count ^ (count >>> 32));
+		result = prime * result + ((value == null) ? 0 : value.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		ValueCount other = (ValueCount) obj;
+		if (count != other.count)
+			return false;
+		if (value == null) {
+			if (other.value != null)
+				return false;
+		} else if (!value.equals(other.value))
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return value + "=" + count;
+	}
+}
@@ -0,0 +1,335 @@
+package drew.ufo.generator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+
+/**
+ * Writes synthetic sightings in the six column tab separated layout of
+ * ufo_awesome.tsv, for load testing the readers and harnesses at sizes well
+ * beyond the real data set.
+ * <p>
+ * Rows are generated in chunks on a pool of threads and written to the
+ * output in order as they complete, with a bounded number of chunks in
+ * flight, so memory use does not depend on the row count. Each chunk draws
+ * from its own Random seeded from the generator seed and the chunk number,
+ * so the output is the same whatever the number of threads.
+ * <p>
+ * States and shapes are drawn from Zipf distributions whose exponents are
+ * set with {@link #setStateSkew(double)} and {@link #setShapeSkew(double)};
+ * 0 is uniform and around 1 resembles the real data. Cities are spread
+ * evenly over states. A fraction of the lines, set with
+ * {@link #setMalformedRatio(double)}, are broken in the ways the real file
+ * is (missing state, bad date, missing columns) and are skipped by the
+ * readers.
+ */
+public class UFODataGenerator {
+
+	private static final Logger log = Logger.getLogger(UFODataGenerator.class);
+
+	public static final int DEFAULT_CHUNK_ROWS = 10000;
+
+	static final String[] US_STATES = { "AK", "AL", "AR", "AZ", "CA", "CO", "CT", "DC", "DE", "FL",
+		"GA", "HI", "IA", "ID", "IL", "IN", "KS", "KY", "LA", "MA", "MD", "ME", "MI", "MN", "MO",
+		"MS", "MT", "NC", "ND", "NE", "NH", "NJ", "NM", "NV", "NY", "OH", "OK", "OR", "PA", "RI",
+		"SC", "SD", "TN", "TX", "UT", "VA", "VT", "WA", "WI", "WV", "WY" };
+
+	static final String[] SHAPES = { "light", "triangle", "circle", "fireball", "unknown", "other",
+		"sphere", "disk", "oval", "formation", "changing", "cigar", "flash", "rectangle",
+		"cylinder", "diamond", "chevron", "egg", "teardrop", "cone", "cross" };
+
+	static final String[] DURATIONS = { "5 minutes", "10 seconds", "1 hour", "2-3 min", "30 sec",
+		"15 minutes", "several minutes", "1 min" };
+
+	static final String[] WORDS = { "bright", "object", "moving", "slowly", "across", "the", "sky",
+		"hovered", "then", "disappeared", "orange", "lights", "silent", "fast", "over", "trees" };
+
+	LocalDate startDate = new LocalDate(1990, 1, 1);
+	LocalDate endDate = new LocalDate(2010, 12, 31);
+	int numStates = US_STATES.length;
+	int numCities = 5000;
+	double stateSkew = 1.0;
+	double shapeSkew = 1.0;
+	double malformedRatio = 0.01;
+	long seed = 42;
+	int threads = Runtime.getRuntime().availableProcessors();
+	int chunkRows = DEFAULT_CHUNK_ROWS;
+
+	public UFODataGenerator() { }
+
+	public void setDateRange(LocalDate startDate, LocalDate endDate) {
+		if (endDate.isBefore(startDate)) {
+			throw new IllegalArgumentException("endDate " + endDate + " is before startDate " + startDate);
+		}
+		this.startDate = startDate;
+		this.endDate = endDate;
+	}
+
+	/**
+	 * The number of distinct two letter state codes, up to 676. The first 51
+	 * are the US states and DC.
+	 */
+	public void setNumStates(int numStates) {
+		if (numStates < 1 || numStates > 26 * 26) {
+			throw new IllegalArgumentException("numStates must be between 1 and " + (26 * 26));
+		}
+		this.numStates = numStates;
+	}
+
+	public void setNumCities(int numCities) {
+		this.numCities = numCities;
+	}
+
+	public void setStateSkew(double stateSkew) {
+		this.stateSkew = stateSkew;
+	}
+
+	public void setShapeSkew(double shapeSkew) {
+		this.shapeSkew = shapeSkew;
+	}
+
+	public void setMalformedRatio(double malformedRatio) {
+		this.malformedRatio = malformedRatio;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setChunkRows(int chunkRows) {
+		this.chunkRows = chunkRows;
+	}
+
+	/**
+	 * Writes rows lines to file, returning how many of them are malformed.
+	 */
+	public long write(File file, long rows) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		try {
+			return write(out, rows);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes rows lines to out, returning how many of them are malformed. The
+	 * stream is not closed.
+	 */
+	public long write(OutputStream out, long rows) throws IOException {
+		final Tables tables = new Tables();
+		long chunks = (rows + chunkRows - 1) / chunkRows;
+		int maxInFlight = threads * 2;
+		long malformed = 0;
+		long begin = System.currentTimeMillis();
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		LinkedList<Future<Chunk>> inFlight = new LinkedList<Future<Chunk>>();
+		try {
+			long nextChunk = 0;
+			while (nextChunk < chunks || !inFlight.isEmpty()) {
+				while (nextChunk < chunks && inFlight.size() < maxInFlight) {
+					final long chunk = nextChunk++;
+					final int chunkSize = (int) Math.min(chunkRows, rows - chunk * chunkRows);
+					inFlight.add(executor.submit(new Callable<Chunk>() {
+						public Chunk call() throws Exception {
+							return generate(tables, chunk, chunkSize);
+						}
+					}));
+				}
+				Chunk chunk = inFlight.removeFirst().get();
+				out.write(chunk.data);
+				malformed += chunk.malformed;
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while generating data", ex);
+		}
+		catch (ExecutionException ex) {
+			throw new IOException("Failed to generate data", ex.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("Wrote " + rows + " rows (" + malformed + " malformed) in "
+					+ (System.currentTimeMillis() - begin) + "ms");
+		}
+		return malformed;
+	}
+
+	static class Chunk {
+		final byte[] data;
+		final int malformed;
+
+		Chunk(byte[] data, int malformed) {
+			this.data = data;
+			this.malformed = malformed;
+		}
+	}
+
+	/**
+	 * Lookup tables shared by every chunk, built once per write.
+	 */
+	class Tables {
+		final String[] days;
+		final String[] states;
+		final ZipfSampler stateSampler;
+		final ZipfSampler shapeSampler;
+		final int citiesPerState;
+
+		Tables() {
+			int numDays = Days.daysBetween(startDate, endDate).getDays() + 1;
+			days = new String[numDays];
+			for (int i=0; i < numDays; i++) {
+				days[i] = startDate.plusDays(i).toString("yyyyMMdd");
+			}
+			states = stateCodes(numStates);
+			stateSampler = new ZipfSampler(numStates, stateSkew);
+			shapeSampler = new ZipfSampler(SHAPES.length, shapeSkew);
+			citiesPerState = Math.max(1, numCities / numStates);
+		}
+	}
+
+	static String[] stateCodes(int numStates) {
+		List<String> codes = new ArrayList<String>(numStates);
+		for (int i=0; i < US_STATES.length && codes.size() < numStates; i++) {
+			codes.add(US_STATES[i]);
+		}
+		for (char a='A'; a <= 'Z' && codes.size() < numStates; a++) {
+			for (char b='A'; b <= 'Z' && codes.size() < numStates; b++) {
+				String code = new String(new char[] { a, b });
+				if (!codes.contains(code)) {
+					codes.add(code);
+				}
+			}
+		}
+		return codes.toArray(new String[codes.size()]);
+	}
+
+	Chunk generate(Tables tables, long chunk, int rows) throws IOException {
+		Random random = new Random(seed * 0x5DEECE66DL + chunk);
+		StringBuilder out = new StringBuilder(rows * 128);
+		int malformed = 0;
+		for (int i=0; i < rows; i++) {
+			int day = random.nextInt(tables.days.length);
+			String eventDate = tables.days[day];
+			String reportDate = tables.days[Math.min(tables.days.length - 1, day + random.nextInt(30))];
+			int state = tables.stateSampler.sample(random);
+			int city = state + tables.states.length * random.nextInt(tables.citiesPerState);
+			String shape = SHAPES[tables.shapeSampler.sample(random)];
+
+			if (malformedRatio > 0 && random.nextDouble() < malformedRatio) {
+				malformed++;
+				switch (random.nextInt(3)) {
+				case 0:
+					// no state, rejected by the parser
+					out.append(eventDate).append('\t').append(reportDate).append("\t City").append(city)
+						.append('\t').append(shape).append("\t5 min\tno state\n");
+					break;
+				case 1:
+					out.append(eventDate, 0, 4).append('x').append(eventDate, 5, 8).append('\t')
+						.append(reportDate).append("\t City").append(city).append(", ")
+						.append(tables.states[state]).append('\t').append(shape).append("\t5 min\tbad date\n");
+					break;
+				default:
+					out.append(eventDate).append('\t').append(reportDate).append("\ttruncated\n");
+					break;
+				}
+				continue;
+			}
+
+			out.append(eventDate).append('\t')
+				.append(reportDate).append('\t')
+				.append(" City").append(city).append(", ").append(tables.states[state]).append('\t')
+				.append(shape).append('\t')
+				.append(DURATIONS[random.nextInt(DURATIONS.length)]).append('\t');
+			int words = 4 + random.nextInt(12);
+			for (int w=0; w < words; w++) {
+				if (w > 0) out.append(' ');
+				out.append(WORDS[random.nextInt(WORDS.length)]);
+			}
+			out.append('\n');
+		}
+		return new Chunk(out.toString().getBytes("UTF-8"), malformed);
+	}
+
+	/**
+	 * Samples 0..n-1 with probability proportional to 1 / (rank + 1)^skew by
+	 * binary search over the cumulative distribution.
+	 */
+	static class ZipfSampler {
+		final double[] cdf;
+
+		ZipfSampler(int n, double skew) {
+			cdf = new double[n];
+			double total = 0;
+			for (int i=0; i < n; i++) {
+				total += 1.0 / Math.pow(i + 1, skew);
+				cdf[i] = total;
+			}
+			for (int i=0; i < n; i++) {
+				cdf[i] /= total;
+			}
+		}
+
+		int sample(Random random) {
+			double u = random.nextDouble();
+			int lo = 0;
+			int hi = cdf.length - 1;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (cdf[mid] < u) {
+					lo = mid + 1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		File output = new File(args[0]);
+		long rows = args.length > 1 ? Long.parseLong(args[1]) : 1000000;
+		UFODataGenerator generator = new UFODataGenerator();
+		if (args.length > 2) {
+			generator.setThreads(Integer.parseInt(args[2]));
+		}
+		if (args.length > 3) {
+			generator.setStateSkew(Double.parseDouble(args[3]));
+			generator.setShapeSkew(Double.parseDouble(args[3]));
+		}
+		if (args.length > 4) {
+			generator.setMalformedRatio(Double.parseDouble(args[4]));
+		}
+
+		long begin = System.currentTimeMillis();
+		long malformed = generator.write(output, rows);
+		System.err.println("Wrote " + rows + " rows (" + malformed + " malformed) to " + output + " in "
+				+ (System.currentTimeMillis() - begin) + "ms");
+	}
+}
@@ -0,0 +1,244 @@
+package drew.ufo.reader;
+
+import org.joda.time.DateTime;
+
+/**
+ * A {@link UFODataEntry} held as five ints: day numbers for the two dates
+ * and {@link UFODictionaries} codes for city, state and shape. The getters
+ * and setters of UFODataEntry still work, converting through the
+ * dictionaries, so an instance can go anywhere an entry can.
+ * <p>
+ * {@link MappedUFODataReader#compactIterator(UFODictionaries)} fills one
+ * instance over and over, so nothing is allocated per row. Its duration and
+ * description are decoded from the mapped file only when asked for, and only
+ * until the iterator moves on; {@link #copy()} makes an instance that can be
+ * kept.
+ */
+public class CompactUFOEntry extends UFODataEntry {
+
+	final UFODictionaries dictionaries;
+
+	int eventDay;
+	int reportDay;
+	int cityCode;
+	int stateCode;
+	int shapeCode;
+
+	// set while duration and description are still in the scanner's buffer
+	MappedTSVScanner scanner;
+	long lineOffset;
+
+	public CompactUFOEntry(UFODictionaries dictionaries) {
+		this.dictionaries = dictionaries;
+	}
+
+	public UFODictionaries getDictionaries() {
+		return dictionaries;
+	}
+
+	public int getEventDay() {
+		return eventDay;
+	}
+
+	public void setEventDay(int eventDay) {
+		this.eventDay = eventDay;
+	}
+
+	public int getReportDay() {
+		return reportDay;
+	}
+
+	public void setReportDay(int reportDay) {
+		this.reportDay = reportDay;
+	}
+
+	public int getCityCode() {
+		return cityCode;
+	}
+
+	public void setCityCode(int cityCode) {
+		this.cityCode = cityCode;
+	}
+
+	public int getStateCode() {
+		return stateCode;
+	}
+
+	public void setStateCode(int stateCode) {
+		this.stateCode = stateCode;
+	}
+
+	public int getShapeCode() {
+		return shapeCode;
+	}
+
+	public void setShapeCode(int shapeCode) {
+		this.shapeCode = shapeCode;
+	}
+
+	@Override
+	public DateTime getEventDate() {
+		return dictionaries.getDate(eventDay);
+	}
+
+	@Override
+	public void setEventDate(DateTime eventDate) {
+		eventDay = dictionaries.toDay(eventDate);
+	}
+
+	@Override
+	public DateTime getReportDate() {
+		return dictionaries.getDate(reportDay);
+	}
+
+	@Override
+	public void setReportDate(DateTime reportDate) {
+		reportDay = dictionaries.toDay(reportDate);
+	}
+
+	@Override
+	public String getCity() {
+		return dictionaries.cities.get(cityCode);
+	}
+
+	@Override
+	public void setCity(String city) {
+		cityCode = dictionaries.cities.intern(city);
+	}
+
+	@Override
+	public String getState() {
+		return dictionaries.states.get(stateCode);
+	}
+
+	@Override
+	public void setState(String state) {
+		stateCode = dictionaries.states.intern(state);
+	}
+
+	@Override
+	public String getShape() {
+		return dictionaries.shapes.get(shapeCode);
+	}
+
+	@Override
+	public void setShape(String shape) {
+		shapeCode = dictionaries.shapes.intern(shape);
+	}
+
+	@Override
+	public String getDuration() {
+		return scanner == null ? duration : lazyField(4);
+	}
+
+	@Override
+	public void setDuration(String duration) {
+		detach();
+		this.duration = duration;
+	}
+
+	@Override
+	public String getDescription() {
+		return scanner == null ? description : lazyField(5);
+	}
+
+	@Override
+	public void setDescription(String description) {
+		detach();
+		this.description = description;
+	}
+
+	/**
+	 * Points duration and description at the scanner's current line.
+	 */
+	void setLazyFields(MappedTSVScanner scanner) {
+		this.scanner = scanner;
+		this.lineOffset = scanner.getLineOffset();
+		this.duration = null;
+		this.description = null;
+	}
+
+	/**
+	 * Drops the duration and description, for readers that never decode them.
+	 */
+	void clearLazyFields() {
+		scanner = null;
+		duration = null;
+		description = null;
+	}
+
+	void detach() {
+		if (scanner != null) {
+			String duration = getDuration();
+			String description = getDescription();
+			scanner = null;
+			this.duration = duration;
+			this.description = description;
+		}
+	}
+
+	String lazyField(int field) {
+		if (scanner.getLineOffset() != lineOffset) {
+			throw new IllegalStateException("The row has been replaced by the next one, copy() entries to keep them");
+		}
+		int end = scanner.getFieldEnd(field);
+		int start = UFODataParser.trimStart(scanner.buffer(), scanner.getFieldStart(field), end);
+		return scanner.decode(scanner.buffer(), start, UFODataParser.trimEnd(scanner.buffer(), start, end));
+	}
+
+	/**
+	 * A detached copy, with duration and description decoded.
+	 */
+	public CompactUFOEntry copy() {
+		CompactUFOEntry copy = new CompactUFOEntry(dictionaries);
+		copy.eventDay = eventDay;
+		copy.reportDay = reportDay;
+		copy.cityCode = cityCode;
+		copy.stateCode = stateCode;
+		copy.shapeCode = shapeCode;
+		copy.duration = getDuration();
+		copy.description = getDescription();
+		return copy;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = eventDay;
+		result = 31 * result + reportDay;
+		result = 31 * result + cityCode;
+		result = 31 * result + stateCode;
+		result = 31 * result + shapeCode;
+		return result;
+	}
+
+	/**
+	 * Equal if the codes, dictionaries, duration and description all match.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof CompactUFOEntry))
+			return false;
+		CompactUFOEntry other = (CompactUFOEntry) obj;
+		if (dictionaries != other.dictionaries || eventDay != other.eventDay || reportDay != other.reportDay
+				|| cityCode != other.cityCode || stateCode != other.stateCode || shapeCode != other.shapeCode)
+			return false;
+		String duration = getDuration();
+		String otherDuration = other.getDuration();
+		if (duration == null ? otherDuration != null : !duration.equals(otherDuration))
+			return false;
+		String description = getDescription();
+		String otherDescription = other.getDescription();
+		return description == null ? otherDescription == null : description.equals(otherDescription);
+	}
+
+	@Override
+	public String toString() {
+		String description = getDescription();
+		return "CompactUFOEntry [eventDate=" + getEventDate() + ", reportDate="
+				+ getReportDate() + ", city=" + getCity() + ", state=" + getState()
+				+ ", shape=" + getShape() + ", duration=" + getDuration()
+				+ ", description=" + ((description != null && description.length() > 12) ? description.substring(0, 10) + "..." : description) + "]";
+	}
+}
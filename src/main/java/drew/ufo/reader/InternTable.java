@@ -0,0 +1,148 @@
+package drew.ufo.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Assigns dense int codes, 0, 1, 2..., to the distinct values of a column
+ * and keeps one String per value. Values can be interned straight from the
+ * bytes of a mapped buffer, in which case a value that is already in the
+ * table is found without decoding or allocating anything.
+ * <p>
+ * Interning is synchronized. {@link #get(int)} is not, and is safe for codes
+ * handed over between threads the usual ways (a queue, a lock, a Future).
+ */
+public class InternTable {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	int[] slots = new int[64];
+	int[] hashes = new int[32];
+	byte[][] bytes = new byte[32][];
+	volatile String[] values = new String[32];
+	int size = 0;
+
+	public synchronized int intern(ByteBuffer buf, int start, int end) {
+		int hash = hash(buf, start, end);
+		int mask = slots.length - 1;
+		for (int i=hash & mask; ; i=(i + 1) & mask) {
+			int slot = slots[i];
+			if (slot == 0) {
+				byte[] value = new byte[end - start];
+				for (int j=0; j < value.length; j++) {
+					value[j] = buf.get(start + j);
+				}
+				return add(i, hash, value);
+			}
+			int code = slot - 1;
+			if (hashes[code] == hash && equal(bytes[code], buf, start, end)) {
+				return code;
+			}
+		}
+	}
+
+	public int intern(String value) {
+		byte[] encoded = value.getBytes(UTF8);
+		return intern(ByteBuffer.wrap(encoded), 0, encoded.length);
+	}
+
+	/**
+	 * The code of value, or -1 if it has not been interned.
+	 */
+	public synchronized int find(String value) {
+		byte[] encoded = value.getBytes(UTF8);
+		ByteBuffer buf = ByteBuffer.wrap(encoded);
+		int hash = hash(buf, 0, encoded.length);
+		int mask = slots.length - 1;
+		for (int i=hash & mask; slots[i] != 0; i=(i + 1) & mask) {
+			int code = slots[i] - 1;
+			if (hashes[code] == hash && equal(bytes[code], buf, 0, encoded.length)) {
+				return code;
+			}
+		}
+		return -1;
+	}
+
+	public String get(int code) {
+		String[] values = this.values;
+		if (code >= 0 && code < values.length && values[code] != null) {
+			return values[code];
+		}
+		synchronized (this) {
+			if (code < 0 || code >= size) {
+				throw new IllegalArgumentException("No value with code " + code);
+			}
+			return this.values[code];
+		}
+	}
+
+	/**
+	 * The UTF-8 bytes of the value, which must not be modified.
+	 */
+	public synchronized byte[] getBytes(int code) {
+		if (code < 0 || code >= size) {
+			throw new IllegalArgumentException("No value with code " + code);
+		}
+		return bytes[code];
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	int add(int slotIndex, int hash, byte[] value) {
+		int code = size;
+		if (code == bytes.length) {
+			int capacity = bytes.length * 2;
+			int[] newHashes = new int[capacity];
+			byte[][] newBytes = new byte[capacity][];
+			String[] newValues = new String[capacity];
+			System.arraycopy(hashes, 0, newHashes, 0, code);
+			System.arraycopy(bytes, 0, newBytes, 0, code);
+			System.arraycopy(values, 0, newValues, 0, code);
+			hashes = newHashes;
+			bytes = newBytes;
+			values = newValues;
+		}
+		hashes[code] = hash;
+		bytes[code] = value;
+		values[code] = new String(value, UTF8);
+		slots[slotIndex] = code + 1;
+		size++;
+
+		if (size * 2 > slots.length) {
+			int[] newSlots = new int[slots.length * 2];
+			int mask = newSlots.length - 1;
+			for (int c=0; c < size; c++) {
+				int i = hashes[c] & mask;
+				while (newSlots[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				newSlots[i] = c + 1;
+			}
+			slots = newSlots;
+		}
+		return code;
+	}
+
+	static int hash(ByteBuffer buf, int start, int end) {
+		int h = 1;
+		for (int i=start; i < end; i++) {
+			h = 31 * h + buf.get(i);
+		}
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	static boolean equal(byte[] value, ByteBuffer buf, int start, int end) {
+		if (value.length != end - start) {
+			return false;
+		}
+		for (int i=0; i < value.length; i++) {
+			if (value[i] != buf.get(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,164 @@
+package drew.ufo.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Walks the lines of a tab separated file through a memory mapped window,
+ * recording where each field starts and ends instead of copying it. Callers
+ * read fields straight out of {@link #buffer()} or ask for a String only for
+ * the fields they need.
+ * <p>
+ * Files larger than the window are mapped piece by piece; the window is moved
+ * forward to the start of whichever line crosses its end. Lines end with
+ * '\n' (a trailing '\r' is dropped) and quote characters have no special
+ * meaning.
+ */
+public class MappedTSVScanner {
+
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+	public static final int MAX_FIELDS = 32;
+
+	final FileChannel channel;
+	final long fileSize;
+	final long end;
+	final int windowSize;
+
+	MappedByteBuffer buffer;
+	long windowStart;
+	int windowLength;
+	int pos;
+
+	final int[] fieldStart = new int[MAX_FIELDS];
+	final int[] fieldEnd = new int[MAX_FIELDS];
+	int numFields;
+	long lineOffset;
+
+	byte[] scratch = new byte[256];
+
+	public MappedTSVScanner(FileChannel channel) throws IOException {
+		this(channel, 0, channel.size(), DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Scans the lines starting in [start, end). start must be the beginning of
+	 * a line; the last line may run past end.
+	 */
+	public MappedTSVScanner(FileChannel channel, long start, long end, int windowSize) throws IOException {
+		this.channel = channel;
+		this.fileSize = channel.size();
+		this.end = Math.min(end, fileSize);
+		this.windowSize = windowSize;
+		map(start);
+	}
+
+	void map(long start) throws IOException {
+		windowStart = start;
+		windowLength = (int) Math.min(windowSize, fileSize - start);
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, windowLength);
+		pos = 0;
+	}
+
+	/**
+	 * Advances to the next line, returning false once no more lines start
+	 * before the end of the range.
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			lineOffset = windowStart + pos;
+			if (lineOffset >= end || pos >= windowLength && windowStart + windowLength >= fileSize) {
+				return false;
+			}
+
+			numFields = 0;
+			int start = pos;
+			int i = pos;
+			while (i < windowLength) {
+				byte b = buffer.get(i);
+				if (b == '\t') {
+					addField(start, i);
+					start = i + 1;
+				}
+				else if (b == '\n') {
+					break;
+				}
+				i++;
+			}
+
+			if (i >= windowLength && windowStart + windowLength < fileSize) {
+				// line runs past the window, so slide the window to the line
+				if (pos == 0) {
+					throw new IOException("Line at offset " + lineOffset + " is longer than the "
+							+ windowSize + " byte window");
+				}
+				map(lineOffset);
+				continue;
+			}
+
+			int lineEnd = i;
+			if (lineEnd > start && buffer.get(lineEnd - 1) == '\r') {
+				lineEnd--;
+			}
+			addField(start, lineEnd);
+			pos = i + 1;
+			return true;
+		}
+	}
+
+	private void addField(int start, int end) {
+		if (numFields < MAX_FIELDS) {
+			fieldStart[numFields] = start;
+			fieldEnd[numFields] = end;
+		}
+		numFields++;
+	}
+
+	/**
+	 * The number of fields on the current line, which may exceed
+	 * {@link #MAX_FIELDS}; only the first MAX_FIELDS are addressable.
+	 */
+	public int getFieldCount() {
+		return numFields;
+	}
+
+	public int getFieldStart(int field) {
+		return fieldStart[field];
+	}
+
+	public int getFieldEnd(int field) {
+		return fieldEnd[field];
+	}
+
+	/**
+	 * File offset of the first byte of the current line.
+	 */
+	public long getLineOffset() {
+		return lineOffset;
+	}
+
+	public MappedByteBuffer buffer() {
+		return buffer;
+	}
+
+	public String getField(int field) {
+		return decode(buffer, fieldStart[field], fieldEnd[field]);
+	}
+
+	/**
+	 * Decodes buffer[start, end) as UTF-8.
+	 */
+	public String decode(ByteBuffer buf, int start, int end) {
+		int len = end - start;
+		if (scratch.length < len) {
+			scratch = new byte[Math.max(len, scratch.length * 2)];
+		}
+		for (int i=0; i < len; i++) {
+			scratch[i] = buf.get(start + i);
+		}
+		return new String(scratch, 0, len, UTF8);
+	}
+}
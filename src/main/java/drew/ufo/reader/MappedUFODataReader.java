@@ -0,0 +1,427 @@
+package drew.ufo.reader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import drew.ufo.reader.UFODataReader.UFODataBuilder;
+
+/**
+ * A drop-in alternative to {@link UFODataReader} that memory maps the file
+ * and parses fields directly out of the mapped bytes with a
+ * {@link MappedTSVScanner}, rather than going through a Reader and opencsv.
+ * Rows that do not have six fields or fail to parse are skipped, as they are
+ * by {@link UFODataReader}; unlike opencsv, quote characters are read
+ * literally and the file is always decoded as UTF-8.
+ * <p>
+ * With {@link #setDimensionFieldsOnly(boolean)} the duration and description,
+ * which no cube dimension uses, are left null and never decoded.
+ * <p>
+ * {@link #compactIterator(UFODictionaries)} reads rows into one reused
+ * {@link CompactUFOEntry} instead of a new entry per row.
+ * <p>
+ * Large files can be cut into line aligned byte ranges with
+ * {@link #getSplits(int)} and each range iterated on its own thread, or all
+ * of them handed to {@link #parse(int, int, EntryHandler)}.
+ */
+public class MappedUFODataReader implements Iterable<UFODataEntry> {
+
+	private static final Logger log = Logger.getLogger(MappedUFODataReader.class);
+
+	FileInputStream in;
+	FileChannel channel;
+	int limit = 0;
+	boolean dimensionFieldsOnly = false;
+
+	public MappedUFODataReader() { }
+
+	public MappedUFODataReader(String file) throws IOException {
+		open(file);
+	}
+
+	public MappedUFODataReader(File file) throws IOException {
+		open(file);
+	}
+
+	public void open(String filename) throws IOException {
+		this.open(new File(filename));
+	}
+
+	public void open(File file) throws IOException {
+		if (in != null) in.close();
+		in = new FileInputStream(file);
+		channel = in.getChannel();
+	}
+
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	public void setDimensionFieldsOnly(boolean dimensionFieldsOnly) {
+		this.dimensionFieldsOnly = dimensionFieldsOnly;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	public Iterator<UFODataEntry> iterator() {
+		if (channel == null) throw new IllegalStateException("No file available for data");
+		try {
+			return new MappedUFODataIterator(new MappedTSVScanner(channel), limit, dimensionFieldsOnly);
+		}
+		catch (IOException ex) {
+			throw new IllegalStateException("Could not map file", ex);
+		}
+	}
+
+	/**
+	 * Iterates the file into a single reused {@link CompactUFOEntry}, which
+	 * is only valid until the next call to hasNext or next.
+	 */
+	public Iterator<CompactUFOEntry> compactIterator(UFODictionaries dictionaries) {
+		if (channel == null) throw new IllegalStateException("No file available for data");
+		try {
+			return new CompactUFODataIterator(new MappedTSVScanner(channel), limit, dimensionFieldsOnly,
+					dictionaries);
+		}
+		catch (IOException ex) {
+			throw new IllegalStateException("Could not map file", ex);
+		}
+	}
+
+	/**
+	 * Cuts the file into at most numSplits ranges of roughly equal size, each
+	 * starting at the beginning of a line. Every line falls in exactly one
+	 * split. The limit does not apply to splits.
+	 */
+	public List<UFODataSplit> getSplits(int numSplits) throws IOException {
+		if (channel == null) throw new IllegalStateException("No file available for data");
+		if (numSplits < 1) throw new IllegalArgumentException("numSplits must be at least 1");
+
+		long size = channel.size();
+		List<UFODataSplit> splits = new ArrayList<UFODataSplit>(numSplits);
+		long start = 0;
+		for (int i=1; i < numSplits; i++) {
+			long next = alignToLine(size * i / numSplits);
+			if (next > start && next < size) {
+				splits.add(new UFODataSplit(splits.size(), start, next));
+				start = next;
+			}
+		}
+		splits.add(new UFODataSplit(splits.size(), start, size));
+		return splits;
+	}
+
+	/**
+	 * The offset of the first line starting at or after offset.
+	 */
+	long alignToLine(long offset) throws IOException {
+		if (offset == 0) return 0;
+
+		long size = channel.size();
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		long pos = offset - 1;
+		while (pos < size) {
+			buf.clear();
+			int read = channel.read(buf, pos);
+			if (read <= 0) break;
+			for (int i=0; i < read; i++) {
+				if (buf.get(i) == '\n') {
+					return pos + i + 1;
+				}
+			}
+			pos += read;
+		}
+		return size;
+	}
+
+	/**
+	 * Parses numSplits ranges of the file concurrently on numThreads threads,
+	 * passing every entry to handler, which therefore has to be thread-safe.
+	 * Entries arrive in file order within a split but interleaved across
+	 * splits. Returns the splits so their counts can be inspected.
+	 */
+	public List<UFODataSplit> parse(int numSplits, int numThreads, final EntryHandler handler) throws IOException {
+		List<UFODataSplit> splits = getSplits(numSplits);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(splits.size());
+			for (final UFODataSplit split: splits) {
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						for (UFODataEntry entry: split) {
+							handler.handle(entry);
+						}
+					}
+				}));
+			}
+			for (Future<?> future: futures) {
+				future.get();
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing splits", ex);
+		}
+		catch (ExecutionException ex) {
+			throw new IOException("Parsing a split failed", ex.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return splits;
+	}
+
+	/**
+	 * Receives entries from {@link MappedUFODataReader#parse(int, int, EntryHandler)}.
+	 */
+	public static interface EntryHandler {
+		public void handle(UFODataEntry entry);
+	}
+
+	/**
+	 * The lines starting in [start, end) of the file. Splits share the
+	 * reader's channel but each iterator maps its own window, so different
+	 * splits can be iterated on different threads. The counts are those of the
+	 * most recent iterator.
+	 */
+	public class UFODataSplit implements Iterable<UFODataEntry> {
+		final int index;
+		final long start;
+		final long end;
+		ScanningIterator<?> lastIterator;
+
+		UFODataSplit(int index, long start, long end) {
+			this.index = index;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getEnd() {
+			return end;
+		}
+
+		public long getRowsParsed() {
+			return lastIterator == null ? 0 : lastIterator.getRowsParsed();
+		}
+
+		public long getRowsSkipped() {
+			return lastIterator == null ? 0 : lastIterator.getRowsSkipped();
+		}
+
+		public Iterator<UFODataEntry> iterator() {
+			MappedUFODataIterator iterator = new MappedUFODataIterator(scanner(), 0, dimensionFieldsOnly);
+			lastIterator = iterator;
+			return iterator;
+		}
+
+		/**
+		 * The split's rows in a reused {@link CompactUFOEntry}. Splits
+		 * iterated on different threads can share the dictionaries.
+		 */
+		public Iterator<CompactUFOEntry> compactIterator(UFODictionaries dictionaries) {
+			CompactUFODataIterator iterator = new CompactUFODataIterator(scanner(), 0, dimensionFieldsOnly,
+					dictionaries);
+			lastIterator = iterator;
+			return iterator;
+		}
+
+		MappedTSVScanner scanner() {
+			try {
+				return new MappedTSVScanner(channel, start, end, MappedTSVScanner.DEFAULT_WINDOW_SIZE);
+			}
+			catch (IOException ex) {
+				throw new IllegalStateException("Could not map split " + index, ex);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "split " + index + " [" + start + ", " + end + ") parsed=" + getRowsParsed()
+					+ " skipped=" + getRowsSkipped();
+		}
+	}
+
+	/**
+	 * The skipping, limit and counting shared by the entry and compact
+	 * iterators; subclasses turn the scanner's current line into an E.
+	 */
+	public abstract static class ScanningIterator<E> implements Iterator<E> {
+		protected final MappedTSVScanner scanner;
+		protected final UFODataParser parser = new UFODataParser();
+		protected E current;
+		protected int limit;
+		protected int count = 0;
+		protected long rowsParsed = 0;
+		protected long rowsSkipped = 0;
+
+		public ScanningIterator(MappedTSVScanner scanner, int limit) {
+			this.scanner = scanner;
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (current == null) {
+				getNext();
+			}
+
+			return (current != null);
+		}
+
+		protected void getNext() {
+			count++;
+			if (limit > 0 && count > limit) {
+				if (log.isDebugEnabled()) {
+					log.debug("Hit limit @ line " + count);
+				}
+				current = null;
+				return;
+			}
+
+			try {
+				while (scanner.next()) {
+					if (scanner.getFieldCount() != UFODataParser.NUM_FIELDS) {
+						rowsSkipped++;
+						continue;
+					}
+					try {
+						current = parse();
+						rowsParsed++;
+						return;
+					}
+					catch (ParseException ex) {
+						rowsSkipped++;
+						log.warn("Parse exception @ offset " + scanner.getLineOffset() + ": " + ex.getMessage());
+					}
+				}
+			}
+			catch (IOException ex) {
+				log.error("IOException @ line " + count, ex);
+			}
+		}
+
+		protected abstract E parse() throws ParseException;
+
+		public long getRowsParsed() {
+			return rowsParsed;
+		}
+
+		/**
+		 * Lines skipped so far, either for having the wrong number of fields
+		 * or for failing to parse.
+		 */
+		public long getRowsSkipped() {
+			return rowsSkipped;
+		}
+
+		@Override
+		public E next() {
+			if (current == null) {
+				getNext();
+			}
+
+			if (current == null) {
+				throw new NoSuchElementException();
+			}
+
+			try {
+				return current;
+			}
+			finally {
+				current = null;
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	public static class MappedUFODataIterator extends ScanningIterator<UFODataEntry> {
+		protected boolean dimensionFieldsOnly;
+
+		public MappedUFODataIterator(MappedTSVScanner scanner, int limit, boolean dimensionFieldsOnly) {
+			super(scanner, limit);
+			this.dimensionFieldsOnly = dimensionFieldsOnly;
+		}
+
+		@Override
+		protected UFODataEntry parse() throws ParseException {
+			UFODataBuilder builder = new UFODataBuilder()
+				.withEventDate(parser.parseDate(scanner, 0))
+				.withReportDate(parser.parseDate(scanner, 1))
+				.withCity(parser.parseCity(scanner, 2))
+				.withState(parser.parseState(scanner, 2))
+				.withShape(parser.parseTrimmed(scanner, 3));
+			if (!dimensionFieldsOnly) {
+				builder.withDuration(parser.parseTrimmed(scanner, 4))
+					.withDesciption(parser.parseTrimmed(scanner, 5));
+			}
+			return builder.create();
+		}
+	}
+
+	/**
+	 * Fills one {@link CompactUFOEntry} in place for every row. Nothing is
+	 * allocated for a row whose city, state, shape and dates have all been
+	 * seen before.
+	 */
+	public static class CompactUFODataIterator extends ScanningIterator<CompactUFOEntry> {
+		protected final CompactUFOEntry holder;
+		protected final UFODictionaries dictionaries;
+		protected boolean dimensionFieldsOnly;
+
+		public CompactUFODataIterator(MappedTSVScanner scanner, int limit, boolean dimensionFieldsOnly,
+				UFODictionaries dictionaries) {
+			super(scanner, limit);
+			this.dimensionFieldsOnly = dimensionFieldsOnly;
+			this.dictionaries = dictionaries;
+			this.holder = new CompactUFOEntry(dictionaries);
+		}
+
+		@Override
+		protected CompactUFOEntry parse() throws ParseException {
+			// nothing is interned until the row is known to parse: the dates
+			// come first, then the state, which parses whenever the city does
+			int eventDay = dictionaries.toDay(parser.parseDate(scanner, 0));
+			int reportDay = dictionaries.toDay(parser.parseDate(scanner, 1));
+			int stateCode = parser.internState(scanner, 2, dictionaries.states);
+			holder.eventDay = eventDay;
+			holder.reportDay = reportDay;
+			holder.stateCode = stateCode;
+			holder.cityCode = parser.internCity(scanner, 2, dictionaries.cities);
+			holder.shapeCode = parser.internTrimmed(scanner, 3, dictionaries.shapes);
+			if (dimensionFieldsOnly) {
+				holder.clearLazyFields();
+			}
+			else {
+				holder.setLazyFields(scanner);
+			}
+			return holder;
+		}
+	}
+}
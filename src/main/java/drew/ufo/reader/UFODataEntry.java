@@ -138,7 +138,7 @@ public class UFODataEntry {
 		return "UFODataEntry [eventDate=" + eventDate + ", reportDate="
 				+ reportDate + ", city=" + city + ", state=" + state
 				+ ", shape=" + shape + ", duration=" + duration
-				+ ", description=" + ((description.length() > 12) ? description.substring(0, 10) + "..." : description) + "]";
+				+ ", description=" + ((description != null && description.length() > 12) ? description.substring(0, 10) + "..." : description) + "]";
 	}
 	
 	
@@ -0,0 +1,257 @@
+package drew.ufo.reader;
+
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import org.joda.time.DateTime;
+
+import drew.ufo.reader.UFODataReader.UFODataBuilder;
+
+/**
+ * Turns the six raw tab separated fields of a UFO sighting into a
+ * {@link UFODataEntry}. Instances are not thread-safe, so concurrent parsers
+ * should each use their own.
+ */
+public class UFODataParser {
+
+	public static final int NUM_FIELDS = 6;
+
+	// slots per year in the day cache: months 0-12 by days 0-31
+	static final int DAYS_PER_YEAR_SLOT = 13 * 32;
+
+	final DateFormat ufoDataFormat = new SimpleDateFormat("yyyyMMdd");
+
+	/*
+	 * Parsed dates by year, then month * 32 + day. DateTime is immutable, so
+	 * every row on the same day can share one instance.
+	 */
+	final DateTime[][] dayCache = new DateTime[10000][];
+
+	public UFODataEntry parse(String[] entry) throws ParseException {
+		if (entry.length != NUM_FIELDS) {
+			throw new ParseException("Expected " + NUM_FIELDS + " fields, found " + entry.length, -1);
+		}
+		return new UFODataBuilder().withEventDate(parseDate(entry[0]))
+			.withReportDate(parseDate(entry[1]))
+			.withCity(parseCity(entry[2]))
+			.withState(parseState(entry[2]))
+			.withShape(entry[3].trim())
+			.withDuration(entry[4].trim())
+			.withDesciption(entry[5].trim())
+			.create();
+	}
+
+	/**
+	 * Parses a yyyyMMdd date. Plain eight digit dates are decoded from the
+	 * characters and looked up in a per-day cache; the first time a day is
+	 * seen, and for anything that is not eight digits with a month up to 12
+	 * and a day up to 31, the SimpleDateFormat path is used so that results
+	 * (including its leniency) and ParseExceptions are unchanged.
+	 */
+	public DateTime parseDate(String input) throws ParseException {
+		if (input.length() != 8) {
+			return parseDateSlow(input);
+		}
+
+		int year = 0;
+		int monthDay = 0;
+		for (int i=0; i < 8; i++) {
+			int digit = input.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return parseDateSlow(input);
+			}
+			if (i < 4) {
+				year = year * 10 + digit;
+			}
+			else {
+				monthDay = monthDay * 10 + digit;
+			}
+		}
+
+		int month = monthDay / 100;
+		int day = monthDay % 100;
+		if (month > 12 || day > 31) {
+			return parseDateSlow(input);
+		}
+
+		DateTime[] days = dayCache[year];
+		if (days == null) {
+			days = new DateTime[DAYS_PER_YEAR_SLOT];
+			dayCache[year] = days;
+		}
+
+		int slot = month * 32 + day;
+		DateTime date = days[slot];
+		if (date == null) {
+			date = parseDateSlow(input);
+			days[slot] = date;
+		}
+		return date;
+	}
+
+	/**
+	 * Parses a yyyyMMdd date field straight from the scanner's buffer. Only a
+	 * day that is already cached is resolved without creating a String.
+	 */
+	public DateTime parseDate(MappedTSVScanner scanner, int field) throws ParseException {
+		ByteBuffer buf = scanner.buffer();
+		int start = scanner.getFieldStart(field);
+		if (scanner.getFieldEnd(field) - start == 8) {
+			int year = 0;
+			int monthDay = 0;
+			int i = 0;
+			for (; i < 8; i++) {
+				int digit = buf.get(start + i) - '0';
+				if (digit < 0 || digit > 9) {
+					break;
+				}
+				if (i < 4) {
+					year = year * 10 + digit;
+				}
+				else {
+					monthDay = monthDay * 10 + digit;
+				}
+			}
+
+			DateTime[] days = dayCache[year];
+			int month = monthDay / 100;
+			int day = monthDay % 100;
+			if (i == 8 && days != null && month <= 12 && day <= 31 && days[month * 32 + day] != null) {
+				return days[month * 32 + day];
+			}
+		}
+		return parseDate(scanner.getField(field));
+	}
+
+	DateTime parseDateSlow(String input) throws ParseException {
+		return new DateTime(ufoDataFormat.parse(input).getTime());
+	}
+
+	public String parseCity(String input) throws ParseException {
+		input = input.trim();
+		int pos = input.indexOf(',');
+		if (pos > 1) {
+			return input.substring(0,pos).trim();
+		}
+		throw new ParseException("Could not parse city from input string '" + input + "'",-1);
+	}
+
+	public String parseState(String input) throws ParseException {
+		input = input.trim();
+		int pos = input.indexOf(',');
+		if (pos > 1 && input.length() == pos + 4) {
+			return input.substring(pos+2,pos+4).trim();
+		}
+		throw new ParseException("Could not parse state from input string '" + input + "'",-1);
+	}
+
+	/**
+	 * Byte slice version of {@link #parseCity(String)}. ASCII fields are
+	 * handled in place; anything else, including failures, goes through the
+	 * String version so results and messages are identical.
+	 */
+	public String parseCity(MappedTSVScanner scanner, int field) throws ParseException {
+		ByteBuffer buf = scanner.buffer();
+		int start = trimStart(buf, scanner.getFieldStart(field), scanner.getFieldEnd(field));
+		int end = trimEnd(buf, start, scanner.getFieldEnd(field));
+		int comma = asciiComma(buf, start, end);
+		if (comma - start > 1) {
+			return scanner.decode(buf, start, trimEnd(buf, start, comma));
+		}
+		return parseCity(scanner.getField(field));
+	}
+
+	/**
+	 * Byte slice version of {@link #parseState(String)}.
+	 */
+	public String parseState(MappedTSVScanner scanner, int field) throws ParseException {
+		ByteBuffer buf = scanner.buffer();
+		int start = trimStart(buf, scanner.getFieldStart(field), scanner.getFieldEnd(field));
+		int end = trimEnd(buf, start, scanner.getFieldEnd(field));
+		int comma = asciiComma(buf, start, end);
+		if (comma - start > 1 && end == comma + 4) {
+			int stateStart = trimStart(buf, comma + 2, end);
+			return scanner.decode(buf, stateStart, trimEnd(buf, stateStart, end));
+		}
+		return parseState(scanner.getField(field));
+	}
+
+	public String parseTrimmed(MappedTSVScanner scanner, int field) {
+		ByteBuffer buf = scanner.buffer();
+		int start = trimStart(buf, scanner.getFieldStart(field), scanner.getFieldEnd(field));
+		return scanner.decode(buf, start, trimEnd(buf, start, scanner.getFieldEnd(field)));
+	}
+
+	/**
+	 * Interns the city of a "city, state" field, decoding it only if it is
+	 * new. Fails exactly when {@link #parseCity(String)} would.
+	 */
+	public int internCity(MappedTSVScanner scanner, int field, InternTable cities) throws ParseException {
+		ByteBuffer buf = scanner.buffer();
+		int start = trimStart(buf, scanner.getFieldStart(field), scanner.getFieldEnd(field));
+		int end = trimEnd(buf, start, scanner.getFieldEnd(field));
+		int comma = asciiComma(buf, start, end);
+		if (comma - start > 1) {
+			return cities.intern(buf, start, trimEnd(buf, start, comma));
+		}
+		return cities.intern(parseCity(scanner.getField(field)));
+	}
+
+	/**
+	 * Interns the state of a "city, state" field, see
+	 * {@link #parseState(String)}.
+	 */
+	public int internState(MappedTSVScanner scanner, int field, InternTable states) throws ParseException {
+		ByteBuffer buf = scanner.buffer();
+		int start = trimStart(buf, scanner.getFieldStart(field), scanner.getFieldEnd(field));
+		int end = trimEnd(buf, start, scanner.getFieldEnd(field));
+		int comma = asciiComma(buf, start, end);
+		if (comma - start > 1 && end == comma + 4) {
+			int stateStart = trimStart(buf, comma + 2, end);
+			return states.intern(buf, stateStart, trimEnd(buf, stateStart, end));
+		}
+		return states.intern(parseState(scanner.getField(field)));
+	}
+
+	public int internTrimmed(MappedTSVScanner scanner, int field, InternTable table) {
+		ByteBuffer buf = scanner.buffer();
+		int start = trimStart(buf, scanner.getFieldStart(field), scanner.getFieldEnd(field));
+		return table.intern(buf, start, trimEnd(buf, start, scanner.getFieldEnd(field)));
+	}
+
+	// String.trim() semantics, which for ASCII is every byte <= ' '
+	static int trimStart(ByteBuffer buf, int start, int end) {
+		while (start < end && (buf.get(start) & 0xff) <= ' ') {
+			start++;
+		}
+		return start;
+	}
+
+	static int trimEnd(ByteBuffer buf, int start, int end) {
+		while (end > start && (buf.get(end - 1) & 0xff) <= ' ') {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * Position of the first comma in an all-ASCII slice, or -1 when there is
+	 * none or the slice holds multi-byte characters (whose byte offsets would
+	 * not match the String version's character offsets).
+	 */
+	static int asciiComma(ByteBuffer buf, int start, int end) {
+		int comma = -1;
+		for (int i=start; i < end; i++) {
+			byte b = buf.get(i);
+			if (b < 0) {
+				return -1;
+			}
+			if (b == ',' && comma < 0) {
+				comma = i;
+			}
+		}
+		return comma;
+	}
+}
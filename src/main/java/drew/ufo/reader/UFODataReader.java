@@ -4,9 +4,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -15,12 +13,16 @@ import org.joda.time.DateTime;
 
 import au.com.bytecode.opencsv.CSVReader;
 
+import com.yammer.metrics.core.Meter;
+
 public class UFODataReader implements Iterable<UFODataEntry> {
 
 	private static final Logger log = Logger.getLogger(UFODataReader.class);
 	
 	Reader in;
 	int limit = 0;
+	Meter rowsMeter;
+	Meter parseErrorsMeter;
 	
 	public UFODataReader() { }
 	
@@ -45,23 +47,115 @@ public class UFODataReader implements Iterable<UFODataEntry> {
 		this.limit = limit;
 	}
 	
+	/**
+	 * Meters to mark for every entry {@link #iterator()} returns and every
+	 * line it skips because it could not be parsed, or null.
+	 * {@link #rawIterator()} leaves parsing to its caller, which marks
+	 * {@link #getRowsMeter()} and {@link #getParseErrorsMeter()} itself.
+	 */
+	public void setMeters(Meter rows, Meter parseErrors) {
+		this.rowsMeter = rows;
+		this.parseErrorsMeter = parseErrors;
+	}
+
+	public Meter getRowsMeter() {
+		return rowsMeter;
+	}
+
+	public Meter getParseErrorsMeter() {
+		return parseErrorsMeter;
+	}
+	
 	public void close() throws IOException {
 		in.close();
 	}
 	
 	public Iterator<UFODataEntry> iterator() {
 		if (in == null) throw new IllegalStateException("No Reader available for data");
-		return new UFODataIterator(in, limit);
+		UFODataIterator it = new UFODataIterator(in, limit);
+		it.rowsMeter = rowsMeter;
+		it.parseErrorsMeter = parseErrorsMeter;
+		return it;
+	}
+
+	/**
+	 * Returns the unparsed fields of each line that has the expected number
+	 * of columns, so that parsing can happen elsewhere (e.g. on several
+	 * threads, each with its own {@link UFODataParser}). The limit applies to
+	 * the number of records returned.
+	 */
+	public Iterator<String[]> rawIterator() {
+		if (in == null) throw new IllegalStateException("No Reader available for data");
+		return new RawIterator(in, limit);
+	}
+
+	public static class RawIterator implements Iterator<String[]> {
+		private CSVReader in;
+		protected String[] current;
+		protected int limit;
+		protected int count = 0;
+
+		public RawIterator(Reader in, int limit) {
+			this.in = new CSVReader(in, '\t');
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (current == null) {
+				getNext();
+			}
+			return (current != null);
+		}
+
+		protected void getNext() {
+			if (limit > 0 && count >= limit) {
+				return;
+			}
+
+			try {
+				String[] entry;
+				while ((entry = in.readNext()) != null) {
+					if (entry.length == UFODataParser.NUM_FIELDS) {
+						current = entry;
+						count++;
+						return;
+					}
+				}
+			}
+			catch (IOException ex) {
+				log.error("IOException @ record " + count, ex);
+			}
+		}
+
+		@Override
+		public String[] next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			try {
+				return current;
+			}
+			finally {
+				current = null;
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
 	}
 
 	public static class UFODataIterator implements Iterator<UFODataEntry> {
 		private CSVReader in;
-		private UFODataBuilder builder = new UFODataBuilder();
+		private UFODataParser parser = new UFODataParser();
 		protected UFODataEntry current;
 		protected int limit;
 		protected int count = 0;
-		
-		final DateFormat ufoDataFormat = new SimpleDateFormat("yyyyMMdd");
+		Meter rowsMeter;
+		Meter parseErrorsMeter;
 		
 		public UFODataIterator(Reader in, int limit) {
 			this.in = new CSVReader(in, '\t');
@@ -98,21 +192,20 @@ public class UFODataReader implements Iterable<UFODataEntry> {
 						if (entry == null) {
 							return;
 						}
-						if (entry.length != 6) {
+						if (entry.length != UFODataParser.NUM_FIELDS) {
 							continue;
 						}
-						current = builder.withEventDate(parseDate(entry[0]))
-							.withReportDate(parseDate(entry[1]))
-							.withCity(parseCity(entry[2]))
-							.withState(parseState(entry[2]))
-							.withShape(entry[3].trim())
-							.withDuration(entry[4].trim())
-							.withDesciption(entry[5].trim())
-							.create();
+						current = parser.parse(entry);
+						if (rowsMeter != null) {
+							rowsMeter.mark();
+						}
 						break;
 					}
 					catch (ParseException ex) {
 						log.warn("Parse exception @ line " + count + ": " + ex.getMessage());
+						if (parseErrorsMeter != null) {
+							parseErrorsMeter.mark();
+						}
 					}
 				}
 			}
@@ -122,25 +215,15 @@ public class UFODataReader implements Iterable<UFODataEntry> {
 		}
 		
 		protected DateTime parseDate(String input) throws ParseException {
-			return new DateTime(ufoDataFormat.parse(input).getTime());
+			return parser.parseDate(input);
 		}
 		
 		protected String parseCity(String input) throws ParseException {
-			input = input.trim();
-			int pos = input.indexOf(',');
-			if (pos > 1) {
-				return input.substring(0,pos).trim();
-			}
-			throw new ParseException("Could not parse city from input string '" + input + "'",-1);
+			return parser.parseCity(input);
 		}
 		
 		protected String parseState(String input) throws ParseException {
-			input = input.trim();
-			int pos = input.indexOf(',');
-			if (pos > 1 && input.length() == pos + 4) {
-				return input.substring(pos+2,pos+4).trim();
-			}
-			throw new ParseException("Could not parse state from input string '" + input + "'",-1);
+			return parser.parseState(input);
 		}
 		
 		@Override
@@ -0,0 +1,111 @@
+package drew.ufo.reader;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+/**
+ * The intern tables for the city, state and shape columns, and the mapping
+ * between dates and int day numbers, shared by every {@link CompactUFOEntry}
+ * read with them. Entries from readers using different dictionaries cannot
+ * be compared by code.
+ * <p>
+ * A day number counts days from 1970-01-01 in the zone the dates were
+ * parsed in, by default the JVM's default as for {@link UFODataParser}.
+ */
+public class UFODictionaries {
+
+	static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	final InternTable cities = new InternTable();
+	final InternTable states = new InternTable();
+	final InternTable shapes = new InternTable();
+
+	final DateTimeZone zone;
+	volatile DayTable dayTable = new DayTable(0, new DateTime[0]);
+
+	public UFODictionaries() {
+		this(DateTimeZone.getDefault());
+	}
+
+	public UFODictionaries(DateTimeZone zone) {
+		this.zone = zone;
+	}
+
+	public DateTimeZone getZone() {
+		return zone;
+	}
+
+	public InternTable getCities() {
+		return cities;
+	}
+
+	public InternTable getStates() {
+		return states;
+	}
+
+	public InternTable getShapes() {
+		return shapes;
+	}
+
+	/**
+	 * The day number of date, remembering date so {@link #getDate(int)} hands
+	 * back the same instance.
+	 */
+	public int toDay(DateTime date) {
+		long millis = date.getMillis();
+		long local = millis + zone.getOffset(millis);
+		int day = (int) (local >= 0 ? local / MILLIS_PER_DAY : (local - MILLIS_PER_DAY + 1) / MILLIS_PER_DAY);
+
+		DayTable table = dayTable;
+		int index = day - table.firstDay;
+		if (index < 0 || index >= table.dates.length || table.dates[index] == null) {
+			remember(day, date);
+		}
+		return day;
+	}
+
+	/**
+	 * Midnight at the start of the day, in the dictionaries' zone.
+	 */
+	public DateTime getDate(int day) {
+		DayTable table = dayTable;
+		int index = day - table.firstDay;
+		if (index >= 0 && index < table.dates.length && table.dates[index] != null) {
+			return table.dates[index];
+		}
+		DateTime date = new LocalDate(1970, 1, 1).plusDays(day).toDateTimeAtStartOfDay(zone);
+		remember(day, date);
+		return date;
+	}
+
+	synchronized void remember(int day, DateTime date) {
+		DayTable table = dayTable;
+		int index = day - table.firstDay;
+		if (index >= 0 && index < table.dates.length) {
+			if (table.dates[index] == null) {
+				table.dates[index] = date;
+			}
+			return;
+		}
+		// grow to cover the day, leaving room around it
+		int first = table.dates.length == 0 ? day - 512 : Math.min(table.firstDay, day - 512);
+		int last = table.dates.length == 0 ? day + 512 : Math.max(table.firstDay + table.dates.length, day + 512);
+		DateTime[] dates = new DateTime[last - first];
+		if (table.dates.length > 0) {
+			System.arraycopy(table.dates, 0, dates, table.firstDay - first, table.dates.length);
+		}
+		dates[day - first] = date;
+		dayTable = new DayTable(first, dates);
+	}
+
+	static class DayTable {
+		final int firstDay;
+		final DateTime[] dates;
+
+		DayTable(int firstDay, DateTime[] dates) {
+			this.firstDay = firstDay;
+			this.dates = dates;
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package drew.ufo.reader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Maps a snapshot written by {@link UFOSnapshotWriter} and iterates its rows
+ * with no parsing: each block's columns are unpacked into int arrays and the
+ * entries filled from them. The snapshot's dictionaries are loaded on open
+ * and shared by every entry read.
+ * <p>
+ * {@link #iterator()} returns a new entry per row, so it can stand in for
+ * {@link UFODataReader} anywhere. {@link #compactIterator()} fills one
+ * reused {@link CompactUFOEntry} instead, and
+ * {@link #compactIterator(int, int)} reads a range of blocks, so blocks can
+ * be shared out over threads.
+ * <p>
+ * The whole file is mapped at once, so it has to be under 2GB.
+ */
+public class UFOSnapshotReader implements Iterable<UFODataEntry> {
+
+	FileInputStream in;
+	ByteBuffer buffer;
+	UFODictionaries dictionaries;
+	boolean hasText;
+	boolean dimensionFieldsOnly = false;
+	int blockRows;
+	long rows;
+	long[] blockOffsets;
+	long[] blockFirstRows;
+
+	public UFOSnapshotReader() { }
+
+	public UFOSnapshotReader(String file) throws IOException {
+		open(file);
+	}
+
+	public UFOSnapshotReader(File file) throws IOException {
+		open(file);
+	}
+
+	public void open(String filename) throws IOException {
+		this.open(new File(filename));
+	}
+
+	public void open(File file) throws IOException {
+		if (in != null) in.close();
+		in = new FileInputStream(file);
+		FileChannel channel = in.getChannel();
+		if (channel.size() > Integer.MAX_VALUE) {
+			throw new IOException("Snapshot " + file + " is too large to map");
+		}
+		if (channel.size() < UFOSnapshotWriter.HEADER_SIZE) {
+			throw new IOException(file + " is not a UFO snapshot");
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+		if (buffer.getInt(0) != UFOSnapshotWriter.MAGIC) {
+			throw new IOException(file + " is not a UFO snapshot");
+		}
+		if (buffer.getInt(4) != UFOSnapshotWriter.VERSION) {
+			throw new IOException("Unsupported snapshot version " + buffer.getInt(4) + " in " + file);
+		}
+		hasText = (buffer.getInt(8) & UFOSnapshotWriter.FLAG_TEXT) != 0;
+		blockRows = buffer.getInt(12);
+		rows = buffer.getLong(16);
+		int blocks = buffer.getInt(24);
+		int dictionaryOffset = (int) buffer.getLong(28);
+		int indexOffset = (int) buffer.getLong(36);
+
+		ByteBuffer dicts = buffer.duplicate();
+		dicts.position(dictionaryOffset);
+		dictionaries = new UFODictionaries(DateTimeZone.forID(readString(dicts)));
+		int days = dicts.getInt();
+		for (int i=0; i < days; i++) {
+			int day = dicts.getInt();
+			dictionaries.remember(day, new DateTime(dicts.getLong(), dictionaries.getZone()));
+		}
+		readDictionary(dicts, dictionaries.cities);
+		readDictionary(dicts, dictionaries.states);
+		readDictionary(dicts, dictionaries.shapes);
+
+		blockOffsets = new long[blocks];
+		blockFirstRows = new long[blocks];
+		for (int i=0; i < blocks; i++) {
+			blockOffsets[i] = buffer.getLong(indexOffset + i * 16);
+			blockFirstRows[i] = buffer.getLong(indexOffset + i * 16 + 8);
+		}
+	}
+
+	static String readString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, InternTable.UTF8);
+	}
+
+	static void readDictionary(ByteBuffer buf, InternTable table) throws IOException {
+		int size = buf.getInt();
+		for (int code=0; code < size; code++) {
+			int length = buf.getInt();
+			if (table.intern(buf, buf.position(), buf.position() + length) != code) {
+				throw new IOException("Duplicate dictionary value at code " + code);
+			}
+			buf.position(buf.position() + length);
+		}
+	}
+
+	/**
+	 * Whether the file starts like a snapshot, rather than, say, a TSV.
+	 */
+	public static boolean isSnapshot(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			in.getChannel().read(magic, 0);
+			return magic.position() == 4 && magic.getInt(0) == UFOSnapshotWriter.MAGIC;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Leave duration and description null, skipping them entirely.
+	 */
+	public void setDimensionFieldsOnly(boolean dimensionFieldsOnly) {
+		this.dimensionFieldsOnly = dimensionFieldsOnly;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	public UFODictionaries getDictionaries() {
+		return dictionaries;
+	}
+
+	public long getRowCount() {
+		return rows;
+	}
+
+	public int getBlockCount() {
+		return blockOffsets.length;
+	}
+
+	/**
+	 * The row number of the first row of block.
+	 */
+	public long getBlockFirstRow(int block) {
+		return blockFirstRows[block];
+	}
+
+	public boolean hasText() {
+		return hasText;
+	}
+
+	/**
+	 * A new, detached entry per row.
+	 */
+	public Iterator<UFODataEntry> iterator() {
+		final SnapshotIterator it = compactIterator();
+		return new Iterator<UFODataEntry>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public UFODataEntry next() {
+				return it.next().copy();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Every row in a single reused entry, valid until the next call to next.
+	 */
+	public SnapshotIterator compactIterator() {
+		return compactIterator(0, getBlockCount());
+	}
+
+	/**
+	 * The rows of blocks [fromBlock, toBlock) in a single reused entry.
+	 * Iterators over different ranges can run on different threads.
+	 */
+	public SnapshotIterator compactIterator(int fromBlock, int toBlock) {
+		if (buffer == null) throw new IllegalStateException("No snapshot open");
+		if (fromBlock < 0 || toBlock > getBlockCount() || fromBlock > toBlock) {
+			throw new IndexOutOfBoundsException("Blocks [" + fromBlock + ", " + toBlock + ") of " + getBlockCount());
+		}
+		return new SnapshotIterator(fromBlock, toBlock, hasText && !dimensionFieldsOnly);
+	}
+
+	public class SnapshotIterator implements Iterator<CompactUFOEntry> {
+		final ByteBuffer buf = buffer.duplicate();
+		final CompactUFOEntry holder = new CompactUFOEntry(dictionaries);
+		final boolean readText;
+		final int toBlock;
+		int block;
+
+		final int[][] columns = new int[UFOSnapshotWriter.NUM_COLUMNS][blockRows];
+		final int[] durationLengths = new int[blockRows];
+		final int[] descriptionLengths = new int[blockRows];
+		int durationPos;
+		int descriptionPos;
+		byte[] scratch = new byte[256];
+		int row = 0;
+		int rowsInBlock = 0;
+
+		SnapshotIterator(int fromBlock, int toBlock, boolean readText) {
+			this.block = fromBlock;
+			this.toBlock = toBlock;
+			this.readText = readText;
+		}
+
+		public boolean hasNext() {
+			return row < rowsInBlock || block < toBlock;
+		}
+
+		public CompactUFOEntry next() {
+			if (row == rowsInBlock) {
+				if (block == toBlock) {
+					throw new NoSuchElementException();
+				}
+				readBlock(block++);
+			}
+			holder.eventDay = columns[UFOSnapshotWriter.EVENT_DAY][row];
+			holder.reportDay = columns[UFOSnapshotWriter.REPORT_DAY][row];
+			holder.cityCode = columns[UFOSnapshotWriter.CITY][row];
+			holder.stateCode = columns[UFOSnapshotWriter.STATE][row];
+			holder.shapeCode = columns[UFOSnapshotWriter.SHAPE][row];
+			holder.scanner = null;
+			if (readText) {
+				holder.duration = text(durationPos, durationLengths[row]);
+				holder.description = text(descriptionPos, descriptionLengths[row]);
+				durationPos += Math.max(durationLengths[row], 0);
+				descriptionPos += Math.max(descriptionLengths[row], 0);
+			}
+			else {
+				holder.duration = null;
+				holder.description = null;
+			}
+			row++;
+			return holder;
+		}
+
+		void readBlock(int block) {
+			buf.position((int) blockOffsets[block]);
+			rowsInBlock = buf.getInt();
+			for (int c=0; c < UFOSnapshotWriter.NUM_COLUMNS; c++) {
+				readColumn(columns[c]);
+			}
+			if (hasText) {
+				durationPos = readLengths(durationLengths);
+				descriptionPos = readLengths(descriptionLengths);
+			}
+			row = 0;
+		}
+
+		void readColumn(int[] values) {
+			int base = buf.getInt();
+			int width = buf.get();
+			int pos = buf.position();
+			switch (width) {
+			case 1:
+				for (int i=0; i < rowsInBlock; i++) values[i] = base + (buf.get(pos + i) & 0xff);
+				break;
+			case 2:
+				for (int i=0; i < rowsInBlock; i++) values[i] = base + (buf.getShort(pos + i * 2) & 0xffff);
+				break;
+			default:
+				for (int i=0; i < rowsInBlock; i++) values[i] = base + buf.getInt(pos + i * 4);
+			}
+			buf.position(pos + rowsInBlock * width);
+		}
+
+		/**
+		 * Reads a text column's lengths, returning where its bytes start and
+		 * leaving the buffer after them.
+		 */
+		int readLengths(int[] lengths) {
+			int total = 0;
+			for (int i=0; i < rowsInBlock; i++) {
+				lengths[i] = buf.getInt();
+				total += Math.max(lengths[i], 0);
+			}
+			int start = buf.position();
+			buf.position(start + total);
+			return start;
+		}
+
+		String text(int pos, int length) {
+			if (length < 0) {
+				return null;
+			}
+			if (scratch.length < length) {
+				scratch = new byte[Math.max(length, scratch.length * 2)];
+			}
+			for (int i=0; i < length; i++) {
+				scratch[i] = buf.get(pos + i);
+			}
+			return new String(scratch, 0, length, InternTable.UTF8);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package drew.ufo.reader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * Writes parsed UFO entries to a columnar binary snapshot that
+ * {@link UFOSnapshotReader} maps back in, so a cube can be rebuilt without
+ * parsing the TSV again.
+ * <p>
+ * The file is a fixed size header, then blocks of up to blockRows rows, then
+ * the dictionaries and an index giving the offset and first row of each
+ * block. Within a block each of the five dimension columns (event day,
+ * report day, city, state and shape codes from {@link UFODictionaries}) is
+ * stored as a base and the difference from it in 1, 2 or 4 bytes per row,
+ * whichever fits the block. Duration and description follow as lengths and
+ * UTF-8 bytes unless {@link #setIncludeText(boolean)} turned them off.
+ * <p>
+ * Dates are kept to the day, in the zone of the dictionaries: every date
+ * on a day reads back as the first one written for it. Entries must
+ * have a city, state, shape and both dates, as every parsed entry does.
+ */
+public class UFOSnapshotWriter {
+
+	private static final Logger log = Logger.getLogger(UFOSnapshotWriter.class);
+
+	static final int MAGIC = 0x55464f53; // "UFOS"
+	static final int VERSION = 1;
+	static final int FLAG_TEXT = 1;
+	// magic, version, flags, blockRows, rows, blocks, dictionaryOffset, indexOffset
+	static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 4 + 8 + 8;
+	static final int NUM_COLUMNS = 5;
+	static final int EVENT_DAY = 0;
+	static final int REPORT_DAY = 1;
+	static final int CITY = 2;
+	static final int STATE = 3;
+	static final int SHAPE = 4;
+
+	public static final int DEFAULT_BLOCK_ROWS = 4096;
+
+	final FileOutputStream out;
+	final FileChannel channel;
+	final UFODictionaries dictionaries;
+
+	int blockRows = DEFAULT_BLOCK_ROWS;
+	boolean includeText = true;
+
+	int[][] columns;
+	String[] durations;
+	String[] descriptions;
+	int rowsInBlock = 0;
+	long rows = 0;
+
+	long[] blockOffsets = new long[16];
+	long[] blockFirstRows = new long[16];
+	int blocks = 0;
+
+	ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+
+	public UFOSnapshotWriter(File file) throws IOException {
+		this(file, new UFODictionaries());
+	}
+
+	/**
+	 * Writes codes from dictionaries, so {@link CompactUFOEntry}s read with
+	 * the same dictionaries are copied without looking anything up.
+	 */
+	public UFOSnapshotWriter(File file, UFODictionaries dictionaries) throws IOException {
+		this.dictionaries = dictionaries;
+		this.out = new FileOutputStream(file);
+		this.channel = out.getChannel();
+		channel.position(HEADER_SIZE);
+	}
+
+	public UFODictionaries getDictionaries() {
+		return dictionaries;
+	}
+
+	public void setBlockRows(int blockRows) {
+		if (blockRows < 1) throw new IllegalArgumentException("blockRows must be at least 1");
+		checkNotStarted();
+		this.blockRows = blockRows;
+	}
+
+	/**
+	 * Whether to keep duration and description. Without them a snapshot is
+	 * a fraction of the size, and reads as if
+	 * {@link MappedUFODataReader#setDimensionFieldsOnly(boolean)} were set.
+	 */
+	public void setIncludeText(boolean includeText) {
+		checkNotStarted();
+		this.includeText = includeText;
+	}
+
+	void checkNotStarted() {
+		if (columns != null) throw new IllegalStateException("Rows have already been added");
+	}
+
+	public void add(UFODataEntry entry) throws IOException {
+		if (columns == null) {
+			columns = new int[NUM_COLUMNS][blockRows];
+			if (includeText) {
+				durations = new String[blockRows];
+				descriptions = new String[blockRows];
+			}
+		}
+
+		int row = rowsInBlock;
+		if (entry instanceof CompactUFOEntry && ((CompactUFOEntry) entry).dictionaries == dictionaries) {
+			CompactUFOEntry compact = (CompactUFOEntry) entry;
+			columns[EVENT_DAY][row] = compact.eventDay;
+			columns[REPORT_DAY][row] = compact.reportDay;
+			columns[CITY][row] = compact.cityCode;
+			columns[STATE][row] = compact.stateCode;
+			columns[SHAPE][row] = compact.shapeCode;
+		}
+		else {
+			if (entry.getEventDate() == null || entry.getReportDate() == null || entry.getCity() == null
+					|| entry.getState() == null || entry.getShape() == null) {
+				throw new IllegalArgumentException("Entry is missing a dimension value: " + entry);
+			}
+			columns[EVENT_DAY][row] = dictionaries.toDay(entry.getEventDate());
+			columns[REPORT_DAY][row] = dictionaries.toDay(entry.getReportDate());
+			columns[CITY][row] = dictionaries.cities.intern(entry.getCity());
+			columns[STATE][row] = dictionaries.states.intern(entry.getState());
+			columns[SHAPE][row] = dictionaries.shapes.intern(entry.getShape());
+		}
+		if (includeText) {
+			durations[row] = entry.getDuration();
+			descriptions[row] = entry.getDescription();
+		}
+
+		rowsInBlock++;
+		rows++;
+		if (rowsInBlock == blockRows) {
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Adds every entry, returning how many there were.
+	 */
+	public long addAll(Iterator<? extends UFODataEntry> entries) throws IOException {
+		long count = 0;
+		while (entries.hasNext()) {
+			add(entries.next());
+			count++;
+		}
+		return count;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	void writeBlock() throws IOException {
+		if (blocks == blockOffsets.length) {
+			long[] offsets = new long[blocks * 2];
+			long[] firstRows = new long[blocks * 2];
+			System.arraycopy(blockOffsets, 0, offsets, 0, blocks);
+			System.arraycopy(blockFirstRows, 0, firstRows, 0, blocks);
+			blockOffsets = offsets;
+			blockFirstRows = firstRows;
+		}
+		blockOffsets[blocks] = channel.position();
+		blockFirstRows[blocks] = rows - rowsInBlock;
+		blocks++;
+
+		buf.clear();
+		ensure(4);
+		buf.putInt(rowsInBlock);
+		for (int c=0; c < NUM_COLUMNS; c++) {
+			writeColumn(columns[c], rowsInBlock);
+		}
+		if (includeText) {
+			writeText(durations, rowsInBlock);
+			writeText(descriptions, rowsInBlock);
+		}
+		flushBuffer();
+		rowsInBlock = 0;
+	}
+
+	void writeColumn(int[] values, int count) {
+		int min = values[0];
+		int max = values[0];
+		for (int i=1; i < count; i++) {
+			if (values[i] < min) min = values[i];
+			if (values[i] > max) max = values[i];
+		}
+		long range = (long) max - min;
+		int width = range < 0x100 ? 1 : range < 0x10000 ? 2 : 4;
+
+		ensure(5 + count * width);
+		buf.putInt(min);
+		buf.put((byte) width);
+		switch (width) {
+		case 1:
+			for (int i=0; i < count; i++) buf.put((byte) (values[i] - min));
+			break;
+		case 2:
+			for (int i=0; i < count; i++) buf.putShort((short) (values[i] - min));
+			break;
+		default:
+			for (int i=0; i < count; i++) buf.putInt(values[i] - min);
+		}
+	}
+
+	/**
+	 * Each value's byte length, -1 for null, then the bytes of them all.
+	 */
+	void writeText(String[] values, int count) {
+		byte[][] encoded = new byte[count][];
+		int total = 0;
+		for (int i=0; i < count; i++) {
+			if (values[i] != null) {
+				encoded[i] = values[i].getBytes(InternTable.UTF8);
+				total += encoded[i].length;
+			}
+		}
+		ensure(count * 4 + total);
+		for (int i=0; i < count; i++) {
+			buf.putInt(encoded[i] == null ? -1 : encoded[i].length);
+		}
+		for (int i=0; i < count; i++) {
+			if (encoded[i] != null) buf.put(encoded[i]);
+		}
+	}
+
+	void ensure(int bytes) {
+		if (buf.remaining() < bytes) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + bytes));
+			buf.flip();
+			bigger.put(buf);
+			buf = bigger;
+		}
+	}
+
+	void flushBuffer() throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	/**
+	 * Writes the last block, the dictionaries, the index and the header.
+	 */
+	public void close() throws IOException {
+		try {
+			if (rowsInBlock > 0) {
+				writeBlock();
+			}
+
+			long dictionaryOffset = channel.position();
+			buf.clear();
+			byte[] zone = dictionaries.getZone().getID().getBytes(InternTable.UTF8);
+			ensure(4 + zone.length);
+			buf.putInt(zone.length);
+			buf.put(zone);
+			writeDates();
+			writeDictionary(dictionaries.cities);
+			writeDictionary(dictionaries.states);
+			writeDictionary(dictionaries.shapes);
+			flushBuffer();
+
+			long indexOffset = channel.position();
+			buf.clear();
+			ensure(blocks * 16);
+			for (int i=0; i < blocks; i++) {
+				buf.putLong(blockOffsets[i]);
+				buf.putLong(blockFirstRows[i]);
+			}
+			flushBuffer();
+
+			buf.clear();
+			buf.putInt(MAGIC);
+			buf.putInt(VERSION);
+			buf.putInt(includeText ? FLAG_TEXT : 0);
+			buf.putInt(blockRows);
+			buf.putLong(rows);
+			buf.putInt(blocks);
+			buf.putLong(dictionaryOffset);
+			buf.putLong(indexOffset);
+			buf.flip();
+			long pos = 0;
+			while (buf.hasRemaining()) {
+				pos += channel.write(buf, pos);
+			}
+			log.info("Wrote " + rows + " rows in " + blocks + " blocks, " + channel.size() + " bytes");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * The instant each day number stands for, so dates come back exactly as
+	 * they went in rather than as midnight by a different reckoning (joda and
+	 * java.util disagree about some historic zone offsets).
+	 */
+	void writeDates() {
+		UFODictionaries.DayTable table = dictionaries.dayTable;
+		int count = 0;
+		for (DateTime date: table.dates) {
+			if (date != null) count++;
+		}
+		ensure(4 + count * 12);
+		buf.putInt(count);
+		for (int i=0; i < table.dates.length; i++) {
+			if (table.dates[i] != null) {
+				buf.putInt(table.firstDay + i);
+				buf.putLong(table.dates[i].getMillis());
+			}
+		}
+	}
+
+	void writeDictionary(InternTable table) {
+		int size = table.size();
+		ensure(4);
+		buf.putInt(size);
+		for (int code=0; code < size; code++) {
+			byte[] value = table.getBytes(code);
+			ensure(4 + value.length);
+			buf.putInt(value.length);
+			buf.put(value);
+		}
+	}
+
+	/**
+	 * Converts a UFO TSV file to a snapshot:
+	 * UFOSnapshotWriter input.tsv output.snapshot [--no-text]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: UFOSnapshotWriter input.tsv output.snapshot [--no-text]");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		UFODataReader reader = new UFODataReader(args[0]);
+		UFOSnapshotWriter writer = new UFOSnapshotWriter(new File(args[1]));
+		writer.setIncludeText(!(args.length > 2 && args[2].equals("--no-text")));
+		try {
+			writer.addAll(reader.iterator());
+		}
+		finally {
+			writer.close();
+			reader.close();
+		}
+		System.err.println("Converted " + writer.getRows() + " rows in " + (System.currentTimeMillis() - start) + "ms");
+	}
+}
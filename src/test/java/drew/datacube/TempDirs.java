@@ -0,0 +1,42 @@
+package drew.datacube;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Temporary directories for tests of on-disk harnesses, deleted with
+ * everything in them by {@link #deleteAll()}, which tests call from an
+ * After method.
+ */
+public class TempDirs {
+
+	final List<File> dirs = new ArrayList<File>();
+
+	public File create(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+		dirs.add(dir);
+		return dir;
+	}
+
+	public void deleteAll() {
+		for (File dir: dirs) {
+			delete(dir);
+		}
+		dirs.clear();
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child: children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
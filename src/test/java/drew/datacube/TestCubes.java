@@ -0,0 +1,27 @@
+package drew.datacube;
+
+import org.joda.time.DateTime;
+
+import com.google.common.collect.ImmutableList;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.bucketers.StringToBytesBucketer;
+import com.urbanairship.datacube.ops.LongOp;
+
+/**
+ * The cube harness tests write to: an hour, day and month bucketed time and
+ * a 5 byte zipcode, with whichever rollups of them a test needs.
+ */
+public class TestCubes {
+
+	public static final Dimension<DateTime> TIME =
+			new Dimension<DateTime>("time", new HourDayMonthBucketer(), false, 8);
+	public static final Dimension<String> ZIPCODE =
+			new Dimension<String>("zipcode", new StringToBytesBucketer(), true, 5);
+
+	public static DataCube<LongOp> timeAndZipcode(Rollup... rollups) {
+		return new DataCube<LongOp>(ImmutableList.<Dimension<?>>of(TIME, ZIPCODE), ImmutableList.copyOf(rollups));
+	}
+}
@@ -0,0 +1,154 @@
+package drew.datacube.accumulo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.idservices.CachingIdService;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.TestCubes;
+
+public class AccumuloDbHarnessTest {
+
+	Dimension<DateTime> time = TestCubes.TIME;
+	Dimension<String> zipcode = TestCubes.ZIPCODE;
+	DataCube<LongOp> cube = TestCubes.timeAndZipcode(
+			new Rollup(zipcode, time, HourDayMonthBucketer.hours),
+			new Rollup(zipcode, time, HourDayMonthBucketer.days),
+			new Rollup(time, HourDayMonthBucketer.days));
+
+	static Connector mockConnector(String instanceName) throws Exception {
+		return new MockInstance(instanceName).getConnector("root", new byte[0]);
+	}
+
+	AccumuloDbHarness<LongOp> newHarness(Connector conn, IdService idService) throws Exception {
+		return new AccumuloDbHarness<LongOp>(conn, "myCube".getBytes(), "cubeData",
+				"fam".getBytes(), LongOp.DESERIALIZER, idService, CommitType.INCREMENT);
+	}
+
+	@Test
+	public void testCombinerSums() throws Exception {
+		IdService idService = new CachingIdService(5, new MapIdService());
+		AccumuloDbHarness<LongOp> harness = newHarness(mockConnector("testCombinerSums"), idService);
+		DataCubeIo<LongOp> cubeIo = new DataCubeIo<LongOp>(cube, harness, 1, Long.MAX_VALUE, SyncLevel.FULL_SYNC);
+
+		DateTime now = new DateTime(DateTimeZone.UTC);
+		DateTime differentHour = now.withHourOfDay((now.getHourOfDay()+1)%24);
+
+		cubeIo.writeSync(new LongOp(5), new WriteBuilder(cube).at(time, now).at(zipcode, "97201"));
+		cubeIo.writeSync(new LongOp(10), new WriteBuilder(cube).at(time, differentHour).at(zipcode, "97201"));
+
+		Optional<LongOp> hour = cubeIo.get(new ReadBuilder(cube)
+				.at(time, HourDayMonthBucketer.hours, now)
+				.at(zipcode, "97201"));
+		Assert.assertTrue(hour.isPresent());
+		Assert.assertEquals(5L, hour.get().getLong());
+
+		Optional<LongOp> day = cubeIo.get(new ReadBuilder(cube)
+				.at(time, HourDayMonthBucketer.days, now)
+				.at(zipcode, "97201"));
+		Assert.assertTrue(day.isPresent());
+		Assert.assertEquals(15L, day.get().getLong());
+
+		Optional<LongOp> missing = cubeIo.get(new ReadBuilder(cube)
+				.at(time, HourDayMonthBucketer.days, now)
+				.at(zipcode, "10001"));
+		Assert.assertFalse(missing.isPresent());
+
+		harness.shutdown();
+	}
+
+	@Test
+	public void testAsyncWrites() throws Exception {
+		IdService idService = new CachingIdService(1000, new MapIdService());
+		AccumuloDbHarness<LongOp> harness = newHarness(mockConnector("testAsyncWrites"), idService);
+		DataCubeIo<LongOp> cubeIo = new DataCubeIo<LongOp>(cube, harness, 1000, Long.MAX_VALUE, SyncLevel.BATCH_ASYNC);
+
+		DateTime start = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+		int rows = 20000;
+
+		for (int i=0; i < rows; i++) {
+			cubeIo.writeAsync(new LongOp(1), new WriteBuilder(cube)
+					.at(time, start.plusHours(i % 48))
+					.at(zipcode, Integer.toString(10000 + (i % 100))));
+		}
+		cubeIo.flush();
+
+		long total = 0;
+		for (int d=0; d < 2; d++) {
+			Optional<LongOp> day = cubeIo.get(new ReadBuilder(cube)
+					.at(time, HourDayMonthBucketer.days, start.plusDays(d)));
+			Assert.assertTrue(day.isPresent());
+			total += day.get().getLong();
+		}
+		Assert.assertEquals(rows, total);
+
+		harness.shutdown();
+	}
+
+	@Test
+	public void testMultiGet() throws Exception {
+		IdService idService = new CachingIdService(1000, new MapIdService());
+		AccumuloDbHarness<LongOp> harness = newHarness(mockConnector("testMultiGet"), idService);
+		DataCubeIo<LongOp> cubeIo = new DataCubeIo<LongOp>(cube, harness, 500, Long.MAX_VALUE, SyncLevel.BATCH_ASYNC);
+
+		DateTime start = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+		int cells = 300;
+		for (int i=0; i < cells; i++) {
+			cubeIo.writeAsync(new LongOp(i + 1), new WriteBuilder(cube)
+					.at(time, start.plusHours(i))
+					.at(zipcode, "97201"));
+		}
+		cubeIo.flush();
+
+		// read back in reverse order, with every tenth address never written
+		List<Address> addresses = new ArrayList<Address>();
+		for (int i=cells - 1; i >= 0; i--) {
+			DateTime hour = (i % 10 == 0) ? start.minusYears(1).plusHours(i) : start.plusHours(i);
+			addresses.add(new ReadBuilder(cube)
+					.at(time, HourDayMonthBucketer.hours, hour)
+					.at(zipcode, "97201").build());
+		}
+
+		List<Optional<LongOp>> batched = harness.multiGet(addresses);
+		List<Optional<LongOp>> serial = new ArrayList<Optional<LongOp>>();
+		for (Address address: addresses) {
+			serial.add(harness.get(address));
+		}
+
+		Assert.assertEquals(cells, batched.size());
+		for (int j=0; j < cells; j++) {
+			int i = cells - 1 - j;
+			Assert.assertEquals(serial.get(j), batched.get(j));
+			if (i % 10 == 0) {
+				Assert.assertFalse(batched.get(j).isPresent());
+			}
+			else {
+				Assert.assertEquals(i + 1, batched.get(j).get().getLong());
+			}
+		}
+
+		harness.shutdown();
+	}
+}
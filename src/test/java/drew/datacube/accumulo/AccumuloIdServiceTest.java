@@ -0,0 +1,113 @@
+package drew.datacube.accumulo;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.accumulo.core.client.Connector;
+import org.junit.Test;
+
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.idservices.CachingIdService;
+import com.urbanairship.datacube.idservices.MapIdService;
+
+import drew.datacube.cache.IdCache;
+import drew.datacube.cache.IdCache.IdCacheStats;
+
+public class AccumuloIdServiceTest {
+
+	AccumuloIdService newIdService(Connector conn, int blockSize) throws Exception {
+		return new AccumuloIdService(conn, "cubeLookup", "cubeReverse", "cubeCounter",
+				"myCube".getBytes(), blockSize, 100000);
+	}
+
+	@Test
+	public void testBlockLeasing() throws Exception {
+		Connector conn = AccumuloDbHarnessTest.mockConnector("testBlockLeasing");
+		AccumuloIdService idService = newIdService(conn, 1000);
+
+		Set<BoxedByteArray> ids = new HashSet<BoxedByteArray>();
+		for (int i=0; i < 2500; i++) {
+			byte[] id = idService.getId(2, ("city" + i).getBytes(), 10);
+			Assert.assertEquals(10, id.length);
+			Assert.assertTrue(ids.add(new BoxedByteArray(id)));
+		}
+		Assert.assertEquals(3, idService.getLeaseCount());
+
+		// repeat lookups are served from the cache
+		long lookups = idService.getStoreLookupCount();
+		for (int i=0; i < 2500; i++) {
+			Assert.assertTrue(ids.contains(new BoxedByteArray(idService.getId(2, ("city" + i).getBytes(), 10))));
+		}
+		Assert.assertEquals(lookups, idService.getStoreLookupCount());
+
+		byte[] id = idService.getId(2, "city42".getBytes(), 10);
+		Assert.assertEquals("city42", new String(idService.getValue(2, id).get()));
+
+		idService.close();
+	}
+
+	@Test
+	public void testClientsAgree() throws Exception {
+		Connector conn = AccumuloDbHarnessTest.mockConnector("testClientsAgree");
+		AccumuloIdService first = newIdService(conn, 10);
+		AccumuloIdService second = newIdService(conn, 10);
+
+		Set<BoxedByteArray> ids = new HashSet<BoxedByteArray>();
+		for (int i=0; i < 50; i++) {
+			AccumuloIdService assigner = (i % 2 == 0) ? first : second;
+			AccumuloIdService other = (i % 2 == 0) ? second : first;
+			byte[] value = ("state" + i).getBytes();
+
+			byte[] id = assigner.getId(3, value, 6);
+			Assert.assertTrue(Arrays.equals(id, other.getId(3, value, 6)));
+			Assert.assertTrue(ids.add(new BoxedByteArray(id)));
+		}
+
+		// dimensions are numbered independently
+		Assert.assertTrue(Arrays.equals(first.getId(4, "state0".getBytes(), 6),
+				second.getId(4, "state0".getBytes(), 6)));
+
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testCachingIdServiceBackend() throws Exception {
+		Connector conn = AccumuloDbHarnessTest.mockConnector("testCachingIdServiceBackend");
+		IdService idService = new CachingIdService(5, newIdService(conn, 1000));
+
+		byte[] nj = idService.getId(0, "NJ".getBytes(), 4);
+		byte[] ny = idService.getId(0, "NY".getBytes(), 4);
+		Assert.assertFalse(Arrays.equals(nj, ny));
+		Assert.assertTrue(Arrays.equals(nj, idService.getId(0, "NJ".getBytes(), 4)));
+	}
+
+	@Test
+	public void testPrewarmIdCache() throws Exception {
+		Connector conn = AccumuloDbHarnessTest.mockConnector("testPrewarmIdCache");
+		AccumuloIdService backing = new AccumuloIdService(conn, "cubeLookup", "cubeReverse", "cubeCounter",
+				"myCube".getBytes());
+		for (int i=0; i < 300; i++) {
+			backing.getId(3, ("city" + i).getBytes(), 5);
+		}
+		// another dimension in the same tables is not picked up
+		backing.getId(4, "city0".getBytes(), 5);
+
+		IdCache idCache = new IdCache(backing, 1000);
+		Assert.assertEquals(300, idCache.prewarm(3, 5));
+		for (int i=0; i < 300; i++) {
+			Assert.assertTrue(Arrays.equals(backing.getId(3, ("city" + i).getBytes(), 5),
+					idCache.getId(3, ("city" + i).getBytes(), 5)));
+		}
+		IdCacheStats stats = idCache.getStats(3);
+		Assert.assertEquals(300, stats.hits);
+		Assert.assertEquals(0, stats.loads);
+
+		Assert.assertEquals(0, new IdCache(new MapIdService(), 1000).prewarm(3, 5));
+		backing.close();
+	}
+}
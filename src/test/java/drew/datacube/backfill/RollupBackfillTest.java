@@ -0,0 +1,140 @@
+package drew.datacube.backfill;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.BucketType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.backfill.RollupBackfill.BackfillStats;
+import drew.datacube.config.ConfiguredCube;
+import drew.datacube.config.CubeBuilder;
+
+public class RollupBackfillTest {
+
+	static final String[] ZIPCODES = { "97201", "97202", "10001" };
+	static final String ADDED_ROLLUPS = "time:days, time:months, zipcode, zipcode+time:months";
+
+	@Test
+	public void testBackfillMatchesRollupsBuiltFromTheStart() throws Exception {
+		for (String harness: new String[] { "map", "offheap", "striped", "accumulo" }) {
+			ConfiguredCube complete = build(harness, "complete", "zipcode+time:hours, time:hours, " + ADDED_ROLLUPS);
+			ConfiguredCube backfilled = build(harness, "backfilled", "zipcode+time:hours, time:hours");
+			write(complete);
+			write(backfilled);
+
+			for (String spec: ADDED_ROLLUPS.split(",")) {
+				BackfillStats stats = backfilled.addRollup(spec.trim());
+				Assert.assertTrue(harness + " " + spec, stats.cellsWritten > 0);
+				Assert.assertEquals(harness + " " + spec, 0, stats.unreadableKeys);
+			}
+			Assert.assertEquals(harness, complete.getCube().getRollups().size(),
+					backfilled.getCube().getRollups().size());
+
+			DateTime start = new DateTime(2012, 1, 30, 0, 0, 0, 0);
+			for (int day=0; day < 5; day++) {
+				DateTime at = start.plusDays(day);
+				Assert.assertEquals(harness + " day " + at, count(complete, HourDayMonthBucketer.days, at, null),
+						count(backfilled, HourDayMonthBucketer.days, at, null));
+			}
+			for (int month=0; month < 2; month++) {
+				DateTime at = start.plusMonths(month);
+				Assert.assertEquals(harness + " month " + at, count(complete, HourDayMonthBucketer.months, at, null),
+						count(backfilled, HourDayMonthBucketer.months, at, null));
+				for (String zip: ZIPCODES) {
+					Assert.assertEquals(harness + " " + zip + " month " + at,
+							count(complete, HourDayMonthBucketer.months, at, zip),
+							count(backfilled, HourDayMonthBucketer.months, at, zip));
+				}
+			}
+			long total = 0;
+			for (String zip: ZIPCODES) {
+				long zipCount = count(backfilled, null, null, zip);
+				Assert.assertEquals(harness + " " + zip, count(complete, null, null, zip), zipCount);
+				total += zipCount;
+			}
+			Assert.assertEquals(harness, 100, total);
+
+			// the new rollups take writes like any other
+			backfilled.getCubeIo().writeSync(new LongOp(1), new WriteBuilder(backfilled.getCube())
+					.at(backfilled.<DateTime>getDimension("time"), start)
+					.at(backfilled.<String>getDimension("zipcode"), ZIPCODES[0]));
+			backfilled.getCubeIo().flush();
+			Assert.assertEquals(harness, count(complete, null, null, ZIPCODES[0]) + 1,
+					count(backfilled, null, null, ZIPCODES[0]));
+
+			complete.close();
+			backfilled.close();
+		}
+	}
+
+	@Test
+	public void testUnderivableRollupsAreRejected() throws Exception {
+		ConfiguredCube configured = build("map", "rejected", "zipcode+time:days, time:days");
+		write(configured);
+		try {
+			configured.addRollup("time:hours");
+			Assert.fail("Expected hours to be underivable from days");
+		}
+		catch (IllegalArgumentException expected) { }
+		try {
+			configured.addRollup("time:days");
+			Assert.fail("Expected an existing rollup to be rejected");
+		}
+		catch (IllegalArgumentException expected) { }
+
+		RollupBackfill<LongOp> backfill = new RollupBackfill<LongOp>(configured.getCube(),
+				configured.getCellStore(), new Rollup(configured.getDimension("time"), HourDayMonthBucketer.months));
+		Assert.assertEquals("time:day", backfill.getSource());
+		configured.close();
+	}
+
+	static ConfiguredCube build(String harness, String name, String rollups) throws Exception {
+		return CubeBuilder.load("accumulo-cube.properties")
+				.set("cube.name", name)
+				.set("accumulo.instance", "backfill-" + harness)
+				.set("rollups", rollups)
+				.set("harness", harness)
+				.set("harness.offheap.capacity", 10000)
+				.set("io.batchSize", 10)
+				.set("io.syncLevel", "BATCH_SYNC")
+				.build();
+	}
+
+	static void write(ConfiguredCube configured) throws Exception {
+		Dimension<DateTime> time = configured.getDimension("time");
+		Dimension<String> zipcode = configured.getDimension("zipcode");
+		DateTime start = new DateTime(2012, 1, 30, 0, 0, 0, 0);
+		for (int i=0; i < 100; i++) {
+			configured.getCubeIo().writeAsync(new LongOp(1), new WriteBuilder(configured.getCube())
+					.at(time, start.plusHours(i * 7 % 96))
+					.at(zipcode, ZIPCODES[i % ZIPCODES.length]));
+		}
+		configured.getCubeIo().flush();
+	}
+
+	/**
+	 * Reads the cell at the time bucket and zipcode, either of which may be
+	 * null to leave it out.
+	 */
+	static long count(ConfiguredCube configured, BucketType timeBucket, DateTime time, String zipcode)
+			throws Exception {
+		ReadBuilder read = new ReadBuilder(configured.getCube());
+		if (timeBucket != null) {
+			read.at(configured.<DateTime>getDimension("time"), timeBucket, time);
+		}
+		if (zipcode != null) {
+			read.at(configured.<String>getDimension("zipcode"), zipcode);
+		}
+		Optional<LongOp> value = configured.getCubeIo().get(read);
+		return value.isPresent() ? value.get().getLong() : 0;
+	}
+}
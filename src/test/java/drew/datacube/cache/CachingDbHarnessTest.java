@@ -0,0 +1,173 @@
+package drew.datacube.cache;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.dbharnesses.MapDbHarness;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.TestCubes;
+
+public class CachingDbHarnessTest {
+
+	Dimension<DateTime> time = TestCubes.TIME;
+	Dimension<String> zipcode = TestCubes.ZIPCODE;
+	DataCube<LongOp> cube = TestCubes.timeAndZipcode(
+			new Rollup(zipcode, time, HourDayMonthBucketer.months),
+			new Rollup(time, HourDayMonthBucketer.months));
+
+	DateTime jan = new DateTime(2010, 1, 15, 0, 0, 0, 0, DateTimeZone.UTC);
+
+	CachingDbHarness<LongOp> harness(int maxEntries, long openTtlMs) {
+		CachingDbHarness<LongOp> harness = new CachingDbHarness<LongOp>(new MapDbHarness<LongOp>(
+				new ConcurrentHashMap<BoxedByteArray,byte[]>(), LongOp.DESERIALIZER,
+				CommitType.READ_COMBINE_CAS, new MapIdService()), maxEntries, openTtlMs);
+		harness.setTimeZone(DateTimeZone.UTC);
+		return harness;
+	}
+
+	long month(DataCubeIo<LongOp> cubeIo, DateTime when) throws Exception {
+		Optional<LongOp> count = cubeIo.get(new ReadBuilder(cube).at(time, HourDayMonthBucketer.months, when));
+		return count.isPresent() ? count.get().getLong() : 0;
+	}
+
+	@Test
+	public void testClosedMonthsAreCachedAndLocalWritesInvalidate() throws Exception {
+		CachingDbHarness<LongOp> harness = harness(1000, 0);
+		DataCubeIo<LongOp> cubeIo = new DataCubeIo<LongOp>(cube, harness, 1, Long.MAX_VALUE, SyncLevel.FULL_SYNC);
+		for (int m=0; m < 3; m++) {
+			cubeIo.writeSync(new LongOp(m + 1), new WriteBuilder(cube).at(time, jan.plusMonths(m)).at(zipcode, "97201"));
+		}
+		harness.setWatermark(new DateTime(2010, 3, 1, 0, 0, 0, 0, DateTimeZone.UTC));
+
+		Assert.assertEquals(1L, month(cubeIo, jan));
+		Assert.assertEquals(1L, month(cubeIo, jan));
+		Assert.assertEquals(1, harness.getHits());
+
+		// March is still open, and with no ttl is never cached
+		Assert.assertEquals(3L, month(cubeIo, jan.plusMonths(2)));
+		Assert.assertEquals(3L, month(cubeIo, jan.plusMonths(2)));
+		Assert.assertEquals(1, harness.getHits());
+		Assert.assertEquals(3, harness.getMisses());
+
+		// a late write to a closed month is seen on the next read
+		cubeIo.writeSync(new LongOp(10), new WriteBuilder(cube).at(time, jan).at(zipcode, "97201"));
+		Assert.assertTrue(harness.getInvalidations() > 0);
+		Assert.assertEquals(11L, month(cubeIo, jan));
+
+		// months with no data are cached as missing
+		Assert.assertEquals(0L, month(cubeIo, jan.minusYears(1)));
+		Assert.assertEquals(0L, month(cubeIo, jan.minusYears(1)));
+
+		// multiGet mixes cached and loaded cells in order
+		List<Address> addresses = ImmutableList.of(
+				new ReadBuilder(cube).at(time, HourDayMonthBucketer.months, jan).build(),
+				new ReadBuilder(cube).at(time, HourDayMonthBucketer.months, jan.plusMonths(1)).build(),
+				new ReadBuilder(cube).at(time, HourDayMonthBucketer.months, jan.plusMonths(2)).build());
+		long hits = harness.getHits();
+		List<Optional<LongOp>> counts = harness.multiGet(addresses);
+		Assert.assertEquals(11L, counts.get(0).get().getLong());
+		Assert.assertEquals(2L, counts.get(1).get().getLong());
+		Assert.assertEquals(3L, counts.get(2).get().getLong());
+		Assert.assertEquals(hits + 1, harness.getHits());
+
+		// moving the watermark back drops everything
+		harness.setWatermark(null);
+		Assert.assertEquals(0, harness.size());
+	}
+
+	@Test
+	public void testWritesDuringAReadAreNotMasked() throws Exception {
+		final Runnable[] duringPut = new Runnable[1];
+		final CachingDbHarness<LongOp> harness = new CachingDbHarness<LongOp>(new MapDbHarness<LongOp>(
+				new ConcurrentHashMap<BoxedByteArray,byte[]>(), LongOp.DESERIALIZER,
+				CommitType.READ_COMBINE_CAS, new MapIdService()), 1000, 0) {
+			@Override
+			boolean isClosed(Address address) {
+				// runs between the backing read and caching its value
+				if (duringPut[0] != null) {
+					Runnable write = duringPut[0];
+					duringPut[0] = null;
+					write.run();
+				}
+				return super.isClosed(address);
+			}
+		};
+		harness.setTimeZone(DateTimeZone.UTC);
+		harness.setWatermark(new DateTime(2010, 3, 1, 0, 0, 0, 0, DateTimeZone.UTC));
+		final DataCubeIo<LongOp> cubeIo = new DataCubeIo<LongOp>(cube, harness, 1, Long.MAX_VALUE,
+				SyncLevel.FULL_SYNC);
+		final DataCubeIo<LongOp> behindCache = new DataCubeIo<LongOp>(cube, harness.getBacking(), 1,
+				Long.MAX_VALUE, SyncLevel.FULL_SYNC);
+
+		duringPut[0] = new Runnable() {
+			public void run() {
+				write(cubeIo, 1);
+			}
+		};
+		Assert.assertEquals(0L, month(cubeIo, jan));
+		Assert.assertEquals(1L, month(cubeIo, jan));
+
+		// as when a rollup is backfilled straight into the backing store
+		duringPut[0] = new Runnable() {
+			public void run() {
+				write(behindCache, 2);
+				harness.invalidateAll();
+			}
+		};
+		harness.invalidateAll();
+		Assert.assertEquals(1L, month(cubeIo, jan));
+		Assert.assertEquals(3L, month(cubeIo, jan));
+		Assert.assertEquals(3L, month(cubeIo, jan));
+		Assert.assertEquals(1, harness.getHits());
+	}
+
+	void write(DataCubeIo<LongOp> cubeIo, long count) {
+		try {
+			cubeIo.writeSync(new LongOp(count), new WriteBuilder(cube).at(time, jan).at(zipcode, "97201"));
+		}
+		catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	@Test
+	public void testOpenCellsExpireAndCacheIsBounded() throws Exception {
+		CachingDbHarness<LongOp> harness = harness(32, 50);
+		DataCubeIo<LongOp> cubeIo = new DataCubeIo<LongOp>(cube, harness, 1, Long.MAX_VALUE, SyncLevel.FULL_SYNC);
+		cubeIo.writeSync(new LongOp(1), new WriteBuilder(cube).at(time, jan).at(zipcode, "97201"));
+
+		month(cubeIo, jan);
+		month(cubeIo, jan);
+		Assert.assertEquals(1, harness.getHits());
+		Thread.sleep(100);
+		month(cubeIo, jan);
+		Assert.assertEquals(1, harness.getHits());
+
+		for (int m=0; m < 500; m++) {
+			month(cubeIo, jan.plusMonths(m));
+		}
+		Assert.assertTrue(harness.size() <= 32);
+		Assert.assertTrue(harness.getEvictions() > 0);
+	}
+}
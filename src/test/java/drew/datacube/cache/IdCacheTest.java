@@ -0,0 +1,75 @@
+package drew.datacube.cache;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.urbanairship.datacube.idservices.MapIdService;
+
+import drew.datacube.cache.IdCache.IdCacheStats;
+
+public class IdCacheTest {
+
+	static byte[] value(String prefix, int i) {
+		return (prefix + i).getBytes();
+	}
+
+	@Test
+	public void testScanDoesNotEvictHotValues() throws Exception {
+		MapIdService backing = new MapIdService();
+		IdCache idCache = new IdCache(backing, 1000);
+		idCache.setCapacity(2, 400);
+
+		// looked up twice, so protected
+		for (int round=0; round < 2; round++) {
+			for (int i=0; i < 40; i++) {
+				Assert.assertTrue(Arrays.equals(backing.getId(2, value("hot", i), 4),
+						idCache.getId(2, value("hot", i), 4)));
+			}
+		}
+		IdCacheStats stats = idCache.getStats(2);
+		Assert.assertEquals(40, stats.hits);
+		Assert.assertEquals(40, stats.misses);
+		Assert.assertEquals(40, stats.loads);
+
+		for (int i=0; i < 10000; i++) {
+			idCache.getId(2, value("scan", i), 4);
+		}
+		Assert.assertEquals(400, idCache.getStats(2).size);
+
+		long hits = idCache.getStats(2).hits;
+		for (int i=0; i < 40; i++) {
+			idCache.getId(2, value("hot", i), 4);
+		}
+		Assert.assertEquals(hits + 40, idCache.getStats(2).hits);
+
+		// other dimensions are counted separately
+		idCache.getId(0, value("hot", 0), 4);
+		Assert.assertEquals(1, idCache.getStats(0).misses);
+		Assert.assertEquals(2, idCache.getStats().size());
+	}
+
+	@Test
+	public void testResize() throws Exception {
+		IdCache idCache = new IdCache(new MapIdService(), 800);
+		// capacity is split over shards, so stay well under it
+		for (int i=0; i < 400; i++) {
+			idCache.getId(1, value("city", i), 4);
+		}
+		Assert.assertEquals(400, idCache.getStats(1).size);
+
+		idCache.setCapacity(1, 80);
+		Assert.assertEquals(80, idCache.getCapacity(1));
+		IdCacheStats stats = idCache.getStats(1);
+		Assert.assertTrue(stats.size <= 80);
+		Assert.assertEquals(400 - stats.size, stats.evictions);
+
+		idCache.setCapacity(1, 0);
+		idCache.getId(1, value("city", 1), 4);
+		idCache.getId(1, value("city", 1), 4);
+		Assert.assertEquals(0, idCache.getStats(1).size);
+		Assert.assertEquals(0, idCache.getStats(1).hits);
+	}
+}
@@ -0,0 +1,84 @@
+package drew.datacube.config;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.accumulo.AccumuloDbHarness;
+import drew.datacube.striped.StripedDbHarness;
+
+public class CubeBuilderTest {
+
+	@Test
+	public void testBackendsFromConfig() throws Exception {
+		for (String harness: new String[] { "map", "offheap", "striped", "accumulo" }) {
+			CubeBuilder builder = CubeBuilder.load("accumulo-cube.properties")
+					.set("harness", harness)
+					.set("harness.commitType", "INCREMENT")
+					.set("harness.offheap.capacity", 1000)
+					.set("io.batchSize", 10)
+					.set("io.syncLevel", "BATCH_SYNC");
+			ConfiguredCube configured = builder.build();
+			Assert.assertEquals(harness, configured.getBackend());
+
+			Dimension<DateTime> time = configured.getDimension("time");
+			Dimension<String> zipcode = configured.getDimension("zipcode");
+			DataCubeIo<LongOp> cubeIo = configured.getCubeIo();
+			DateTime now = new DateTime(2012, 6, 1, 12, 0, 0, 0, DateTimeZone.UTC);
+
+			for (int i=0; i < 25; i++) {
+				cubeIo.writeSync(new LongOp(1), new WriteBuilder(configured.getCube())
+						.at(time, now.plusHours(i % 2))
+						.at(zipcode, "97201"));
+			}
+			cubeIo.flush();
+
+			Optional<LongOp> day = cubeIo.get(new ReadBuilder(configured.getCube())
+					.at(time, HourDayMonthBucketer.days, now)
+					.at(zipcode, "97201"));
+			Assert.assertEquals(harness, 25L, day.get().getLong());
+			Optional<LongOp> hour = cubeIo.get(new ReadBuilder(configured.getCube())
+					.at(time, HourDayMonthBucketer.hours, now));
+			Assert.assertEquals(harness, 13L, hour.get().getLong());
+
+			if (harness.equals("striped")) {
+				Assert.assertTrue(configured.getHarness() instanceof StripedDbHarness);
+			}
+			if (harness.equals("accumulo")) {
+				Assert.assertTrue(configured.getHarness() instanceof AccumuloDbHarness);
+			}
+			configured.close();
+		}
+	}
+
+	@Test
+	public void testBadConfigIsRejected() throws Exception {
+		try {
+			CubeBuilder.load("simple-cube.properties").set("rollups", "zipcode+area").build();
+			Assert.fail("Expected unknown dimension to be rejected");
+		}
+		catch (IllegalArgumentException expected) { }
+
+		try {
+			CubeBuilder.load("simple-cube.properties").set("rollups", "time:weeks").build();
+			Assert.fail("Expected unknown bucket type to be rejected");
+		}
+		catch (IllegalArgumentException expected) { }
+
+		try {
+			CubeBuilder.load("simple-cube.properties").set("dimension.time.fieldBytes", "").build();
+			Assert.fail("Expected missing fieldBytes to be rejected");
+		}
+		catch (IllegalArgumentException expected) { }
+	}
+}
@@ -0,0 +1,206 @@
+package drew.datacube.durable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.TempDirs;
+import drew.datacube.config.ConfiguredCube;
+import drew.datacube.config.CubeBuilder;
+
+public class DurableMapDbHarnessTest {
+
+	static final DateTime START = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+
+	final TempDirs tempDirs = new TempDirs();
+
+	@After
+	public void deleteTempDirs() {
+		tempDirs.deleteAll();
+	}
+
+	@Test
+	public void testRecoversAfterCrashAndRestart() throws Exception {
+		File dir = tempDirs.create("durable_cube");
+		ConfiguredCube cube = open(dir);
+		write(cube, 0, 500);
+		Assert.assertEquals(500, total(cube));
+
+		// not closed, as after a crash: only the log is there to replay
+		ConfiguredCube recovered = open(dir);
+		DurableMapDbHarness<LongOp> harness = harness(recovered);
+		Assert.assertEquals(0, harness.getRecoveredCells());
+		Assert.assertEquals(500, harness.getReplayedBatches());
+		assertSameCounts(cube, recovered);
+
+		harness.snapshot();
+		write(recovered, 500, 300);
+		ConfiguredCube again = open(dir);
+		Assert.assertEquals(harness.size(), harness(again).size());
+		Assert.assertEquals(300, harness(again).getReplayedBatches());
+		Assert.assertEquals(800, total(again));
+		assertSameCounts(recovered, again);
+
+		// a clean close snapshots, leaving nothing to replay
+		again.close();
+		ConfiguredCube reopened = open(dir);
+		Assert.assertEquals(0, harness(reopened).getReplayedBatches());
+		Assert.assertEquals(800, total(reopened));
+		assertSameCounts(again, reopened);
+		reopened.close();
+	}
+
+	@Test
+	public void testTornBatchIsDropped() throws Exception {
+		File dir = tempDirs.create("durable_torn");
+		ConfiguredCube cube = open(dir);
+		write(cube, 0, 100);
+
+		WriteAheadLog wal = harness(cube).wal;
+		File segment = wal.segmentFile(wal.segments().get(wal.segments().size() - 1));
+		FileOutputStream out = new FileOutputStream(segment, true);
+		out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3, 4, 5, 6 });
+		out.close();
+
+		ConfiguredCube recovered = open(dir);
+		Assert.assertEquals(100, harness(recovered).getReplayedBatches());
+		Assert.assertEquals(100, total(recovered));
+		write(recovered, 100, 10);
+		Assert.assertEquals(110, total(open(dir)));
+	}
+
+	@Test
+	public void testConcurrentBatchesShareSyncs() throws Exception {
+		File dir = tempDirs.create("durable_group");
+		final ConfiguredCube cube = open(dir);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t=0; t < 8; t++) {
+			final int from = t * 100;
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					write(cube, from, 100);
+					return null;
+				}
+			}));
+		}
+		for (Future<?> future: futures) {
+			future.get();
+		}
+		executor.shutdown();
+		Assert.assertEquals(800, total(cube));
+		// a sync per batch would be 800; waiting writers share the next one
+		Assert.assertTrue(harness(cube).getSyncCount() < 600);
+		Assert.assertEquals(800, total(open(dir)));
+	}
+
+	@Test
+	public void testIdLogIsCompactedOnOpen() throws Exception {
+		File dir = tempDirs.create("durable_ids");
+		for (int restart=0; restart < 5; restart++) {
+			DurableIdService ids = new DurableIdService(dir);
+			Assert.assertEquals(1, ids.wal.segments().size());
+			for (int i=0; i < 10 * (restart + 1); i++) {
+				Assert.assertEquals(i, ids.getId(0, ("value" + i).getBytes(), 4)[3]);
+			}
+			// not closed, as after a crash
+		}
+		DurableIdService ids = new DurableIdService(dir);
+		Assert.assertEquals(1, ids.snapshots().length);
+		Assert.assertEquals(49, ids.getId(0, "value49".getBytes(), 4)[3]);
+		Assert.assertEquals(50, ids.getId(0, "value50".getBytes(), 4)[3]);
+		ids.close();
+	}
+
+	@Test
+	public void testFlushThrowsWhenSyncFails() throws Exception {
+		File dir = tempDirs.create("durable_sync_failure");
+		ConfiguredCube cube = CubeBuilder.load("simple-cube.properties")
+				.set("harness", "durable")
+				.set("harness.durable.dir", dir.getPath())
+				.set("harness.durable.syncIntervalMs", 60000)
+				.set("harness.durable.snapshotIntervalMs", 0)
+				.build();
+		write(cube, 0, 10);
+		WriteAheadLog wal = harness(cube).wal;
+		synchronized (wal) {
+			wal.failure = new IOException("disk full");
+		}
+		try {
+			cube.getCubeIo().flush();
+			Assert.fail();
+		}
+		catch (IllegalStateException ex) {
+			// the writes were reported applied but never reached disk
+		}
+	}
+
+	static ConfiguredCube open(File dir) throws Exception {
+		return CubeBuilder.load("simple-cube.properties")
+				.set("harness", "durable")
+				.set("harness.durable.dir", dir.getPath())
+				.set("harness.durable.snapshotIntervalMs", 0)
+				.build();
+	}
+
+	@SuppressWarnings("unchecked")
+	static DurableMapDbHarness<LongOp> harness(ConfiguredCube cube) {
+		return (DurableMapDbHarness<LongOp>) cube.getCellStore();
+	}
+
+	static void write(ConfiguredCube cube, int from, int count) throws Exception {
+		for (int i=from; i < from + count; i++) {
+			cube.getCubeIo().writeSync(new LongOp(1), new WriteBuilder(cube.getCube())
+					.at(cube.<DateTime>getDimension("time"), START.plusHours(i % 50))
+					.at(cube.<String>getDimension("zipcode"), Integer.toString(97200 + i % 7)));
+		}
+	}
+
+	static long total(ConfiguredCube cube) throws Exception {
+		long total = 0;
+		for (int day=0; day < 3; day++) {
+			total += count(cube, new ReadBuilder(cube.getCube())
+					.at(cube.<DateTime>getDimension("time"), HourDayMonthBucketer.days, START.plusDays(day)));
+		}
+		return total;
+	}
+
+	static void assertSameCounts(ConfiguredCube expected, ConfiguredCube actual) throws Exception {
+		for (int hour=0; hour < 50; hour++) {
+			for (int zip=0; zip < 7; zip++) {
+				String zipcode = Integer.toString(97200 + zip);
+				Assert.assertEquals(hour + " " + zipcode,
+						count(expected, new ReadBuilder(expected.getCube())
+						.at(expected.<DateTime>getDimension("time"), HourDayMonthBucketer.hours, START.plusHours(hour))
+						.at(expected.<String>getDimension("zipcode"), zipcode)),
+						count(actual, new ReadBuilder(actual.getCube())
+						.at(actual.<DateTime>getDimension("time"), HourDayMonthBucketer.hours, START.plusHours(hour))
+						.at(actual.<String>getDimension("zipcode"), zipcode)));
+			}
+		}
+	}
+
+	static long count(ConfiguredCube cube, ReadBuilder read) throws Exception {
+		Optional<LongOp> value = cube.getCubeIo().get(read);
+		return value.isPresent() ? value.get().getLong() : 0;
+	}
+}
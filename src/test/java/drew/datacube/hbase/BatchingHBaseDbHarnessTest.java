@@ -0,0 +1,211 @@
+package drew.datacube.hbase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.FullQueueException;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.TestCubes;
+
+/**
+ * Runs the harness against an in-memory table that counts batch RPCs, with
+ * rows spread over SERVERS region servers by their last byte.
+ */
+public class BatchingHBaseDbHarnessTest {
+
+	static final byte[] TABLE = Bytes.toBytes("cubeData");
+	static final byte[] CF = Bytes.toBytes("fam");
+	static final int SERVERS = 4;
+	static final DateTime START = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+
+	final Dimension<DateTime> time = TestCubes.TIME;
+	final Dimension<String> zipcode = TestCubes.ZIPCODE;
+	final DataCube<LongOp> cube = TestCubes.timeAndZipcode(
+			new Rollup(zipcode, time, HourDayMonthBucketer.hours));
+
+	@Test
+	public void testOneRpcPerServerPerBatch() throws Exception {
+		MockTable table = new MockTable();
+		BatchingHBaseDbHarness harness = harness(table, 1, 1000);
+
+		// 10,000 rows in batches of 1,000, each cell written twice
+		for (int round=0; round < 2; round++) {
+			for (int b=0; b < 10; b++) {
+				Map<Address,LongOp> cells = new HashMap<Address,LongOp>();
+				for (int i=0; i < 1000; i++) {
+					cells.put(address(b * 1000 + i), new LongOp(i % 7 + 1));
+				}
+				harness.runBatchAsync(new Batch<LongOp>(cells), NO_OP);
+			}
+		}
+		harness.flush();
+
+		BatchingHBaseDbHarness.IngestStats stats = harness.getStats();
+		Assert.assertEquals(20000, stats.rows);
+		Assert.assertEquals(20 * SERVERS, stats.rpcs);
+		Assert.assertEquals(table.batchCalls.get(), stats.rpcs);
+		// against one RPC per row for the library harness
+		Assert.assertEquals(SERVERS * 10000.0 / 1000, stats.getRpcsPer10kRows());
+
+		Assert.assertEquals(2 * 4, harness.get(address(3)).get().getLong());
+		List<Address> addresses = new ArrayList<Address>();
+		for (int i=0; i < 10000; i++) {
+			addresses.add(address(i));
+		}
+		addresses.add(address(20000));
+		List<Optional<LongOp>> values = harness.multiGet(addresses);
+		for (int i=0; i < 10000; i++) {
+			Assert.assertEquals(2 * (i % 1000 % 7 + 1), values.get(i).get().getLong());
+		}
+		Assert.assertFalse(values.get(10000).isPresent());
+		harness.shutdown();
+	}
+
+	@Test
+	public void testFullQueueWhenServersFallBehind() throws Exception {
+		MockTable table = new MockTable();
+		table.blocked = new CountDownLatch(1);
+		BatchingHBaseDbHarness harness = harness(table, 1, 50);
+
+		Map<Address,LongOp> cells = new HashMap<Address,LongOp>();
+		cells.put(address(1), new LongOp(1));
+		harness.runBatchAsync(new Batch<LongOp>(cells), NO_OP);
+		try {
+			harness.runBatchAsync(new Batch<LongOp>(cells), NO_OP);
+			Assert.fail();
+		}
+		catch (FullQueueException ex) {
+			// the first batch still holds the only slot
+		}
+		Assert.assertEquals(1, harness.getStats().fullQueues);
+
+		table.blocked.countDown();
+		harness.runBatchAsync(new Batch<LongOp>(cells), NO_OP).get();
+		harness.flush();
+		Assert.assertEquals(2, harness.get(address(1)).get().getLong());
+		harness.shutdown();
+	}
+
+	BatchingHBaseDbHarness harness(final MockTable table, int queueSize, long queueTimeoutMs) {
+		return new BatchingHBaseDbHarness(null, null, Bytes.toBytes("cube"), TABLE, CF, new MapIdService(),
+				CommitType.INCREMENT, 4, queueSize, queueTimeoutMs, 1000) {
+			@Override
+			protected HTableInterface table() {
+				return table.proxy();
+			}
+
+			@Override
+			protected String serverFor(byte[] row) {
+				return "server" + (row[row.length - 1] & 0xff) % SERVERS + ":60020";
+			}
+		};
+	}
+
+	Address address(int i) {
+		return new ReadBuilder(cube).at(time, HourDayMonthBucketer.hours, START.plusHours(i / 100))
+				.at(zipcode, Integer.toString(10000 + i % 100)).build();
+	}
+
+	static final AfterExecute<LongOp> NO_OP = new AfterExecute<LongOp>() {
+		public void afterExecute(Throwable t) {
+		}
+	};
+
+	/**
+	 * The batch and get calls of an HTable, over a map of row to count.
+	 */
+	static class MockTable implements InvocationHandler {
+		final Map<BoxedByteArray,Long> cells = new ConcurrentHashMap<BoxedByteArray,Long>();
+		final AtomicLong batchCalls = new AtomicLong();
+		volatile CountDownLatch blocked;
+
+		HTableInterface proxy() {
+			return (HTableInterface) Proxy.newProxyInstance(HTableInterface.class.getClassLoader(),
+					new Class<?>[] { HTableInterface.class }, this);
+		}
+
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("batch")) {
+				if (blocked != null) {
+					blocked.await();
+				}
+				batchCalls.incrementAndGet();
+				for (Row row: (List<Row>) args[0]) {
+					increment((Increment) row);
+				}
+				return new Object[((List<Row>) args[0]).size()];
+			}
+			if (name.equals("get") && args[0] instanceof Get) {
+				return result((Get) args[0]);
+			}
+			if (name.equals("get")) {
+				List<Get> gets = (List<Get>) args[0];
+				Result[] results = new Result[gets.size()];
+				for (int i=0; i < results.length; i++) {
+					results[i] = result(gets.get(i));
+				}
+				return results;
+			}
+			if (name.equals("close")) {
+				return null;
+			}
+			throw new UnsupportedOperationException(name);
+		}
+
+		synchronized void increment(Increment increment) {
+			for (NavigableMap<byte[],Long> columns: increment.getFamilyMap().values()) {
+				for (Long amount: columns.values()) {
+					BoxedByteArray row = new BoxedByteArray(increment.getRow());
+					Long old = cells.get(row);
+					cells.put(row, (old == null ? 0 : old) + amount);
+				}
+			}
+		}
+
+		Result result(Get get) {
+			Long value = cells.get(new BoxedByteArray(get.getRow()));
+			if (value == null) {
+				return new Result();
+			}
+			return new Result(new KeyValue[] {
+					new KeyValue(get.getRow(), CF, BatchingHBaseDbHarness.QUALIFIER, Bytes.toBytes(value)) });
+		}
+	}
+}
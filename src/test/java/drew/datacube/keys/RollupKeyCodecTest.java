@@ -0,0 +1,133 @@
+package drew.datacube.keys;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.TempDirs;
+import drew.datacube.backfill.CellStore.CellVisitor;
+import drew.datacube.config.ConfiguredCube;
+import drew.datacube.config.CubeBuilder;
+import drew.datacube.lsm.LsmDbHarness;
+
+public class RollupKeyCodecTest {
+
+	static final DateTime START = new DateTime(1969, 12, 31, 0, 0, 0, 0, DateTimeZone.UTC);
+
+	final TempDirs tempDirs = new TempDirs();
+
+	@After
+	public void deleteTempDirs() {
+		tempDirs.deleteAll();
+	}
+
+	@Test
+	public void testKeysAreShorterAndSortByRollupThenTime() throws Exception {
+		ConfiguredCube configured = CubeBuilder.load("simple-cube.properties").build();
+		RollupKeyCodec codec = new RollupKeyCodec(configured.getCube());
+		Dimension<DateTime> time = configured.getDimension("time");
+		Dimension<String> zipcode = configured.getDimension("zipcode");
+
+		List<byte[]> keys = new ArrayList<byte[]>();
+		for (int hour=47; hour >= 0; hour--) {
+			Address address = new ReadBuilder(configured.getCube())
+					.at(time, HourDayMonthBucketer.hours, START.plusHours(hour))
+					.at(zipcode, "97201").build();
+			byte[] key = codec.toKey(address, configured.getIdService());
+			Assert.assertTrue(key.length < address.toKey(configured.getIdService()).length);
+			Assert.assertEquals(0, key[0]);
+			keys.add(key);
+
+			keys.add(codec.toKey(new ReadBuilder(configured.getCube())
+					.at(time, HourDayMonthBucketer.days, START.plusHours(hour)).build(),
+					configured.getIdService()));
+		}
+		Collections.sort(keys, UNSIGNED);
+		// the 48 hours of zipcode+time:hours, in time order and across 1970,
+		// then the keys of time:days
+		for (int i=0; i < 48; i++) {
+			Assert.assertEquals(0, keys.get(i)[0]);
+			if (i > 0) {
+				Assert.assertTrue(UNSIGNED.compare(keys.get(i - 1), keys.get(i)) < 0);
+			}
+		}
+		for (int i=48; i < keys.size(); i++) {
+			Assert.assertEquals(3, keys.get(i)[0]);
+		}
+	}
+
+	@Test
+	public void testTimeRangeScanOnLsm() throws Exception {
+		File dir = tempDirs.create("rollup_keys");
+		ConfiguredCube configured = CubeBuilder.load("simple-cube.properties")
+				.set("harness", "lsm")
+				.set("harness.lsm.dir", dir.getPath())
+				.set("harness.lsm.memtableCells", 50)
+				.set("harness.keyCodec", "rollup")
+				.build();
+		Dimension<DateTime> time = configured.getDimension("time");
+		Dimension<String> zipcode = configured.getDimension("zipcode");
+		for (int i=0; i < 480; i++) {
+			configured.getCubeIo().writeSync(new LongOp(1), new WriteBuilder(configured.getCube())
+					.at(time, START.plusHours(i % 48)).at(zipcode, Integer.toString(97200 + i % 5)));
+		}
+
+		Optional<LongOp> cell = configured.getCubeIo().get(new ReadBuilder(configured.getCube())
+				.at(time, HourDayMonthBucketer.hours, START.plusHours(3)).at(zipcode, "97203"));
+		Assert.assertEquals(2, cell.get().getLong());
+
+		// hours 10 to 14 of every zipcode, and nothing from other rollups
+		Rollup zipHours = configured.getCube().getRollups().get(0);
+		byte[][] range = ((RollupKeyCodec) configured.getKeyCodec()).timeRange(zipHours,
+				START.plusHours(10), START.plusHours(15));
+		final long[] cellsAndTotal = new long[2];
+		((LsmDbHarness) configured.getCellStore()).scan(range[0], range[1], new CellVisitor<LongOp>() {
+			public boolean visit(byte[] key, LongOp value) {
+				cellsAndTotal[0]++;
+				cellsAndTotal[1] += value.getLong();
+				return true;
+			}
+		});
+		Assert.assertEquals(5 * 5, cellsAndTotal[0]);
+		Assert.assertEquals(5 * 10, cellsAndTotal[1]);
+
+		try {
+			configured.addRollup("zipcode+time:months");
+			Assert.fail();
+		}
+		catch (IllegalStateException ex) {
+			// backfill needs keys in the address layout
+		}
+		configured.close();
+	}
+
+	static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			for (int i=0; i < Math.min(a.length, b.length); i++) {
+				int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+				if (cmp != 0) {
+					return cmp;
+				}
+			}
+			return a.length - b.length;
+		}
+	};
+}
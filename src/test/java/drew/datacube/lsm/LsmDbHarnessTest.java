@@ -0,0 +1,165 @@
+package drew.datacube.lsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.TempDirs;
+import drew.datacube.backfill.CellStore.CellVisitor;
+
+public class LsmDbHarnessTest {
+
+	final TempDirs tempDirs = new TempDirs();
+
+	@After
+	public void deleteTempDirs() {
+		tempDirs.deleteAll();
+	}
+
+	@Test
+	public void testFlushesAndCompactionsKeepCounts() throws Exception {
+		File dir = tempDirs.create("lsm_counts");
+		LsmDbHarness harness = open(dir, CommitType.INCREMENT);
+		TreeMap<byte[],Long> expected = new TreeMap<byte[],Long>(Segment.KEY_ORDER);
+		write(harness, expected, new Random(1), 20000);
+		harness.flushMemtables();
+
+		LsmDbHarness.LsmStats stats = harness.getStats();
+		Assert.assertTrue(stats.toString(), stats.flushes >= 100);
+		Assert.assertTrue(stats.toString(), stats.compactions > 0);
+		assertSame(expected, harness);
+
+		harness.compactNow();
+		Assert.assertEquals(0, harness.getStats().level0Segments);
+		Assert.assertTrue(harness.getStats().level1Segments > 1);
+		assertSame(expected, harness);
+
+		// a clean close flushes the memtable, leaving nothing to replay
+		harness.close();
+		LsmDbHarness reopened = open(dir, CommitType.INCREMENT);
+		Assert.assertEquals(0, reopened.getStats().memtableCells);
+		assertSame(expected, reopened);
+		reopened.close();
+	}
+
+	@Test
+	public void testRecoversMemtableFromLog() throws Exception {
+		File dir = tempDirs.create("lsm_crash");
+		LsmDbHarness harness = open(dir, CommitType.INCREMENT);
+		TreeMap<byte[],Long> expected = new TreeMap<byte[],Long>(Segment.KEY_ORDER);
+		Random random = new Random(2);
+		write(harness, expected, random, 3000);
+		harness.compactNow();
+		write(harness, expected, random, 20);
+		Assert.assertTrue(harness.getStats().memtableCells > 0);
+		harness.flush();
+
+		// not closed, as after a crash: the memtable is only in the synced log
+		LsmDbHarness recovered = open(dir, CommitType.INCREMENT);
+		Assert.assertEquals(harness.getStats().memtableCells, recovered.getStats().memtableCells);
+		assertSame(expected, recovered);
+		write(recovered, expected, random, 3000);
+		recovered.flushMemtables();
+		assertSame(expected, recovered);
+		recovered.close();
+	}
+
+	@Test
+	public void testOverwriteKeepsNewestValue() throws Exception {
+		LsmDbHarness harness = open(tempDirs.create("lsm_overwrite"), CommitType.OVERWRITE);
+		byte[] key = key(7);
+		for (int i=0; i < 500; i++) {
+			// each round lands in a different memtable and segment
+			harness.write(new byte[][] { key, key(1000 + i) }, new long[] { i, 1 });
+			Assert.assertEquals(i, harness.get(key).get().getLong());
+		}
+		harness.compactNow();
+		Assert.assertEquals(499, harness.get(key).get().getLong());
+		Assert.assertFalse(harness.get(key(5)).isPresent());
+		harness.close();
+	}
+
+	@Test
+	public void testFlushThrowsAfterBackgroundFailure() throws Exception {
+		LsmDbHarness harness = open(tempDirs.create("lsm_failure"), CommitType.INCREMENT);
+		harness.write(new byte[][] { key(1) }, new long[] { 1 });
+		harness.flush();
+		harness.failed(new IOException("disk full"));
+		try {
+			harness.flush();
+			Assert.fail();
+		}
+		catch (IllegalStateException ex) {
+			// the memtable may never reach a segment
+		}
+	}
+
+	static LsmDbHarness open(File dir, CommitType commitType) throws Exception {
+		LsmDbHarness harness = new LsmDbHarness(dir, new MapIdService(), commitType, 100, 100);
+		harness.setCompactionTrigger(3);
+		harness.setTargetSegmentBytes(4096);
+		return harness;
+	}
+
+	static void write(LsmDbHarness harness, Map<byte[],Long> expected, Random random, int batches)
+			throws Exception {
+		for (int b=0; b < batches; b++) {
+			byte[][] keys = new byte[3][];
+			long[] values = new long[keys.length];
+			for (int i=0; i < keys.length; i++) {
+				keys[i] = key(random.nextInt(5000));
+				values[i] = random.nextInt(10);
+				Long old = expected.get(keys[i]);
+				expected.put(keys[i], (old == null ? 0 : old) + values[i]);
+			}
+			harness.write(keys, values);
+		}
+	}
+
+	static void assertSame(TreeMap<byte[],Long> expected, LsmDbHarness harness) throws Exception {
+		for (Map.Entry<byte[],Long> cell: expected.entrySet()) {
+			Optional<LongOp> value = harness.get(cell.getKey());
+			Assert.assertTrue(value.isPresent());
+			Assert.assertEquals(cell.getValue().longValue(), value.get().getLong());
+		}
+		Assert.assertFalse(harness.get(key(5000)).isPresent());
+
+		final List<byte[]> keys = new ArrayList<byte[]>();
+		final List<Long> values = new ArrayList<Long>();
+		CellVisitor<LongOp> collect = new CellVisitor<LongOp>() {
+			public boolean visit(byte[] key, LongOp value) {
+				keys.add(key);
+				values.add(value.getLong());
+				return true;
+			}
+		};
+		harness.scan(collect);
+		Assert.assertEquals(new ArrayList<byte[]>(expected.keySet()).size(), keys.size());
+		Assert.assertEquals(new ArrayList<Long>(expected.values()), values);
+
+		keys.clear();
+		values.clear();
+		harness.scan(key(1000), key(2000), collect);
+		Assert.assertEquals(new ArrayList<Long>(expected.subMap(key(1000), key(2000)).values()), values);
+		Assert.assertTrue(Segment.KEY_ORDER.compare(key(1000), keys.get(0)) <= 0);
+	}
+
+	static byte[] key(int i) {
+		return ByteBuffer.allocate(6).putShort((short) 1).putInt(i).array();
+	}
+}
@@ -0,0 +1,220 @@
+package drew.datacube.metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.Batch;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DbHarness;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.dbharnesses.AfterExecute;
+import com.urbanairship.datacube.dbharnesses.FullQueueException;
+import com.urbanairship.datacube.ops.LongOp;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+import drew.datacube.TempDirs;
+import drew.datacube.config.ConfiguredCube;
+import drew.datacube.config.CubeBuilder;
+import drew.ufo.reader.UFODataEntry;
+import drew.ufo.reader.UFODataReader;
+
+public class CubeMetricsTest {
+
+	static final DateTime START = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+
+	final TempDirs tempDirs = new TempDirs();
+
+	@After
+	public void deleteTempDirs() {
+		tempDirs.deleteAll();
+	}
+
+	@Test
+	public void testConfiguredCubeIsMetered() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		ConfiguredCube configured = CubeBuilder.load("simple-cube.properties")
+				.setMetricsRegistry(registry).build();
+		Assert.assertTrue(configured.getCubeIo() instanceof MeteredDataCubeIo);
+		Assert.assertTrue(configured.getHarness() instanceof MeteredDbHarness);
+
+		Dimension<DateTime> time = configured.getDimension("time");
+		Dimension<String> zipcode = configured.getDimension("zipcode");
+		for (int i=0; i < 1000; i++) {
+			configured.getCubeIo().writeSync(new LongOp(1), new WriteBuilder(configured.getCube())
+					.at(time, START.plusHours(i % 10)).at(zipcode, Integer.toString(97200 + i % 4)));
+		}
+		for (int i=0; i < 2 * CubeMetrics.SAMPLE_EVERY; i++) {
+			configured.getCubeIo().get(new ReadBuilder(configured.getCube())
+					.at(time, HourDayMonthBucketer.days, START).build());
+		}
+
+		Assert.assertEquals(1000, ((Meter) metric(registry, "DataCubeIo", "writes")).count());
+		Assert.assertEquals(1000 / CubeMetrics.SAMPLE_EVERY,
+				((Timer) metric(registry, "DataCubeIo", "syncWrites")).count());
+		Assert.assertEquals(2, ((Timer) metric(registry, "DataCubeIo", "reads")).count());
+		// io.batchSize=1, so a batch per write with a cell per rollup
+		Assert.assertEquals(1000, ((Timer) metric(registry, "DbHarness", "batches")).count());
+		Assert.assertEquals(4.0, ((Histogram) metric(registry, "DbHarness", "batchSizes")).mean());
+		Assert.assertEquals(0, ((Counter) metric(registry, "DbHarness", "queueDepth")).count());
+		// four zipcodes, each missed once and then cached
+		Assert.assertEquals(4L, ((Gauge<?>) metric(registry, "IdService", "idCache.zipcode.misses")).value());
+		Assert.assertEquals(0.998, (Double) ((Gauge<?>) metric(registry, "IdService", "idCache.zipcode.hitRate"))
+				.value(), 0.0001);
+
+		configured.close();
+		Assert.assertTrue(registry.allMetrics().isEmpty());
+	}
+
+	@Test
+	public void testCasRetriesOfContendedCells() throws Exception {
+		File dir = tempDirs.create("cas_retries");
+		for (CubeBuilder builder: new CubeBuilder[] {
+				CubeBuilder.load("simple-cube.properties"),
+				CubeBuilder.load("simple-cube.properties").set("harness", "durable")
+						.set("harness.durable.dir", dir.getPath()).set("harness.durable.syncIntervalMs", 60000) }) {
+			MetricsRegistry registry = new MetricsRegistry();
+			final ConfiguredCube configured = builder.setMetricsRegistry(registry).build();
+			final Dimension<DateTime> time = configured.getDimension("time");
+			final Dimension<String> zipcode = configured.getDimension("zipcode");
+			final Counter casRetries = (Counter) metric(registry, "DbHarness", "casRetries");
+			final AtomicLong writes = new AtomicLong();
+			final long deadline = System.currentTimeMillis() + 10000;
+
+			// two threads add to the same cells until one of them loses a race
+			Thread[] threads = new Thread[2];
+			for (int t=0; t < threads.length; t++) {
+				threads[t] = new Thread() {
+					public void run() {
+						Batch<LongOp> batch = configured.getCube().getWrites(new WriteBuilder(configured.getCube())
+								.at(time, START).at(zipcode, "97201"), new LongOp(1));
+						try {
+							while (casRetries.count() == 0 && System.currentTimeMillis() < deadline) {
+								configured.getHarness().runBatchAsync(batch, NO_OP).get();
+								writes.incrementAndGet();
+							}
+						}
+						catch (Exception ex) {
+							throw new RuntimeException(ex);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread thread: threads) {
+				thread.join();
+			}
+
+			Assert.assertTrue(casRetries.count() > 0);
+			Assert.assertEquals(writes.get(), configured.getCubeIo().get(new ReadBuilder(configured.getCube())
+					.at(time, HourDayMonthBucketer.hours, START).at(zipcode, "97201")).get().getLong());
+			configured.close();
+		}
+	}
+
+	static final AfterExecute<LongOp> NO_OP = new AfterExecute<LongOp>() {
+		public void afterExecute(Throwable t) {
+		}
+	};
+
+	@Test
+	public void testFullQueuesAndCasRetries() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		CubeMetrics metrics = new CubeMetrics(registry, "test");
+		MeteredDbHarness<LongOp> harness = metrics.meter(new DbHarness<LongOp>() {
+			public Future<?> runBatchAsync(Batch<LongOp> batch, AfterExecute<LongOp> afterExecute)
+					throws FullQueueException {
+				throw new FullQueueException();
+			}
+
+			public Optional<LongOp> get(Address c) {
+				return Optional.absent();
+			}
+
+			public List<Optional<LongOp>> multiGet(List<Address> addresses) {
+				return null;
+			}
+
+			public void flush() {
+			}
+		});
+		try {
+			harness.runBatchAsync(new Batch<LongOp>(), null);
+			Assert.fail();
+		}
+		catch (FullQueueException ex) {
+			// counted and passed on
+		}
+		Assert.assertEquals(1, harness.fullQueues.count());
+		Assert.assertEquals(0, harness.queueDepth.count());
+
+		CasCountingMap map = new CasCountingMap(metrics);
+		BoxedByteArray key = new BoxedByteArray(new byte[] { 1 });
+		byte[] first = new byte[] { 1 };
+		Assert.assertNull(map.putIfAbsent(key, first));
+		Assert.assertNotNull(map.putIfAbsent(key, new byte[] { 2 }));
+		Assert.assertFalse(map.replace(key, new byte[] { 1 }, new byte[] { 3 }));
+		Assert.assertTrue(map.replace(key, first, new byte[] { 3 }));
+		Assert.assertEquals(2, map.casRetries.count());
+		metrics.remove();
+	}
+
+	@Test
+	public void testReaderRowsAndParseErrors() throws Exception {
+		File file = File.createTempFile("ufo_metrics", ".tsv");
+		file.deleteOnExit();
+		Writer out = new FileWriter(file);
+		out.write("19951009\t19951009\t Iowa City, IA\t\t\tflash\n");
+		out.write("1995x009\t19951009\t Iowa City, IA\t\t\tbad date\n");
+		out.write("19950915\t19950915\t Redmond, WA\t\t6 min.\tdisc\n");
+		out.write("19950915\t19950915\t Redmond, WA\n");
+		out.close();
+
+		MetricsRegistry registry = new MetricsRegistry();
+		CubeMetrics metrics = new CubeMetrics(registry, "ufo");
+		UFODataReader reader = new UFODataReader(file);
+		metrics.meter(reader);
+		int entries = 0;
+		for (UFODataEntry entry: reader) {
+			Assert.assertNotNull(entry);
+			entries++;
+		}
+		reader.close();
+
+		Assert.assertEquals(2, entries);
+		Assert.assertEquals(2, ((Meter) metric(registry, "UFODataReader", "rows")).count());
+		Assert.assertEquals(1, ((Meter) metric(registry, "UFODataReader", "parseErrors")).count());
+		Assert.assertEquals(1 / 3.0, (Double) ((Gauge<?>) metric(registry, "UFODataReader", "parseErrorRate"))
+				.value(), 0.0001);
+	}
+
+	static Object metric(MetricsRegistry registry, String type, String name) {
+		for (MetricName metricName: registry.allMetrics().keySet()) {
+			if (metricName.getType().equals(type) && metricName.getName().equals(name)) {
+				return registry.allMetrics().get(metricName);
+			}
+		}
+		throw new AssertionError("No metric " + type + "." + name);
+	}
+}
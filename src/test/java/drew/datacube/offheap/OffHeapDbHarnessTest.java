@@ -0,0 +1,120 @@
+package drew.datacube.offheap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.Address;
+import com.urbanairship.datacube.BoxedByteArray;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.IdService;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.dbharnesses.MapDbHarness;
+import com.urbanairship.datacube.idservices.CachingIdService;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.TestCubes;
+
+public class OffHeapDbHarnessTest {
+
+	Dimension<DateTime> time = TestCubes.TIME;
+	Dimension<String> zipcode = TestCubes.ZIPCODE;
+	DataCube<LongOp> cube = TestCubes.timeAndZipcode(
+			new Rollup(zipcode, time, HourDayMonthBucketer.hours),
+			new Rollup(time, HourDayMonthBucketer.days));
+
+	@Test
+	public void testMatchesMapDbHarness() throws Exception {
+		IdService idService = new CachingIdService(1000, new MapIdService());
+		OffHeapDbHarness offHeap = new OffHeapDbHarness(64, 10000, idService, CommitType.INCREMENT);
+		MapDbHarness<LongOp> onHeap = new MapDbHarness<LongOp>(new ConcurrentHashMap<BoxedByteArray,byte[]>(),
+				LongOp.DESERIALIZER, CommitType.READ_COMBINE_CAS, idService);
+		DataCubeIo<LongOp> offHeapIo = new DataCubeIo<LongOp>(cube, offHeap, 100, Long.MAX_VALUE, SyncLevel.BATCH_SYNC);
+		DataCubeIo<LongOp> onHeapIo = new DataCubeIo<LongOp>(cube, onHeap, 100, Long.MAX_VALUE, SyncLevel.BATCH_SYNC);
+
+		DateTime start = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+		for (int i=0; i < 5000; i++) {
+			WriteBuilder writeBuilder = new WriteBuilder(cube)
+				.at(time, start.plusHours(i % 72))
+				.at(zipcode, Integer.toString(10000 + (i % 37)));
+			offHeapIo.writeAsync(new LongOp(i % 3 + 1), writeBuilder);
+			onHeapIo.writeAsync(new LongOp(i % 3 + 1), writeBuilder);
+		}
+		offHeapIo.flush();
+		onHeapIo.flush();
+
+		List<Address> addresses = new ArrayList<Address>();
+		for (int h=0; h < 80; h++) {
+			addresses.add(new ReadBuilder(cube).at(time, HourDayMonthBucketer.hours, start.plusHours(h))
+					.at(zipcode, Integer.toString(10000 + (h % 37))).build());
+			addresses.add(new ReadBuilder(cube).at(time, HourDayMonthBucketer.days, start.plusHours(h)).build());
+		}
+		List<Optional<LongOp>> expected = onHeap.multiGet(addresses);
+		List<Optional<LongOp>> actual = offHeap.multiGet(addresses);
+		Assert.assertEquals(expected, actual);
+		Assert.assertFalse(actual.get(actual.size() - 1).isPresent());
+		Assert.assertTrue(actual.get(0).isPresent());
+
+		offHeap.close();
+	}
+
+	@Test
+	public void testConcurrentIncrements() throws Exception {
+		final OffHeapDbHarness harness = new OffHeapDbHarness(8, 1000, new MapIdService(), CommitType.INCREMENT);
+		Thread[] threads = new Thread[8];
+		for (int t=0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i=0; i < 100000; i++) {
+						harness.write(new byte[] { (byte) ((i % 500) >> 8), (byte) (i % 500) }, 1);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		Assert.assertEquals(500, harness.size());
+
+		long total = 0;
+		for (int k=0; k < 500; k++) {
+			total += harness.get(new byte[] { (byte) (k >> 8), (byte) k });
+		}
+		Assert.assertEquals(800000, total);
+		harness.close();
+	}
+
+	@Test
+	public void testOverwriteAndCapacity() throws Exception {
+		OffHeapDbHarness harness = new OffHeapDbHarness(4, 2, new MapIdService(), CommitType.OVERWRITE);
+		harness.write(new byte[] { 1 }, 5);
+		harness.write(new byte[] { 1 }, 7);
+		harness.write(new byte[] { 2, 2 }, 9);
+		Assert.assertEquals(7, harness.get(new byte[] { 1 }));
+		Assert.assertEquals(0, harness.findSlot(new byte[] { 1, 0 }, false));
+		try {
+			harness.write(new byte[] { 3 }, 1);
+			Assert.fail("expected the table to be full");
+		}
+		catch (IllegalStateException ex) {
+			// expected
+		}
+		harness.close();
+	}
+}
@@ -0,0 +1,99 @@
+package drew.datacube.striped;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.urbanairship.datacube.DataCube;
+import com.urbanairship.datacube.DataCubeIo;
+import com.urbanairship.datacube.DbHarness.CommitType;
+import com.urbanairship.datacube.Dimension;
+import com.urbanairship.datacube.ReadBuilder;
+import com.urbanairship.datacube.Rollup;
+import com.urbanairship.datacube.SyncLevel;
+import com.urbanairship.datacube.WriteBuilder;
+import com.urbanairship.datacube.bucketers.HourDayMonthBucketer;
+import com.urbanairship.datacube.idservices.CachingIdService;
+import com.urbanairship.datacube.idservices.MapIdService;
+import com.urbanairship.datacube.ops.LongOp;
+
+import drew.datacube.TestCubes;
+
+public class StripedDbHarnessTest {
+
+	Dimension<DateTime> time = TestCubes.TIME;
+	Dimension<String> zipcode = TestCubes.ZIPCODE;
+	DataCube<LongOp> cube = TestCubes.timeAndZipcode(
+			new Rollup(zipcode, time, HourDayMonthBucketer.hours),
+			new Rollup(time, HourDayMonthBucketer.days));
+
+	@Test
+	public void testConcurrentWritersOnHotCell() throws Exception {
+		StripedDbHarness harness = new StripedDbHarness(new CachingIdService(100, new MapIdService()),
+				CommitType.INCREMENT, 8);
+		final DataCubeIo<LongOp> cubeIo = new DataCubeIo<LongOp>(cube, harness, 1, Long.MAX_VALUE,
+				SyncLevel.FULL_SYNC);
+		final DateTime start = new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+
+		int numThreads = 8;
+		final int perThread = 5000;
+		final CountDownLatch go = new CountDownLatch(1);
+		Thread[] threads = new Thread[numThreads];
+		for (int t=0; t < numThreads; t++) {
+			final String zip = Integer.toString(10000 + t);
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						go.await();
+						for (int i=0; i < perThread; i++) {
+							cubeIo.writeSync(new LongOp(1), new WriteBuilder(cube)
+									.at(time, start.plusHours(i % 24))
+									.at(zipcode, zip));
+						}
+					}
+					catch (Exception ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		go.countDown();
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		cubeIo.flush();
+
+		// every write lands in the same day cell
+		Optional<LongOp> day = cubeIo.get(new ReadBuilder(cube).at(time, HourDayMonthBucketer.days, start));
+		Assert.assertTrue(day.isPresent());
+		Assert.assertEquals(numThreads * perThread, day.get().getLong());
+
+		Optional<LongOp> hour = cubeIo.get(new ReadBuilder(cube)
+				.at(time, HourDayMonthBucketer.hours, start.plusHours(3))
+				.at(zipcode, "10002"));
+		Assert.assertEquals(perThread / 24 + 1, hour.get().getLong());
+		Assert.assertEquals(numThreads * 24 + 1, harness.size());
+	}
+
+	@Test
+	public void testStripesSum() throws Exception {
+		StripedDbHarness.Cell cell = new StripedDbHarness.Cell(4);
+		cell.add(5);
+		cell.add(-2);
+		Assert.assertNull(cell.stripes);
+		cell.inflate();
+		cell.add(10);
+		Assert.assertEquals(13, cell.sum());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOverwriteRejected() {
+		new StripedDbHarness(new MapIdService(), CommitType.OVERWRITE);
+	}
+}
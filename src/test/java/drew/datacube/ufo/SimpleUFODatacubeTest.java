@@ -0,0 +1,132 @@
+package drew.datacube.ufo;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import drew.ufo.reader.UFODataEntry;
+import drew.ufo.reader.UFODataReader;
+import drew.ufo.reader.UFODataReader.UFODataBuilder;
+import drew.ufo.reader.UFOSnapshotReader;
+import drew.ufo.reader.UFOSnapshotWriter;
+
+public class SimpleUFODatacubeTest {
+
+	@Test
+	public void testMonthSeriesMatchesSingleGets() throws Exception {
+		File file = UFOIngestPipelineTest.writeSampleData(2000);
+		SimpleUFODatacube cube = new SimpleUFODatacube();
+		UFODataReader reader = new UFODataReader(file);
+		for (UFODataEntry entry: reader) {
+			cube.addUFOEntry(entry);
+		}
+		reader.close();
+
+		// the sample only covers 1995, so the ends of the range are empty
+		DateTime from = new DateTime(1994, 11, 20, 0, 0, 0, 0);
+		DateTime to = new DateTime(1996, 2, 3, 0, 0, 0, 0);
+		long[] series = cube.getEventMonthSeries(from, to);
+		long[] njSeries = cube.getEventStateMonthSeries("NJ", from, to);
+		Assert.assertEquals(16, series.length);
+		Assert.assertEquals(16, njSeries.length);
+
+		long total = 0;
+		for (int i=0; i < series.length; i++) {
+			DateTime month = from.withDayOfMonth(1).plusMonths(i);
+			Assert.assertEquals(cube.getEventMonthCount(month), series[i]);
+			Assert.assertEquals(cube.getEventStateMonthCount("NJ", month), njSeries[i]);
+			total += series[i];
+		}
+		Assert.assertEquals(0, series[0]);
+		Assert.assertEquals(0, series[15]);
+		Assert.assertTrue(njSeries[5] > 0);
+		Assert.assertEquals(1960, total);
+
+		Assert.assertEquals(0, cube.getEventMonthSeries(to, from).length);
+	}
+
+	@Test
+	public void testTopValues() throws Exception {
+		SimpleUFODatacube cube = new SimpleUFODatacube();
+		String[] states = { "NJ", "NY", "WA", "IA", "OR" };
+		String[] shapes = { "light", "disk", "orb" };
+		// state i gets 5 - i sightings a month, all of shape i % 3
+		for (int month=1; month <= 12; month++) {
+			for (int i=0; i < states.length; i++) {
+				for (int n=0; n < states.length - i; n++) {
+					cube.addUFOEntry(new UFODataBuilder()
+						.withEventDate(new DateTime(1995, month, 10, 0, 0, 0, 0))
+						.withReportDate(new DateTime(1995, month, 11, 0, 0, 0, 0))
+						.withCity("Springfield").withState(states[i]).withShape(shapes[i % 3])
+						.create());
+				}
+			}
+		}
+		Assert.assertEquals(5, cube.getStates().size());
+		Assert.assertEquals(3, cube.getShapes().size());
+
+		DateTime from = new DateTime(1995, 1, 1, 0, 0, 0, 0);
+		DateTime to = new DateTime(1995, 12, 31, 0, 0, 0, 0);
+		List<ValueCount> top = cube.getTopStates(from, to, 3);
+		Assert.assertEquals(3, top.size());
+		Assert.assertEquals(new ValueCount("NJ", 60), top.get(0));
+		Assert.assertEquals(new ValueCount("NY", 48), top.get(1));
+		Assert.assertEquals(new ValueCount("WA", 36), top.get(2));
+		Assert.assertEquals(5, cube.getTopStates(from, to, 0).size());
+
+		// shape 0 is NJ and IA (5 + 2), shape 1 NY and OR (4 + 1), shape 2 WA (3)
+		List<ValueCount> shapeCounts = cube.getTopShapes(from, from, 10);
+		Assert.assertEquals(new ValueCount("light", 7), shapeCounts.get(0));
+		Assert.assertEquals(new ValueCount("disk", 5), shapeCounts.get(1));
+		Assert.assertEquals(new ValueCount("orb", 3), shapeCounts.get(2));
+
+		// a closed range is cached, so later writes to it are not seen
+		cube.setClosedBefore(new DateTime(1996, 1, 1, 0, 0, 0, 0));
+		List<ValueCount> cached = cube.getTopStates(from, to, 1);
+		cube.addUFOEntry(new UFODataBuilder()
+			.withEventDate(new DateTime(1995, 6, 1, 0, 0, 0, 0))
+			.withReportDate(new DateTime(1995, 6, 1, 0, 0, 0, 0))
+			.withCity("Springfield").withState("NJ").withShape("light")
+			.create());
+		Assert.assertSame(cached, cube.getTopStates(from, to, 1));
+		Assert.assertEquals(61, cube.getTopStates(from, to.plusYears(1), 1).get(0).getCount());
+	}
+
+	@Test
+	public void testSnapshotMatchesTsv() throws Exception {
+		File file = UFOIngestPipelineTest.writeSampleData(2000);
+		SimpleUFODatacube fromTsv = new SimpleUFODatacube();
+		UFODataReader reader = new UFODataReader(file);
+		for (UFODataEntry entry: reader) {
+			fromTsv.addUFOEntry(entry);
+		}
+		reader.close();
+
+		File snapshotFile = File.createTempFile("ufo_sample", ".snapshot");
+		snapshotFile.deleteOnExit();
+		UFOSnapshotWriter writer = new UFOSnapshotWriter(snapshotFile);
+		writer.setIncludeText(false);
+		reader = new UFODataReader(file);
+		writer.addAll(reader.iterator());
+		writer.close();
+		reader.close();
+
+		SimpleUFODatacube fromSnapshot = new SimpleUFODatacube();
+		UFOSnapshotReader snapshot = new UFOSnapshotReader(snapshotFile);
+		Assert.assertEquals(1960, fromSnapshot.addSnapshot(snapshot));
+		snapshot.close();
+
+		DateTime from = new DateTime(1995, 1, 1, 0, 0, 0, 0);
+		DateTime to = new DateTime(1995, 12, 1, 0, 0, 0, 0);
+		Assert.assertTrue(Arrays.equals(fromTsv.getEventMonthSeries(from, to),
+				fromSnapshot.getEventMonthSeries(from, to)));
+		Assert.assertTrue(Arrays.equals(fromTsv.getEventStateMonthSeries("NJ", from, to),
+				fromSnapshot.getEventStateMonthSeries("NJ", from, to)));
+		Assert.assertEquals(fromTsv.getStates(), fromSnapshot.getStates());
+	}
+}
@@ -0,0 +1,80 @@
+package drew.datacube.ufo;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.urbanairship.datacube.SyncLevel;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import drew.datacube.metrics.CubeMetrics;
+import drew.datacube.ufo.UFOIngestPipeline.IngestStats;
+import drew.ufo.reader.UFODataEntry;
+import drew.ufo.reader.UFODataReader;
+
+public class UFOIngestPipelineTest {
+
+	static final String[] STATES = { "NJ", "NY", "WA", "IA", "OR" };
+
+	static File writeSampleData(int rows) throws Exception {
+		File file = File.createTempFile("ufo_sample", ".tsv");
+		file.deleteOnExit();
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		for (int i=0; i < rows; i++) {
+			String day = String.format("1995%02d%02d", (i % 12) + 1, (i % 28) + 1);
+			if (i % 50 == 0) {
+				// no state, rejected by the parser
+				out.println(day + "\t" + day + "\t Somewhere\tdisk\t5 min\tbright light");
+			}
+			else {
+				out.println(day + "\t" + day + "\t City" + (i % 7) + ", " + STATES[i % STATES.length]
+						+ "\tlight\t5 min\tbright light moving fast");
+			}
+		}
+		out.close();
+		return file;
+	}
+
+	@Test
+	public void testMatchesPerRowIngest() throws Exception {
+		File file = writeSampleData(5000);
+
+		SimpleUFODatacube perRow = new SimpleUFODatacube();
+		UFODataReader reader = new UFODataReader(file);
+		for (UFODataEntry entry: reader) {
+			perRow.addUFOEntry(entry);
+		}
+		reader.close();
+
+		SimpleUFODatacube pipelined = new SimpleUFODatacube(500, SyncLevel.BATCH_ASYNC);
+		reader = new UFODataReader(file);
+		CubeMetrics metrics = new CubeMetrics(new MetricsRegistry(), "ufo");
+		metrics.meter(reader);
+		IngestStats stats = new UFOIngestPipeline(pipelined, 4).run(reader);
+		reader.close();
+
+		Assert.assertEquals(5000, stats.rowsRead);
+		Assert.assertEquals(100, stats.rowsSkipped);
+		Assert.assertEquals(4900, stats.rowsParsed);
+		Assert.assertEquals(4900, reader.getRowsMeter().count());
+		Assert.assertEquals(100, reader.getParseErrorsMeter().count());
+
+		long total = 0;
+		for (int month=1; month <= 12; month++) {
+			DateTime time = new DateTime(1995, month, 1, 1, 0, 0, 0);
+			long count = pipelined.getEventMonthCount(time);
+			Assert.assertEquals(perRow.getEventMonthCount(time), count);
+			total += count;
+			for (String state: STATES) {
+				Assert.assertEquals(perRow.getEventStateMonthCount(state, time),
+						pipelined.getEventStateMonthCount(state, time));
+			}
+		}
+		Assert.assertEquals(4900, total);
+	}
+}
@@ -0,0 +1,71 @@
+package drew.datacube.ufo;
+
+import java.io.File;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.urbanairship.datacube.SyncLevel;
+
+import drew.ufo.reader.UFODataEntry;
+import drew.ufo.reader.UFODataReader;
+
+public class UFOPreAggregatorTest {
+
+	@Test
+	public void testMatchesPerRowIngest() throws Exception {
+		File file = UFOIngestPipelineTest.writeSampleData(5000);
+
+		SimpleUFODatacube perRow = new SimpleUFODatacube();
+		UFODataReader reader = new UFODataReader(file);
+		for (UFODataEntry entry: reader) {
+			perRow.addUFOEntry(entry);
+		}
+		reader.close();
+
+		// the sample cycles through 420 (state, shape, day) triples, so with room
+		// for all of them each is written once; with 64 keys it drains often
+		for (int maxKeys: new int[] { 1024, 64 }) {
+			SimpleUFODatacube aggregated = new SimpleUFODatacube(100, SyncLevel.BATCH_ASYNC);
+			UFOPreAggregator aggregator = new UFOPreAggregator(aggregated, maxKeys, Long.MAX_VALUE);
+			reader = new UFODataReader(file);
+			for (UFODataEntry entry: reader) {
+				aggregator.add(entry);
+			}
+			reader.close();
+			aggregator.flush();
+
+			Assert.assertEquals(4900, aggregator.getRowsAdded());
+			if (maxKeys == 1024) {
+				Assert.assertEquals(1, aggregator.getDrains());
+				Assert.assertEquals(420, aggregator.getCellWrites());
+			}
+			else {
+				Assert.assertTrue(aggregator.getDrains() > 1);
+			}
+
+			for (int month=1; month <= 12; month++) {
+				DateTime time = new DateTime(1995, month, 1, 1, 0, 0, 0);
+				Assert.assertEquals(perRow.getEventMonthCount(time), aggregated.getEventMonthCount(time));
+				for (String state: UFOIngestPipelineTest.STATES) {
+					Assert.assertEquals(perRow.getEventStateMonthCount(state, time),
+							aggregated.getEventStateMonthCount(state, time));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRejectsRollupsOverOtherDimensions() throws Exception {
+		try {
+			new UFOPreAggregator(new SimpleUFODatacube(SimpleUFODatacube.defaultConfig()
+					.set("rollups", "state+eventDate:months, city")));
+			Assert.fail();
+		}
+		catch (IllegalArgumentException ex) {
+			// city counts would be lost
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package drew.ufo.generator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import drew.ufo.reader.UFODataEntry;
+import drew.ufo.reader.UFODataReader;
+
+public class UFODataGeneratorTest {
+
+	@Test
+	public void testReadableAndDeterministic() throws Exception {
+		UFODataGenerator generator = new UFODataGenerator();
+		generator.setDateRange(new LocalDate(1995, 1, 1), new LocalDate(1995, 12, 31));
+		generator.setNumStates(20);
+		generator.setMalformedRatio(0.05);
+		generator.setChunkRows(700);
+		generator.setThreads(1);
+
+		ByteArrayOutputStream single = new ByteArrayOutputStream();
+		long malformed = generator.write(single, 10000);
+		generator.setThreads(4);
+		ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+		Assert.assertEquals(malformed, generator.write(parallel, 10000));
+		Assert.assertTrue(Arrays.equals(single.toByteArray(), parallel.toByteArray()));
+		Assert.assertTrue(malformed > 300 && malformed < 700);
+
+		File file = File.createTempFile("ufo_generated", ".tsv");
+		file.deleteOnExit();
+		generator.write(file, 10000);
+
+		Map<String,Integer> states = new HashMap<String,Integer>();
+		int parsed = 0;
+		UFODataReader reader = new UFODataReader(file);
+		for (UFODataEntry entry: reader) {
+			parsed++;
+			Assert.assertEquals(1995, entry.getEventDate().getYear());
+			Assert.assertFalse(entry.getReportDate().isBefore(entry.getEventDate()));
+			Integer count = states.get(entry.getState());
+			states.put(entry.getState(), count == null ? 1 : count + 1);
+		}
+		reader.close();
+		Assert.assertEquals(10000 - malformed, parsed);
+		Assert.assertEquals(20, states.size());
+
+		// with a skew of 1 the first state is drawn about 20 times as often as the last
+		Assert.assertTrue(states.get("AK") > 10 * states.get(UFODataGenerator.stateCodes(20)[19]));
+	}
+
+	@Test
+	public void testStateCodes() {
+		String[] codes = UFODataGenerator.stateCodes(676);
+		Assert.assertEquals(676, codes.length);
+		Assert.assertEquals(676, new java.util.HashSet<String>(Arrays.asList(codes)).size());
+		Assert.assertEquals("AK", codes[0]);
+	}
+}
@@ -1,9 +1,26 @@
 package drew.ufo.reader;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.joda.time.DateTime;
 import org.junit.Test;
 
 import drew.ufo.reader.UFODataEntry;
 import drew.ufo.reader.UFODataReader;
+import drew.ufo.reader.MappedUFODataReader.EntryHandler;
+import drew.ufo.reader.MappedUFODataReader.MappedUFODataIterator;
+import drew.ufo.reader.MappedUFODataReader.UFODataSplit;
 
 public class UFODataReaderTest {
 
@@ -21,4 +38,314 @@ public class UFODataReaderTest {
 		
 	}
 
+	@Test
+	public void testParseDateMatchesSimpleDateFormat() throws Exception {
+		UFODataParser parser = new UFODataParser();
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+
+		String[] inputs = { "19951009", "19951009", "20000229", "19950231", "19950000",
+				"00000000", "1995109", "19951009x", "abc", "1995-10-09", "" };
+		for (String input: inputs) {
+			DateTime expected = null;
+			try {
+				expected = new DateTime(format.parse(input).getTime());
+			}
+			catch (ParseException ex) {
+				// expected below as well
+			}
+
+			try {
+				DateTime parsed = parser.parseDate(input);
+				Assert.assertNotNull("expected ParseException for '" + input + "'", expected);
+				Assert.assertEquals(expected, parsed);
+			}
+			catch (ParseException ex) {
+				Assert.assertNull("unexpected ParseException for '" + input + "'", expected);
+			}
+		}
+	}
+	static List<UFODataEntry> readAll(Iterable<UFODataEntry> reader) {
+		List<UFODataEntry> entries = new ArrayList<UFODataEntry>();
+		for (UFODataEntry e: reader) {
+			entries.add(e);
+		}
+		return entries;
+	}
+
+	@Test
+	public void testMappedReaderMatches() throws Exception {
+		File file = File.createTempFile("ufo_mapped", ".tsv");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		StringBuilder data = new StringBuilder();
+		for (int i=0; i < 200; i++) {
+			data.append("1995").append(String.format("%02d%02d", (i % 12) + 1, (i % 28) + 1))
+				.append("\t19951009\t Iowa City, IA\t light \t5 min\t saw a light\r\n");
+			data.append("19951009\t19951009\t Alice Springs  (NT, Australia),\tdisk\t1 hr\tbad location\n");
+			data.append("too\tfew\tfields\n\n");
+			data.append("1995x009\t19951009\t Redmond, WA\tdisk\t1 hr\tbad date\n");
+		}
+		data.append("19950103\t19950103\t Gladstone, OR\tsphere\t2 min\tno trailing newline");
+		out.write(data.toString().getBytes("UTF-8"));
+		out.close();
+
+		UFODataReader reader = new UFODataReader(file);
+		List<UFODataEntry> expected = readAll(reader);
+		reader.close();
+
+		MappedUFODataReader mapped = new MappedUFODataReader(file);
+		List<UFODataEntry> actual = readAll(mapped);
+		mapped.close();
+
+		Assert.assertEquals(201, expected.size());
+		Assert.assertEquals(expected, actual);
+
+		// a small window forces the scanner to slide over line boundaries
+		FileChannel channel = new FileInputStream(file).getChannel();
+		Iterator<UFODataEntry> it = new MappedUFODataIterator(
+				new MappedTSVScanner(channel, 0, channel.size(), 100), 0, false);
+		List<UFODataEntry> windowed = new ArrayList<UFODataEntry>();
+		while (it.hasNext()) {
+			windowed.add(it.next());
+		}
+		channel.close();
+		Assert.assertEquals(expected, windowed);
+
+		mapped = new MappedUFODataReader(file);
+		mapped.setLimit(10);
+		mapped.setDimensionFieldsOnly(true);
+		List<UFODataEntry> limited = readAll(mapped);
+		mapped.close();
+		Assert.assertEquals(10, limited.size());
+		Assert.assertNull(limited.get(0).getDescription());
+		Assert.assertEquals(expected.get(0).getCity(), limited.get(0).getCity());
+
+		// multi-byte cities fall back to decoding the whole field
+		out = new FileOutputStream(file);
+		out.write("19951009\t19951009\t Z\u00fcrich, ZH\tdisk\t1 hr\tnot ascii\n".getBytes("UTF-8"));
+		out.close();
+		mapped = new MappedUFODataReader(file);
+		UFODataEntry zurich = mapped.iterator().next();
+		mapped.close();
+		Assert.assertEquals("Z\u00fcrich", zurich.getCity());
+		Assert.assertEquals("ZH", zurich.getState());
+	}
+
+	@Test
+	public void testSplitsCoverEveryLine() throws Exception {
+		File file = File.createTempFile("ufo_splits", ".tsv");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		StringBuilder data = new StringBuilder();
+		for (int i=0; i < 1000; i++) {
+			if (i % 10 == 0) {
+				data.append("19951009\t19951009\t Nowhere\tdisk\t1 hr\tno state\n");
+			}
+			else {
+				data.append(String.format("1995%02d%02d", (i % 12) + 1, (i % 28) + 1))
+					.append("\t19951009\t City").append(i).append(", WA\tlight\t5 min\tline ").append(i).append('\n');
+			}
+		}
+		out.write(data.toString().getBytes("UTF-8"));
+		out.close();
+
+		MappedUFODataReader reader = new MappedUFODataReader(file);
+		List<UFODataEntry> expected = readAll(reader);
+		Assert.assertEquals(900, expected.size());
+
+		// more splits than lines collapses to one split per line at most
+		Assert.assertEquals(1, reader.getSplits(1).size());
+		Assert.assertTrue(reader.getSplits(5000).size() <= 1000);
+
+		List<UFODataSplit> splits = reader.getSplits(7);
+		Assert.assertEquals(7, splits.size());
+		Assert.assertEquals(0, splits.get(0).getStart());
+		Assert.assertEquals(file.length(), splits.get(6).getEnd());
+		List<UFODataEntry> sequential = new ArrayList<UFODataEntry>();
+		for (int i=0; i < splits.size(); i++) {
+			if (i > 0) {
+				Assert.assertEquals(splits.get(i - 1).getEnd(), splits.get(i).getStart());
+			}
+			for (UFODataEntry entry: splits.get(i)) {
+				sequential.add(entry);
+			}
+		}
+		Assert.assertEquals(expected, sequential);
+
+		final List<UFODataEntry> concurrent = Collections.synchronizedList(new ArrayList<UFODataEntry>());
+		splits = reader.parse(4, 4, new EntryHandler() {
+			public void handle(UFODataEntry entry) {
+				concurrent.add(entry);
+			}
+		});
+		reader.close();
+
+		long parsed = 0;
+		long skipped = 0;
+		for (UFODataSplit split: splits) {
+			parsed += split.getRowsParsed();
+			skipped += split.getRowsSkipped();
+		}
+		Assert.assertEquals(900, parsed);
+		Assert.assertEquals(100, skipped);
+		Assert.assertEquals(900, concurrent.size());
+		Assert.assertTrue(concurrent.containsAll(expected));
+	}
+
+	@Test
+	public void testCompactIteratorMatches() throws Exception {
+		File file = File.createTempFile("ufo_compact", ".tsv");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		StringBuilder data = new StringBuilder();
+		for (int i=0; i < 500; i++) {
+			data.append(String.format("19%02d%02d%02d", 60 + i % 50, (i % 12) + 1, (i % 28) + 1))
+				.append("	20050101	 City").append(i % 37).append(", ").append(i % 3 == 0 ? "WA" : "OR")
+				.append("	").append(i % 2 == 0 ? "disk" : "light").append("	5 min	line ").append(i).append('\n');
+			if (i % 50 == 0) {
+				data.append("19951009\t19951009\t Nowhere\tdisk\t1 hr\tno state\n");
+				data.append("1995xx09\t19951009\t Elsewhere, TX\tcigar\t1 hr\tbad date\n");
+			}
+		}
+		data.append("19951009\t19951009\t Z\u00fcrich, ZH\tdisk\t1 hr\tnot ascii\n");
+		out.write(data.toString().getBytes("UTF-8"));
+		out.close();
+
+		MappedUFODataReader reader = new MappedUFODataReader(file);
+		List<UFODataEntry> expected = readAll(reader);
+		UFODictionaries dictionaries = new UFODictionaries();
+		Iterator<CompactUFOEntry> it = reader.compactIterator(dictionaries);
+		List<CompactUFOEntry> copies = new ArrayList<CompactUFOEntry>();
+		CompactUFOEntry previous = null;
+		int i = 0;
+		while (it.hasNext()) {
+			CompactUFOEntry entry = it.next();
+			if (previous != null) {
+				Assert.assertSame(previous, entry);
+			}
+			previous = entry;
+			UFODataEntry e = expected.get(i++);
+			Assert.assertEquals(e.getEventDate(), entry.getEventDate());
+			Assert.assertEquals(e.getReportDate(), entry.getReportDate());
+			Assert.assertEquals(e.getCity(), entry.getCity());
+			Assert.assertEquals(e.getState(), entry.getState());
+			Assert.assertEquals(e.getShape(), entry.getShape());
+			Assert.assertEquals(e.getDuration(), entry.getDuration());
+			Assert.assertEquals(e.getDescription(), entry.getDescription());
+			copies.add(entry.copy());
+		}
+		Assert.assertEquals(expected.size(), i);
+		// the skipped rows leave nothing behind in the dictionaries
+		Assert.assertEquals(38, dictionaries.getCities().size());
+		Assert.assertEquals(3, dictionaries.getStates().size());
+		Assert.assertEquals(2, dictionaries.getShapes().size());
+		Assert.assertEquals("Z\u00fcrich", dictionaries.getCities().get(copies.get(i - 1).getCityCode()));
+		for (int code: new int[] { -1, 38 }) {
+			try {
+				dictionaries.getCities().get(code);
+				Assert.fail();
+			}
+			catch (IllegalArgumentException ex) {
+				// not a city code
+			}
+		}
+
+		// copies keep their row, the holder moves on with the iterator
+		it = reader.compactIterator(dictionaries);
+		CompactUFOEntry first = it.next();
+		Assert.assertEquals(copies.get(0), first);
+		it.hasNext();
+		Assert.assertEquals("line 1", first.getDescription());
+		Assert.assertEquals("line 0", copies.get(0).getDescription());
+		Assert.assertEquals(copies.get(1), first);
+
+		// dates are day numbers, codes are shared with setters
+		CompactUFOEntry built = new CompactUFOEntry(dictionaries);
+		built.setEventDate(expected.get(0).getEventDate());
+		built.setCity("City0");
+		Assert.assertEquals(copies.get(0).getEventDay(), built.getEventDay());
+		Assert.assertEquals(copies.get(0).getCityCode(), built.getCityCode());
+		Assert.assertEquals(dictionaries.getDate(built.getEventDay() + 1), expected.get(0).getEventDate().plusDays(1));
+		reader.close();
+	}
+
+	@Test
+	public void testSnapshotRoundTrip() throws Exception {
+		File tsv = File.createTempFile("ufo_snapshot", ".tsv");
+		tsv.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(tsv);
+		StringBuilder data = new StringBuilder();
+		for (int i=0; i < 1000; i++) {
+			// dates from 1400 to 2009, so day numbers go negative and span over 2 bytes
+			data.append(String.format("%04d%02d%02d", 1400 + i * 61 % 610, (i % 12) + 1, (i % 28) + 1))
+				.append("\t20050101\t City").append(i % 300).append(", ").append(i % 3 == 0 ? "WA" : "OR")
+				.append("\t").append(i % 2 == 0 ? "disk" : "light").append("\t").append(i % 5 == 0 ? "" : "5 min")
+				.append("\tline ").append(i).append('\n');
+		}
+		data.append("19951009\t19951009\t Z\u00fcrich, ZH\tdisk\t1 hr\tnot ascii\n");
+		out.write(data.toString().getBytes("UTF-8"));
+		out.close();
+
+		List<UFODataEntry> expected = readAll(new MappedUFODataReader(tsv));
+		File file = File.createTempFile("ufo_snapshot", ".snapshot");
+		file.deleteOnExit();
+		UFOSnapshotWriter writer = new UFOSnapshotWriter(file);
+		writer.setBlockRows(64);
+		for (UFODataEntry e: expected) {
+			writer.add(e);
+		}
+		writer.close();
+		Assert.assertTrue(UFOSnapshotReader.isSnapshot(file));
+		Assert.assertFalse(UFOSnapshotReader.isSnapshot(tsv));
+
+		UFOSnapshotReader reader = new UFOSnapshotReader(file);
+		Assert.assertEquals(expected.size(), reader.getRowCount());
+		Assert.assertEquals(16, reader.getBlockCount());
+		Assert.assertEquals(64, reader.getBlockFirstRow(1));
+		List<UFODataEntry> read = readAll(reader);
+		Assert.assertEquals(expected.size(), read.size());
+		for (int i=0; i < expected.size(); i++) {
+			UFODataEntry e = expected.get(i);
+			UFODataEntry r = read.get(i);
+			Assert.assertEquals(e.getEventDate(), r.getEventDate());
+			Assert.assertEquals(e.getReportDate(), r.getReportDate());
+			Assert.assertEquals(e.getCity(), r.getCity());
+			Assert.assertEquals(e.getState(), r.getState());
+			Assert.assertEquals(e.getShape(), r.getShape());
+			Assert.assertEquals(e.getDuration(), r.getDuration());
+			Assert.assertEquals(e.getDescription(), r.getDescription());
+		}
+		Assert.assertEquals("Z\u00fcrich", read.get(read.size() - 1).getCity());
+
+		// a range of blocks, into a reused entry, without the text
+		reader.setDimensionFieldsOnly(true);
+		Iterator<CompactUFOEntry> it = reader.compactIterator(1, 3);
+		int count = 0;
+		while (it.hasNext()) {
+			CompactUFOEntry entry = it.next();
+			Assert.assertEquals(expected.get(64 + count).getCity(), entry.getCity());
+			Assert.assertNull(entry.getDescription());
+			count++;
+		}
+		Assert.assertEquals(128, count);
+		reader.close();
+
+		// compact entries with the writer's dictionaries are copied by code
+		File compact = File.createTempFile("ufo_snapshot", ".snapshot");
+		compact.deleteOnExit();
+		writer = new UFOSnapshotWriter(compact);
+		writer.setIncludeText(false);
+		MappedUFODataReader mapped = new MappedUFODataReader(tsv);
+		Assert.assertEquals(expected.size(), writer.addAll(mapped.compactIterator(writer.getDictionaries())));
+		writer.close();
+		mapped.close();
+		reader = new UFOSnapshotReader(compact);
+		Assert.assertFalse(reader.hasText());
+		read = readAll(reader);
+		Assert.assertEquals(expected.get(500).getEventDate(), read.get(500).getEventDate());
+		Assert.assertEquals(expected.get(500).getCity(), read.get(500).getCity());
+		Assert.assertNull(read.get(500).getDuration());
+		reader.close();
+		Assert.assertTrue(compact.length() < file.length() / 2);
+	}
 }